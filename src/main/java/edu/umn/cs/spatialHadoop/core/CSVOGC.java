@@ -16,6 +16,9 @@ import org.apache.hadoop.io.Text;
 
 import com.vividsolutions.jts.geom.Geometry;
 
+import edu.umn.cs.spatialHadoop.io.TextCursor;
+import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
+
 /**
  * Loads a shape from a specific column in a CSV file. Both the separator and
  * the column to load are configurable.
@@ -137,9 +140,10 @@ public class CSVOGC extends OGCJTSShape {
       System.arraycopy(bytes, i2, suffix, 0, text.getLength() - i2);
     }
     
-    // Chop prefix and suffix and leave only the selected column
-    text.set(bytes, i1, i2 - i1);
-    super.fromText(text);
+    // Parse the selected column in place without copying it
+    TextCursor cursor = new TextCursor().reset(bytes, i1, i2);
+    super.geom = TextSerializerHelper.consumeGeometryJTS(cursor, '\0');
+    text.clear();
   }
   
   @Override
@@ -12,7 +12,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -28,12 +27,14 @@ import org.apache.hadoop.io.compress.GzipCodec;
 import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.Progressable;
 import org.apache.hadoop.util.ReflectionUtils;
 
 import edu.umn.cs.spatialHadoop.indexing.Partition;
 import edu.umn.cs.spatialHadoop.mapred.GridRecordWriter2;
 import edu.umn.cs.spatialHadoop.mapred.GridRecordWriter3;
+import edu.umn.cs.spatialHadoop.util.BoundedExecutor;
 
 /**
  * Writes a spatial file where objects are of type S. This class is used as a
@@ -87,8 +88,8 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
   /**An output stream to the master file*/
   protected OutputStream masterFile;
   
-  /**A list of threads closing cells in background*/
-  protected ArrayList<Thread> closingThreads;
+  /**Cells being closed in background*/
+  protected BoundedExecutor.TaskGroup closingTasks;
   
   /**
    * Keeps the number of elements written to each cell so far.
@@ -221,7 +222,8 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
 
     this.blockSize = fileSystem.getDefaultBlockSize(outDir);
     
-    closingThreads = new ArrayList<Thread>();
+    closingTasks = BoundedExecutor.getShared(job != null ? job : fileSystem.getConf())
+        .createGroup();
     text = new Text();
   }
 
@@ -451,7 +453,7 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
       final OutputStream masterFile, final CellInfo cellMbr,
       final long recordCount, final long cellSize) throws IOException {
     
-    Thread closingThread = new Thread() {
+    Runnable closingTask = new Runnable() {
       @Override
       public void run() {
         try {
@@ -465,8 +467,10 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
             partition.recordCount = recordCount;
             partition.size = cellSize;
             Text line = partition.toText(new Text());
-            masterFile.write(line.getBytes(), 0, line.getLength());
-            masterFile.write(NEW_LINE);
+            synchronized (masterFile) {
+              masterFile.write(line.getBytes(), 0, line.getLength());
+              masterFile.write(NEW_LINE);
+            }
           }
         } catch (IOException e) {
           throw new RuntimeException("Error closing thread", e);
@@ -474,15 +478,19 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
       }
     };
     
-    closingThreads.add(closingThread);
-    // Remove previously terminated threads
-    while (!closingThreads.isEmpty() &&
-        closingThreads.get(0).getState() == Thread.State.TERMINATED) {
-      closingThreads.remove(0);
-    }
-    // Start first thread (if exists)
-    if (!closingThreads.isEmpty() && closingThreads.get(0).getState() == Thread.State.NEW)
-      closingThreads.get(0).start();
+    // Blocks if too many cells are being closed
+    closingTasks.submit(closingTask, getFlushMemory(cellSize));
+  }
+  
+  /**
+   * Returns an estimate of the memory needed to flush a cell of the given
+   * size. Used to limit the number of cells flushed in parallel.
+   * @param cellSize
+   * @return
+   */
+  protected long getFlushMemory(long cellSize) {
+    // The intermediate file is flushed without being loaded in memory
+    return 0;
   }
   
   /**
@@ -515,25 +523,18 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
       if (progressable != null)
         progressable.progress();
     }
-    LOG.info("Closing record writer with "+closingThreads.size()+" remaining threads");
-
-    while (!closingThreads.isEmpty()) {
-      try {
-        Thread t = closingThreads.get(0);
-        switch (t.getState()) {
-        case NEW: t.start(); break;
-        case TERMINATED: closingThreads.remove(0); break;
-        default:
-          // Use limited time join to indicate progress frequently
-          t.join(10000);
-        }
-        // Indicate progress. Useful if closing a single cell takes a long time
-        if (progressable != null)
-          progressable.progress();
-      } catch (InterruptedException e) {
-        e.printStackTrace();
-      }
+    LOG.info("Closing record writer with "+closingTasks.getNumRemainingTasks()+" remaining tasks");
+    closingTasks.waitForAll(progressable);
+    if (progressable instanceof Reporter) {
+      Reporter reporter = (Reporter) progressable;
+      reporter.incrCounter(BoundedExecutor.Counters.BACKGROUND_TASKS,
+          closingTasks.getNumCompletedTasks());
+      reporter.incrCounter(BoundedExecutor.Counters.BACKGROUND_TIME_MILLIS,
+          closingTasks.getRunTime());
+      reporter.incrCounter(BoundedExecutor.Counters.BACKGROUND_BLOCKED_MILLIS,
+          closingTasks.getBlockedTime());
     }
+    LOG.info("Maximum background queue depth "+closingTasks.getMaxQueueDepth());
     
     if (masterFile != null)
       masterFile.close();
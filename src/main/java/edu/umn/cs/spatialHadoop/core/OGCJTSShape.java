@@ -19,10 +19,13 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.io.Text;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryCollection;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
 import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKBReader;
 import com.vividsolutions.jts.io.WKBWriter;
@@ -63,6 +66,25 @@ public class OGCJTSShape implements Shape {
    * The underlying geometry
    */
   public Geometry geom;
+
+  /**The prepared version of the geometry if {@link #prepare()} was called*/
+  private transient PreparedGeometry prepared;
+  /**The geometry that {@link #prepared} was created from*/
+  private transient Geometry preparedGeom;
+
+  /**The JTS polygon of the last rectangle tested in each thread*/
+  static class RectanglePolygon {
+    double x1, y1, x2, y2;
+    Polygon poly;
+  }
+
+  private static final ThreadLocal<RectanglePolygon> LastRectangle =
+      new ThreadLocal<RectanglePolygon>() {
+    @Override
+    protected RectanglePolygon initialValue() {
+      return new RectanglePolygon();
+    }
+  };
   
   public OGCJTSShape() {
     this(null);
@@ -167,23 +189,70 @@ public class OGCJTSShape implements Shape {
     return this.geom.distance(geom.getFactory().createPoint(new Coordinate(x, y)));
   }
 
+  /**
+   * Prepares the geometry of this shape to speed up subsequent calls to
+   * {@link #isIntersected(Shape)} on this shape or with this shape as the
+   * argument. This is useful for a query shape that is tested against many
+   * records. The prepared geometry is discarded if {@link #geom} is changed.
+   * @return
+   */
+  public PreparedGeometry prepare() {
+    if (prepared == null || preparedGeom != geom) {
+      prepared = geom == null? null : PreparedGeometryFactory.prepare(geom);
+      preparedGeom = geom;
+    }
+    return prepared;
+  }
+
   @Override
   public boolean isIntersected(Shape s) {
     if (this.geom == null)
       return false;
     if (s instanceof OGCJTSShape) {
-      return geom.intersects(((OGCJTSShape)s).geom);
+      OGCJTSShape jtsShape = (OGCJTSShape) s;
+      if (jtsShape.geom == null)
+        return false;
+      if (this.prepared != null && this.preparedGeom == this.geom)
+        return this.prepared.intersects(jtsShape.geom);
+      if (jtsShape.prepared != null && jtsShape.preparedGeom == jtsShape.geom)
+        return jtsShape.prepared.intersects(geom);
+      return geom.intersects(jtsShape.geom);
     }
     Rectangle mbr = s.getMBR();
-    Coordinate[] coordinates = new Coordinate[5];
-    coordinates[0] = new Coordinate(mbr.x1, mbr.y1);
-    coordinates[1] = new Coordinate(mbr.x1, mbr.y2);
-    coordinates[2] = new Coordinate(mbr.x2, mbr.y2);
-    coordinates[3] = new Coordinate(mbr.x2, mbr.y1);
-    coordinates[4] = coordinates[0];
-    Polygon mbrPoly = geom.getFactory().createPolygon(geom.getFactory().createLinearRing(coordinates), null);
-    
-    return geom.intersects(mbrPoly);
+    if (mbr == null)
+      return false;
+    // Compare with the envelope first to avoid creating a JTS polygon
+    Envelope env = geom.getEnvelopeInternal();
+    if (env.isNull())
+      return false;
+    if (env.getMinX() > mbr.x2 || env.getMaxX() < mbr.x1 ||
+        env.getMinY() > mbr.y2 || env.getMaxY() < mbr.y1)
+      return false;
+    if (env.getMinX() >= mbr.x1 && env.getMaxX() <= mbr.x2 &&
+        env.getMinY() >= mbr.y1 && env.getMaxY() <= mbr.y2)
+      return true;
+    // Partial overlap. Test with the polygon of the rectangle which is reused
+    // as long as the same rectangle is tested
+    RectanglePolygon mbrPoly = LastRectangle.get();
+    if (mbrPoly.poly == null || mbrPoly.x1 != mbr.x1 || mbrPoly.y1 != mbr.y1 ||
+        mbrPoly.x2 != mbr.x2 || mbrPoly.y2 != mbr.y2) {
+      Coordinate[] coordinates = new Coordinate[5];
+      coordinates[0] = new Coordinate(mbr.x1, mbr.y1);
+      coordinates[1] = new Coordinate(mbr.x1, mbr.y2);
+      coordinates[2] = new Coordinate(mbr.x2, mbr.y2);
+      coordinates[3] = new Coordinate(mbr.x2, mbr.y1);
+      coordinates[4] = coordinates[0];
+      mbrPoly.poly = geom.getFactory().createPolygon(
+          geom.getFactory().createLinearRing(coordinates), null);
+      mbrPoly.x1 = mbr.x1;
+      mbrPoly.y1 = mbr.y1;
+      mbrPoly.x2 = mbr.x2;
+      mbrPoly.y2 = mbr.y2;
+    }
+    if (this.prepared != null && this.preparedGeom == this.geom)
+      return this.prepared.intersects(mbrPoly.poly);
+    // JTS has a fast path when the first geometry is a rectangle
+    return mbrPoly.poly.intersects(geom);
   }
 
   @Override
@@ -15,6 +15,7 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.Text;
 
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
@@ -146,8 +147,10 @@ public class Point implements Shape, Comparable<Point> {
   
   @Override
   public void fromText(Text text) {
-    x = TextSerializerHelper.consumeDouble(text, ',');
-    y = TextSerializerHelper.consumeDouble(text, '\0');
+    TextCursor cursor = TextCursor.forThread(text);
+    x = cursor.nextDouble(',');
+    y = cursor.nextDouble('\0');
+    cursor.consume(text);
   }
 
   @Override
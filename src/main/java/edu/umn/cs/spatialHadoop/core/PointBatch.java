@@ -0,0 +1,147 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.core;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A batch of points stored as two arrays of coordinates. A range filter is
+ * evaluated over the arrays in one tight loop rather than calling
+ * {@link Shape#isIntersected(Shape)} on each point. Points are returned by
+ * iterating over the batch, which reuses one stock point for all of them.
+ * @author Ahmed Eldawy
+ *
+ */
+public class PointBatch implements Iterable<Point> {
+  /**Coordinates of the points in the batch*/
+  protected double[] xs, ys;
+  /**Number of points in the batch*/
+  protected int size;
+  /**Indexes of points selected by the last range filter*/
+  protected int[] selected;
+  /**Number of selected points or -1 if all points are selected*/
+  protected int numSelected = -1;
+  /**The point used to return all points*/
+  protected Point stockPoint;
+
+  /**
+   * Creates an empty batch that can hold the given number of points
+   * @param capacity
+   * @param stockPoint
+   */
+  public PointBatch(int capacity, Point stockPoint) {
+    this(new double[capacity], new double[capacity], 0, stockPoint);
+  }
+
+  /**
+   * Creates a batch over existing arrays of coordinates
+   * @param xs
+   * @param ys
+   * @param size - number of points in the arrays
+   * @param stockPoint
+   */
+  public PointBatch(double[] xs, double[] ys, int size, Point stockPoint) {
+    this.xs = xs;
+    this.ys = ys;
+    this.size = size;
+    this.stockPoint = stockPoint;
+  }
+
+  /**
+   * Removes all points from the batch
+   */
+  public void clear() {
+    size = 0;
+    numSelected = -1;
+  }
+
+  public void add(double x, double y) {
+    xs[size] = x;
+    ys[size] = y;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isFull() {
+    return size == xs.length;
+  }
+
+  /**
+   * Selects the points that are inside the given rectangle. Similar to
+   * {@link Rectangle#contains(double, double)}, the rectangle includes its
+   * lower boundaries and excludes its upper boundaries. Only selected points
+   * are returned by subsequent iterations over this batch.
+   * @param x1
+   * @param y1
+   * @param x2
+   * @param y2
+   * @return number of selected points
+   */
+  public int selectInRange(double x1, double y1, double x2, double y2) {
+    if (selected == null || selected.length < size)
+      selected = new int[xs.length];
+    final double[] xs = this.xs;
+    final double[] ys = this.ys;
+    final int[] selected = this.selected;
+    int n = 0;
+    for (int i = 0; i < size; i++) {
+      double x = xs[i], y = ys[i];
+      // Always write the index and only advance if it matches to avoid a
+      // hard-to-predict branch per point
+      selected[n] = i;
+      n += (x >= x1 & x < x2 & y >= y1 & y < y2) ? 1 : 0;
+    }
+    return numSelected = n;
+  }
+
+  public int selectInRange(Rectangle range) {
+    return selectInRange(range.x1, range.y1, range.x2, range.y2);
+  }
+
+  /**
+   * Number of points returned when iterating over this batch
+   * @return
+   */
+  public int getSelectedCount() {
+    return numSelected == -1 ? size : numSelected;
+  }
+
+  @Override
+  public Iterator<Point> iterator() {
+    return new Iterator<Point>() {
+      /**Position of the next point in the selected points*/
+      int next = 0;
+      final int count = getSelectedCount();
+
+      @Override
+      public boolean hasNext() {
+        return next < count;
+      }
+
+      @Override
+      public Point next() {
+        if (next >= count)
+          throw new NoSuchElementException();
+        int i = numSelected == -1 ? next : selected[next];
+        next++;
+        stockPoint.set(xs[i], ys[i]);
+        return stockPoint;
+      }
+
+      @Override
+      public void remove() {
+        throw new RuntimeException("Non-implemented method");
+      }
+    };
+  }
+}
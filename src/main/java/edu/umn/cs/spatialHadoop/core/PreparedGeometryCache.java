@@ -0,0 +1,202 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+
+/**
+ * A bounded cache of JTS prepared geometries. Used in the refine step of
+ * spatial joins where the same geometry is tested against many others. A
+ * prepared geometry builds its internal indexes once and reuses them in all
+ * subsequent tests. Geometries are looked up by reference, so the cache
+ * should be used with geometry objects that are kept in memory during the
+ * join. Two equal geometries, e.g., one from each input, have separate
+ * entries.
+ * @author Ahmed Eldawy
+ *
+ */
+public class PreparedGeometryCache {
+
+  /**Default maximum number of prepared geometries kept in the cache*/
+  public static final int DefaultCapacity = 1000;
+
+  private static final PreparedGeometryFactory Factory =
+      new PreparedGeometryFactory();
+
+  /**
+   * A cached geometry along with its number of vertices. The number of
+   * vertices is computed only once as it takes linear time and the geometry
+   * is prepared only when it is chosen for preparation.
+   */
+  private static class Entry {
+    final int numPoints;
+    PreparedGeometry prepared;
+
+    Entry(Geometry geom) {
+      this.numPoints = geom.getNumPoints();
+    }
+  }
+
+  /**
+   * Wraps a geometry to look it up by reference. The hash code and equals of
+   * a geometry compare its coordinates which takes linear time.
+   */
+  private static final class IdentityKey {
+    final Geometry geom;
+
+    IdentityKey(Geometry geom) {
+      this.geom = geom;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(geom);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof IdentityKey && ((IdentityKey)obj).geom == geom;
+    }
+  }
+
+  /**An access-ordered map that removes the least recently used entries*/
+  private final LinkedHashMap<IdentityKey, Entry> cache;
+
+  public PreparedGeometryCache() {
+    this(DefaultCapacity);
+  }
+
+  public PreparedGeometryCache(final int capacity) {
+    this.cache = new LinkedHashMap<IdentityKey, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 3505370316066338563L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<IdentityKey, Entry> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Returns the cache entry of the given geometry or creates it if it is not
+   * in the cache.
+   * @param geom
+   * @return
+   */
+  private Entry getEntry(Geometry geom) {
+    IdentityKey key = new IdentityKey(geom);
+    Entry entry = cache.get(key);
+    if (entry == null) {
+      entry = new Entry(geom);
+      cache.put(key, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Returns the prepared version of the given entry preparing it if needed.
+   * @param entry
+   * @param geom
+   * @return
+   */
+  private static PreparedGeometry prepare(Entry entry, Geometry geom) {
+    if (entry.prepared == null)
+      entry.prepared = Factory.create(geom);
+    return entry.prepared;
+  }
+
+  /**
+   * Returns the prepared version of the given geometry from the cache or
+   * prepares it if it is not there.
+   * @param geom
+   * @return
+   */
+  public PreparedGeometry get(Geometry geom) {
+    return prepare(getEntry(geom), geom);
+  }
+
+  /**
+   * Tests whether two geometries intersect. The geometry with more vertices
+   * is prepared as it gains more from the indexes of a prepared geometry.
+   * The number of vertices of each geometry is computed once while it is in
+   * the cache.
+   * @param geom1
+   * @param geom2
+   * @return
+   */
+  public boolean intersects(Geometry geom1, Geometry geom2) {
+    Entry entry1 = getEntry(geom1);
+    Entry entry2 = getEntry(geom2);
+    if (entry1.numPoints >= entry2.numPoints)
+      return prepare(entry1, geom1).intersects(geom2);
+    return prepare(entry2, geom2).intersects(geom1);
+  }
+
+  /**
+   * Tests whether two shapes intersect. If both are JTS shapes, the test is
+   * carried out using prepared geometries. Otherwise, it falls back to
+   * {@link Shape#isIntersected(Shape)}.
+   * @param s1
+   * @param s2
+   * @return
+   */
+  public boolean isIntersected(Shape s1, Shape s2) {
+    if (s1 instanceof OGCJTSShape && s2 instanceof OGCJTSShape) {
+      Geometry geom1 = ((OGCJTSShape)s1).geom;
+      Geometry geom2 = ((OGCJTSShape)s2).geom;
+      if (geom1 == null || geom2 == null)
+        return false;
+      return intersects(geom1, geom2);
+    }
+    return s1.isIntersected(s2);
+  }
+
+  /**
+   * Tests whether two shapes intersect preparing only the first shape. This
+   * is used when the first shape is tested against many others while the
+   * second one is tested only a few times, e.g., a broadcast shape and the
+   * records that probe it. This keeps one-off shapes out of the cache.
+   * @param cached
+   * @param other
+   * @return
+   */
+  public boolean isIntersectedPrepared(Shape cached, Shape other) {
+    if (cached instanceof OGCJTSShape && other instanceof OGCJTSShape) {
+      Geometry geom1 = ((OGCJTSShape)cached).geom;
+      Geometry geom2 = ((OGCJTSShape)other).geom;
+      if (geom1 == null || geom2 == null)
+        return false;
+      return get(geom1).intersects(geom2);
+    }
+    return cached.isIntersected(other);
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  /**
+   * Tells whether the given geometry object is in the cache. This does not
+   * change the access order of the cache.
+   * @param geom
+   * @return
+   */
+  public boolean contains(Geometry geom) {
+    return cache.containsKey(new IdentityKey(geom));
+  }
+
+  public void clear() {
+    cache.clear();
+  }
+}
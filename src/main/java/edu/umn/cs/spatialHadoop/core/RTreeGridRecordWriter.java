@@ -124,6 +124,12 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
     return finalCellPath;
   }
   
+  @Override
+  protected long getFlushMemory(long cellSize) {
+    // The whole cell is loaded in memory and an RTree is built on top of it
+    return cellSize * 2;
+  }
+  
   @Override
   protected OutputStream getIntermediateCellStream(int cellIndex)
       throws IOException {
@@ -16,6 +16,7 @@ import java.io.IOException;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
 
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
@@ -170,6 +171,18 @@ public class Rectangle implements Shape, WritableComparable<Rectangle> {
       return Math.sqrt(dx * dx + dy * dy);
     return Math.max(dx, dy);
   }
+
+  /**
+   * Minimum distance between this rectangle and another one. The distance is
+   * zero if the two rectangles overlap or touch.
+   * @param r
+   * @return
+   */
+  public double getMinDistance(Rectangle r) {
+    double dx = Math.max(0, Math.max(this.x1, r.x1) - Math.min(this.x2, r.x2));
+    double dy = Math.max(0, Math.max(this.y1, r.y1) - Math.min(this.y2, r.y2));
+    return Math.sqrt(dx * dx + dy * dy);
+  }
   
   @Override
   public Rectangle clone() {
@@ -282,10 +295,12 @@ public class Rectangle implements Shape, WritableComparable<Rectangle> {
   
   @Override
   public void fromText(Text text) {
-    x1 = TextSerializerHelper.consumeDouble(text, ',');
-    y1 = TextSerializerHelper.consumeDouble(text, ',');
-    x2 = TextSerializerHelper.consumeDouble(text, ',');
-    y2 = TextSerializerHelper.consumeDouble(text, '\0');
+    TextCursor cursor = TextCursor.forThread(text);
+    x1 = cursor.nextDouble(',');
+    y1 = cursor.nextDouble(',');
+    x2 = cursor.nextDouble(',');
+    y2 = cursor.nextDouble('\0');
+    cursor.consume(text);
   }
 
   @Override
@@ -12,7 +12,6 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
@@ -20,6 +19,8 @@ import java.util.Map;
 import java.util.Stack;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import org.apache.commons.logging.Log;
@@ -34,6 +35,8 @@ import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
@@ -41,11 +44,15 @@ import com.vividsolutions.jts.geom.GeometryCollection;
 import com.vividsolutions.jts.geom.GeometryFactory;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.mapreduce.BlockRecordReader3;
 import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
 import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.util.BitArray;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 import edu.umn.cs.spatialHadoop.util.Progressable;
 
 /**
@@ -97,256 +104,339 @@ class TOPK {
 public class SpatialAlgorithms {
   public static final Log LOG = LogFactory.getLog(SpatialAlgorithms.class);
   
-  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
-	      final List<S1> R, final List<S2> S, final ResultCollector2<S1, S2> output,
-	      Reporter reporter)
-	      throws IOException {
-	  
-	  	LOG.debug("Start spatial join plan sweep algorithm !!!");
-	  
-	    final RectangleID[] Rmbrs = new RectangleID[R.size()];
-	    for (int i = 0; i < R.size(); i++) {
-	      Rmbrs[i] = new RectangleID(i, R.get(i).getMBR());
-	    }
-	    final RectangleID[] Smbrs = new RectangleID[S.size()];
-	    for (int i = 0; i < S.size(); i++) {
-	      Smbrs[i] = new RectangleID(i, S.get(i).getMBR());
-	    }	    
-	    
-	    final IntWritable count = new IntWritable();
-	    int filterCount = SpatialJoin_rectangles(Rmbrs, Smbrs, new OutputCollector<RectangleID, RectangleID>() {
-	        @Override
-	        public void collect(RectangleID r1, RectangleID r2)
-	            throws IOException {
-	          //if (R.get(r1.id).isIntersected(S.get(r2.id))) {
-	            if (output != null)
-	              output.collect(R.get(r1.id), S.get(r2.id));
-	            count.set(count.get() + 1);
-	          //}
-	        }
-	    }, reporter);
-	      
-	      LOG.debug("Filtered result size "+filterCount+", refined result size "+count.get());
-	      
-	      return count.get();
-	}
+  /**
+   * MBRs of a list of shapes stored in primitive arrays and sorted by x1.
+   * The MBR of each shape is computed only once which avoids calling
+   * {@link Shape#getMBR()} in the inner loop of the plane-sweep algorithms.
+   * Shapes without an MBR are skipped.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class MBRList {
+    /**Coordinates of the MBRs sorted by x1*/
+    public final double[] x1s, y1s, x2s, y2s;
+    /**Index of the shape of each MBR in the original list*/
+    public final int[] ids;
+    /**Number of MBRs in the list*/
+    public int size;
+
+    public MBRList(Shape[] shapes) {
+      this(Arrays.asList(shapes));
+    }
+
+    public MBRList(List<? extends Shape> shapes) {
+      int n = shapes.size();
+      x1s = new double[n];
+      y1s = new double[n];
+      x2s = new double[n];
+      y2s = new double[n];
+      ids = new int[n];
+      int i = 0;
+      for (Shape shape : shapes) {
+        Rectangle mbr = shape.getMBR();
+        if (mbr != null) {
+          x1s[size] = mbr.x1;
+          y1s[size] = mbr.y1;
+          x2s[size] = mbr.x2;
+          y2s[size] = mbr.y2;
+          ids[size] = i;
+          size++;
+        }
+        i++;
+      }
+      sortX1();
+    }
+
+    /**
+     * Creates a list from MBRs that are already extracted into arrays. The
+     * arrays are copied so that the given ones are not reordered.
+     * @param x1s
+     * @param y1s
+     * @param x2s
+     * @param y2s
+     * @param size - number of MBRs in the arrays
+     */
+    public MBRList(double[] x1s, double[] y1s, double[] x2s, double[] y2s,
+        int size) {
+      this.x1s = Arrays.copyOf(x1s, size);
+      this.y1s = Arrays.copyOf(y1s, size);
+      this.x2s = Arrays.copyOf(x2s, size);
+      this.y2s = Arrays.copyOf(y2s, size);
+      this.ids = new int[size];
+      for (int i = 0; i < size; i++)
+        ids[i] = i;
+      this.size = size;
+      sortX1();
+    }
+
+    /**
+     * Sorts all MBRs by x1 while keeping track of their original indexes.
+     */
+    protected void sortX1() {
+      new QuickSort().sort(new IndexedSortable() {
+        @Override
+        public int compare(int i, int j) {
+          if (x1s[i] == x1s[j])
+            return 0;
+          return x1s[i] < x1s[j] ? -1 : 1;
+        }
+
+        @Override
+        public void swap(int i, int j) {
+          double t = x1s[i]; x1s[i] = x1s[j]; x1s[j] = t;
+          t = y1s[i]; y1s[i] = y1s[j]; y1s[j] = t;
+          t = x2s[i]; x2s[i] = x2s[j]; x2s[j] = t;
+          t = y2s[i]; y2s[i] = y2s[j]; y2s[j] = t;
+          int ti = ids[i]; ids[i] = ids[j]; ids[j] = ti;
+        }
+      }, 0, size);
+    }
+  }
 
-  
   /**
+   * Receives pairs of overlapping MBRs found by
+   * {@link SpatialAlgorithms#planeSweepMBRs(MBRList, MBRList, boolean, IndexPairCollector, org.apache.hadoop.util.Progressable)}
+   * as the indexes of their shapes in the original lists.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static interface IndexPairCollector {
+    public void collect(int i, int j) throws IOException;
+  }
+
+  /**
+   * Finds all pairs of overlapping MBRs in two lists using a plane-sweep
+   * algorithm that works directly on the primitive arrays. This is the filter
+   * step of all the plane-sweep join algorithms. The refine step, if any, is
+   * carried out by the given collector.
    * @param R
    * @param S
+   * @param includeTouching - whether MBRs that only touch along their
+   *   boundaries are reported as overlapping
    * @param output
-   * @return
+   * @param reporter
+   * @return number of overlapping pairs found
    * @throws IOException
    */
-  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
-      List<S1> R, List<S2> S, ResultCollector2<S1, S2> output, Reporter reporter)
-      throws IOException {
+  public static int planeSweepMBRs(MBRList R, MBRList S,
+      boolean includeTouching, IndexPairCollector output,
+      org.apache.hadoop.util.Progressable reporter) throws IOException {
+    final double[] rx1s = R.x1s, ry1s = R.y1s, rx2s = R.x2s, ry2s = R.y2s;
+    final double[] sx1s = S.x1s, sy1s = S.y1s, sx2s = S.x2s, sy2s = S.y2s;
+    final int rSize = R.size, sSize = S.size;
     int count = 0;
+    int i = 0, j = 0;
+    while (i < rSize && j < sSize) {
+      if (rx1s[i] < sx1s[j]) {
+        double x1 = rx1s[i], y1 = ry1s[i], x2 = rx2s[i], y2 = ry2s[i];
+        for (int jj = j; jj < sSize && sx1s[jj] <= x2; jj++) {
+          if (includeTouching ?
+              (sx1s[jj] <= x2 && x1 <= sx2s[jj] && sy1s[jj] <= y2 && y1 <= sy2s[jj]) :
+              (sx1s[jj] < x2 && x1 < sx2s[jj] && sy1s[jj] < y2 && y1 < sy2s[jj])) {
+            if (output != null)
+              output.collect(R.ids[i], S.ids[jj]);
+            count++;
+          }
+        }
+        i++;
+      } else {
+        double x1 = sx1s[j], y1 = sy1s[j], x2 = sx2s[j], y2 = sy2s[j];
+        for (int ii = i; ii < rSize && rx1s[ii] <= x2; ii++) {
+          if (includeTouching ?
+              (rx1s[ii] <= x2 && x1 <= rx2s[ii] && ry1s[ii] <= y2 && y1 <= ry2s[ii]) :
+              (rx1s[ii] < x2 && x1 < rx2s[ii] && ry1s[ii] < y2 && y1 < ry2s[ii])) {
+            if (output != null)
+              output.collect(R.ids[ii], S.ids[j]);
+            count++;
+          }
+        }
+        j++;
+      }
+      if (reporter != null)
+        reporter.progress();
+    }
+    return count;
+  }
 
-    Comparator<Shape> comparator = new Comparator<Shape>() {
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
+      final List<S1> R, final List<S2> S, final ResultCollector2<S1, S2> output,
+      Reporter reporter) throws IOException {
+    LOG.debug("Start spatial join plan sweep algorithm !!!");
+    return planeSweepMBRs(new MBRList(R), new MBRList(S), false,
+        new IndexPairCollector() {
       @Override
-      public int compare(Shape o1, Shape o2) {
-    	if (o1.getMBR().x1 == o2.getMBR().x1)
-    		return 0;
-        return o1.getMBR().x1 < o2.getMBR().x1 ? -1 : 1;
+      public void collect(int i, int j) {
+        if (output != null)
+          output.collect(R.get(i), S.get(j));
       }
-    };
+    }, reporter);
+  }
 
+  
+  /**
+   * @param R
+   * @param S
+   * @param output
+   * @return
+   * @throws IOException
+   */
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
+      final List<S1> R, final List<S2> S, final ResultCollector2<S1, S2> output,
+      Reporter reporter) throws IOException {
     long t1 = System.currentTimeMillis();
     LOG.debug("Joining lists "+ R.size()+" with "+S.size());
-    Collections.sort(R, comparator);
-    Collections.sort(S, comparator);
-
-		int i = 0, j = 0;
-
+    final IntWritable count = new IntWritable();
+    final PreparedGeometryCache preparedCache = new PreparedGeometryCache();
     try {
-      while (i < R.size() && j < S.size()) {
-        S1 r;
-        S2 s;
-        if (comparator.compare(R.get(i), S.get(j)) < 0) {
-          r = R.get(i);
-          int jj = j;
-
-          while ((jj < S.size())
-              && ((s = S.get(jj)).getMBR().x1 <= r.getMBR().x2)) {
-            // Check if r and s are overlapping but not the same object
-            // for self join
-            if (r.isIntersected(s) && !r.equals(s)) {
-              if (output != null)
-                output.collect(r, s);
-              count++;
-            }
-            jj++;
-            if (reporter !=  null)
-              reporter.progress();
-          }
-          i++;
-        } else {
-          s = S.get(j);
-          int ii = i;
-
-          while ((ii < R.size())
-              && ((r = R.get(ii)).getMBR().x1 <= s.getMBR().x2)) {
-            if (r.isIntersected(s) && !r.equals(s)) {
-              if (output != null)
-                output.collect(r, s);
-              count++;
-            }
-            ii++;
-            if (reporter !=  null)
-              reporter.progress();
+      planeSweepMBRs(new MBRList(R), new MBRList(S), true,
+          new IndexPairCollector() {
+        @Override
+        public void collect(int i, int j) {
+          S1 r = R.get(i);
+          S2 s = S.get(j);
+          // Check if r and s are overlapping but not the same object
+          // for self join
+          if (preparedCache.isIntersected(r, s) && !r.equals(s)) {
+            if (output != null)
+              output.collect(r, s);
+            count.set(count.get() + 1);
           }
-          j++;
         }
-        if (reporter !=  null)
-          reporter.progress();
-      }
+      }, reporter);
     } catch (RuntimeException e) {
       e.printStackTrace();
     }
     long t2 = System.currentTimeMillis();
     LOG.debug("Finished plane sweep in "+(t2-t1)+" millis and found "+count+" pairs");
-    return count;
-	}
+    return count.get();
+  }
 
-  
-  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
-	      final S1[] R, final S2[] S, ResultCollector2<S1, S2> output, Reporter reporter) {
-	    int count = 0;
-
-	    final Comparator<Shape> comparator = new Comparator<Shape>() {
-	      @Override
-	      public int compare(Shape o1, Shape o2) {
-	    	if (o1.getMBR().x1 == o2.getMBR().x1)
-	    		return 0;
-	        return o1.getMBR().x1 < o2.getMBR().x1 ? -1 : 1;
-	      }
-	    };
-	    
-	    long t1 = System.currentTimeMillis();
-	    LOG.debug("Joining arrays "+ R.length+" with "+S.length);
-	    Arrays.sort(R, comparator);
-	    Arrays.sort(S, comparator);
-
-	    int i = 0, j = 0;
-
-	    try {
-	      while (i < R.length && j < S.length) {
-	        S1 r;
-	        S2 s;
-	        if (comparator.compare(R[i], S[j]) < 0) {
-	          r = R[i];
-	          int jj = j;
-
-	          while ((jj < S.length)
-	              && ((s = S[jj]).getMBR().x1 <= r.getMBR().x2)) {
-	            if (r.getMBR().isIntersected(s.getMBR())) {
-	              if (output != null)
-	                output.collect(r, s);
-	              count++;
-	            }
-	            jj++;
-	            
-	            if (reporter != null)
-	              reporter.progress();
-	          }
-	          i++;
-	        } else {
-	          s = S[j];
-	          int ii = i;
-
-	          while ((ii < R.length)
-	              && ((r = R[ii]).getMBR().x1 <= s.getMBR().x2)) {
-	            if (r.getMBR().isIntersected(s.getMBR())) {
-	              if (output != null)
-	                output.collect(r, s);
-	              count++;
-	            }
-	            ii++;
-	          }
-	          j++;
-	          if (reporter != null)
-	            reporter.progress();
-	        }
-	        if (reporter != null)
-	          reporter.progress();
-	      }
-	    } catch (RuntimeException e) {
-	      e.printStackTrace();
-	    }
-	    long t2 = System.currentTimeMillis();
-	    LOG.debug("Finished plane sweep filter only in "+(t2-t1)+" millis and found "+count+" pairs");
-	    return count;
-	  }
 
-  
-  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
-      final S1[] R, final S2[] S, ResultCollector2<S1, S2> output, Reporter reporter) {
-    int count = 0;
+  /**
+   * Tests whether the distance between two shapes is at most the given
+   * distance. The exact distance is computed for JTS shapes, points and
+   * rectangles. For other shapes, the distance between their MBRs is used.
+   * @param r
+   * @param s
+   * @param distance
+   * @return
+   */
+  public static boolean isWithinDistance(Shape r, Shape s, double distance) {
+    if (r instanceof OGCJTSShape && s instanceof OGCJTSShape) {
+      Geometry geom1 = ((OGCJTSShape)r).geom;
+      Geometry geom2 = ((OGCJTSShape)s).geom;
+      return geom1 != null && geom2 != null &&
+          geom1.isWithinDistance(geom2, distance);
+    }
+    if (s instanceof Point && (r instanceof Point || r instanceof OGCJTSShape)) {
+      Point p = (Point) s;
+      return r.distanceTo(p.x, p.y) <= distance;
+    }
+    if (r instanceof Point && s instanceof OGCJTSShape) {
+      Point p = (Point) r;
+      return s.distanceTo(p.x, p.y) <= distance;
+    }
+    Rectangle mbr1 = r.getMBR(), mbr2 = s.getMBR();
+    return mbr1 != null && mbr2 != null &&
+        mbr1.getMinDistance(mbr2) <= distance;
+  }
 
-    final Comparator<Shape> comparator = new Comparator<Shape>() {
+  /**
+   * Finds all pairs of shapes in two lists that are within the given
+   * distance from each other. The MBRs of the first list are expanded by the
+   * distance and joined with the MBRs of the second list using the
+   * plane-sweep algorithm, then candidate pairs are refined using
+   * {@link #isWithinDistance(Shape, Shape, double)}.
+   * @param R
+   * @param S
+   * @param distance
+   * @param output
+   * @param reporter
+   * @return number of result pairs
+   * @throws IOException
+   */
+  public static<S1 extends Shape, S2 extends Shape> int DistanceJoin_planeSweep(
+      final List<S1> R, final List<S2> S, final double distance,
+      final ResultCollector2<S1, S2> output,
+      org.apache.hadoop.util.Progressable reporter) throws IOException {
+    MBRList expandedR = new MBRList(R);
+    // Expanding all MBRs by the same distance keeps them sorted by x1
+    for (int i = 0; i < expandedR.size; i++) {
+      expandedR.x1s[i] -= distance;
+      expandedR.y1s[i] -= distance;
+      expandedR.x2s[i] += distance;
+      expandedR.y2s[i] += distance;
+    }
+    final int[] count = new int[1];
+    planeSweepMBRs(expandedR, new MBRList(S), true, new IndexPairCollector() {
       @Override
-      public int compare(Shape o1, Shape o2) {
-    	if (o1.getMBR().x1 == o2.getMBR().x1)
-    		return 0;
-        return o1.getMBR().x1 < o2.getMBR().x1 ? -1 : 1;
+      public void collect(int i, int j) {
+        S1 r = R.get(i);
+        S2 s = S.get(j);
+        if (isWithinDistance(r, s, distance)) {
+          if (output != null)
+            output.collect(r, s);
+          count[0]++;
+        }
       }
-    };
-    
+    }, reporter);
+    return count[0];
+  }
+  
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
+      final S1[] R, final S2[] S, final ResultCollector2<S1, S2> output,
+      Reporter reporter) {
     long t1 = System.currentTimeMillis();
     LOG.debug("Joining arrays "+ R.length+" with "+S.length);
-    Arrays.sort(R, comparator);
-    Arrays.sort(S, comparator);
-
-    int i = 0, j = 0;
-
+    final IntWritable count = new IntWritable();
     try {
-      while (i < R.length && j < S.length) {
-        S1 r;
-        S2 s;
-        if (comparator.compare(R[i], S[j]) < 0) {
-          r = R[i];
-          int jj = j;
-
-          while ((jj < S.length)
-              && ((s = S[jj]).getMBR().x1 <= r.getMBR().x2)) {
-            if (r.isIntersected(s)) {
-              if (output != null)
-                output.collect(r, s);
-              count++;
-            }
-            jj++;
-            if (reporter != null)
-              reporter.progress();
-          }
-          i++;
-        } else {
-          s = S[j];
-          int ii = i;
+      planeSweepMBRs(new MBRList(R), new MBRList(S), false,
+          new IndexPairCollector() {
+        @Override
+        public void collect(int i, int j) {
+          if (output != null)
+            output.collect(R[i], S[j]);
+          count.set(count.get() + 1);
+        }
+      }, reporter);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+    long t2 = System.currentTimeMillis();
+    LOG.debug("Finished plane sweep filter only in "+(t2-t1)+" millis and found "+count+" pairs");
+    return count.get();
+  }
 
-          while ((ii < R.length)
-              && ((r = R[ii]).getMBR().x1 <= s.getMBR().x2)) {
-            if (r.isIntersected(s)) {
-              if (output != null)
-                output.collect(r, s);
-              count++;
-            }
-            ii++;
-            if (reporter != null)
-              reporter.progress();
+  
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
+      final S1[] R, final S2[] S, final ResultCollector2<S1, S2> output,
+      Reporter reporter) {
+    long t1 = System.currentTimeMillis();
+    LOG.debug("Joining arrays "+ R.length+" with "+S.length);
+    final IntWritable count = new IntWritable();
+    final PreparedGeometryCache preparedCache = new PreparedGeometryCache();
+    try {
+      planeSweepMBRs(new MBRList(R), new MBRList(S), true,
+          new IndexPairCollector() {
+        @Override
+        public void collect(int i, int j) {
+          if (preparedCache.isIntersected(R[i], S[j])) {
+            if (output != null)
+              output.collect(R[i], S[j]);
+            count.set(count.get() + 1);
           }
-          j++;
         }
-        if (reporter != null)
-          reporter.progress();
-      }
+      }, reporter);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
     } catch (RuntimeException e) {
       e.printStackTrace();
     }
     long t2 = System.currentTimeMillis();
     LOG.debug("Finished plane sweep in "+(t2-t1)+" millis and found "+count+" pairs");
-    return count;
+    return count.get();
   }
 
   /**
@@ -537,43 +627,35 @@ public class SpatialAlgorithms {
    * @throws IOException
    */
   public static <S extends Shape> int SelfJoin_planeSweep(final S[] R,
-      boolean refine, final OutputCollector<S, S> output, Progressable reporter) throws IOException {
+      final boolean refine, final OutputCollector<S, S> output, Progressable reporter) throws IOException {
     // Use a two-phase filter and refine approach
     // 1- Use MBRs as a first filter
-    // 2- Use ConvexHull as a second filter
-    // 3- Use the exact shape for refinement
-    final RectangleID[] mbrs = new RectangleID[R.length];
-    for (int i = 0; i < R.length; i++) {
-      mbrs[i] = new RectangleID(i, R[i].getMBR());
-    }
-    
-    if (refine) {
-      final IntWritable count = new IntWritable();
-      int filterCount = SelfJoin_rectangles(mbrs, new OutputCollector<RectangleID, RectangleID>() {
-        @Override
-        public void collect(RectangleID r1, RectangleID r2)
-            throws IOException {
-          if (R[r1.id].isIntersected(R[r2.id])) {
-            if (output != null)
-              output.collect(R[r1.id], R[r2.id]);
-            count.set(count.get() + 1);
-          }
-        }
-      }, reporter);
-      
-      LOG.debug("Filtered result size "+filterCount+", refined result size "+count.get());
-      
-      return count.get();
-    } else {
-      return SelfJoin_rectangles(mbrs, new OutputCollector<RectangleID, RectangleID>() {
-        @Override
-        public void collect(RectangleID r1, RectangleID r2)
-            throws IOException {
+    // 2- Use the exact shape for refinement with prepared geometries
+    // The MBRs are joined with themselves so each pair is reported in both
+    // orders
+    MBRList mbrs = new MBRList(R);
+    final IntWritable count = new IntWritable();
+    final PreparedGeometryCache preparedCache = refine ?
+        new PreparedGeometryCache() : null;
+    long t1 = System.currentTimeMillis();
+    LOG.debug("Self Join of "+ R.length+" shapes");
+    int filterCount = planeSweepMBRs(mbrs, mbrs, refine,
+        new IndexPairCollector() {
+      @Override
+      public void collect(int i, int j) throws IOException {
+        if (i == j)
+          return;
+        if (!refine || preparedCache.isIntersected(R[i], R[j])) {
           if (output != null)
-            output.collect(R[r1.id], R[r2.id]);
+            output.collect(R[i], R[j]);
+          count.set(count.get() + 1);
         }
-      }, reporter);
-    }
+      }
+    }, reporter);
+    long t2 = System.currentTimeMillis();
+    LOG.debug("Finished self plane sweep in "+(t2-t1)+" millis. Filtered result size "
+        +filterCount+", refined result size "+count.get());
+    return count.get();
   }
   
   /**
@@ -966,60 +1048,454 @@ public class SpatialAlgorithms {
     return resultSize;
   }
   
-  public static long spatialJoinLocal(Path[] inFiles, Path outFile, OperationsParams params) throws IOException, InterruptedException {
-      // Read the inputs and store them in memory
-      List<Shape>[] datasets = new List[inFiles.length];
-      final SpatialInputFormat3<Rectangle, Shape> inputFormat =
-          new SpatialInputFormat3<Rectangle, Shape>();
-      for (int i = 0; i < inFiles.length; i++) {
-          datasets[i] = new ArrayList<Shape>();
-          FileSystem inFs = inFiles[i].getFileSystem(params);
-          Job job = Job.getInstance(params);
-          SpatialInputFormat3.addInputPath(job, inFiles[i]);
-          for (InputSplit split : inputFormat.getSplits(job)) {
-              FileSplit fsplit = (FileSplit) split;
-              RecordReader<Rectangle, Iterable<Shape>> reader =
-                      inputFormat.createRecordReader(fsplit, null);
-              if (reader instanceof SpatialRecordReader3) {
-                  ((SpatialRecordReader3)reader).initialize(fsplit, params);
-              } else if (reader instanceof RTreeRecordReader3) {
-                  ((RTreeRecordReader3)reader).initialize(fsplit, params);
-              } else if (reader instanceof HDFRecordReader) {
-                  ((HDFRecordReader)reader).initialize(fsplit, params);
-              } else {
-                  throw new RuntimeException("Unknown record reader");
-              }
+  /**
+   * A grid that partitions the space into columns and then partitions each
+   * column into rows. The boundaries are quantiles of a sample of points so
+   * that all cells contain roughly the same number of points. The first and
+   * last boundaries in each direction are infinite so the grid covers the
+   * whole space. Each cell includes its lower boundaries and excludes its
+   * upper boundaries.
+   * @author Ahmed Eldawy
+   *
+   */
+  static class QuantileGrid {
+    /**Boundaries of the columns*/
+    final double[] xs;
+    /**Boundaries of the rows of each column*/
+    final double[][] ys;
+    final int columns, rows;
 
-              while (reader.nextKeyValue()) {
-                  Iterable<Shape> shapes = reader.getCurrentValue();
-                  for (Shape shape : shapes) {
-                      datasets[i].add(shape.clone());
-                  }
-              }
-              reader.close();
+    QuantileGrid(double[] sampleXs, double[] sampleYs, int sampleSize,
+        int columns, int rows) {
+      this.columns = columns;
+      this.rows = rows;
+      final double[] sxs = Arrays.copyOf(sampleXs, sampleSize);
+      final double[] sys = Arrays.copyOf(sampleYs, sampleSize);
+      IndexedSortable sortable = new IndexedSortable() {
+        @Override
+        public int compare(int i, int j) {
+          return Double.compare(sxs[i], sxs[j]);
+        }
+
+        @Override
+        public void swap(int i, int j) {
+          double t = sxs[i]; sxs[i] = sxs[j]; sxs[j] = t;
+          t = sys[i]; sys[i] = sys[j]; sys[j] = t;
+        }
+      };
+      new QuickSort().sort(sortable, 0, sampleSize);
+      xs = quantiles(sxs, 0, sampleSize, columns);
+      ys = new double[columns][];
+      int columnStart = 0;
+      for (int c = 0; c < columns; c++) {
+        int columnEnd = columnStart;
+        while (columnEnd < sampleSize && sxs[columnEnd] < xs[c + 1])
+          columnEnd++;
+        Arrays.sort(sys, columnStart, columnEnd);
+        ys[c] = quantiles(sys, columnStart, columnEnd, rows);
+        columnStart = columnEnd;
+      }
+    }
+
+    /**
+     * Computes the boundaries that split a sorted range of values into
+     * the given number of parts with the same number of values.
+     */
+    private static double[] quantiles(double[] sorted, int start, int end,
+        int parts) {
+      double[] boundaries = new double[parts + 1];
+      boundaries[0] = Double.NEGATIVE_INFINITY;
+      for (int i = 1; i < parts; i++) {
+        boundaries[i] = end > start ?
+            sorted[start + (int) ((long) i * (end - start) / parts)] :
+            Double.POSITIVE_INFINITY;
+      }
+      boundaries[parts] = Double.POSITIVE_INFINITY;
+      return boundaries;
+    }
+
+    int getCellCount() {
+      return columns * rows;
+    }
+
+    /**
+     * Finds all cells that overlap or touch the given rectangle. A shape
+     * assigned to all these cells is found in the cell of any point in its
+     * MBR.
+     */
+    void overlappingCells(double x1, double y1, double x2, double y2,
+        IntArray cells) {
+      cells.clear();
+      for (int c = 0; c < columns; c++) {
+        if (x1 > xs[c + 1] || x2 < xs[c])
+          continue;
+        for (int r = 0; r < rows; r++) {
+          if (y1 <= ys[c][r + 1] && y2 >= ys[c][r])
+            cells.add(c * rows + r);
+        }
+      }
+    }
+
+    boolean contains(int cell, double x, double y) {
+      int c = cell / rows, r = cell % rows;
+      return x >= xs[c] && x < xs[c + 1] && y >= ys[c][r] && y < ys[c][r + 1];
+    }
+  }
+
+  /**
+   * Computes the spatial join of two lists of shapes using multiple threads.
+   * Both lists are partitioned using a grid built from a sample of them and
+   * the cells are joined concurrently. Threads take the next cell to join
+   * from a shared counter, largest cells first, so that no thread stays idle
+   * while others are joining large cells. A pair is reported only by the cell
+   * that contains the reference point of the pair to avoid duplicates.
+   * Similar to {@link #SpatialJoin_planeSweep(List, List, ResultCollector2, Reporter)},
+   * a shape in R is never reported with an equal shape in S.
+   * @param R
+   * @param S
+   * @param output - receives the result pairs. It is called concurrently by
+   *   all threads. Can be null.
+   * @param parallelism - number of threads
+   * @return number of result pairs
+   * @throws InterruptedException
+   */
+  public static long spatialJoinParallel(final List<? extends Shape> R,
+      final List<? extends Shape> S, final ResultCollector2<Shape, Shape> output,
+      int parallelism) throws InterruptedException {
+    return spatialJoinParallel(R, S, output, parallelism, 0);
+  }
+
+  /**
+   * Same as {@link #spatialJoinParallel(List, List, ResultCollector2, int)}
+   * but stops once the given number of result pairs is found. Threads stop
+   * refining candidate pairs when the limit is reached and do not start any
+   * more cells.
+   * @param R
+   * @param S
+   * @param output
+   * @param parallelism
+   * @param limit - maximum number of result pairs or zero for no limit
+   * @return number of result pairs which is not more than the limit
+   * @throws InterruptedException
+   */
+  public static long spatialJoinParallel(final List<? extends Shape> R,
+      final List<? extends Shape> S, final ResultCollector2<Shape, Shape> output,
+      int parallelism, final long limit) throws InterruptedException {
+    long t1 = System.currentTimeMillis();
+    final MBRList rMBRs = new MBRList(R), sMBRs = new MBRList(S);
+
+    // Build the grid from a sample of the centers of both inputs
+    int numCells = Math.max(1, parallelism * 4);
+    int columns = (int) Math.ceil(Math.sqrt(numCells));
+    int rows = (numCells + columns - 1) / columns;
+    int total = rMBRs.size + sMBRs.size;
+    int step = Math.max(1, total / Math.max(1000, numCells * 100));
+    double[] sampleXs = new double[(total + step - 1) / step];
+    double[] sampleYs = new double[sampleXs.length];
+    int sampleSize = 0;
+    for (int i = 0; i < total; i += step) {
+      MBRList mbrs = i < rMBRs.size ? rMBRs : sMBRs;
+      int j = i < rMBRs.size ? i : i - rMBRs.size;
+      sampleXs[sampleSize] = (mbrs.x1s[j] + mbrs.x2s[j]) / 2;
+      sampleYs[sampleSize] = (mbrs.y1s[j] + mbrs.y2s[j]) / 2;
+      sampleSize++;
+    }
+    final QuantileGrid grid = new QuantileGrid(sampleXs, sampleYs, sampleSize,
+        columns, rows);
+
+    // Assign the shapes of both inputs to all overlapping cells
+    final IntArray[] rCells = assignToCells(rMBRs, grid);
+    final IntArray[] sCells = assignToCells(sMBRs, grid);
+
+    // Join the largest cells first
+    final Integer[] order = new Integer[grid.getCellCount()];
+    for (int i = 0; i < order.length; i++)
+      order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        long sizeA = (long) rCells[a].size() + sCells[a].size();
+        long sizeB = (long) rCells[b].size() + sCells[b].size();
+        return sizeA > sizeB ? -1 : (sizeA < sizeB ? 1 : 0);
+      }
+    });
+    long t2 = System.currentTimeMillis();
+    LOG.info("Partitioned "+R.size()+" X "+S.size()+" shapes into "+order.length+" cells in "+(t2-t1)+" millis");
+
+    final AtomicInteger nextCell = new AtomicInteger();
+    final AtomicLong numResults = limit > 0 ? new AtomicLong() : null;
+    List<Long> counts = Parallel.forEach(parallelism, new Parallel.RunnableRange<Long>() {
+      @Override
+      public Long run(int i1, int i2) {
+        // Each thread refines with its own cache of prepared geometries
+        PreparedGeometryCache preparedCache = new PreparedGeometryCache();
+        long count = 0;
+        int i;
+        while ((numResults == null || numResults.get() < limit)
+            && (i = nextCell.getAndIncrement()) < order.length) {
+          int cell = order[i];
+          try {
+            count += joinCell(R, rMBRs, rCells[cell], S, sMBRs, sCells[cell],
+                grid, cell, preparedCache, output, numResults, limit);
+          } catch (IOException e) {
+            throw new RuntimeException("Error joining cell #"+cell, e);
           }
+        }
+        return count;
       }
+    }, parallelism);
+    long resultCount = 0;
+    for (long count : counts)
+      resultCount += count;
+    long t3 = System.currentTimeMillis();
+    LOG.info("Joined all cells in "+(t3-t2)+" millis and found "+resultCount+" pairs");
+    return resultCount;
+  }
+
+  /**
+   * Assigns each shape to all the cells its MBR overlaps or touches.
+   * @return the indexes of the MBRs in each cell
+   */
+  private static IntArray[] assignToCells(MBRList mbrs, QuantileGrid grid) {
+    IntArray[] cells = new IntArray[grid.getCellCount()];
+    for (int i = 0; i < cells.length; i++)
+      cells[i] = new IntArray();
+    IntArray overlappingCells = new IntArray();
+    for (int i = 0; i < mbrs.size; i++) {
+      grid.overlappingCells(mbrs.x1s[i], mbrs.y1s[i], mbrs.x2s[i], mbrs.y2s[i],
+          overlappingCells);
+      for (int j = 0; j < overlappingCells.size(); j++)
+        cells[overlappingCells.get(j)].add(i);
+    }
+    return cells;
+  }
+
+  /**
+   * Extracts the MBRs of one cell. The MBRs in the returned list are indexed
+   * by their positions in the cell.
+   */
+  private static MBRList cellMBRs(MBRList mbrs, IntArray cell) {
+    int size = cell.size();
+    double[] x1s = new double[size], y1s = new double[size];
+    double[] x2s = new double[size], y2s = new double[size];
+    for (int i = 0; i < size; i++) {
+      int j = cell.get(i);
+      x1s[i] = mbrs.x1s[j];
+      y1s[i] = mbrs.y1s[j];
+      x2s[i] = mbrs.x2s[j];
+      y2s[i] = mbrs.y2s[j];
+    }
+    return new MBRList(x1s, y1s, x2s, y2s, size);
+  }
+
+  /**
+   * Joins the shapes of the two inputs that are assigned to one cell
+   * @return number of result pairs reported by this cell
+   * @throws IOException
+   */
+  private static long joinCell(final List<? extends Shape> R,
+      final MBRList rMBRs, final IntArray rCell,
+      final List<? extends Shape> S, final MBRList sMBRs, final IntArray sCell,
+      final QuantileGrid grid, final int cell,
+      final PreparedGeometryCache preparedCache,
+      final ResultCollector2<Shape, Shape> output,
+      final AtomicLong numResults, final long limit) throws IOException {
+    if (rCell.isEmpty() || sCell.isEmpty())
+      return 0;
+    final long[] count = new long[1];
+    planeSweepMBRs(cellMBRs(rMBRs, rCell), cellMBRs(sMBRs, sCell), true,
+        new IndexPairCollector() {
+      @Override
+      public void collect(int i, int j) {
+        if (numResults != null && numResults.get() >= limit)
+          return;
+        int ri = rCell.get(i), sj = sCell.get(j);
+        // Report the pair only in the cell of its reference point
+        double refX = Math.max(rMBRs.x1s[ri], sMBRs.x1s[sj]);
+        double refY = Math.max(rMBRs.y1s[ri], sMBRs.y1s[sj]);
+        if (!grid.contains(cell, refX, refY))
+          return;
+        Shape r = R.get(rMBRs.ids[ri]);
+        Shape s = S.get(sMBRs.ids[sj]);
+        // Skip equal shapes as in the plane sweep join of two lists
+        if (preparedCache.isIntersected(r, s) && !r.equals(s)) {
+          // Reserve a place for this pair within the limit
+          if (numResults != null && numResults.incrementAndGet() > limit)
+            return;
+          if (output != null)
+            output.collect(r, s);
+          count[0]++;
+        }
+      }
+    }, null);
+    return count[0];
+  }
+
+  /**Separates the two shapes of a result pair in the output*/
+  private static final byte[] Separator = {','};
+  private static final byte[] NewLine = {'\n'};
+  /**Size of the output buffer of each thread in bytes*/
+  private static final int OutputBufferSize = 1024 * 1024;
 
-      // Apply the spatial join algorithm
-      ResultCollector2<Shape, Shape> output = null;
-      PrintStream out = null;
-      if (outFile != null) {
-          FileSystem outFS = outFile.getFileSystem(params);
-          out = new PrintStream(outFS.create(outFile));
-          final PrintStream outout = out;
-          output = new ResultCollector2<Shape, Shape>() {
-              @Override
-              public void collect(Shape r, Shape s) {
-                  outout.println(r.toText(new Text())+","+s.toText(new Text()));
+  /**
+   * Computes the spatial join of two files on the local machine using
+   * multiple threads. The number of threads is set by the parameter
+   * <code>parallel</code> which defaults to the number of processors.
+   * If the parameter <code>limit</code> is set, the join stops after finding
+   * that many result pairs.
+   * @param inFiles
+   * @param outFile - the output file or null to skip writing the output
+   * @param params
+   * @return number of result pairs
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static long spatialJoinLocal(Path[] inFiles, Path outFile, OperationsParams params) throws IOException, InterruptedException {
+    ResultCollector2<Shape, Shape> output = null;
+    PrintStream out = null;
+    final Vector<Text> buffers = new Vector<Text>();
+    if (outFile != null) {
+      FileSystem outFS = outFile.getFileSystem(params);
+      out = new PrintStream(outFS.create(outFile));
+      final PrintStream outout = out;
+      output = new ResultCollector2<Shape, Shape>() {
+        /**
+         * Each thread writes its results to its own buffer which is written
+         * to the output when full. This avoids locking the output for each
+         * result pair.
+         */
+        final ThreadLocal<Text> buffer = new ThreadLocal<Text>() {
+          @Override
+          protected Text initialValue() {
+            Text text = new Text();
+            buffers.add(text);
+            return text;
+          }
+        };
+
+        @Override
+        public void collect(Shape r, Shape s) {
+          Text text = buffer.get();
+          r.toText(text);
+          text.append(Separator, 0, Separator.length);
+          s.toText(text);
+          text.append(NewLine, 0, NewLine.length);
+          if (text.getLength() >= OutputBufferSize) {
+            synchronized (outout) {
+              outout.write(text.getBytes(), 0, text.getLength());
+            }
+            text.clear();
+          }
+        }
+      };
+    }
+    long resultCount = spatialJoinLocal(inFiles, output, params);
+
+    if (out != null) {
+      for (Text text : buffers)
+        out.write(text.getBytes(), 0, text.getLength());
+      out.close();
+    }
+
+    return resultCount;
+  }
+
+  /**
+   * Computes the spatial join of two files on the local machine and streams
+   * the result pairs to the given collector as they are found. The collector
+   * is called concurrently from all joining threads. The parameters
+   * <code>parallel</code> and <code>limit</code> are used as in
+   * {@link #spatialJoinLocal(Path[], Path, OperationsParams)}.
+   * @param inFiles
+   * @param output - receives the result pairs or null to count them only
+   * @param params
+   * @return number of result pairs
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static long spatialJoinLocal(Path[] inFiles,
+      ResultCollector2<Shape, Shape> output, OperationsParams params)
+      throws IOException, InterruptedException {
+    int parallelism = params.getInt("parallel",
+        Runtime.getRuntime().availableProcessors());
+    // Read the inputs and store them in memory
+    List<Shape>[] datasets = new List[inFiles.length];
+    for (int i = 0; i < inFiles.length; i++)
+      datasets[i] = readAllLocal(inFiles[i], params, parallelism);
+
+    return spatialJoinParallel(datasets[0], datasets[1], output, parallelism,
+        params.getLong("limit", 0));
+  }
+
+  /**
+   * Reads all shapes in a file using multiple threads. If the file is
+   * indexed with replication, each replicated shape is returned only once.
+   * @param inFile
+   * @param params
+   * @param parallelism
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static List<Shape> readAllLocal(Path inFile,
+      final OperationsParams params, int parallelism)
+      throws IOException, InterruptedException {
+    final SpatialInputFormat3<Rectangle, Shape> inputFormat =
+        new SpatialInputFormat3<Rectangle, Shape>();
+    FileSystem inFs = inFile.getFileSystem(params);
+    GlobalIndex<Partition> gIndex = SpatialSite.getGlobalIndex(inFs, inFile);
+    final boolean replicated = gIndex != null && gIndex.isReplicated();
+    Job job = Job.getInstance(params);
+    SpatialInputFormat3.addInputPath(job, inFile);
+    final List<InputSplit> splits = inputFormat.getSplits(job);
+    List<List<Shape>> parts = Parallel.forEach(splits.size(), new Parallel.RunnableRange<List<Shape>>() {
+      @Override
+      public List<Shape> run(int i1, int i2) {
+        List<Shape> shapes = new ArrayList<Shape>();
+        for (int i = i1; i < i2; i++) {
+          try {
+            FileSplit fsplit = (FileSplit) splits.get(i);
+            RecordReader<Rectangle, Iterable<Shape>> reader =
+                inputFormat.createRecordReader(fsplit, null);
+            if (reader instanceof SpatialRecordReader3) {
+              ((SpatialRecordReader3)reader).initialize(fsplit, params);
+            } else if (reader instanceof RTreeRecordReader3) {
+              ((RTreeRecordReader3)reader).initialize(fsplit, params);
+            } else if (reader instanceof BlockRecordReader3) {
+              ((BlockRecordReader3)reader).initialize(fsplit, params);
+            } else if (reader instanceof HDFRecordReader) {
+              ((HDFRecordReader)reader).initialize(fsplit, params);
+            } else {
+              throw new RuntimeException("Unknown record reader");
+            }
+
+            while (reader.nextKeyValue()) {
+              Rectangle cellMBR = reader.getCurrentKey();
+              boolean dupAvoidance = replicated && cellMBR.isValid();
+              for (Shape shape : reader.getCurrentValue()) {
+                if (dupAvoidance) {
+                  // Keep a replicated shape only in the cell of its corner
+                  Rectangle mbr = shape.getMBR();
+                  if (mbr == null || !cellMBR.contains(mbr.x1, mbr.y1))
+                    continue;
+                }
+                shapes.add(shape.clone());
               }
-          };
+            }
+            reader.close();
+          } catch (IOException e) {
+            throw new RuntimeException("Error reading split "+splits.get(i), e);
+          } catch (InterruptedException e) {
+            throw new RuntimeException("Error reading split "+splits.get(i), e);
+          }
+        }
+        return shapes;
       }
-      long resultCount = SpatialJoin_planeSweep(datasets[0], datasets[1], output, null);
-      
-      if (out != null)
-          out.close();
-      
-      return resultCount;
+    }, parallelism);
+    List<Shape> allShapes = new ArrayList<Shape>();
+    for (List<Shape> part : parts)
+      allShapes.addAll(part);
+    return allShapes;
   }
 
 }
@@ -86,6 +86,14 @@ public class SpatialSite {
   public static final String RTREE_BUILD_MODE =
       "spatialHadoop.storage.RTreeBuildMode";
   
+  /**
+   * How records are packed into the nodes of local R-trees. Could be "str"
+   * for the recursive sort along x and y or "hilbert" for the order of the
+   * Hilbert curve.
+   */
+  public static final String RTREE_PACKING =
+      "spatialHadoop.storage.RTreePacking";
+  
   /**Configuration line name for replication overhead*/
   public static final String INDEXING_OVERHEAD =
       "spatialHadoop.storage.IndexingOverhead";
@@ -96,12 +104,64 @@ public class SpatialSite {
   /**Ratio of the sample to read from files to build a global R-tree*/
   public static final String SAMPLE_SIZE = "spatialHadoop.storage.SampleSize";
   
+  /**
+   * The sampler used to build a global index. The default is "ratio" which
+   * reads a ratio of the input. If set to "reservoir", a fixed number of
+   * points is sampled, see {@link #SAMPLE_COUNT}.
+   */
+  public static final String SAMPLER = "spatialHadoop.storage.Sampler";
+  
+  /**Number of points to sample to build a global index using a reservoir*/
+  public static final String SAMPLE_COUNT = "spatialHadoop.storage.SampleCount";
+  
   /**
    * A marker put in the beginning of each block to indicate that this block
    * is stored as an RTree. It might be better to store this in the BlockInfo
    * in a field (e.g. localIndexType).
    */
   public static final long RTreeFileMarker = -0x00012345678910L;
+
+  /**
+   * A marker put in the beginning of each block to indicate that this block
+   * is stored as an RTree with records in leaf nodes stored in the binary
+   * format rather than text lines.
+   */
+  public static final long RTreeBinaryFileMarker = -0x00012345678911L;
+
+  /**
+   * A marker put in the beginning of a file stored in the spatial block
+   * format. See {@link edu.umn.cs.spatialHadoop.indexing.SpatialBlockFile}
+   */
+  public static final long BlockFileMarker = -0x00012345678912L;
+
+  /**
+   * Format of records in leaf nodes of local R-trees. Could be "text" or
+   * "binary"
+   */
+  public static final String RTREE_LEAF_FORMAT =
+      "spatialHadoop.storage.RTreeLeafFormat";
+
+  /**
+   * Whether to memory-map local R-tree files (or HDFS files with short-circuit
+   * reads) rather than reading them through a stream.
+   */
+  public static final String RTREE_MEMORY_MAP =
+      "spatialHadoop.storage.RTreeMemoryMap";
+
+  /**
+   * Maximum number of bytes of a split that are memory-mapped. Larger splits
+   * are read through a stream.
+   */
+  public static final String RTREE_MAX_MAPPED_BYTES =
+      "spatialHadoop.storage.RTreeMaxMappedBytes";
+
+  /**Maximum number of records in one block of a spatial block file*/
+  public static final String BLOCK_FILE_CAPACITY =
+      "spatialHadoop.storage.BlockFileCapacity";
+
+  /**Whether to compress the data of blocks in spatial block files*/
+  public static final String BLOCK_FILE_COMPRESS =
+      "spatialHadoop.storage.BlockFileCompress";
   
   public static final String OUTPUT_CELLS = "edu.umn.cs.spatial.mapReduce.GridOutputFormat.CellsInfo";
   public static final String OVERWRITE = "edu.umn.cs.spatial.mapReduce.GridOutputFormat.Overwrite";
@@ -124,6 +184,7 @@ public class SpatialSite {
       "spatialHadoop.mapred.MaxBytesPerRead";
 
   public static byte[] RTreeFileMarkerB;
+  public static byte[] RTreeBinaryFileMarkerB;
   
   static {
     // Load configuration from files
@@ -137,6 +198,12 @@ public class SpatialSite {
       dout.close();
       bout.close();
       RTreeFileMarkerB = bout.toByteArray();
+      bout = new ByteArrayOutputStream();
+      dout = new DataOutputStream(bout);
+      dout.writeLong(RTreeBinaryFileMarker);
+      dout.close();
+      bout.close();
+      RTreeBinaryFileMarkerB = bout.toByteArray();
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -406,7 +473,8 @@ public class SpatialSite {
     if (decompressor != null) {
       CodecPool.returnDecompressor(decompressor);
     }
-    return Arrays.equals(signature, SpatialSite.RTreeFileMarkerB);
+    return Arrays.equals(signature, SpatialSite.RTreeFileMarkerB) ||
+        Arrays.equals(signature, SpatialSite.RTreeBinaryFileMarkerB);
   }
   
   /**
@@ -577,7 +645,8 @@ public class SpatialSite {
     RTree<S> rtree = new RTree<S>();
     rtree.setStockObject(shape);
     FSDataInputStream input = fs.open(file);
-    input.skip(8); // Skip the 8 bytes that contains the signature
+    // The signature tells whether leaf records are stored in binary
+    rtree.setBinaryLeaves(input.readLong() == RTreeBinaryFileMarker);
     rtree.readFields(input);
     return rtree;
   }
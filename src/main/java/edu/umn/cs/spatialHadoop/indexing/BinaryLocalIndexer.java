@@ -0,0 +1,49 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+
+import edu.umn.cs.spatialHadoop.core.Shape;
+
+/**
+ * A local indexer that accepts records in its own binary format where each
+ * record carries its MBR. Records of a partition are spilled in this format
+ * while they are written and the index is built from the spill file without
+ * parsing the records again.
+ * @author Ahmed Eldawy
+ *
+ */
+public interface BinaryLocalIndexer extends LocalIndexer {
+
+  /**
+   * Writes one shape to the spill file of a partition.
+   * @param out - the output stream of the spill file
+   * @param shape - the shape to write
+   * @return - the size of the record in the indexed file in bytes
+   * @throws IOException
+   */
+  int writeRecord(DataOutput out, Shape shape) throws IOException;
+
+  /**
+   * Build a local index for a spill file written using
+   * {@link #writeRecord(DataOutput, Shape)}.
+   * @param spillFile - path to the spill file in the local file system
+   * @param outputIndexedFile - path to the file that will contain the indexed
+   *   file. The output file might be in HDFS.
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  void buildLocalIndexFromSpill(File spillFile, Path outputIndexedFile)
+      throws IOException, InterruptedException;
+}
@@ -0,0 +1,66 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+
+/**
+ * Stores each partition in the binary {@link SpatialBlockFile} format.
+ * @author Ahmed Eldawy
+ *
+ */
+public class BlockLocalIndexer implements LocalIndexer {
+
+  /**Configuration of the running job*/
+  protected Configuration conf;
+
+  @Override
+  public void setup(Configuration conf) throws IOException,
+      InterruptedException {
+    this.conf = conf;
+  }
+
+  @Override
+  public String getExtension() {
+    return "blk";
+  }
+
+  @Override
+  public void buildLocalIndex(File nonIndexedFile, Path outputIndexedFile,
+      Shape shape) throws IOException, InterruptedException {
+    // Read all data of the written file in memory
+    byte[] cellData = new byte[(int) nonIndexedFile.length()];
+    DataInputStream cellIn = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(nonIndexedFile)));
+    try {
+      cellIn.readFully(cellData);
+    } finally {
+      cellIn.close();
+    }
+
+    FileSystem outFS = outputIndexedFile.getFileSystem(conf);
+    DataOutputStream cellStream = outFS.create(outputIndexedFile);
+    SpatialBlockFile.bulkLoadWrite(cellData, 0, cellData.length, shape.clone(),
+        cellStream, conf.getInt(SpatialSite.BLOCK_FILE_CAPACITY, 1024),
+        conf.getBoolean(SpatialSite.BLOCK_FILE_COMPRESS, false));
+    cellStream.close();
+  }
+}
@@ -12,22 +12,21 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.Iterator;
-import java.util.Vector;
 
 import org.apache.hadoop.io.Writable;
-import org.apache.hadoop.util.IndexedSortable;
-import org.apache.hadoop.util.IndexedSorter;
-import org.apache.hadoop.util.QuickSort;
 
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.ResultCollector2;
 import edu.umn.cs.spatialHadoop.core.Shape;
-import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
 
 /**
- * A very simple spatial index that provides some spatial operations based
- * on an array storage.
+ * A simple spatial index that provides some spatial operations based
+ * on an array storage. Shapes are kept in the array in the order they were
+ * loaded while an in-memory R-tree, packed using the Sort-Tile-Recursive
+ * (STR) algorithm, is built over their MBRs when the index is loaded.
+ * Range queries, kNN queries and spatial joins traverse this tree rather
+ * than scanning all the shapes.
  * @author Ahmed Eldawy
  *
  * @param <S>
@@ -45,18 +44,93 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
   
   /**Whether objects are allowed to replicated in different partitions or not*/
   private boolean replicated;
+
+  /**Maximum number of entries in each node of the in-memory tree*/
+  private static final int NodeCapacity = PackedRTree.DefaultDegree;
+
+  /**An in-memory R-tree over the MBRs of all shapes*/
+  private PackedRTree<S> tree;
+
+  /**Whether this index is a read-only view that shares its shapes*/
+  private boolean readOnly;
   
   public GlobalIndex() {
   }
   
   @SuppressWarnings("unchecked")
   public void bulkLoad(S[] shapes) {
+    checkWritable();
     // Create a shallow copy
     this.shapes = shapes.clone();
     // Change it into a deep copy by cloning each instance
     for (int i = 0; i < this.shapes.length; i++) {
       this.shapes[i] = (S) this.shapes[i].clone();
     }
+    buildTree();
+  }
+
+  /**
+   * Returns a copy of this index with a deep copy of all shapes. The
+   * in-memory tree is never modified once it is built so it is shared with
+   * the copy instead of building it again.
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public GlobalIndex<S> copy() {
+    GlobalIndex<S> copy = new GlobalIndex<S>();
+    copy.stockShape = this.stockShape;
+    copy.compact = this.compact;
+    copy.replicated = this.replicated;
+    if (this.shapes != null) {
+      copy.shapes = this.shapes.clone();
+      for (int i = 0; i < copy.shapes.length; i++)
+        copy.shapes[i] = (S) copy.shapes[i].clone();
+    }
+    if (this.tree != null)
+      copy.tree = new PackedRTree<S>(this.tree, copy.shapes);
+    return copy;
+  }
+
+  /**
+   * Returns a read-only view of this index which shares all shapes and the
+   * in-memory tree with it. Methods that modify the view throw an
+   * {@link UnsupportedOperationException}. The shapes returned by the view
+   * are the same objects stored in this index and must not be modified; use
+   * {@link #copy()} to get an index that can be modified.
+   * @return
+   */
+  public GlobalIndex<S> readOnlyView() {
+    if (this.readOnly)
+      return this;
+    GlobalIndex<S> view = new GlobalIndex<S>();
+    view.stockShape = this.stockShape;
+    view.compact = this.compact;
+    view.replicated = this.replicated;
+    view.shapes = this.shapes;
+    view.tree = this.tree;
+    view.readOnly = true;
+    return view;
+  }
+
+  /**
+   * Tells whether this index is a read-only view
+   * @return
+   */
+  public boolean isReadOnly() {
+    return readOnly;
+  }
+
+  private void checkWritable() {
+    if (readOnly)
+      throw new UnsupportedOperationException("Read-only global index");
+  }
+
+  /**
+   * Builds the in-memory tree over the MBRs of the shapes using the
+   * Sort-Tile-Recursive algorithm.
+   */
+  private void buildTree() {
+    tree = new PackedRTree<S>(shapes, NodeCapacity);
   }
 
   @Override
@@ -70,31 +144,63 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
   @SuppressWarnings("unchecked")
   @Override
   public void readFields(DataInput in) throws IOException {
+    checkWritable();
     int length = in.readInt();
     this.shapes = (S[]) new Shape[length];
     for (int i = 0; i < length; i++) {
       this.shapes[i] = (S) stockShape.clone();
       this.shapes[i].readFields(in);
     }
+    buildTree();
   }
   
-  public int rangeQuery(Shape queryRange, ResultCollector<S> output) {
-    int result_count = 0;
-    for (S shape : shapes) {
-      if (shape.isIntersected(queryRange)) {
-        result_count++;
-        if (output != null) {
-          output.collect(shape);
+  public int rangeQuery(final Shape queryRange, final ResultCollector<S> output) {
+    final int[] result_count = new int[1];
+    ResultCollector<S> refine = new ResultCollector<S>() {
+      @Override
+      public void collect(S shape) {
+        if (shape.isIntersected(queryRange)) {
+          result_count[0]++;
+          if (output != null)
+            output.collect(shape);
         }
       }
+    };
+    Rectangle queryMBR = queryRange.getMBR();
+    if (queryMBR == null) {
+      tree.search(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+          Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, true, refine);
+    } else {
+      tree.search(queryMBR, true, refine);
     }
-    return result_count;
+    return result_count[0];
   }
   
+  /**
+   * Finds all overlapping pairs of shapes in two global indexes by traversing
+   * their trees together. Unlike a plane-sweep join, the underlying arrays are
+   * neither copied nor reordered.
+   * @param s1
+   * @param s2
+   * @param output
+   * @return
+   */
   public static<S1 extends Shape, S2 extends Shape>
       int spatialJoin(GlobalIndex<S1> s1, GlobalIndex<S2> s2,
           final ResultCollector2<S1, S2> output) {
-    return SpatialAlgorithms.SpatialJoin_planeSweep(s1.shapes, s2.shapes, output, null);
+    final int[] result_count = new int[1];
+    PackedRTree.spatialJoin(s1.tree, s2.tree, true,
+        new ResultCollector2<S1, S2>() {
+      @Override
+      public void collect(S1 r, S2 s) {
+        if (r.isIntersected(s)) {
+          result_count[0]++;
+          if (output != null)
+            output.collect(r, s);
+        }
+      }
+    });
+    return result_count[0];
   }
   
   /**
@@ -154,82 +260,25 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
     return globalMBR;
   }
 
-  public int knn(final double qx, final double qy, int k, ResultCollector2<S, Double> output) {
-    double query_area = (getMBR().getWidth() * getMBR().getHeight()) * k / size();
-    double query_radius = Math.sqrt(query_area / Math.PI);
-
-    boolean result_correct;
-    final Vector<Double> distances = new Vector<Double>();
-    final Vector<S> shapes = new Vector<S>();
-    // Find results in the range and increase this range if needed to ensure
-    // correctness of the answer
-    do {
-      // Initialize result and query range
-      distances.clear(); shapes.clear();
-      Rectangle queryRange = new Rectangle();
-      queryRange.x1 = qx - query_radius / 2;
-      queryRange.y1 = qy - query_radius / 2;
-      queryRange.x2 = qx + query_radius / 2;
-      queryRange.y2 = qy + query_radius / 2;
-      // Retrieve all results in range
-      rangeQuery(queryRange, new ResultCollector<S>() {
-        @Override
-        public void collect(S shape) {
-          distances.add(shape.distanceTo(qx, qy));
-          shapes.add((S) shape.clone());
-        }
-      });
-      if (shapes.size() <= k) {
-        // Didn't find k elements in range, double the range to get more items
-        if (shapes.size() == size() || shapes.size() == k) {
-          // Already returned all possible elements
-          result_correct = true;
-        } else {
-          query_radius *= 2;
-          result_correct = false;
-        }
-      } else {
-        // Sort items by distance to get the kth neighbor
-        IndexedSortable s = new IndexedSortable() {
-          @Override
-          public void swap(int i, int j) {
-            double temp_distance = distances.elementAt(i);
-            distances.set(i, distances.elementAt(j));
-            distances.set(j, temp_distance);
-            
-            S temp_shape = shapes.elementAt(i);
-            shapes.set(i, shapes.elementAt(j));
-            shapes.set(j, temp_shape);
-          }
-          @Override
-          public int compare(int i, int j) {
-            // Note. Equality is not important to check because items with the
-            // same distance can be ordered anyway. 
-        	if (distances.elementAt(i) == distances.elementAt(j))
-        		return 0;
-            if (distances.elementAt(i) < distances.elementAt(j))
-              return -1;
-            return 1;
-          }
-        };
-        IndexedSorter sorter = new QuickSort();
-        sorter.sort(s, 0, shapes.size());
-        if (distances.elementAt(k - 1) > query_radius) {
-          result_correct = false;
-          query_radius = distances.elementAt(k);
-        } else {
-          result_correct = true;
-        }
-      }
-    } while (!result_correct);
-    
-    int result_size = Math.min(k,  shapes.size());
-    if (output != null) {
-      for (int i = 0; i < result_size; i++) {
-        output.collect(shapes.elementAt(i), distances.elementAt(i));
+  /**
+   * Finds the k shapes nearest to the query point using a best-first search
+   * over the tree. Shapes are reported in ascending order of distance.
+   * @param qx
+   * @param qy
+   * @param k
+   * @param output
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public int knn(final double qx, final double qy, int k,
+      final ResultCollector2<S, Double> output) {
+    return tree.knn(qx, qy, k, output == null ? null :
+      new ResultCollector2<S, Double>() {
+      @Override
+      public void collect(S shape, Double distance) {
+        output.collect((S) shape.clone(), distance);
       }
-    }
-    return result_size;
+    });
   }
   
   /**
@@ -241,10 +290,12 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
   }
 
   public void setCompact(boolean compact) {
+    checkWritable();
     this.compact = compact;
   }
 
   public void setReplicated(boolean r) {
+    checkWritable();
     this.replicated = r;
   }
   
@@ -0,0 +1,185 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+
+/**
+ * A process-wide cache of global indexes. Reading a global index lists the
+ * directory and parses the master file which is expensive when done for
+ * each split of a job. This cache keeps the global indexes of the most
+ * recently used directories and validates them using the modification time
+ * of the directory which changes whenever a file is added to or removed from
+ * it. The cached global indexes are shared by all readers in the process and
+ * are returned as read-only views. The partitions of a cached index must not
+ * be modified. A single partition retrieved from the cache is returned as a
+ * copy as it is used as the key of a record reader.
+ * @author Ahmed Eldawy
+ *
+ */
+public class GlobalIndexCache {
+  private static final Log LOG = LogFactory.getLog(GlobalIndexCache.class);
+
+  /**Maximum number of directories to keep in the cache*/
+  public static final String GlobalIndexCacheSize =
+      "spatialHadoop.storage.GlobalIndexCacheSize";
+
+  /**A cached global index along with the information used to validate it*/
+  static class CacheEntry {
+    /**Modification time of the directory when the index was read*/
+    long modificationTime;
+    /**A read-only view of the global index or null if not indexed*/
+    GlobalIndex<Partition> gindex;
+    /**All partitions in the global index indexed by their file names*/
+    Map<String, Partition> partitionsByName;
+
+    CacheEntry(long modificationTime, GlobalIndex<Partition> gindex) {
+      this.modificationTime = modificationTime;
+      this.gindex = gindex == null ? null : gindex.readOnlyView();
+      if (gindex != null) {
+        this.partitionsByName = new HashMap<String, Partition>(gindex.size() * 2);
+        for (Partition p : gindex)
+          this.partitionsByName.put(p.filename, p);
+      }
+    }
+  }
+
+  /**An LRU map of cached global indexes keyed by the qualified directory*/
+  private static final LruMap Cache = new LruMap();
+
+  /**An access-ordered map that removes the least recently used entries*/
+  static class LruMap extends LinkedHashMap<String, CacheEntry> {
+    private static final long serialVersionUID = -6023372396125377387L;
+    /**Maximum number of entries in the map*/
+    int maxEntries = 32;
+    /**Whether the maximum number of entries is read from the configuration*/
+    boolean configured;
+
+    LruMap() {
+      super(16, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+      return size() > maxEntries;
+    }
+  }
+
+  /**Enforce static only calls*/
+  private GlobalIndexCache() {}
+
+  /**
+   * Sets the maximum number of directories to keep in the cache. If not set,
+   * it is read from the configuration the first time the cache is used.
+   * @param capacity
+   */
+  static void setCapacity(int capacity) {
+    synchronized (Cache) {
+      Cache.maxEntries = capacity;
+      Cache.configured = true;
+    }
+  }
+
+  /**
+   * Returns the cache entry of the given directory reading it from the file
+   * system if it is not cached or if the cached copy is outdated.
+   * @param fs
+   * @param dir
+   * @return
+   * @throws IOException
+   */
+  private static CacheEntry getEntry(FileSystem fs, Path dir) throws IOException {
+    FileStatus dirStatus = fs.getFileStatus(dir);
+    String key = dirStatus.getPath().toString();
+    long modificationTime = dirStatus.getModificationTime();
+    CacheEntry entry;
+    synchronized (Cache) {
+      if (!Cache.configured && fs.getConf() != null) {
+        Cache.maxEntries = fs.getConf().getInt(GlobalIndexCacheSize, Cache.maxEntries);
+        Cache.configured = true;
+      }
+      entry = Cache.get(key);
+    }
+    if (entry != null && entry.modificationTime == modificationTime)
+      return entry;
+    // Read it outside the lock to allow other directories to be retrieved
+    LOG.debug("Reading the global index of '"+dir+"'");
+    entry = new CacheEntry(modificationTime, SpatialSite.getGlobalIndex(fs, dir));
+    synchronized (Cache) {
+      Cache.put(key, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Returns the global index (partitions) of a directory similar to
+   * {@link SpatialSite#getGlobalIndex(FileSystem, Path)} but uses a cached
+   * copy if the directory did not change since it was last read. The
+   * returned index is a read-only view shared by all callers; use
+   * {@link GlobalIndex#copy()} to get an index that can be modified.
+   * @param fs
+   * @param dir
+   * @return
+   */
+  public static GlobalIndex<Partition> getGlobalIndex(FileSystem fs, Path dir) {
+    if (OperationsParams.isWildcard(dir))
+      return SpatialSite.getGlobalIndex(fs, dir);
+    try {
+      return getEntry(fs, dir).gindex;
+    } catch (IOException e) {
+      LOG.info("Error retrieving global index of '"+dir+"'");
+      LOG.info(e);
+      return null;
+    }
+  }
+
+  /**
+   * Returns the partition of the given file in the global index of its
+   * parent directory. If the directory is not indexed or the file is not
+   * found in its global index, <code>null</code> is returned. The returned
+   * partition is a copy of the cached one.
+   * @param fs
+   * @param file
+   * @return
+   */
+  public static Partition getPartition(FileSystem fs, Path file) {
+    try {
+      CacheEntry entry = getEntry(fs, file.getParent());
+      if (entry.gindex == null)
+        return null;
+      Partition partition = entry.partitionsByName.get(file.getName());
+      return partition == null ? null : partition.clone();
+    } catch (IOException e) {
+      LOG.info("Error retrieving global index of '"+file.getParent()+"'");
+      LOG.info(e);
+      return null;
+    }
+  }
+
+  /**
+   * Removes all cached global indexes
+   */
+  public static void clear() {
+    synchronized (Cache) {
+      Cache.clear();
+    }
+  }
+}
@@ -22,6 +22,7 @@ import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * A partitioner that partitioner data using a uniform grid.
@@ -128,6 +129,11 @@ public class GridPartitioner extends Partitioner {
 
   @Override
   public void overlapPartitions(Shape shape, ResultCollector<Integer> matcher) {
+    collectOverlapPartitions(shape, matcher);
+  }
+
+  @Override
+  public void overlapPartitions(Shape shape, IntArray matches) {
     if (shape == null)
       return;
     Rectangle shapeMBR = shape.getMBR();
@@ -143,7 +149,7 @@ public class GridPartitioner extends Partitioner {
     if (row1 < 0) row1 = 0;
     for (int col = col1; col < col2; col++)
       for (int row = row1; row < row2; row++)
-        matcher.collect(getCellNumber(col, row));
+        matches.add(getCellNumber(col, row));
   }
   
   private int getCellNumber(int col, int row) {
@@ -53,6 +53,16 @@ public class HilbertCurvePartitioner extends Partitioner {
     createFromHValues(hValues, capacity);
   }
 
+  @Override
+  public void createFromPoints(Rectangle mbr, double[] xs, double[] ys,
+      int capacity) {
+    this.mbr.set(mbr);
+    int[] hValues = new int[xs.length];
+    for (int i = 0; i < xs.length; i++)
+      hValues[i] = computeHValue(mbr, xs[i], ys[i]);
+    createFromHValues(hValues, capacity);
+  }
+
   /**
    * Create a HilbertCurvePartitioner from a list of points
    * @param hValues
@@ -9,16 +9,15 @@
 package edu.umn.cs.spatialHadoop.indexing;
 
 import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
-import java.lang.Thread.State;
-import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.Map;
-import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
@@ -41,6 +40,7 @@ import org.apache.hadoop.util.Progressable;
 
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.io.Text2;
+import edu.umn.cs.spatialHadoop.util.BoundedExecutor;
 
 /**
  * @author Ahmed Eldawy
@@ -51,9 +51,12 @@ public class IndexOutputFormat<S extends Shape>
   
   private static final Log LOG = LogFactory.getLog(IndexOutputFormat.class);
   
-  /**Maximum number of active closing threads*/
-  private static final int MaxClosingThreads = Runtime.getRuntime().availableProcessors() * 2;
-  
+  /**
+   * Estimated memory needed to build a local index relative to the size of
+   * the partition. The partition is loaded in memory and the index structures
+   * take roughly the same size.
+   */
+  private static final int LocalIndexMemoryFactor = 2;
   
   /**New line marker to separate records*/
   protected static byte[] NEW_LINE;
@@ -87,18 +90,21 @@ public class IndexOutputFormat<S extends Shape>
     private Map<Integer, OutputStream> partitionsOutput = new ConcurrentHashMap<Integer, OutputStream>();
     /**A temporary text to serialize objects to before writing to output file*/
     private Text tempText = new Text2();
-    /**A list of all threads that are closing partitions in the background*/
-    private Vector<Thread> closingThreads = new Vector<Thread>();
+    /**Partitions that are being closed in the background*/
+    private BoundedExecutor.TaskGroup closingTasks;
     /**The master file contains information about all written partitions*/
     private OutputStream masterFile;
-    /**List of errors that happened by a background thread*/
-    private Vector<Throwable> listOfErrors = new Vector<Throwable>();
     /**Whether records are replicated in the index or distributed*/
     private boolean replicated;
     /**Type of shapes written to the output. Needed to build local indexes*/
     private S shape;
     /**Local indexer used to index each partition (optional)*/
     private LocalIndexer localIndexer;
+    /**
+     * Set if the local indexer accepts a spill of binary records. In this
+     * case, records are spilled with their MBRs and never parsed again.
+     */
+    private BinaryLocalIndexer binaryLocalIndexer;
 
     public IndexRecordWriter(TaskAttemptContext task, Path outPath) throws IOException, InterruptedException {
       this(task, Integer.toString(task.getTaskAttemptID().getTaskID().getId()), outPath, null);
@@ -113,11 +119,14 @@ public class IndexOutputFormat<S extends Shape>
       this.outFS = outPath.getFileSystem(conf);
       this.outPath = outPath;
       this.partitioner = Partitioner.getPartitioner(conf);
+      this.closingTasks = BoundedExecutor.getShared(conf).createGroup();
       Class<? extends LocalIndexer> localIndexerClass = conf.getClass(LocalIndexer.LocalIndexerClass, null, LocalIndexer.class);
       if (localIndexerClass != null) {
         try {
           this.localIndexer = localIndexerClass.newInstance();
           localIndexer.setup(conf);
+          if (localIndexer instanceof BinaryLocalIndexer)
+            this.binaryLocalIndexer = (BinaryLocalIndexer) localIndexer;
         } catch (InstantiationException e) {
           e.printStackTrace();
         } catch (IllegalAccessException e) {
@@ -137,12 +146,15 @@ public class IndexOutputFormat<S extends Shape>
       this.outFS = outPath.getFileSystem(conf);
       this.outPath = outPath;
       this.partitioner = partitioner;
+      this.closingTasks = BoundedExecutor.getShared(conf).createGroup();
       Class<? extends LocalIndexer> localIndexerClass = conf.getClass(
           LocalIndexer.LocalIndexerClass, null, LocalIndexer.class);
       if (localIndexerClass != null) {
         try {
           this.localIndexer = localIndexerClass.newInstance();
           localIndexer.setup(conf);
+          if (localIndexer instanceof BinaryLocalIndexer)
+            this.binaryLocalIndexer = (BinaryLocalIndexer) localIndexer;
         } catch (InstantiationException e) {
           e.printStackTrace();
         } catch (IllegalAccessException e) {
@@ -163,14 +175,19 @@ public class IndexOutputFormat<S extends Shape>
       } else {
         // An actual object that we need to write
         OutputStream output = getOrCreateDataOutput(id);
-        tempText.clear();
-        value.toText(tempText);
-        byte[] bytes = tempText.getBytes();
-        output.write(bytes, 0, tempText.getLength());
-        output.write(NEW_LINE);
         Partition partition = partitionsInfo.get(id);
+        if (binaryLocalIndexer != null) {
+          // Spill the record along with its MBR
+          partition.size += binaryLocalIndexer.writeRecord((DataOutput) output, value);
+        } else {
+          tempText.clear();
+          value.toText(tempText);
+          byte[] bytes = tempText.getBytes();
+          output.write(bytes, 0, tempText.getLength());
+          output.write(NEW_LINE);
+          partition.size += tempText.getLength() + NEW_LINE.length;
+        }
         partition.recordCount++;
-        partition.size += tempText.getLength() + NEW_LINE.length;
         partition.expand(value);
         if (shape == null)
           shape = (S) value.clone();
@@ -178,17 +195,19 @@ public class IndexOutputFormat<S extends Shape>
     }
 
     /**
-     * Close a file that is currently open for a specific partition. Returns a
-     * background thread that will continue all close-related logic.
-     * @param progress 
+     * Close a file that is currently open for a specific partition. All
+     * close-related logic, including building the local index, continues in
+     * the background. This method blocks if too many partitions are being
+     * closed to avoid running out of memory.
      * 
-     * @param partitionToClose
+     * @param id
+     * @throws IOException
      */
-    private void closePartition(final int id) {
+    private void closePartition(final int id) throws IOException {
       final Partition partitionInfo = partitionsInfo.get(id);
       final OutputStream outStream = partitionsOutput.get(id);
       final File tempFile = tempFiles.get(id);
-      Thread closeThread = new Thread() {
+      Runnable closeTask = new Runnable() {
         @Override
         public void run() {
           try {
@@ -199,7 +218,10 @@ public class IndexOutputFormat<S extends Shape>
               try {
                 Path indexedFilePath = getPartitionFile(id);
                 partitionInfo.filename = indexedFilePath.getName();
-                localIndexer.buildLocalIndex(tempFile, indexedFilePath, shape);
+                if (binaryLocalIndexer != null)
+                  binaryLocalIndexer.buildLocalIndexFromSpill(tempFile, indexedFilePath);
+                else
+                  localIndexer.buildLocalIndex(tempFile, indexedFilePath, shape);
                 // Temporary file no longer needed
                 tempFile.delete();
               } catch (InterruptedException e) {
@@ -218,68 +240,24 @@ public class IndexOutputFormat<S extends Shape>
               masterFile.write(partitionText.getBytes(), 0, partitionText.getLength());
               masterFile.write(NEW_LINE);
             }
-            if (!closingThreads.remove(Thread.currentThread())) {
-              throw new RuntimeException("Could not remove closing thread");
-            }
-            // Start more background threads if needed
-            int numRunningThreads = 0;
-            try {
-              for (int i_thread = 0; i_thread < closingThreads.size() &&
-                  numRunningThreads < MaxClosingThreads; i_thread++) {
-                Thread thread = closingThreads.elementAt(i_thread);
-                synchronized(thread) {
-                  switch (thread.getState()) {
-                  case NEW:
-                    // Start the thread and fall through to increment the counter
-                    thread.start();
-                  case RUNNABLE:
-                  case BLOCKED:
-                  case WAITING:
-                  case TIMED_WAITING:
-                    // No need to start. Just increment number of threads
-                    numRunningThreads++;
-                    break;
-                  case TERMINATED: // Do nothing.
-                    // Should never happen as each thread removes itself from
-                    // the list before completion 
-                  }
-                }
-              }
-            } catch (ArrayIndexOutOfBoundsException e) {
-              // No problem. The array of threads might have gone empty
-            }
           } catch (IOException e) {
-            e.printStackTrace();
             throw new RuntimeException("Error closing partition: "+partitionInfo, e);
           }
         }
       };
       
-      closeThread.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
-        @Override
-        public void uncaughtException(Thread t, Throwable e) {
-          listOfErrors.add(e);
-        }
-      });
-      
       // Clear partition information to indicate we can no longer write to it
       partitionsInfo.remove(id);
       partitionsOutput.remove(id);
       tempFiles.remove(id);
 
-      if (closingThreads.size() < MaxClosingThreads) {
-        // Start the thread in the background and make sure it started before
-        // adding it to the list of threads to avoid an exception when other
-        // thread tries to start it after it is in the queue
-        closeThread.start();
-        try {
-          while (closeThread.getState() == State.NEW) {
-            Thread.sleep(1000);
-            LOG.info("Waiting for thread #"+closeThread.getId()+" to start");
-          }
-        } catch (InterruptedException e) {}
+      long memoryCost = 0;
+      if (localIndexer != null) {
+        memoryCost = partitionInfo.size * LocalIndexMemoryFactor;
+        if (binaryLocalIndexer != null)
+          memoryCost += partitionInfo.recordCount * RTree.BinaryRecordHeaderSize;
       }
-      closingThreads.add(closeThread);
+      closingTasks.submit(closeTask, memoryCost);
     }
 
     /**
@@ -306,7 +284,8 @@ public class IndexOutputFormat<S extends Shape>
         } else {
           // Write to a temporary file that will later get indexed
           File tempFile = File.createTempFile(String.format("part-%05d", id), "lindex");
-          out = new BufferedOutputStream(new FileOutputStream(tempFile));
+          out = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(tempFile)));
           tempFiles.put(id, tempFile);
         }
         partition.cellId = id;
@@ -354,34 +333,19 @@ public class IndexOutputFormat<S extends Shape>
             task.progress();
         }
         if (task != null)
-          task.setStatus("Closing! "+closingThreads.size()+" remaining");
-        // Wait until all background threads are closed
-        try {
-          while (!closingThreads.isEmpty()) {
-            Thread thread = closingThreads.firstElement();
-            while (thread.isAlive()) {
-              try {
-                thread.join(10000);
-                if (task != null)
-                  task.progress();
-              } catch (InterruptedException e) {
-                e.printStackTrace();
-              }
-            }
-            if (task != null)
-              task.setStatus("Closing! "+closingThreads.size()+" remaining");
-          }
-        } catch (ArrayIndexOutOfBoundsException e) {
-          // The array of threads has gone empty. Nothing to do
-        }
-        if (task != null)
+          task.setStatus("Closing! "+closingTasks.getNumRemainingTasks()+" remaining");
+        // Wait until all background tasks are done
+        closingTasks.waitForAll(task);
+        if (task != null) {
           task.setStatus("All closed");
-        // All threads are now closed. Check if errors happened
-        if (!listOfErrors.isEmpty()) {
-          for (Throwable t : listOfErrors)
-            LOG.error("Error in thread", t);
-          throw new RuntimeException("Encountered "+listOfErrors.size()+" errors in background thread");
+          task.getCounter(BoundedExecutor.Counters.BACKGROUND_TASKS)
+            .increment(closingTasks.getNumCompletedTasks());
+          task.getCounter(BoundedExecutor.Counters.BACKGROUND_TIME_MILLIS)
+            .increment(closingTasks.getRunTime());
+          task.getCounter(BoundedExecutor.Counters.BACKGROUND_BLOCKED_MILLIS)
+            .increment(closingTasks.getBlockedTime());
         }
+        LOG.info("Maximum background queue depth "+closingTasks.getMaxQueueDepth());
       } finally {
         // Close the master file to ensure there are no open files
         masterFile.close();
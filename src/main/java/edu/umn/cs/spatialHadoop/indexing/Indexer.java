@@ -52,8 +52,10 @@ import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
 import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.operations.FileMBR;
+import edu.umn.cs.spatialHadoop.operations.ReservoirSampler;
 import edu.umn.cs.spatialHadoop.operations.Sampler;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * @author Ahmed Eldawy
@@ -92,6 +94,7 @@ public class Indexer {
     LocalIndexes = new HashMap<String, Class<? extends LocalIndexer>>();
     LocalIndexes.put("rtree", RTreeLocalIndexer.class);
     LocalIndexes.put("r+tree", RTreeLocalIndexer.class);
+    LocalIndexes.put("blocks", BlockLocalIndexer.class);
   }
 
 
@@ -110,6 +113,8 @@ public class Indexer {
      * it to only one partition
      */
     private boolean replicate;
+    /**IDs of the partitions overlapping the current shape*/
+    private final IntArray matches = new IntArray();
     
     @Override
     protected void setup(Context context)
@@ -126,19 +131,12 @@ public class Indexer {
       final IntWritable partitionID = new IntWritable();
       for (final Shape shape : shapes) {
         if (replicate) {
-          partitioner.overlapPartitions(shape, new ResultCollector<Integer>() {
-            @Override
-            public void collect(Integer r) {
-              partitionID.set(r);
-              try {
-                context.write(partitionID, shape);
-              } catch (IOException e) {
-                LOG.warn("Error checking overlapping partitions", e);
-              } catch (InterruptedException e) {
-                LOG.warn("Error checking overlapping partitions", e);
-              }
-            }
-          });
+          matches.clear();
+          partitioner.overlapPartitions(shape, matches);
+          for (int i = 0; i < matches.size(); i++) {
+            partitionID.set(matches.get(i));
+            context.write(partitionID, shape);
+          }
         } else {
           partitionID.set(partitioner.overlapPartition(shape));
           if (partitionID.get() >= 0)
@@ -228,9 +226,17 @@ public class Indexer {
    * @param sindex
    */
   private static void setLocalIndexer(Configuration conf, String sindex) {
-    Class<? extends LocalIndexer> localIndexerClass = LocalIndexes.get(sindex);
+    // A local index given explicitly overrides the default one of the index
+    Class<? extends LocalIndexer> localIndexerClass =
+        LocalIndexes.get(conf.get("lindex", sindex));
     if (localIndexerClass != null)
       conf.setClass(LocalIndexer.LocalIndexerClass, localIndexerClass, LocalIndexer.class);
+    // Format of records in leaf nodes of local R-trees
+    if (conf.get("leaves") != null)
+      conf.set(SpatialSite.RTREE_LEAF_FORMAT, conf.get("leaves"));
+    // Packing of records in local R-trees
+    if (conf.get("packing") != null)
+      conf.set(SpatialSite.RTREE_PACKING, conf.get("packing"));
   }
 
   public static Partitioner createPartitioner(Path in, Path out,
@@ -279,6 +285,30 @@ public class Indexer {
       FileSystem outFS = out.getFileSystem(job);
       long outBlockSize = outFS.getDefaultBlockSize(out);
 
+      if (job.get("sampler") != null)
+        job.set(SpatialSite.SAMPLER, job.get("sampler"));
+      if (job.get(SpatialSite.SAMPLER, "ratio").equals("reservoir")) {
+        // Sample a fixed number of points regardless of the input size
+        int sampleCount = job.getInt(SpatialSite.SAMPLE_COUNT, 1000000);
+        LOG.info("Reading a sample of "+sampleCount+" points");
+        OperationsParams params2 = new OperationsParams(job);
+        if (job.get("shape") != null)
+          params2.set("shape", job.get("shape"));
+        if (job.get("local") != null)
+          params2.set("local", job.get("local"));
+        double[][] sample = ReservoirSampler.sample(ins, sampleCount, params2);
+        long t2 = System.currentTimeMillis();
+        System.out.println("Total time for sampling in millis: "+(t2-t1));
+        LOG.info("Finished reading a sample of "+sample[0].length+" records");
+
+        int partitionCapacity = (int) Math.max(1, Math.floor((double)sample[0].length * outBlockSize / estimatedOutSize));
+        int numPartitions = Math.max(1, (int) Math.ceil((float)estimatedOutSize / outBlockSize));
+        LOG.info("Partitioning the space into "+numPartitions+" partitions with capacity of "+partitionCapacity);
+
+        partitioner.createFromPoints(inMBR, sample[0], sample[1], partitionCapacity);
+        return partitioner;
+      }
+
       final List<Point> sample = new ArrayList<Point>();
       float sample_ratio = job.getFloat(SpatialSite.SAMPLE_RATIO, 0.01f);
       long sample_size = job.getLong(SpatialSite.SAMPLE_SIZE, 100 * 1024 * 1024);
@@ -373,22 +403,18 @@ public class Indexer {
       }
 
       final IntWritable partitionID = new IntWritable();
+      IntArray matches = new IntArray();
 
       while (reader.nextKeyValue()) {
         Iterable<Shape> shapes = reader.getCurrentValue();
         if (replicate) {
           for (final Shape s : shapes) {
-            partitioner.overlapPartitions(s, new ResultCollector<Integer>() {
-              @Override
-              public void collect(Integer id) {
-                partitionID.set(id);
-                try {
-                  recordWriter.write(partitionID, s);
-                } catch (IOException e) {
-                  throw new RuntimeException(e);
-                }
-              }
-            });
+            matches.clear();
+            partitioner.overlapPartitions(s, matches);
+            for (int i = 0; i < matches.size(); i++) {
+              partitionID.set(matches.get(i));
+              recordWriter.write(partitionID, s);
+            }
           }
         } else {
           for (final Shape s : shapes) {
@@ -438,6 +464,10 @@ public class Indexer {
     System.out.println("<output file> - (*) Path to output file");
     System.out.println("shape:<point|rectangle|polygon> - (*) Type of shapes stored in input file");
     System.out.println("sindex:<index> - (*) Type of spatial index (grid|str|str+|quadtree|zcurve|kdtree)");
+    System.out.println("leaves:<text|binary> - Format of records in leaves of local R-trees (default: text)");
+    System.out.println("packing:<str|hilbert> - Packing of records in local R-trees (default: str)");
+    System.out.println("sampler:<ratio|reservoir> - Read a ratio of the input or a fixed number of points to partition it (default: ratio)");
+    System.out.println("lindex:<rtree|blocks> - Local index of each partition (default: based on sindex)");
     System.out.println("-overwrite - Overwrite output file without noitce");
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
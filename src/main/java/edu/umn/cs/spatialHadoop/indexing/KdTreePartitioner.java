@@ -12,10 +12,8 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Queue;
 import java.util.Vector;
 
 import org.apache.hadoop.fs.Path;
@@ -30,6 +28,8 @@ import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.mapred.ShapeIterRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+import edu.umn.cs.spatialHadoop.util.Parallel;
 
 /**
  * A partitioner that partitioner data using a K-d tree-based partitioner.
@@ -54,28 +54,43 @@ public class KdTreePartitioner extends Partitioner {
   }
   
   @Override
-  public void createFromPoints(Rectangle mbr, Point[] points, int capacity) {
+  public void createFromPoints(Rectangle mbr, final Point[] points, int capacity) {
 
     // Enumerate all partition IDs to be able to count leaf nodes in any split
     // TODO do the same functionality without enumerating all IDs
-    int numSplits = (int) Math.ceil((double)points.length / capacity);
-    String[] ids = new String[numSplits];
+    final int numSplits = (int) Math.ceil((double)points.length / capacity);
+    final String[] ids = new String[numSplits];
     for (int id = numSplits; id < 2 * numSplits; id++)
       ids[id - numSplits] = Integer.toBinaryString(id);
     
     // Keep splitting the space into halves until we reach the desired number of
     // partitions
+    final Comparator<Point> xComparator = new Comparator<Point>() {
+      @Override
+      public int compare(Point a, Point b) {
+        return a.x < b.x? -1 : (a.x > b.x? 1 : 0);
+      }
+    };
+    // Points with the same coordinate along the split direction are ordered
+    // by the other coordinate. This gives the same subranges as sorting each
+    // subrange with a stable sort after its parent was sorted along the
+    // other direction. Hence, the order of points within a subrange does
+    // not matter and each split only needs a partial sort.
     @SuppressWarnings("unchecked")
-    Comparator<Point>[] comparators = new Comparator[] {
+    final Comparator<Point>[] comparators = new Comparator[] {
       new Comparator<Point>() {
         @Override
         public int compare(Point a, Point b) {
-          return a.x < b.x? -1 : (a.x > b.x? 1 : 0);
+          if (a.x != b.x)
+            return a.x < b.x? -1 : 1;
+          return a.y < b.y? -1 : (a.y > b.y? 1 : 0);
         }},
       new Comparator<Point>() {
         @Override
         public int compare(Point a, Point b) {
-          return a.y < b.y? -1 : (a.y > b.y? 1 : 0);
+          if (a.y != b.y)
+            return a.y < b.y? -1 : 1;
+          return a.x < b.x? -1 : (a.x > b.x? 1 : 0);
         }}
     };
     
@@ -84,6 +99,7 @@ public class KdTreePartitioner extends Partitioner {
       int toIndex;
       int direction;
       int partitionID;
+      int splitIndex;
 
       /**Constructor using all fields*/
       public SplitTask(int fromIndex, int toIndex, int direction,
@@ -94,18 +110,12 @@ public class KdTreePartitioner extends Partitioner {
         this.partitionID = partitionID;
       }
       
-    }
-    Queue<SplitTask> splitTasks = new ArrayDeque<SplitTask>();
-    splitTasks.add(new SplitTask(0, points.length, 0, 1));
-    
-    this.mbr.set(mbr);
-    this.splits = new double[numSplits];
-    
-    while (!splitTasks.isEmpty()) {
-      SplitTask splitTask = splitTasks.remove();
-      if (splitTask.partitionID < numSplits) {
-        String child1 = Integer.toBinaryString(splitTask.partitionID * 2);
-        String child2 = Integer.toBinaryString(splitTask.partitionID * 2 + 1);
+      /**
+       * Partially sorts the subrange of this task and computes its split value.
+       */
+      void split() {
+        String child1 = Integer.toBinaryString(partitionID * 2);
+        String child2 = Integer.toBinaryString(partitionID * 2 + 1);
         int size_child1 = 0, size_child2 = 0;
         for (int i = 0; i < ids.length; i++) {
           if (ids[i].startsWith(child1))
@@ -116,19 +126,52 @@ public class KdTreePartitioner extends Partitioner {
         
         // Calculate the index which partitions the subrange into sizes
         // proportional to size_child1 and size_child2
-        int splitIndex = (int) (((long)size_child1 * splitTask.toIndex + (long)size_child2 * splitTask.fromIndex)
+        splitIndex = (int) (((long)size_child1 * toIndex + (long)size_child2 * fromIndex)
             / (size_child1 + size_child2));
-        partialQuickSort(points, splitTask.fromIndex, splitTask.toIndex,
-            splitIndex, comparators[splitTask.direction]);
+        if (partitionID == 1) {
+          // Points with the same x are kept in their input order in the root
+          stablePartialSort(points, fromIndex, toIndex, splitIndex, xComparator);
+        } else {
+          partialQuickSort(points, fromIndex, toIndex, splitIndex,
+              comparators[direction]);
+        }
         Point splitValue = points[splitIndex];
-        this.splits[splitTask.partitionID] = splitTask.direction == 0 ?
-            splitValue.x : splitValue.y;
-        splitTasks.add(new SplitTask(splitTask.fromIndex, splitIndex,
-            1 - splitTask.direction, splitTask.partitionID * 2));
-        splitTasks.add(new SplitTask(splitIndex, splitTask.toIndex,
-            1 - splitTask.direction, splitTask.partitionID * 2 + 1));
+        splits[partitionID] = direction == 0 ? splitValue.x : splitValue.y;
       }
     }
+    
+    this.mbr.set(mbr);
+    this.splits = new double[numSplits];
+    
+    // Process the tree one level at a time. Tasks in one level work on
+    // disjoint subranges of the points and write to different splits.
+    Vector<SplitTask> level = new Vector<SplitTask>();
+    if (numSplits > 1)
+      level.add(new SplitTask(0, points.length, 0, 1));
+    try {
+      while (!level.isEmpty()) {
+        final Vector<SplitTask> splitTasks = level;
+        Parallel.forEach(splitTasks.size(), new Parallel.RunnableRange<Object>() {
+          @Override
+          public Object run(int i1, int i2) {
+            for (int i = i1; i < i2; i++)
+              splitTasks.get(i).split();
+            return null;
+          }
+        }, parallelism);
+        level = new Vector<SplitTask>();
+        for (SplitTask splitTask : splitTasks) {
+          if (splitTask.partitionID * 2 < numSplits)
+            level.add(new SplitTask(splitTask.fromIndex, splitTask.splitIndex,
+                1 - splitTask.direction, splitTask.partitionID * 2));
+          if (splitTask.partitionID * 2 + 1 < numSplits)
+            level.add(new SplitTask(splitTask.splitIndex, splitTask.toIndex,
+                1 - splitTask.direction, splitTask.partitionID * 2 + 1));
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while splitting", e);
+    }
   }
 
   /**
@@ -145,7 +188,81 @@ public class KdTreePartitioner extends Partitioner {
    */
   public static <T> void partialQuickSort(T[] a, int fromIndex, int toIndex,
       int desiredIndex, Comparator<T> c) {
-    Arrays.sort(a, fromIndex, toIndex, c);
+    int lo = fromIndex, hi = toIndex - 1;
+    while (lo < hi) {
+      // Use the median of three elements as a pivot
+      int mid = (lo + hi) >>> 1;
+      if (c.compare(a[mid], a[lo]) < 0)
+        swap(a, lo, mid);
+      if (c.compare(a[hi], a[lo]) < 0)
+        swap(a, lo, hi);
+      if (c.compare(a[hi], a[mid]) < 0)
+        swap(a, mid, hi);
+      T pivot = a[mid];
+      int i = lo, j = hi;
+      while (i <= j) {
+        while (c.compare(a[i], pivot) < 0)
+          i++;
+        while (c.compare(a[j], pivot) > 0)
+          j--;
+        if (i <= j)
+          swap(a, i++, j--);
+      }
+      // Elements in [lo, j] are <= pivot, elements in [i, hi] are >= pivot
+      // and elements in between are equal to the pivot
+      if (desiredIndex <= j)
+        hi = j;
+      else if (desiredIndex >= i)
+        lo = i;
+      else
+        return;
+    }
+  }
+
+  /**
+   * Reorders the given subrange similar to
+   * {@link #partialQuickSort(Object[], int, int, int, Comparator)} while
+   * keeping elements in their original order within each of the three groups
+   * of elements that are less than, equal to and greater than the element
+   * at the desired index. Hence, the elements before the desired index are
+   * the same ones that a stable sort would put there. It runs in linear time
+   * and uses a temporary array of the same size as the subrange.
+   * @param a - the array to sort
+   * @param fromIndex - the index of the first element in the subrange
+   * @param toIndex - the index after the last element in the subrange
+   * @param desiredIndex - the index which needs to be adjusted
+   * @param c - the comparator used to compare array elements
+   */
+  static <T> void stablePartialSort(T[] a, int fromIndex, int toIndex,
+      int desiredIndex, Comparator<T> c) {
+    T[] tmp = Arrays.copyOfRange(a, fromIndex, toIndex);
+    partialQuickSort(tmp, 0, tmp.length, desiredIndex - fromIndex, c);
+    T pivot = tmp[desiredIndex - fromIndex];
+    int numLess = 0, numEqual = 0;
+    for (int i = fromIndex; i < toIndex; i++) {
+      int comparison = c.compare(a[i], pivot);
+      if (comparison < 0)
+        numLess++;
+      else if (comparison == 0)
+        numEqual++;
+    }
+    int iLess = 0, iEqual = numLess, iGreater = numLess + numEqual;
+    for (int i = fromIndex; i < toIndex; i++) {
+      int comparison = c.compare(a[i], pivot);
+      if (comparison < 0)
+        tmp[iLess++] = a[i];
+      else if (comparison == 0)
+        tmp[iEqual++] = a[i];
+      else
+        tmp[iGreater++] = a[i];
+    }
+    System.arraycopy(tmp, 0, a, fromIndex, tmp.length);
+  }
+
+  private static <T> void swap(T[] a, int i, int j) {
+    T t = a[i];
+    a[i] = a[j];
+    a[j] = t;
   }
 
   @Override
@@ -183,48 +300,54 @@ public class KdTreePartitioner extends Partitioner {
 
   @Override
   public void overlapPartitions(Shape shape, ResultCollector<Integer> matcher) {
+    collectOverlapPartitions(shape, matcher);
+  }
+
+  @Override
+  public void overlapPartitions(Shape shape, IntArray matches) {
     if (shape == null || shape.getMBR() == null)
       return;
-    Rectangle shapeMBR = shape.getMBR();
-    /**Information about a split to test*/
-    class SplitToTest {
-      /**The ID of the split in the array of splits in the KDTreePartitioner*/
-      int splitID;
-      /**Direction of the split. 0 is vertical (|) and 1 is horizontal (-)*/
-      int direction;
-      
-      public SplitToTest(int splitID, int direction) {
-        this.splitID = splitID;
-        this.direction = direction;
+    overlapPartitions(shape.getMBR(), 1, 0, matches);
+  }
+
+  /**
+   * Descends the subtree rooted at the given split and adds all leaf
+   * partitions that overlap the given rectangle.
+   * @param shapeMBR - the rectangle to test
+   * @param splitID - the ID of the root of the subtree
+   * @param direction - direction of the split. 0 is vertical (|) and 1 is
+   *   horizontal (-)
+   * @param matches - the array to add matched partitions to
+   */
+  private void overlapPartitions(Rectangle shapeMBR, int splitID,
+      int direction, IntArray matches) {
+    while (splitID < splits.length) {
+      double min, max;
+      if (direction == 0) {
+        min = shapeMBR.x1;
+        max = shapeMBR.x2;
+      } else {
+        min = shapeMBR.y1;
+        max = shapeMBR.y2;
       }
-    }
-    // A queue of all splits to test
-    Queue<SplitToTest> splitsToTest = new ArrayDeque<SplitToTest>();
-    // Start from the first (root) split
-    splitsToTest.add(new SplitToTest(1, 0));
-    
-    while (!splitsToTest.isEmpty()) {
-      SplitToTest splitToTest = splitsToTest.remove();
-      if (splitToTest.splitID >= splits.length) {
-        // Matched a partition. return it
-        matcher.collect(splitToTest.splitID);
+      // A shape that lies on the split goes to the right child as in
+      // overlapPartition(Shape) so that zero-width MBRs are never lost
+      boolean goLeft = min < splits[splitID];
+      boolean goRight = max >= splits[splitID];
+      direction ^= 1;
+      if (goLeft && goRight) {
+        // Descend the left subtree recursively and continue to the right one
+        overlapPartitions(shapeMBR, splitID * 2, direction, matches);
+        splitID = splitID * 2 + 1;
+      } else if (goLeft) {
+        splitID = splitID * 2;
+      } else if (goRight) {
+        splitID = splitID * 2 + 1;
       } else {
-        // Need to test that split
-        if (splitToTest.direction == 0) {
-          // The corresponding split is vertical (along the x-axis). Like |
-          if (shapeMBR.x1 < splits[splitToTest.splitID])
-            splitsToTest.add(new SplitToTest(splitToTest.splitID * 2, 1 ^ splitToTest.direction)); // Go left
-          if (shapeMBR.x2 > splits[splitToTest.splitID])
-            splitsToTest.add(new SplitToTest(splitToTest.splitID * 2 + 1, 1 ^ splitToTest.direction)); // Go right
-        } else {
-          // The corresponding split is horizontal (along the y-axis). Like -
-          if (shapeMBR.y1 < splits[splitToTest.splitID])
-            splitsToTest.add(new SplitToTest(splitToTest.splitID * 2, 1 ^ splitToTest.direction));
-          if (shapeMBR.y2 > splits[splitToTest.splitID])
-            splitsToTest.add(new SplitToTest(splitToTest.splitID * 2 + 1, 1 ^ splitToTest.direction));
-        }
+        return;
       }
     }
+    matches.add(splitID);
   }
 
   /**
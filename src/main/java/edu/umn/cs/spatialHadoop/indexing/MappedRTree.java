@@ -0,0 +1,384 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.io.Text2;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+
+/**
+ * A read-only R-tree that works directly on a {@link ByteBuffer} which
+ * contains the tree as written by
+ * {@link RTree#bulkLoadWrite(byte[], int, int, int, java.io.DataOutput, Shape, boolean, boolean)}.
+ * The buffer is typically a memory-mapped file which allows opening the tree
+ * without reading or copying it. Unlike {@link RTree#readFields(java.io.DataInput)},
+ * no objects are created for the nodes; node MBRs and data offsets are read
+ * from the buffer while the tree is traversed.
+ * @author Ahmed Eldawy
+ *
+ * @param <T>
+ */
+public class MappedRTree<T extends Shape> implements Iterable<T> {
+
+  /**The buffer that contains the tree*/
+  private final ByteBuffer data;
+
+  /**
+   * A view of the data used to copy records out of the buffer. Kept separate
+   * to avoid changing the position of the given buffer.
+   */
+  private final ByteBuffer view;
+
+  /**Offset of the tree (the tree size field) in the buffer*/
+  private final int treeOffset;
+
+  /**Offset in the buffer that all data offsets in the tree are relative to*/
+  private final int baseOffset;
+
+  /**Offset of the first node in the buffer*/
+  private final int nodesOffset;
+
+  /**Total size of the tree (header + structure + data)*/
+  private final int treeSize;
+
+  /**Height of the tree (number of levels)*/
+  private int height;
+
+  /**Degree of internal nodes in the tree*/
+  private int degree;
+
+  /**Total number of nodes in the tree*/
+  private int nodeCount;
+
+  /**Number of non-leaf nodes*/
+  private int nonLeafNodeCount;
+
+  /**Number of elements in the tree*/
+  private int elementCount;
+
+  /** An instance of T that can be used to deserialize objects from disk */
+  private final T stockObject;
+
+  /**Whether records in leaf nodes are stored in the binary format*/
+  private final boolean binaryLeaves;
+
+  /**
+   * Opens the tree that starts at the given offset in the buffer.
+   * @param data - the buffer that contains the tree
+   * @param treeOffset - the offset of the tree in the buffer
+   * @param stockObject - used to deserialize records
+   * @param binaryLeaves - whether leaf records are stored in binary format
+   */
+  public MappedRTree(ByteBuffer data, int treeOffset, T stockObject,
+      boolean binaryLeaves) {
+    this.data = data;
+    this.view = data.duplicate();
+    this.treeOffset = treeOffset;
+    this.stockObject = stockObject;
+    this.binaryLeaves = binaryLeaves;
+    this.treeSize = data.getInt(treeOffset);
+    this.baseOffset = treeOffset + 4;
+    this.nodesOffset = treeOffset + RTree.TreeHeaderSize + 4;
+    if (treeSize == 0)
+      return;
+    this.height = data.getInt(treeOffset + 4);
+    if (height == 0)
+      return;
+    this.degree = data.getInt(treeOffset + 8);
+    this.elementCount = data.getInt(treeOffset + 12);
+    this.nodeCount = (RTree.powInt(degree, height) - 1) / (degree - 1);
+    int leafNodeCount = RTree.powInt(degree, height - 1);
+    this.nonLeafNodeCount = nodeCount - leafNodeCount;
+  }
+
+  /**
+   * Returns the offset in the buffer right after the end of this tree.
+   * @return
+   */
+  public int getEndOffset() {
+    return baseOffset + treeSize;
+  }
+
+  /**
+   * Returns total number of elements
+   * @return
+   */
+  public int getElementCount() {
+    return elementCount;
+  }
+
+  /**
+   * Returns the MBR of the root
+   * @return
+   */
+  public Rectangle getMBR() {
+    int n = nodesOffset;
+    return new Rectangle(data.getDouble(n + 4), data.getDouble(n + 12),
+        data.getDouble(n + 20), data.getDouble(n + 28));
+  }
+
+  /**
+   * Tests if the MBR of the given node overlaps the given query rectangle.
+   * Similar to {@link Rectangle#isIntersected(Shape)} but reads the node MBR
+   * directly from the buffer.
+   */
+  private boolean isNodeIntersected(int nodeID, Rectangle query) {
+    int n = nodesOffset + nodeID * RTree.NodeSize;
+    return query.x2 > data.getDouble(n + 4) && data.getDouble(n + 20) > query.x1
+        && query.y2 > data.getDouble(n + 12) && data.getDouble(n + 28) > query.y1;
+  }
+
+  /**
+   * Returns the offset of the first record under the given node relative to
+   * the base offset. For nodeID == nodeCount, returns the end of the data.
+   */
+  private int getDataOffset(int nodeID) {
+    if (nodeID == nodeCount)
+      return treeSize;
+    return data.getInt(nodesOffset + nodeID * RTree.NodeSize);
+  }
+
+  /**
+   * Reads records stored in the buffer between two offsets. Text records are
+   * copied out of the buffer one line at a time. Binary records are filtered
+   * using the MBR stored in the buffer and only matching records are copied
+   * and deserialized.
+   */
+  class BufferLeafReader {
+    /**Absolute offset of the next record in the buffer*/
+    private int offset;
+    /**Absolute offset at which reading stops*/
+    private int endOffset;
+    /**Holds the bytes of one record copied out of the buffer*/
+    private byte[] recordBytes = new byte[1024];
+    /**Holds one text line*/
+    private final Text line = new Text2();
+    /**Parses one binary record*/
+    private final DataInputBuffer recordIn = new DataInputBuffer();
+
+    void reset(int startOffset, int endOffset) {
+      this.offset = baseOffset + startOffset;
+      this.endOffset = baseOffset + endOffset;
+    }
+
+    boolean hasNext() {
+      return offset < endOffset;
+    }
+
+    private void copyRecord(int recordOffset, int length) {
+      if (recordBytes.length < length)
+        recordBytes = new byte[Math.max(length, recordBytes.length * 2)];
+      view.position(recordOffset);
+      view.get(recordBytes, 0, length);
+    }
+
+    /**
+     * Reads the next record into the given shape.
+     * @param shape - the shape to read the record into
+     * @param filterMBR - an optional filter, or <code>null</code> to read all
+     * @return <code>true</code> if the record was read into shape or
+     *   <code>false</code> if it was skipped by the filter.
+     * @throws IOException
+     */
+    boolean next(Shape shape, Rectangle filterMBR) throws IOException {
+      if (binaryLeaves) {
+        int recordOffset = offset;
+        int size = data.getInt(recordOffset + 32);
+        offset += RTree.BinaryRecordHeaderSize + size;
+        if (filterMBR != null && (data.getDouble(recordOffset) > filterMBR.x2
+            || filterMBR.x1 > data.getDouble(recordOffset + 16)
+            || data.getDouble(recordOffset + 8) > filterMBR.y2
+            || filterMBR.y1 > data.getDouble(recordOffset + 24)))
+          return false;
+        copyRecord(recordOffset + RTree.BinaryRecordHeaderSize, size);
+        recordIn.reset(recordBytes, size);
+        shape.readFields(recordIn);
+      } else {
+        int eol = offset;
+        byte b = 0;
+        while (eol < endOffset && (b = data.get(eol)) != '\n' && b != '\r')
+          eol++;
+        copyRecord(offset, eol - offset);
+        line.set(recordBytes, 0, eol - offset);
+        // Skip the end of line which is one of "\n", "\r" or "\r\n"
+        if (eol < endOffset) {
+          eol++;
+          if (b == '\r' && eol < endOffset && data.get(eol) == '\n')
+            eol++;
+        }
+        offset = eol;
+        shape.fromText(line);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Searches the tree for all shapes overlapping the queryShape.
+   * @param query - the query shape
+   * @param output - Shapes found are reported to this output. If null,
+   *   results are not reported
+   * @return - Total number of records found
+   */
+  public int search(Shape query, ResultCollector<T> output) {
+    if (height == 0)
+      return 0;
+    try {
+      Rectangle queryMBR = query.getMBR();
+      int resultSize = 0;
+      BufferLeafReader leafReader = new BufferLeafReader();
+      IntArray toBeSearched = new IntArray();
+      toBeSearched.add(0);
+      while (!toBeSearched.isEmpty()) {
+        int nodeID = toBeSearched.pop();
+        if (!isNodeIntersected(nodeID, queryMBR))
+          continue;
+        if (nodeID >= nonLeafNodeCount) {
+          leafReader.reset(getDataOffset(nodeID), getDataOffset(nodeID + 1));
+          while (leafReader.hasNext()) {
+            if (leafReader.next(stockObject, queryMBR) &&
+                stockObject.isIntersected(query)) {
+              resultSize++;
+              if (output != null)
+                output.collect(stockObject);
+            }
+          }
+        } else {
+          for (int iChild = 0; iChild < degree; iChild++)
+            toBeSearched.add(nodeID * degree + iChild + 1);
+        }
+      }
+      return resultSize;
+    } catch (IOException e) {
+      e.printStackTrace();
+      return 0;
+    }
+  }
+
+  /**
+   * Searches the tree for all shapes overlapping the queryShape and returns
+   * an iterator for all these shapes
+   * @param queryShape
+   * @return
+   */
+  public Iterable<T> search(Shape queryShape) {
+    return new SearchIterator(queryShape);
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return new SearchIterator(null);
+  }
+
+  /**
+   * An iterator over the records that overlap a query shape. If the query
+   * shape is null, all records are returned.
+   * @author Ahmed Eldawy
+   *
+   */
+  class SearchIterator implements Iterable<T>, Iterator<T> {
+    /**Shape to search*/
+    private final Shape queryShape;
+    /**MBR of the query shape for fast comparison with nodes*/
+    private final Rectangle queryMBR;
+    /**Nodes to be searched*/
+    private final IntArray toBeSearched = new IntArray();
+    /**Reads records of the current leaf node*/
+    private final BufferLeafReader leafReader = new BufferLeafReader();
+    /**The last object returned by next*/
+    private T resultShape;
+    /**The object that will be returned by the following call to next*/
+    private T nextResultShape;
+
+    SearchIterator(Shape queryShape) {
+      this.queryShape = queryShape;
+      this.queryMBR = queryShape == null ? null : queryShape.getMBR();
+      if (height > 0)
+        toBeSearched.add(0);
+      this.resultShape = (T) stockObject.clone();
+      this.nextResultShape = (T) stockObject.clone();
+      prepareNextResult();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return nextResultShape != null;
+    }
+
+    @Override
+    public T next() {
+      T temp = resultShape;
+      resultShape = nextResultShape;
+      nextResultShape = temp;
+      prepareNextResult();
+      return resultShape;
+    }
+
+    private boolean isMatched() throws IOException {
+      return leafReader.next(nextResultShape, queryMBR) &&
+          (queryShape == null || nextResultShape.isIntersected(queryShape));
+    }
+
+    /**
+     * Search for next item in result and store it in nextResultShape.
+     * If no more results found, set nextResultShape to null
+     */
+    private void prepareNextResult() {
+      try {
+        while (true) {
+          while (leafReader.hasNext()) {
+            if (isMatched())
+              return;
+          }
+          if (toBeSearched.isEmpty())
+            break;
+          int nodeID = toBeSearched.pop();
+          if (queryMBR != null && !isNodeIntersected(nodeID, queryMBR))
+            continue;
+          if (nodeID >= nonLeafNodeCount) {
+            leafReader.reset(getDataOffset(nodeID), getDataOffset(nodeID + 1));
+          } else {
+            // Add children in reverse order to visit them in order
+            for (int iChild = degree - 1; iChild >= 0; iChild--)
+              toBeSearched.add(nodeID * degree + iChild + 1);
+          }
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      // No more results in the tree
+      nextResultShape = null;
+    }
+
+    @Override
+    public void remove() {
+      throw new RuntimeException("Unsupported method");
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MappedRTree at offset " + treeOffset + " with " + elementCount
+        + " elements";
+  }
+}
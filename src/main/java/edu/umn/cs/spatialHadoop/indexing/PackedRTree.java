@@ -0,0 +1,419 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+
+/**
+ * An in-memory R-tree that is bulk loaded using the Sort-Tile-Recursive
+ * (STR) algorithm and never changed afterwards. All nodes are completely
+ * packed and the MBRs of nodes are stored per level in arrays of primitives
+ * which makes it compact and fast to search. The indexed shapes are kept in
+ * the array they were given in and are never reordered. It indexes the
+ * partitions of a {@link GlobalIndex} and the records of a small dataset
+ * that is probed with the records of a large one.
+ * 
+ * Searches and joins only compare MBRs. A shape without an MBR is never
+ * pruned while a shape with an invalid MBR never matches.
+ * @author Ahmed Eldawy
+ *
+ * @param <S>
+ */
+public class PackedRTree<S extends Shape> {
+  /**Default maximum number of children of a node*/
+  public static final int DefaultDegree = 16;
+
+  /**Maximum number of children of a node*/
+  private final int degree;
+
+  /**All indexed shapes in their original order*/
+  private final S[] shapes;
+
+  /**
+   * Index in {@link #shapes} of each entry in the lowest level of the tree.
+   * Entries are ordered such that each leaf node covers a range of up to
+   * {@link #degree} consecutive entries.
+   */
+  private final int[] packedOrder;
+
+  /**
+   * MBRs of the nodes of the tree stored per level in primitive arrays.
+   * Level 0 contains the MBRs of the shapes in the order given by
+   * {@link #packedOrder}. Node i in level l+1 covers nodes
+   * [i*degree, (i+1)*degree) in level l. The top level contains only the
+   * root.
+   */
+  private final double[][] levelX1, levelY1, levelX2, levelY2;
+
+  @SuppressWarnings("unchecked")
+  public PackedRTree(List<S> shapes) {
+    this((S[]) shapes.toArray(new Shape[shapes.size()]), DefaultDegree);
+  }
+
+  @SuppressWarnings("unchecked")
+  public PackedRTree(List<S> shapes, int degree) {
+    this((S[]) shapes.toArray(new Shape[shapes.size()]), degree);
+  }
+
+  /**
+   * Bulk loads the tree over the given shapes. The array is kept as is
+   * and should not be modified while the tree is in use.
+   * @param shapes
+   * @param degree - maximum number of children of each node
+   */
+  public PackedRTree(S[] shapes, int degree) {
+    if (degree < 2)
+      throw new IllegalArgumentException("Degree must be at least 2");
+    this.degree = degree;
+    this.shapes = shapes;
+    final int n = shapes.length;
+    packedOrder = new int[n];
+    final double[] x1 = new double[n], y1 = new double[n],
+        x2 = new double[n], y2 = new double[n];
+    final double[] centers = new double[n];
+    for (int i = 0; i < n; i++) {
+      packedOrder[i] = i;
+      Rectangle mbr = shapes[i].getMBR();
+      if (mbr == null) {
+        // Unknown extents. Never prune it and leave it to the exact test
+        x1[i] = y1[i] = Double.NEGATIVE_INFINITY;
+        x2[i] = y2[i] = Double.POSITIVE_INFINITY;
+      } else if (!mbr.isValid()) {
+        // An invalid (empty) MBR never matches any query
+        x1[i] = y1[i] = Double.POSITIVE_INFINITY;
+        x2[i] = y2[i] = Double.NEGATIVE_INFINITY;
+      } else {
+        x1[i] = mbr.x1; y1[i] = mbr.y1; x2[i] = mbr.x2; y2[i] = mbr.y2;
+      }
+    }
+
+    IndexedSortable sortable = new IndexedSortable() {
+      @Override
+      public int compare(int i, int j) {
+        return Double.compare(centers[i], centers[j]);
+      }
+
+      @Override
+      public void swap(int i, int j) {
+        double t;
+        t = x1[i]; x1[i] = x1[j]; x1[j] = t;
+        t = y1[i]; y1[i] = y1[j]; y1[j] = t;
+        t = x2[i]; x2[i] = x2[j]; x2[j] = t;
+        t = y2[i]; y2[i] = y2[j]; y2[j] = t;
+        t = centers[i]; centers[i] = centers[j]; centers[j] = t;
+        int ti = packedOrder[i]; packedOrder[i] = packedOrder[j]; packedOrder[j] = ti;
+      }
+    };
+    QuickSort sorter = new QuickSort();
+    // Sort all entries by x and divide them into vertical slices
+    for (int i = 0; i < n; i++)
+      centers[i] = (x1[i] + x2[i]) / 2;
+    sorter.sort(sortable, 0, n);
+    int leafCount = (n + degree - 1) / degree;
+    int sliceCount = (int) Math.ceil(Math.sqrt(leafCount));
+    int sliceSize = sliceCount == 0 ? n :
+      ((leafCount + sliceCount - 1) / sliceCount) * degree;
+    // Sort each slice by y
+    for (int i = 0; i < n; i++)
+      centers[i] = (y1[i] + y2[i]) / 2;
+    for (int sliceStart = 0; sliceStart < n; sliceStart += sliceSize)
+      sorter.sort(sortable, sliceStart, Math.min(n, sliceStart + sliceSize));
+
+    // Pack upper levels bottom-up until a single root remains
+    List<double[]> levels = new ArrayList<double[]>();
+    levels.add(x1); levels.add(y1); levels.add(x2); levels.add(y2);
+    int levelSize = n;
+    while (levelSize > 1) {
+      int parentSize = (levelSize + degree - 1) / degree;
+      double[] cx1 = levels.get(levels.size() - 4);
+      double[] cy1 = levels.get(levels.size() - 3);
+      double[] cx2 = levels.get(levels.size() - 2);
+      double[] cy2 = levels.get(levels.size() - 1);
+      double[] px1 = new double[parentSize], py1 = new double[parentSize],
+          px2 = new double[parentSize], py2 = new double[parentSize];
+      for (int p = 0; p < parentSize; p++) {
+        px1[p] = py1[p] = Double.POSITIVE_INFINITY;
+        px2[p] = py2[p] = Double.NEGATIVE_INFINITY;
+        int last = Math.min(levelSize, (p + 1) * degree);
+        for (int c = p * degree; c < last; c++) {
+          px1[p] = Math.min(px1[p], cx1[c]);
+          py1[p] = Math.min(py1[p], cy1[c]);
+          px2[p] = Math.max(px2[p], cx2[c]);
+          py2[p] = Math.max(py2[p], cy2[c]);
+        }
+      }
+      levels.add(px1); levels.add(py1); levels.add(px2); levels.add(py2);
+      levelSize = parentSize;
+    }
+    int levelCount = levels.size() / 4;
+    levelX1 = new double[levelCount][];
+    levelY1 = new double[levelCount][];
+    levelX2 = new double[levelCount][];
+    levelY2 = new double[levelCount][];
+    for (int l = 0; l < levelCount; l++) {
+      levelX1[l] = levels.get(l * 4);
+      levelY1[l] = levels.get(l * 4 + 1);
+      levelX2[l] = levels.get(l * 4 + 2);
+      levelY2[l] = levels.get(l * 4 + 3);
+    }
+  }
+
+  /**
+   * Creates a tree over a copy of the shapes of another tree. The shapes
+   * must have the same MBRs and the same order as the ones of the given
+   * tree. The tree structure is shared as it is never modified.
+   * @param tree
+   * @param shapes
+   */
+  PackedRTree(PackedRTree<S> tree, S[] shapes) {
+    this.degree = tree.degree;
+    this.shapes = shapes;
+    this.packedOrder = tree.packedOrder;
+    this.levelX1 = tree.levelX1;
+    this.levelY1 = tree.levelY1;
+    this.levelX2 = tree.levelX2;
+    this.levelY2 = tree.levelY2;
+  }
+
+  /**
+   * Number of entries in the tree
+   * @return
+   */
+  public int size() {
+    return shapes.length;
+  }
+
+  /**
+   * Tests whether a node in the tree overlaps the given rectangle.
+   */
+  private boolean isNodeOverlapping(int level, int index, double x1,
+      double y1, double x2, double y2, boolean includeTouching) {
+    if (includeTouching)
+      return levelX1[level][index] <= x2 && x1 <= levelX2[level][index] &&
+          levelY1[level][index] <= y2 && y1 <= levelY2[level][index];
+    return levelX1[level][index] < x2 && x1 < levelX2[level][index] &&
+        levelY1[level][index] < y2 && y1 < levelY2[level][index];
+  }
+
+  /**
+   * Tests whether two nodes in two trees overlap.
+   */
+  private static boolean isNodeOverlapping(PackedRTree<?> r, int levelR,
+      int indexR, PackedRTree<?> s, int levelS, int indexS,
+      boolean includeTouching) {
+    return s.isNodeOverlapping(levelS, indexS, r.levelX1[levelR][indexR],
+        r.levelY1[levelR][indexR], r.levelX2[levelR][indexR],
+        r.levelY2[levelR][indexR], includeTouching);
+  }
+
+  /**
+   * Returns the range [first, last) of children of a node in the level below
+   * @param level - the level of the node (must be greater than zero)
+   * @param index - the index of the node in its level
+   * @param range - an array of two elements to store the result in
+   */
+  private void getChildren(int level, int index, int[] range) {
+    range[0] = index * degree;
+    range[1] = Math.min(levelX1[level - 1].length, range[0] + degree);
+  }
+
+  /**
+   * Returns the minimum distance between the given point and a node MBR.
+   */
+  private double getMinDistance(int level, int index, double qx, double qy) {
+    double dx = 0, dy = 0;
+    if (qx < levelX1[level][index])
+      dx = levelX1[level][index] - qx;
+    else if (qx > levelX2[level][index])
+      dx = qx - levelX2[level][index];
+    if (qy < levelY1[level][index])
+      dy = levelY1[level][index] - qy;
+    else if (qy > levelY2[level][index])
+      dy = qy - levelY2[level][index];
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  /**
+   * Finds all entries with MBRs that overlap the given rectangle.
+   * @param x1
+   * @param y1
+   * @param x2
+   * @param y2
+   * @param includeTouching - whether MBRs that only touch the rectangle are
+   *   reported or not
+   * @param output - receives the matching entries. Can be null.
+   * @return number of matching entries
+   */
+  public int search(double x1, double y1, double x2, double y2,
+      boolean includeTouching, ResultCollector<S> output) {
+    int result_count = 0;
+    if (shapes.length == 0)
+      return result_count;
+    int[] children = new int[2];
+    // Stack of (level, index) pairs of nodes to be searched
+    IntArray toBeSearched = new IntArray();
+    toBeSearched.add(levelX1.length - 1);
+    toBeSearched.add(0);
+    while (!toBeSearched.isEmpty()) {
+      int index = toBeSearched.pop();
+      int level = toBeSearched.pop();
+      if (!isNodeOverlapping(level, index, x1, y1, x2, y2, includeTouching))
+        continue;
+      if (level == 0) {
+        result_count++;
+        if (output != null)
+          output.collect(shapes[packedOrder[index]]);
+      } else {
+        getChildren(level, index, children);
+        for (int child = children[1] - 1; child >= children[0]; child--) {
+          toBeSearched.add(level - 1);
+          toBeSearched.add(child);
+        }
+      }
+    }
+    return result_count;
+  }
+
+  public int search(Rectangle range, boolean includeTouching,
+      ResultCollector<S> output) {
+    return search(range.x1, range.y1, range.x2, range.y2, includeTouching, output);
+  }
+
+  /**
+   * Finds all pairs of entries with overlapping MBRs in two trees by
+   * traversing them together.
+   * @param r
+   * @param s
+   * @param includeTouching - whether pairs of MBRs that only touch are
+   *   reported or not
+   * @param output - receives the matching pairs. Can be null.
+   * @return number of matching pairs
+   */
+  public static<S1 extends Shape, S2 extends Shape> int spatialJoin(
+      PackedRTree<S1> r, PackedRTree<S2> s, boolean includeTouching,
+      ResultCollector2<S1, S2> output) {
+    int result_count = 0;
+    if (r.shapes.length == 0 || s.shapes.length == 0)
+      return result_count;
+    int[] children = new int[2];
+    // Stack of (level1, index1, level2, index2) of node pairs to be checked
+    IntArray toBeSearched = new IntArray();
+    toBeSearched.add(r.levelX1.length - 1);
+    toBeSearched.add(0);
+    toBeSearched.add(s.levelX1.length - 1);
+    toBeSearched.add(0);
+    while (!toBeSearched.isEmpty()) {
+      int index2 = toBeSearched.pop();
+      int level2 = toBeSearched.pop();
+      int index1 = toBeSearched.pop();
+      int level1 = toBeSearched.pop();
+      if (!isNodeOverlapping(r, level1, index1, s, level2, index2, includeTouching))
+        continue;
+      if (level1 == 0 && level2 == 0) {
+        result_count++;
+        if (output != null)
+          output.collect(r.shapes[r.packedOrder[index1]],
+              s.shapes[s.packedOrder[index2]]);
+      } else if (level1 >= level2) {
+        // Expand the higher node to keep both sides at similar extents
+        r.getChildren(level1, index1, children);
+        for (int child = children[0]; child < children[1]; child++) {
+          toBeSearched.add(level1 - 1);
+          toBeSearched.add(child);
+          toBeSearched.add(level2);
+          toBeSearched.add(index2);
+        }
+      } else {
+        s.getChildren(level2, index2, children);
+        for (int child = children[0]; child < children[1]; child++) {
+          toBeSearched.add(level1);
+          toBeSearched.add(index1);
+          toBeSearched.add(level2 - 1);
+          toBeSearched.add(child);
+        }
+      }
+    }
+    return result_count;
+  }
+
+  /**
+   * An entry in the queue of the best-first kNN search. An entry is either a
+   * node of the tree keyed by the minimum distance to its MBR or a shape
+   * keyed by its exact distance to the query point.
+   */
+  static class KNNEntry implements Comparable<KNNEntry> {
+    /**Level of the node in the tree or -1 for a shape*/
+    int level;
+    /**Index of the node in its level or of the shape in the shapes array*/
+    int index;
+    /**Distance to the query point*/
+    double distance;
+
+    KNNEntry(int level, int index, double distance) {
+      this.level = level;
+      this.index = index;
+      this.distance = distance;
+    }
+
+    @Override
+    public int compareTo(KNNEntry o) {
+      return Double.compare(this.distance, o.distance);
+    }
+  }
+
+  /**
+   * Finds the k shapes nearest to the query point using a best-first search
+   * over the tree. Shapes are reported in ascending order of distance along
+   * with their distances as computed by {@link Shape#distanceTo(double, double)}.
+   * @param qx
+   * @param qy
+   * @param k
+   * @param output - receives the nearest shapes. Can be null.
+   * @return number of reported shapes
+   */
+  public int knn(double qx, double qy, int k, ResultCollector2<S, Double> output) {
+    int result_size = 0;
+    if (shapes.length == 0)
+      return result_size;
+    int[] children = new int[2];
+    PriorityQueue<KNNEntry> queue = new PriorityQueue<KNNEntry>();
+    int root = levelX1.length - 1;
+    queue.add(new KNNEntry(root, 0, getMinDistance(root, 0, qx, qy)));
+    while (result_size < k && !queue.isEmpty()) {
+      KNNEntry entry = queue.poll();
+      if (entry.level == -1) {
+        // A shape is reported only when it is closer than all remaining nodes
+        result_size++;
+        if (output != null)
+          output.collect(shapes[entry.index], entry.distance);
+      } else if (entry.level == 0) {
+        int i = packedOrder[entry.index];
+        queue.add(new KNNEntry(-1, i, shapes[i].distanceTo(qx, qy)));
+      } else {
+        getChildren(entry.level, entry.index, children);
+        for (int child = children[0]; child < children[1]; child++) {
+          queue.add(new KNNEntry(entry.level - 1, child,
+              getMinDistance(entry.level - 1, child, qx, qy)));
+        }
+      }
+    }
+    return result_size;
+  }
+}
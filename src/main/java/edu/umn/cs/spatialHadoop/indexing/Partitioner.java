@@ -25,6 +25,7 @@ import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * An interface for spatially partitioning data into partitions.
@@ -36,6 +37,26 @@ public abstract class Partitioner implements Writable {
   private static final String PartitionerClass = "Partitioner.Class";
   private static final String PartitionerValue = "Partitioner.Value";
 
+  /**
+   * Maximum number of threads used while creating the partitioner. This is
+   * not serialized with the partitioner as it only affects construction.
+   */
+  protected int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Sets the maximum number of threads used by
+   * {@link #createFromPoints(Rectangle, Point[], int)}. The created partitions
+   * are the same regardless of the number of threads.
+   * @param parallelism
+   */
+  public void setParallelism(int parallelism) {
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
   /**
    * Populate this partitioner for a set of points and number of partitions
    * @param mbr - the minimal bounding rectangle of the input space
@@ -46,6 +67,24 @@ public abstract class Partitioner implements Writable {
   public abstract void createFromPoints(Rectangle mbr, Point[] points,
       int capacity) throws IllegalArgumentException;
   
+  /**
+   * Populate this partitioner for a set of points given as two arrays of
+   * coordinates. The default implementation creates a point for each pair of
+   * coordinates and calls {@link #createFromPoints(Rectangle, Point[], int)}.
+   * @param mbr - the minimal bounding rectangle of the input space
+   * @param xs - the x coordinates of the points to be partitioned
+   * @param ys - the y coordinates of the points to be partitioned
+   * @param capacity - maximum number of points per partition
+   * @throws IllegalArgumentException if points are empty 
+   */
+  public void createFromPoints(Rectangle mbr, double[] xs, double[] ys,
+      int capacity) throws IllegalArgumentException {
+    Point[] points = new Point[xs.length];
+    for (int i = 0; i < xs.length; i++)
+      points[i] = new Point(xs[i], ys[i]);
+    createFromPoints(mbr, points, capacity);
+  }
+  
   /**
    * Overlap a shape with partitions and calls a matcher for each overlapping
    * partition.
@@ -53,6 +92,41 @@ public abstract class Partitioner implements Writable {
    * @param matcher
    */
   public abstract void overlapPartitions(Shape shape, ResultCollector<Integer> matcher);
+
+  /**
+   * Overlap a shape with partitions and appends the IDs of all overlapping
+   * partitions to the given array. The array is not cleared which allows the
+   * caller to reuse it across shapes without boxing partition IDs or creating
+   * a collector for each shape. The default implementation calls
+   * {@link #overlapPartitions(Shape, ResultCollector)}.
+   * @param shape
+   * @param matches - the array to which overlapping partition IDs are added
+   */
+  public void overlapPartitions(Shape shape, final IntArray matches) {
+    overlapPartitions(shape, new ResultCollector<Integer>() {
+      @Override
+      public void collect(Integer r) {
+        matches.add(r);
+      }
+    });
+  }
+  
+  /**
+   * Collects all partitions that overlap the given shape as returned by
+   * {@link #overlapPartitions(Shape, IntArray)}. Subclasses that override
+   * {@link #overlapPartitions(Shape, IntArray)} use it to implement
+   * {@link #overlapPartitions(Shape, ResultCollector)} so that the overlap
+   * logic is written only once.
+   * @param shape
+   * @param matcher
+   */
+  protected void collectOverlapPartitions(Shape shape,
+      ResultCollector<Integer> matcher) {
+    IntArray matches = new IntArray();
+    overlapPartitions(shape, matches);
+    for (int i = 0; i < matches.size(); i++)
+      matcher.collect(matches.get(i));
+  }
   
   /**
    * Returns only one overlapping partition. If the given shape overlaps more
@@ -30,6 +30,7 @@ import edu.umn.cs.spatialHadoop.mapred.ShapeIterRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
 import edu.umn.cs.spatialHadoop.util.BitArray;
 import edu.umn.cs.spatialHadoop.util.IntArray;
+import edu.umn.cs.spatialHadoop.util.Parallel;
 
 /**
  * Partition the space based on a Quad tree
@@ -58,11 +59,43 @@ public class QuadTreePartitioner extends Partitioner {
   }
   
   @Override
-  public void createFromPoints(Rectangle mbr, Point[] points, int capacity) {
+  public void createFromPoints(Rectangle mbr, final Point[] points, int capacity) {
     this.mbr.set(mbr);
-    long[] zValues = new long[points.length];
-    for (int i = 0; i < points.length; i++)
-      zValues[i] = ZCurvePartitioner.computeZ(mbr, points[i].x, points[i].y);
+    final Rectangle fmbr = this.mbr;
+    final long[] zValues = new long[points.length];
+    try {
+      Parallel.forEach(points.length, new Parallel.RunnableRange<Object>() {
+        @Override
+        public Object run(int i1, int i2) {
+          for (int i = i1; i < i2; i++)
+            zValues[i] = ZCurvePartitioner.computeZ(fmbr, points[i].x, points[i].y);
+          return null;
+        }
+      }, parallelism);
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while computing Z values", e);
+    }
+    createFromZValues(zValues, capacity);
+  }
+
+  @Override
+  public void createFromPoints(Rectangle mbr, final double[] xs,
+      final double[] ys, int capacity) {
+    this.mbr.set(mbr);
+    final Rectangle fmbr = this.mbr;
+    final long[] zValues = new long[xs.length];
+    try {
+      Parallel.forEach(xs.length, new Parallel.RunnableRange<Object>() {
+        @Override
+        public Object run(int i1, int i2) {
+          for (int i = i1; i < i2; i++)
+            zValues[i] = ZCurvePartitioner.computeZ(fmbr, xs[i], ys[i]);
+          return null;
+        }
+      }, parallelism);
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while computing Z values", e);
+    }
     createFromZValues(zValues, capacity);
   }
   
@@ -72,7 +105,11 @@ public class QuadTreePartitioner extends Partitioner {
    * @param capacity
    */
   protected void createFromZValues(final long[] zValues, int capacity) {
-    Arrays.sort(zValues);
+    try {
+      Parallel.sort(zValues, parallelism);
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while sorting Z values", e);
+    }
     class QuadTreeNode {
       int fromIndex, toIndex;
       long minZ/*, maxZ*/;
@@ -194,33 +231,49 @@ public class QuadTreePartitioner extends Partitioner {
   
   @Override
   public void overlapPartitions(Shape shape, ResultCollector<Integer> matcher) {
+    collectOverlapPartitions(shape, matcher);
+  }
+
+  @Override
+  public void overlapPartitions(Shape shape, IntArray matches) {
     if (shape == null || shape.getMBR() == null)
       return;
     Rectangle shapeMBR = shape.getMBR();
-    Queue<CellInfo> nodesToSearch = new ArrayDeque<CellInfo>();
-    nodesToSearch.add(new CellInfo(1, mbr));
-    
-    while (!nodesToSearch.isEmpty()) {
-      // Go down as necessary
-      CellInfo nodeToSearch = nodesToSearch.remove();
-      if (shapeMBR.isIntersected(nodeToSearch)) {
-        if (leafNodes.get(nodeToSearch.cellId)) {
-          // Reached a leaf node that overlaps the given shape
-          matcher.collect(nodeToSearch.cellId);
-        } else {
-          // Overlapping with a non-leaf node, go deeper to four children
-          Point centerPoint = nodeToSearch.getCenterPoint();
-          nodesToSearch.add(new CellInfo(nodeToSearch.cellId * 4,
-              nodeToSearch.x1, nodeToSearch.y1, centerPoint.x, centerPoint.y));
-          nodesToSearch.add(new CellInfo(nodeToSearch.cellId * 4 + 1,
-              nodeToSearch.x1, centerPoint.y, centerPoint.x, nodeToSearch.y2));
-          nodesToSearch.add(new CellInfo(nodeToSearch.cellId * 4 + 2,
-              centerPoint.x, nodeToSearch.y1, nodeToSearch.x2, centerPoint.y));
-          nodesToSearch.add(new CellInfo(nodeToSearch.cellId * 4 + 3,
-              centerPoint.x, centerPoint.y, nodeToSearch.x2, nodeToSearch.y2));
-        }
-      }
+    if (shapeMBR.isIntersected(mbr))
+      overlapPartitions(shapeMBR, 1, mbr.x1, mbr.y1, mbr.x2, mbr.y2, matches);
+  }
+
+  /**
+   * Descends the subtree rooted at the given node and adds all leaf nodes
+   * that overlap the given rectangle. The boundaries of the children are
+   * computed directly from the boundaries of the node.
+   * @param shapeMBR - the rectangle to test
+   * @param nodeID - the ID of the node which overlaps the rectangle
+   * @param x1 - the boundaries of the node
+   * @param y1
+   * @param x2
+   * @param y2
+   * @param matches - the array to add matched partitions to
+   */
+  private void overlapPartitions(Rectangle shapeMBR, int nodeID,
+      double x1, double y1, double x2, double y2, IntArray matches) {
+    if (leafNodes.get(nodeID)) {
+      matches.add(nodeID);
+      return;
     }
+    double cx = (x1 + x2) / 2;
+    double cy = (y1 + y2) / 2;
+    // Same order of children as in getPartition(int)
+    boolean left = shapeMBR.x1 < cx, right = shapeMBR.x2 > cx;
+    boolean bottom = shapeMBR.y1 < cy, top = shapeMBR.y2 > cy;
+    if (left && bottom)
+      overlapPartitions(shapeMBR, nodeID * 4, x1, y1, cx, cy, matches);
+    if (left && top)
+      overlapPartitions(shapeMBR, nodeID * 4 + 1, x1, cy, cx, y2, matches);
+    if (right && bottom)
+      overlapPartitions(shapeMBR, nodeID * 4 + 2, cx, y1, x2, cy, matches);
+    if (right && top)
+      overlapPartitions(shapeMBR, nodeID * 4 + 3, cx, cy, x2, y2, matches);
   }
 
   @Override
@@ -17,13 +17,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Array;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.PriorityQueue;
-import java.util.Queue;
-import java.util.Stack;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
@@ -33,8 +31,11 @@ import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.IndexedSortable;
@@ -56,6 +57,7 @@ import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.io.MemoryInputStream;
 import edu.umn.cs.spatialHadoop.io.Text2;
 import edu.umn.cs.spatialHadoop.io.TextSerializable;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * A disk-based R-tree that can be loaded using a bulk loading method and
@@ -79,6 +81,12 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   /**Size of a node. Offset of first child + dimensions (x, y, width, height)*/
   public static final int NodeSize = 4 + 8 * 4;
 
+  /**
+   * Size of the fixed part of a record in the binary leaf format.
+   * MBR (x1, y1, x2, y2) + size of the serialized shape
+   */
+  public static final int BinaryRecordHeaderSize = 8 * 4 + 4;
+
   /** An instance of T that can be used to deserialize objects from disk */
   T stockObject;
   
@@ -110,12 +118,21 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
    * the last leaf node correctly*/
   private int treeSize;
 
-  /**A cached copy of all nodes (MBRs) in memory indexed by node ID*/
-  private Rectangle[] nodes;
+  /**
+   * A cached copy of all node MBRs in memory indexed by node ID. Kept as
+   * parallel primitive arrays to avoid creating an object per node.
+   */
+  private double[] nodeX1, nodeY1, nodeX2, nodeY2;
 
   /**A cached copy of data offset for each node.*/
   private int[] dataOffset;
 
+  /**
+   * Whether records in leaf nodes are stored in the binary format
+   * (MBR + serialized {@link Writable}) rather than text lines
+   */
+  private boolean binaryLeaves;
+
   public RTree() {
   }
   
@@ -146,6 +163,62 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   public static void bulkLoadWrite(final byte[] element_bytes,
       final int offset, final int len, final int degree, DataOutput dataOut,
       final Shape stockObject, final boolean fast_sort) {
+    bulkLoadWrite(element_bytes, offset, len, degree, dataOut, stockObject,
+        fast_sort, false);
+  }
+
+  /**
+   * Builds the RTree given a serialized list of elements similar to
+   * {@link #bulkLoadWrite(byte[], int, int, int, DataOutput, Shape, boolean)}.
+   * If binaryLeaves is set, records in leaf nodes are written in the binary
+   * format where each record is stored as its MBR followed by the size and
+   * the bytes of its {@link Writable} serialization. This allows queries to
+   * filter leaf records using their MBRs without parsing the shapes.
+   * A tree written in the binary format has to be read with
+   * {@link #setBinaryLeaves(boolean)} set to <code>true</code>.
+   * 
+   * @param element_bytes
+   * @param offset
+   * @param len
+   * @param degree
+   * @param dataOut
+   * @param stockObject
+   * @param fast_sort
+   * @param binaryLeaves - store leaf records in the binary format
+   */
+  public static void bulkLoadWrite(final byte[] element_bytes,
+      final int offset, final int len, final int degree, DataOutput dataOut,
+      final Shape stockObject, final boolean fast_sort,
+      final boolean binaryLeaves) {
+    bulkLoadWrite(element_bytes, offset, len, degree, dataOut, stockObject,
+        fast_sort, binaryLeaves, false);
+  }
+
+  /**
+   * Builds the RTree given a serialized list of elements similar to
+   * {@link #bulkLoadWrite(byte[], int, int, int, DataOutput, Shape, boolean, boolean)}.
+   * If hilbertPacking is set, elements are sorted by the Hilbert value of
+   * their centers and consecutive runs of elements are packed in leaf nodes
+   * instead of recursively sorting them along x and y. The Hilbert value of
+   * each element is computed only once and the values are radix sorted which
+   * is faster than the recursive sort and gives tighter nodes for elongated
+   * shapes. The fast_sort flag is ignored in this case as the centers of all
+   * elements are always kept in memory.
+   *
+   * @param element_bytes
+   * @param offset
+   * @param len
+   * @param degree
+   * @param dataOut
+   * @param stockObject
+   * @param fast_sort
+   * @param binaryLeaves - store leaf records in the binary format
+   * @param hilbertPacking - pack the tree along the Hilbert curve
+   */
+  public static void bulkLoadWrite(final byte[] element_bytes,
+      final int offset, final int len, final int degree, DataOutput dataOut,
+      final Shape stockObject, final boolean fast_sort,
+      final boolean binaryLeaves, final boolean hilbertPacking) {
     try {
 
       int elementCount = 0;
@@ -167,21 +240,11 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       // process the tree while it's on disk, a higher degree should be selected
       // such that a node fits one file block (assumed to be 4K).
       //final int degree = findBestDegree(bytesAvailable, elementCount);
-      
-      int height = Math.max(1, 
-          (int) Math.ceil(Math.log(elementCount)/Math.log(degree)));
-      int leafNodeCount = (int) Math.pow(degree, height - 1);
-      if (elementCount <  2 * leafNodeCount && height > 1) {
-        height--;
-        leafNodeCount = (int) Math.pow(degree, height - 1);
-      }
-      int nodeCount = (int) ((Math.pow(degree, height) - 1) / (degree - 1));
-      int nonLeafNodeCount = nodeCount - leafNodeCount;
 
       // Keep track of the offset of each element in the text
       final int[] offsets = new int[elementCount];
-      final double[] xs = fast_sort? new double[elementCount] : null;
-      final double[] ys = fast_sort? new double[elementCount] : null;
+      final double[] xs = fast_sort || hilbertPacking? new double[elementCount] : null;
+      final double[] ys = fast_sort || hilbertPacking? new double[elementCount] : null;
       
       i_start = offset;
       line.clear();
@@ -199,296 +262,438 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         i_start = i_end;
       }
 
-      /**A struct to store information about a split*/
-      class SplitStruct extends Rectangle {
-        /**Start and end index for this split*/
-        int index1, index2;
-        /**Direction of this split*/
-        byte direction;
-        /**Index of first element on disk*/
-        int offsetOfFirstElement;
-        
-        static final byte DIRECTION_X = 0;
-        static final byte DIRECTION_Y = 1;
-        
-        SplitStruct(int index1, int index2, byte direction) {
-          this.index1 = index1;
-          this.index2 = index2;
-          this.direction = direction;
+      // Temporary buffer used to serialize records in the binary format
+      final DataOutputBuffer recordBuffer = binaryLeaves ?
+          new DataOutputBuffer() : null;
+      // Text lines are parsed whenever their MBRs are needed
+      BulkLoadRecords records = new BulkLoadRecords() {
+        private Rectangle parse(int offset) {
+          int eol = skipToEOL(element_bytes, offset);
+          line.set(element_bytes, offset, eol - offset - 1);
+          stockObject.fromText(line);
+          return stockObject.getMBR();
         }
-        
+
         @Override
-        public void write(DataOutput out) throws IOException {
-          out.writeInt(offsetOfFirstElement);
-          super.write(out);
+        double getCenterX(int offset) {
+          Rectangle mbr = parse(offset);
+          return (mbr.x1 + mbr.x2) / 2;
         }
 
-        void partition(Queue<SplitStruct> toBePartitioned) {
-          IndexedSortable sortableX;
-          IndexedSortable sortableY;
-
-          if (fast_sort) {
-            // Use materialized xs[] and ys[] to do the comparisons
-            sortableX = new IndexedSortable() {
-              @Override
-              public void swap(int i, int j) {
-                // Swap xs
-                double tempx = xs[i];
-                xs[i] = xs[j];
-                xs[j] = tempx;
-                // Swap ys
-                double tempY = ys[i];
-                ys[i] = ys[j];
-                ys[j] = tempY;
-                // Swap id
-                int tempid = offsets[i];
-                offsets[i] = offsets[j];
-                offsets[j] = tempid;
-              }
-              
-              @Override
-              public int compare(int i, int j) {
-                if (xs[i] < xs[j])
-                  return -1;
-                if (xs[i] > xs[j])
-                  return 1;
-                return 0;
-              }
-            };
-            
-            sortableY = new IndexedSortable() {
-              @Override
-              public void swap(int i, int j) {
-                // Swap xs
-                double tempx = xs[i];
-                xs[i] = xs[j];
-                xs[j] = tempx;
-                // Swap ys
-                double tempY = ys[i];
-                ys[i] = ys[j];
-                ys[j] = tempY;
-                // Swap id
-                int tempid = offsets[i];
-                offsets[i] = offsets[j];
-                offsets[j] = tempid;
-              }
-              
-              @Override
-              public int compare(int i, int j) {
-                if (ys[i] < ys[j])
-                  return -1;
-                if (ys[i] > ys[j])
-                  return 1;
-                return 0;
-              }
-            };
-          } else {
-            // No materialized xs and ys. Always deserialize objects to compare
-            sortableX = new IndexedSortable() {
-              @Override
-              public void swap(int i, int j) {
-                // Swap id
-                int tempid = offsets[i];
-                offsets[i] = offsets[j];
-                offsets[j] = tempid;
-              }
-              
-              @Override
-              public int compare(int i, int j) {
-                // Get end of line
-                int eol = skipToEOL(element_bytes, offsets[i]);
-                line.set(element_bytes, offsets[i], eol - offsets[i] - 1);
-                stockObject.fromText(line);
-                double xi = (stockObject.getMBR().x1 + stockObject.getMBR().x2) / 2;
-
-                eol = skipToEOL(element_bytes, offsets[j]);
-                line.set(element_bytes, offsets[j], eol - offsets[j] - 1);
-                stockObject.fromText(line);
-                double xj = (stockObject.getMBR().x1 + stockObject.getMBR().x2) / 2;
-                if (xi < xj)
-                  return -1;
-                if (xi > xj)
-                  return 1;
-                return 0;
-              }
-            };
-            
-            sortableY = new IndexedSortable() {
-              @Override
-              public void swap(int i, int j) {
-                // Swap id
-                int tempid = offsets[i];
-                offsets[i] = offsets[j];
-                offsets[j] = tempid;
-              }
-              
-              @Override
-              public int compare(int i, int j) {
-                int eol = skipToEOL(element_bytes, offsets[i]);
-                line.set(element_bytes, offsets[i], eol - offsets[i] - 1);
-                stockObject.fromText(line);
-                double yi = (stockObject.getMBR().y1 + stockObject.getMBR().y2) / 2;
-
-                eol = skipToEOL(element_bytes, offsets[j]);
-                line.set(element_bytes, offsets[j], eol - offsets[j] - 1);
-                stockObject.fromText(line);
-                double yj = (stockObject.getMBR().y1 + stockObject.getMBR().y2) / 2;
-                if (yi < yj)
-                  return -1;
-                if (yi > yj)
-                  return 1;
-                return 0;
-              }
-            };
-          }
+        @Override
+        double getCenterY(int offset) {
+          Rectangle mbr = parse(offset);
+          return (mbr.y1 + mbr.y2) / 2;
+        }
 
-          final IndexedSorter sorter = new QuickSort();
-          
-          final IndexedSortable[] sortables = new IndexedSortable[2];
-          sortables[SplitStruct.DIRECTION_X] = sortableX;
-          sortables[SplitStruct.DIRECTION_Y] = sortableY;
-          
-          sorter.sort(sortables[direction], index1, index2);
-
-          // Partition into maxEntries partitions (equally) and
-          // create a SplitStruct for each partition
-          int i1 = index1;
-          for (int iSplit = 0; iSplit < degree; iSplit++) {
-            int i2 = index1 + (index2 - index1) * (iSplit + 1) / degree;
-            SplitStruct newSplit = new SplitStruct(i1, i2, (byte)(1 - direction));
-            toBePartitioned.add(newSplit);
-            i1 = i2;
+        @Override
+        int readRecord(int offset, Rectangle mbr) throws IOException {
+          mbr.set(parse(offset));
+          if (!binaryLeaves)
+            return skipToEOL(element_bytes, offset) - offset;
+          recordBuffer.reset();
+          stockObject.write(recordBuffer);
+          return BinaryRecordHeaderSize + recordBuffer.getLength();
+        }
+
+        @Override
+        void writeRecord(DataOutput out, int offset) throws IOException {
+          if (binaryLeaves) {
+            parse(offset);
+            writeBinaryRecord(out, stockObject, recordBuffer);
+          } else {
+            out.write(element_bytes, offset,
+                skipToEOL(element_bytes, offset) - offset);
           }
         }
+      };
+      bulkLoadWrite(records, offsets, xs, ys, degree, dataOut, hilbertPacking);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Builds the RTree given a list of records that carry their MBRs and
+   * writes it to the given output. Each record is stored as its MBR followed
+   * by its size and its bytes, i.e., the binary leaf format written by
+   * {@link #writeBinaryRecord(DataOutput, Shape, DataOutputBuffer)}. For text
+   * leaves, the bytes of each record are its text line as written by
+   * {@link #writeTextRecord(DataOutput, Shape, Text)}. As the MBRs are already
+   * known, records are never parsed while building the tree. The tree is the
+   * same as the one built by
+   * {@link #bulkLoadWrite(byte[], int, int, int, DataOutput, Shape, boolean, boolean, boolean)}
+   * in the fast mode over the same records.
+   *
+   * @param records - all records, each preceded by its MBR and size
+   * @param offset - offset of the first record in records
+   * @param len - number of bytes to use in records
+   * @param degree
+   * @param dataOut
+   * @param binaryLeaves - records contain the binary serialization of shapes
+   *   and are written to leaves as-is. Otherwise, they contain text lines.
+   * @param hilbertPacking - pack the tree along the Hilbert curve
+   * @throws IOException
+   */
+  public static void bulkLoadWriteRecords(final byte[] records, final int offset,
+      final int len, final int degree, DataOutput dataOut,
+      final boolean binaryLeaves, final boolean hilbertPacking) throws IOException {
+    // Find the offset and the size of each record
+    IntArray recordOffsets = new IntArray();
+    IntArray recordSizes = new IntArray();
+    int i_start = offset;
+    while (i_start < offset + len) {
+      int recordSize = WritableComparator.readInt(records, i_start + 8 * 4);
+      recordOffsets.add(i_start);
+      recordSizes.add(recordSize);
+      i_start += BinaryRecordHeaderSize + recordSize;
+    }
+    final int[] offsets = recordOffsets.toArray();
+    final int[] sizes = recordSizes.toArray();
+    int elementCount = offsets.length;
+    LOG.info("Bulk loading an RTree with "+elementCount+" records");
+
+    // Decode the MBR of each record only once. While the tree is built,
+    // records are identified by their index in these arrays.
+    final double[] x1s = new double[elementCount];
+    final double[] y1s = new double[elementCount];
+    final double[] x2s = new double[elementCount];
+    final double[] y2s = new double[elementCount];
+    final double[] xs = new double[elementCount];
+    final double[] ys = new double[elementCount];
+    int[] ids = new int[elementCount];
+    for (int i = 0; i < elementCount; i++) {
+      // Same order as Rectangle#write
+      x1s[i] = WritableComparator.readDouble(records, offsets[i]);
+      y1s[i] = WritableComparator.readDouble(records, offsets[i] + 8);
+      x2s[i] = WritableComparator.readDouble(records, offsets[i] + 16);
+      y2s[i] = WritableComparator.readDouble(records, offsets[i] + 24);
+      xs[i] = (x1s[i] + x2s[i]) / 2;
+      ys[i] = (y1s[i] + y2s[i]) / 2;
+      ids[i] = i;
+    }
+
+    BulkLoadRecords source = new BulkLoadRecords() {
+      @Override
+      double getCenterX(int id) {
+        return (x1s[id] + x2s[id]) / 2;
       }
-      
-      // All nodes stored in level-order traversal
-      Vector<SplitStruct> nodes = new Vector<SplitStruct>();
-      final Queue<SplitStruct> toBePartitioned = new LinkedList<SplitStruct>();
-      toBePartitioned.add(new SplitStruct(0, elementCount, SplitStruct.DIRECTION_X));
-      
-      while (!toBePartitioned.isEmpty()) {
-        SplitStruct split = toBePartitioned.poll();
-        if (nodes.size() < nonLeafNodeCount) {
-          // This is a non-leaf
-          split.partition(toBePartitioned);
-        }
-        nodes.add(split);
+
+      @Override
+      double getCenterY(int id) {
+        return (y1s[id] + y2s[id]) / 2;
       }
-      
-      if (nodes.size() != nodeCount) {
-        throw new RuntimeException("Expected node count: "+nodeCount+". Real node count: "+nodes.size());
+
+      @Override
+      int readRecord(int id, Rectangle mbr) {
+        mbr.set(x1s[id], y1s[id], x2s[id], y2s[id]);
+        return binaryLeaves ? BinaryRecordHeaderSize + sizes[id] : sizes[id];
       }
-      
-      // Now we have our data sorted in the required order. Start building
-      // the tree.
-      // Store the offset of each leaf node in the tree
-      FSDataOutputStream fakeOut = null;
-      try {
-        fakeOut = new FSDataOutputStream(new java.io.OutputStream() {
-          // Null output stream
-          @Override
-          public void write(int b) throws IOException {
-            // Do nothing
-          }
-          @Override
-          public void write(byte[] b, int off, int len) throws IOException {
-            // Do nothing
-          }
-          @Override
-          public void write(byte[] b) throws IOException {
-            // Do nothing
-          }
-        }, null, TreeHeaderSize + nodes.size() * NodeSize);
-        for (int i_leaf = nonLeafNodeCount, i=0; i_leaf < nodes.size(); i_leaf++) {
-          nodes.elementAt(i_leaf).offsetOfFirstElement = (int)fakeOut.getPos();
-          if (i != nodes.elementAt(i_leaf).index1) throw new RuntimeException();
-          double x1, y1, x2, y2;
-          
-          // Initialize MBR to first object
-          int eol = skipToEOL(element_bytes, offsets[i]);
-          fakeOut.write(element_bytes, offsets[i],
-              eol - offsets[i]);
-          line.set(element_bytes, offsets[i], eol - offsets[i] - 1);
-          stockObject.fromText(line);
-          Rectangle mbr = stockObject.getMBR();
-          x1 = mbr.x1;
-          y1 = mbr.y1;
-          x2 = mbr.x2;
-          y2 = mbr.y2;
-          i++;
-          
-          while (i < nodes.elementAt(i_leaf).index2) {
-            eol = skipToEOL(element_bytes, offsets[i]);
-            fakeOut.write(element_bytes, offsets[i],
-                eol - offsets[i]);
-            line.set(element_bytes, offsets[i], eol - offsets[i] - 1);
-            stockObject.fromText(line);
-            mbr = stockObject.getMBR();
-            if (mbr.x1 < x1) x1 = mbr.x1;
-            if (mbr.y1 < y1) y1 = mbr.y1;
-            if (mbr.x2 > x2) x2 = mbr.x2;
-            if (mbr.y2 > y2) y2 = mbr.y2;
-            i++;
+
+      @Override
+      void writeRecord(DataOutput out, int id) throws IOException {
+        if (binaryLeaves)
+          out.write(records, offsets[id], BinaryRecordHeaderSize + sizes[id]);
+        else
+          out.write(records, offsets[id] + BinaryRecordHeaderSize, sizes[id]);
+      }
+    };
+    bulkLoadWrite(source, ids, xs, ys, degree, dataOut, hilbertPacking);
+  }
+
+  /**
+   * Gives access to the records of an RTree while it is being bulk loaded.
+   * Records are identified by integers, e.g., their offsets in the input.
+   */
+  static abstract class BulkLoadRecords {
+    /**
+     * Returns the x coordinate of the center of the record. Used only when
+     * the centers are not materialized.
+     */
+    abstract double getCenterX(int id);
+
+    /**
+     * Returns the y coordinate of the center of the record. Used only when
+     * the centers are not materialized.
+     */
+    abstract double getCenterY(int id);
+
+    /**
+     * Reads the MBR of the record into the given rectangle and returns the
+     * number of bytes the record takes in the tree.
+     */
+    abstract int readRecord(int id, Rectangle mbr) throws IOException;
+
+    /**Writes the record as it is stored in the leaves of the tree*/
+    abstract void writeRecord(DataOutput out, int id) throws IOException;
+  }
+
+  /**
+   * Builds an RTree over the given records and writes it to the given output.
+   * Records are packed either by recursively sorting them along x and y or
+   * along the Hilbert curve. The leaves are filled in level-order and the
+   * MBR of each node is computed from its children.
+   * @param records - accessor to the records
+   * @param ids - identifiers of the records as given to the accessor.
+   *   Sorted in place.
+   * @param xs - x coordinates of the centers of records or <code>null</code>
+   *   to compute them from the records whenever needed.
+   * @param ys - y coordinates of the centers of records or <code>null</code>
+   * @param degree
+   * @param dataOut
+   * @param hilbertPacking - pack the tree along the Hilbert curve. Requires
+   *   materialized centers.
+   * @throws IOException
+   */
+  static void bulkLoadWrite(final BulkLoadRecords records, final int[] ids,
+      final double[] xs, final double[] ys, final int degree,
+      DataOutput dataOut, boolean hilbertPacking) throws IOException {
+    int elementCount = ids.length;
+    int height = Math.max(1, 
+        (int) Math.ceil(Math.log(elementCount)/Math.log(degree)));
+    int leafNodeCount = (int) Math.pow(degree, height - 1);
+    if (elementCount <  2 * leafNodeCount && height > 1) {
+      height--;
+      leafNodeCount = (int) Math.pow(degree, height - 1);
+    }
+    int nodeCount = (int) ((Math.pow(degree, height) - 1) / (degree - 1));
+    int nonLeafNodeCount = nodeCount - leafNodeCount;
+
+    // Range of records in each node stored in level-order traversal
+    int[] index1 = new int[nodeCount];
+    int[] index2 = new int[nodeCount];
+    if (hilbertPacking) {
+      sortByHilbertValues(xs, ys, ids);
+      // Distribute the sorted records evenly over the leaves
+      for (int i_leaf = 0; i_leaf < leafNodeCount; i_leaf++) {
+        index1[nonLeafNodeCount + i_leaf] = (int) ((long) elementCount * i_leaf / leafNodeCount);
+        index2[nonLeafNodeCount + i_leaf] = (int) ((long) elementCount * (i_leaf + 1) / leafNodeCount);
+      }
+    } else {
+      /**Sorts records by one coordinate of their centers*/
+      class SortableCenters implements IndexedSortable {
+        final int direction;
+        final double[] keys;
+
+        SortableCenters(int direction) {
+          this.direction = direction;
+          this.keys = direction == 0 ? xs : ys;
+        }
+
+        @Override
+        public void swap(int i, int j) {
+          if (xs != null) {
+            double tempx = xs[i];
+            xs[i] = xs[j];
+            xs[j] = tempx;
+            double tempy = ys[i];
+            ys[i] = ys[j];
+            ys[j] = tempy;
           }
-          nodes.elementAt(i_leaf).set(x1, y1, x2, y2);
+          int tempid = ids[i];
+          ids[i] = ids[j];
+          ids[j] = tempid;
+        }
+
+        private double getKey(int i) {
+          if (keys != null)
+            return keys[i];
+          return direction == 0 ? records.getCenterX(ids[i]) :
+            records.getCenterY(ids[i]);
+        }
+
+        @Override
+        public int compare(int i, int j) {
+          double ki = getKey(i);
+          double kj = getKey(j);
+          if (ki < kj)
+            return -1;
+          if (ki > kj)
+            return 1;
+          return 0;
         }
-        
-      } finally {
-        if (fakeOut != null)
-          fakeOut.close();
       }
-      
-      // Calculate MBR and offsetOfFirstElement for non-leaves
-      for (int i_node = nonLeafNodeCount-1; i_node >= 0; i_node--) {
-        int i_first_child = i_node * degree + 1;
-        nodes.elementAt(i_node).offsetOfFirstElement =
-            nodes.elementAt(i_first_child).offsetOfFirstElement;
-        int i_child = 0;
-        Rectangle mbr;
-        mbr = nodes.elementAt(i_first_child + i_child);
-        double x1 = mbr.x1;
-        double y1 = mbr.y1;
-        double x2 = mbr.x2;
-        double y2 = mbr.y2;
-        i_child++;
-        
-        while (i_child < degree) {
-          mbr = nodes.elementAt(i_first_child + i_child);
-          if (mbr.x1 < x1) x1 = mbr.x1;
-          if (mbr.y1 < y1) y1 = mbr.y1;
-          if (mbr.x2 > x2) x2 = mbr.x2;
-          if (mbr.y2 > y2) y2 = mbr.y2;
-          i_child++;
+      final IndexedSortable[] sortables = {new SortableCenters(0),
+          new SortableCenters(1)};
+      final IndexedSorter sorter = new QuickSort();
+      // Sort each non-leaf node along x or y, alternating between levels,
+      // and split it evenly into its children
+      index1[0] = 0;
+      index2[0] = elementCount;
+      int levelStart = 0, levelSize = 1, level = 0;
+      while (levelStart < nonLeafNodeCount) {
+        for (int i_node = levelStart; i_node < levelStart + levelSize; i_node++) {
+          sorter.sort(sortables[level % 2], index1[i_node], index2[i_node]);
+          int i_first_child = i_node * degree + 1;
+          int i1 = index1[i_node];
+          for (int i_child = 0; i_child < degree; i_child++) {
+            int i2 = index1[i_node] +
+                (index2[i_node] - index1[i_node]) * (i_child + 1) / degree;
+            index1[i_first_child + i_child] = i1;
+            index2[i_first_child + i_child] = i2;
+            i1 = i2;
+          }
         }
-        nodes.elementAt(i_node).set(x1, y1, x2, y2);
+        levelStart += levelSize;
+        levelSize *= degree;
+        level++;
       }
-      
-      // Start writing the tree
-      // write tree header (including size)
-      // Total tree size. (== Total bytes written - 8 bytes for the size itself)
-      dataOut.writeInt(TreeHeaderSize + NodeSize * nodeCount + len);
-      // Tree height
-      dataOut.writeInt(height);
-      // Degree
-      dataOut.writeInt(degree);
-      dataOut.writeInt(elementCount);
-      
-      // write nodes
-      for (SplitStruct node : nodes) {
-        node.write(dataOut);
+    }
+
+    // Compute the MBR and the offset of the first record of each leaf
+    int[] offsetOfFirstElement = new int[nodeCount];
+    double[] nodeX1 = new double[nodeCount];
+    double[] nodeY1 = new double[nodeCount];
+    double[] nodeX2 = new double[nodeCount];
+    double[] nodeY2 = new double[nodeCount];
+    Rectangle mbr = new Rectangle();
+    int dataOffset = TreeHeaderSize + nodeCount * NodeSize;
+    for (int i_leaf = nonLeafNodeCount; i_leaf < nodeCount; i_leaf++) {
+      offsetOfFirstElement[i_leaf] = dataOffset;
+      double x1 = Double.MAX_VALUE, y1 = Double.MAX_VALUE;
+      double x2 = -Double.MAX_VALUE, y2 = -Double.MAX_VALUE;
+      for (int i = index1[i_leaf]; i < index2[i_leaf]; i++) {
+        dataOffset += records.readRecord(ids[i], mbr);
+        if (mbr.x1 < x1) x1 = mbr.x1;
+        if (mbr.y1 < y1) y1 = mbr.y1;
+        if (mbr.x2 > x2) x2 = mbr.x2;
+        if (mbr.y2 > y2) y2 = mbr.y2;
       }
-      // write elements
-      for (int element_i = 0; element_i < elementCount; element_i++) {
-        int eol = skipToEOL(element_bytes, offsets[element_i]);
-        dataOut.write(element_bytes, offsets[element_i],
-            eol - offsets[element_i]);
+      nodeX1[i_leaf] = x1;
+      nodeY1[i_leaf] = y1;
+      nodeX2[i_leaf] = x2;
+      nodeY2[i_leaf] = y2;
+    }
+    // Total tree size as computed while laying out the leaf records
+    int treeSize = dataOffset;
+
+    // Calculate MBR and offsetOfFirstElement for non-leaves
+    for (int i_node = nonLeafNodeCount - 1; i_node >= 0; i_node--) {
+      int i_first_child = i_node * degree + 1;
+      offsetOfFirstElement[i_node] = offsetOfFirstElement[i_first_child];
+      double x1 = Double.MAX_VALUE, y1 = Double.MAX_VALUE;
+      double x2 = -Double.MAX_VALUE, y2 = -Double.MAX_VALUE;
+      for (int i_child = i_first_child; i_child < i_first_child + degree; i_child++) {
+        if (nodeX1[i_child] < x1) x1 = nodeX1[i_child];
+        if (nodeY1[i_child] < y1) y1 = nodeY1[i_child];
+        if (nodeX2[i_child] > x2) x2 = nodeX2[i_child];
+        if (nodeY2[i_child] > y2) y2 = nodeY2[i_child];
       }
-      
-    } catch (IOException e) {
-      e.printStackTrace();
+      nodeX1[i_node] = x1;
+      nodeY1[i_node] = y1;
+      nodeX2[i_node] = x2;
+      nodeY2[i_node] = y2;
+    }
+
+    // Write tree header
+    dataOut.writeInt(treeSize);
+    dataOut.writeInt(height);
+    dataOut.writeInt(degree);
+    dataOut.writeInt(elementCount);
+    // Write nodes. Offset of the first element followed by the MBR in the
+    // same order as Rectangle#write
+    for (int i_node = 0; i_node < nodeCount; i_node++) {
+      dataOut.writeInt(offsetOfFirstElement[i_node]);
+      dataOut.writeDouble(nodeX1[i_node]);
+      dataOut.writeDouble(nodeY1[i_node]);
+      dataOut.writeDouble(nodeX2[i_node]);
+      dataOut.writeDouble(nodeY2[i_node]);
+    }
+    // Write records
+    for (int i = 0; i < elementCount; i++)
+      records.writeRecord(dataOut, ids[i]);
+  }
+
+  /**
+   * Sorts the offsets of elements by the Hilbert values of their centers.
+   * The Hilbert value of each element is computed once over the MBR of all
+   * centers and the values are sorted using a radix sort.
+   * @param xs - x coordinates of the centers
+   * @param ys - y coordinates of the centers
+   * @param offsets - offsets of the elements to sort
+   */
+  static void sortByHilbertValues(double[] xs, double[] ys, int[] offsets) {
+    if (offsets.length == 0)
+      return;
+    Rectangle mbr = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
+        -Double.MAX_VALUE, -Double.MAX_VALUE);
+    for (int i = 0; i < xs.length; i++)
+      mbr.expand(xs[i], ys[i]);
+    int[] hValues = new int[offsets.length];
+    for (int i = 0; i < offsets.length; i++)
+      hValues[i] = HilbertCurvePartitioner.computeHValue(mbr, xs[i], ys[i]);
+    radixSort(hValues, offsets);
+  }
+
+  /**
+   * Sorts non-negative keys along with their values using a least
+   * significant digit radix sort with two passes of 16 bits.
+   * @param keys
+   * @param values
+   */
+  static void radixSort(int[] keys, int[] values) {
+    int n = keys.length;
+    int[] tempKeys = new int[n];
+    int[] tempValues = new int[n];
+    int[] counts = new int[1 << 16];
+    for (int shift = 0; shift < 32; shift += 16) {
+      Arrays.fill(counts, 0);
+      for (int i = 0; i < n; i++)
+        counts[(keys[i] >>> shift) & 0xffff]++;
+      // Compute the position of the first key of each digit
+      int position = 0;
+      for (int digit = 0; digit < counts.length; digit++) {
+        int count = counts[digit];
+        counts[digit] = position;
+        position += count;
+      }
+      for (int i = 0; i < n; i++) {
+        int pos = counts[(keys[i] >>> shift) & 0xffff]++;
+        tempKeys[pos] = keys[i];
+        tempValues[pos] = values[i];
+      }
+      System.arraycopy(tempKeys, 0, keys, 0, n);
+      System.arraycopy(tempValues, 0, values, 0, n);
     }
   }
+
+  /**
+   * Writes one record in the binary leaf format. The MBR of the shape is
+   * written first followed by the size of the serialized shape and the
+   * serialized shape itself.
+   * @param out - the output to write the record to
+   * @param shape - the shape to write
+   * @param buffer - a temporary buffer used to serialize the shape
+   * @throws IOException
+   */
+  static void writeBinaryRecord(DataOutput out, Shape shape,
+      DataOutputBuffer buffer) throws IOException {
+    buffer.reset();
+    shape.write(buffer);
+    shape.getMBR().write(out);
+    out.writeInt(buffer.getLength());
+    out.write(buffer.getData(), 0, buffer.getLength());
+  }
+
+  /**
+   * Writes one text record along with its MBR to be loaded by
+   * {@link #bulkLoadWriteRecords(byte[], int, int, int, DataOutput, boolean, boolean)}.
+   * The MBR of the shape is written first followed by the size of the text
+   * line and the text line itself including the new line character.
+   * @param out - the output to write the record to
+   * @param shape - the shape to write
+   * @param buffer - a temporary buffer used to serialize the shape
+   * @throws IOException
+   */
+  static void writeTextRecord(DataOutput out, Shape shape, Text buffer)
+      throws IOException {
+    buffer.clear();
+    shape.toText(buffer);
+    shape.getMBR().write(out);
+    out.writeInt(buffer.getLength() + 1);
+    out.write(buffer.getBytes(), 0, buffer.getLength());
+    out.write('\n');
+  }
   
   @Override
   public void write(DataOutput out) throws IOException {
@@ -519,13 +724,19 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     
     // Keep only tree structure in memory
     nodeCount = (int) ((powInt(degree, height) - 1) / (degree - 1));
-    this.nodes = new Rectangle[nodeCount];
+    this.nodeX1 = new double[nodeCount];
+    this.nodeY1 = new double[nodeCount];
+    this.nodeX2 = new double[nodeCount];
+    this.nodeY2 = new double[nodeCount];
     this.dataOffset = new int[nodeCount + 1];
     
     for (int node_id = 0; node_id < nodeCount; node_id++) {
       this.dataOffset[node_id] = in.readInt();
-      this.nodes[node_id] = new Rectangle();
-      this.nodes[node_id].readFields(in);
+      // Same order as Rectangle#write
+      this.nodeX1[node_id] = in.readDouble();
+      this.nodeY1[node_id] = in.readDouble();
+      this.nodeX2[node_id] = in.readDouble();
+      this.nodeY2[node_id] = in.readDouble();
     }
     this.dataOffset[nodeCount] = treeSize;
 
@@ -613,7 +824,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
    * @return
    */
   public Rectangle getMBR() {
-    return nodes[0];
+    return getNodeMBR(0);
   }
   
   /**
@@ -629,9 +840,60 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     return iter.next();
   }
 
+  /**
+   * Returns the MBR of the node with the given ID as a new rectangle
+   * @param nodeID
+   * @return
+   */
+  public Rectangle getNodeMBR(int nodeID) {
+    return new Rectangle(nodeX1[nodeID], nodeY1[nodeID], nodeX2[nodeID],
+        nodeY2[nodeID]);
+  }
+
+  /**
+   * Tests whether the MBR of the given node overlaps the given rectangle.
+   * Has the same semantics as {@link Rectangle#isIntersected(Shape)}.
+   * @param nodeID
+   * @param r
+   * @return
+   */
+  private boolean isNodeIntersected(int nodeID, Rectangle r) {
+    return r.x2 > nodeX1[nodeID] && nodeX2[nodeID] > r.x1 &&
+        r.y2 > nodeY1[nodeID] && nodeY2[nodeID] > r.y1;
+  }
+
+  /**
+   * Tests whether the MBRs of two nodes in two trees overlap.
+   * @param R
+   * @param r_node
+   * @param S
+   * @param s_node
+   * @return
+   */
+  private static boolean isNodeIntersected(RTree<?> R, int r_node,
+      RTree<?> S, int s_node) {
+    return R.nodeX2[r_node] > S.nodeX1[s_node] &&
+        S.nodeX2[s_node] > R.nodeX1[r_node] &&
+        R.nodeY2[r_node] > S.nodeY1[s_node] &&
+        S.nodeY2[s_node] > R.nodeY1[r_node];
+  }
+
   public void setStockObject(T stockObject) {
     this.stockObject = stockObject;
   }
+
+  /**
+   * Sets whether records in the leaf nodes are stored in the binary format.
+   * Must be set before calling any of the query methods.
+   * @param binaryLeaves
+   */
+  public void setBinaryLeaves(boolean binaryLeaves) {
+    this.binaryLeaves = binaryLeaves;
+  }
+
+  public boolean isBinaryLeaves() {
+    return binaryLeaves;
+  }
   
   /**
    * Create rectangles that together pack all points in sample such that
@@ -716,36 +978,157 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     return rectangles;
   }
   
+  /**
+   * Reads the records stored in a range of the tree data. It hides whether
+   * the records are stored as text lines or in the binary leaf format.
+   * In the binary format, the whole range is read into memory at once and
+   * records are parsed from there.
+   * @author Ahmed Eldawy
+   *
+   */
+  class LeafReader {
+    /**Offset of the next record relative to the tree start*/
+    private int offset;
+    /**The offset at which reading stops*/
+    private int endOffset;
+    /**Reads text lines from tree data*/
+    private LineReader lineReader;
+    /**Holds one data line from tree data*/
+    private Text line;
+    /**Holds the bytes of the current range in the binary format*/
+    private byte[] buffer;
+    /**Parses records from the buffer in the binary format*/
+    private DataInputBuffer bufferIn;
+    /**MBR of the current record in the binary format*/
+    private Rectangle recordMBR;
+
+    LeafReader() {
+      if (binaryLeaves) {
+        bufferIn = new DataInputBuffer();
+        recordMBR = new Rectangle();
+      } else {
+        line = new Text2();
+      }
+    }
+
+    /**
+     * Positions this reader to read all records in the given range.
+     * @param startOffset - offset of the first record relative to tree start
+     * @param endOffset - offset of the end of the range
+     * @throws IOException
+     */
+    void reset(int startOffset, int endOffset) throws IOException {
+      if (!binaryLeaves && lineReader != null && this.offset == startOffset) {
+        // Continue reading from the current position without seeking
+        this.endOffset = endOffset;
+        return;
+      }
+      this.offset = startOffset;
+      this.endOffset = endOffset;
+      data.seek(startOffset + treeStartOffset);
+      if (binaryLeaves) {
+        int size = endOffset - startOffset;
+        if (buffer == null || buffer.length < size)
+          buffer = new byte[size];
+        data.readFully(buffer, 0, size);
+        bufferIn.reset(buffer, size);
+      } else {
+        // Should not close the line reader because we do not want to close
+        // the underlying data stream now. In case future searches are done
+        lineReader = new LineReader(data);
+      }
+    }
+
+    boolean hasNext() {
+      return offset < endOffset;
+    }
+
+    /**
+     * Reads the next record in the given shape. If a filter MBR is given and
+     * the records are stored in the binary format, records that do not
+     * overlap the filter MBR are skipped without deserializing them.
+     * @param shape - the shape to read the record into
+     * @param filterMBR - an optional filter, or <code>null</code> to read all
+     * @return <code>true</code> if the record was read into shape or
+     *   <code>false</code> if it was skipped by the filter.
+     * @throws IOException
+     */
+    boolean next(Shape shape, Rectangle filterMBR) throws IOException {
+      if (binaryLeaves) {
+        recordMBR.readFields(bufferIn);
+        int size = bufferIn.readInt();
+        offset += BinaryRecordHeaderSize + size;
+        // A conservative (inclusive) test to keep records touching the
+        // filter as they might still match the exact test of the shape
+        if (filterMBR != null && (recordMBR.x1 > filterMBR.x2 ||
+            filterMBR.x1 > recordMBR.x2 || recordMBR.y1 > filterMBR.y2 ||
+            filterMBR.y1 > recordMBR.y2)) {
+          bufferIn.skipBytes(size);
+          return false;
+        }
+        shape.readFields(bufferIn);
+      } else {
+        offset += lineReader.readLine(line);
+        shape.fromText(line);
+      }
+      return true;
+    }
+  }
+
   /**
    * An iterator that goes over all elements in the tree in no particular order
    * @author eldawy
    *
    */
-  class RTreeIterator implements Iterator<T> {
+  public class RTreeIterator implements Iterator<T> {
 
-    /**Current offset in the data stream*/
-    int offset;
-    
-    /**Temporary text that holds one line to deserialize objects*/
-    Text line;
+    /**Reads records from the data part of the tree*/
+    LeafReader reader;
     
     /**A stock object to read from stream*/
     T _stockObject;
     
-    /**A reader to read lines from the tree*/
-    LineReader reader;
+    /**The next leaf node to read in the binary format*/
+    int nextLeaf;
     
     RTreeIterator() throws IOException {
-      offset = TreeHeaderSize + NodeSize * RTree.this.nodeCount;
       _stockObject = (T) RTree.this.stockObject.clone();
-      line = new Text();
-      RTree.this.data.seek(offset + RTree.this.treeStartOffset);
-      reader = new LineReader(RTree.this.data);
+      reader = new LeafReader();
+      if (binaryLeaves) {
+        // Read leaf nodes one at a time to avoid loading all records
+        nextLeaf = nonLeafNodeCount;
+      } else {
+        int offset = TreeHeaderSize + NodeSize * RTree.this.nodeCount;
+        reader.reset(offset, RTree.this.treeSize);
+      }
     }
 
     @Override
     public boolean hasNext() {
-      return offset < RTree.this.treeSize;
+      try {
+        while (!reader.hasNext() && binaryLeaves && nextLeaf < nodeCount) {
+          reader.reset(dataOffset[nextLeaf], dataOffset[nextLeaf + 1]);
+          nextLeaf++;
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+        return false;
+      }
+      return reader.hasNext();
+    }
+
+    /**
+     * Reads the next record into the given shape instead of the stock object
+     * of this iterator.
+     * @param shape - the shape to read the record into
+     * @return <code>false</code> if there are no more records
+     * @throws IOException
+     */
+    public boolean readNext(Shape shape) throws IOException {
+      if (!hasNext())
+        return false;
+      reader.next(shape, null);
+      return true;
     }
 
     @Override
@@ -753,8 +1136,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       if (!hasNext())
         return null;
       try {
-        offset += reader.readLine(line);
-        _stockObject.fromText(line);
+        reader.next(_stockObject, null);
       } catch (IOException e) {
         e.printStackTrace();
         return null;
@@ -783,6 +1165,16 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     return eol;
   }
 
+  /**
+   * Returns an iterator over all records in the tree that can read records
+   * into caller-provided shapes.
+   * @return
+   * @throws IOException
+   */
+  public RTreeIterator recordIterator() throws IOException {
+    return new RTreeIterator();
+  }
+
   @Override
   public Iterator<T> iterator() {
     try {
@@ -837,15 +1229,15 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     if (height == 0)
       return 0;
 
-    Stack<Integer> toBeSearched = new Stack<Integer>();
+    IntArray toBeSearched = new IntArray();
     // Start from the given node
-    toBeSearched.push(start);
+    toBeSearched.add(start);
     if (start >= nodeCount) {
-      toBeSearched.push(end);
+      toBeSearched.add(end);
     }
 
-    // Holds one data line from tree data
-    Text line = new Text2();
+    // Reads records from leaf nodes
+    LeafReader leafReader = new LeafReader();
     
     while (!toBeSearched.isEmpty()) {
       int searchNumber = toBeSearched.pop();
@@ -853,7 +1245,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       if (searchNumber < nodeCount) {
         // Searching a node
         int nodeID = searchNumber;
-        if (query_mbr.isIntersected(nodes[nodeID])) {
+        if (isNodeIntersected(nodeID, query_mbr)) {
           boolean is_leaf = nodeID >= nonLeafNodeCount;
           if (is_leaf) {
             // Check all objects under this node
@@ -874,15 +1266,10 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         int end_offset = searchNumber;
         int start_offset = toBeSearched.pop();
         // All data offsets are relative to tree start (typically 4)
-        this.data.seek(start_offset + this.treeStartOffset);
-        // Should not close the line reader because we do not want to close
-        // the underlying data stream now. In case future searches are done
-        @SuppressWarnings("resource")
-        LineReader lineReader = new LineReader(data);
-        while (start_offset < end_offset) {
-          start_offset += lineReader.readLine(line);
-          stockObject.fromText(line);
-          if (stockObject.isIntersected(query_shape)) {
+        leafReader.reset(start_offset, end_offset);
+        while (leafReader.hasNext()) {
+          if (leafReader.next(stockObject, query_mbr) &&
+              stockObject.isIntersected(query_shape)) {
             resultSize++;
             if (output != null)
               output.collect(stockObject);
@@ -912,25 +1299,16 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     private Shape queryShape;
     
     /**Nodes or parts of the file to be searched*/
-    private Stack<Integer> toBeSearched = new Stack<Integer>();
-    
-    /**Used to deserialize node information*/
-    private Rectangle nodeMBR = new Rectangle();
-    
-    /**Used to deserialize record information*/
-    private Text line = new Text2();
-    
-    /**If searching within node, these are the offsets of records in it*/
-    private int firstOffset, lastOffset;
+    private IntArray toBeSearched = new IntArray();
     
-    /**If searching within a node, lineReader points to result items*/
-    LineReader lineReader;
+    /**If searching within a node, leafReader points to result items*/
+    private LeafReader leafReader = new LeafReader();
 
 
     public SearchIterator(Shape queryShape) {
       this.queryShape = queryShape;
       this.queryMBR = queryShape.getMBR();
-      toBeSearched.push(0); // Start from the root
+      toBeSearched.add(0); // Start from the root
       this.resultShape = (T) stockObject.clone();
       this.nextResultShape = (T) stockObject.clone();
       prepareNextResult();
@@ -966,11 +1344,10 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
      */
     protected void prepareNextResult() {
       try {
-        while (lineReader != null && firstOffset < lastOffset) {
+        while (leafReader.hasNext()) {
           // Case 1: Searching within a node
-          firstOffset += lineReader.readLine(line);
-          nextResultShape.fromText(line);
-          if (nextResultShape.isIntersected(queryShape)) {
+          if (leafReader.next(nextResultShape, queryMBR) &&
+              nextResultShape.isIntersected(queryShape)) {
             return;
           }
         }
@@ -981,7 +1358,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           if (searchNumber < nodeCount) {
             // Searching a node
             int nodeID = searchNumber;
-            if (queryMBR.isIntersected(nodes[nodeID])) {
+            if (isNodeIntersected(nodeID, queryMBR)) {
               boolean is_leaf = nodeID >= nonLeafNodeCount;
               if (is_leaf) {
                 // Check all objects under this node
@@ -999,15 +1376,13 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           } else {
             // searchNumber is the end offset of data search. Start offset is next
             // in stack
-            lastOffset = searchNumber;
-            firstOffset = toBeSearched.pop();
-
-            data.seek(firstOffset + treeStartOffset);
-            lineReader = new LineReader(data);
-            while (firstOffset < lastOffset) {
-              firstOffset += lineReader.readLine(line);
-              nextResultShape.fromText(line);
-              if (nextResultShape.isIntersected(queryShape)) {
+            int lastOffset = searchNumber;
+            int firstOffset = toBeSearched.pop();
+
+            leafReader.reset(firstOffset, lastOffset);
+            while (leafReader.hasNext()) {
+              if (leafReader.next(nextResultShape, queryMBR) &&
+                  nextResultShape.isIntersected(queryShape)) {
                 return;
               }
             }
@@ -1090,7 +1465,9 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           // Already returned all possible elements
           result_correct = true;
         } else {
-          query_radius *= 2;
+          // A zero radius happens when all records are at the same location
+          query_radius = query_radius > 0 ? query_radius * 2
+              : getMBR().getMaxDistanceTo(qx, qy);
           result_correct = false;
         }
       } else {
@@ -1121,7 +1498,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         sorter.sort(s, 0, shapes.size());
         if (distances.elementAt(k - 1) > query_radius) {
           result_correct = false;
-          query_radius = distances.elementAt(k);
+          query_radius = distances.elementAt(k - 1);
         } else {
           result_correct = true;
         }
@@ -1194,11 +1571,11 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
    * @param output
    * @return
    * @throws IOException
-   * SuppresWarnings("resource") is used because we create LineReaders on the
-   * internal data stream of both R and S. We do not want to close the
-   * LineReader because it will subsequently close the internal data stream
-   * of R and S which is something we want to avoid because both R and S are
-   * not created by this function and it should not free these resources.
+   * Records are read using a {@link LeafReader} on the internal data stream
+   * of both R and S. We do not close the readers because it will
+   * subsequently close the internal data stream of R and S which is something
+   * we want to avoid because both R and S are not created by this function
+   * and it should not free these resources.
    */
   protected static<S1 extends Shape, S2 extends Shape> int spatialJoinDisk(
       final RTree<S1> R,
@@ -1218,14 +1595,11 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     LruCache<Integer, Shape[]> s_records_cache = new LruCache<Integer, Shape[]>(
         S.degree * R.degree * 4);
     
-    Text line = new Text2();
-    
     int result_count = 0;
 
-    LineReader r_lr = null, s_lr = null;
-    // Last offset read from r and s
-    int r_last_offset = 0;
-    int s_last_offset = 0;
+    // Readers for data records of R and S
+    RTree<S1>.LeafReader r_reader = R.new LeafReader();
+    RTree<S2>.LeafReader s_reader = S.new LeafReader();
     
     while (!nodesToJoin.isEmpty()) {
       long nodes_to_join = nodesToJoin.remove();
@@ -1245,7 +1619,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           int new_r_node = r_node * R.degree + i + 1;
           for (int j = 0; j < S.degree; j++) {
             int new_s_node = s_node * S.degree + j + 1;
-            if (R.nodes[new_r_node].isIntersected(S.nodes[new_s_node])) {
+            if (isNodeIntersected(R, new_r_node, S, new_s_node)) {
               long new_pair = (((long)new_r_node) << 32) | new_s_node;
               nodesToJoin.add(new_pair);
             }
@@ -1256,7 +1630,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         // Compare the leaf node in R against all child nodes of S
         for (int j = 0; j < S.degree; j++) {
           int new_s_node = s_node * S.degree + j + 1;
-          if (R.nodes[r_node].isIntersected(S.nodes[new_s_node])) {
+          if (isNodeIntersected(R, r_node, S, new_s_node)) {
             long new_pair = (((long)r_node) << 32) | new_s_node;
             nodesToJoin.add(new_pair);
           }
@@ -1266,7 +1640,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         // Compare child nodes of R against the leaf node in S
         for (int i = 0; i < R.degree; i++) {
           int new_r_node = r_node * R.degree + i + 1;
-          if (R.nodes[new_r_node].isIntersected(S.nodes[s_node])) {
+          if (isNodeIntersected(R, new_r_node, S, s_node)) {
             long new_pair = (((long)new_r_node) << 32) | s_node;
             nodesToJoin.add(new_pair);
           }
@@ -1288,20 +1662,14 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           }
 
           // Need to read it from stream
-          if (r_last_offset != r_start_offset) {
-            long seekTo = r_start_offset + R.treeStartOffset;
-            R.data.seek(seekTo);
-            r_lr = new LineReader(R.data);
-          }
+          r_reader.reset(r_start_offset, r_end_offset);
           int record_i = 0;
-          while (r_start_offset < r_end_offset) {
-            r_start_offset += r_lr.readLine(line);
+          while (r_reader.hasNext()) {
             if (r_records[record_i] == null)
               r_records[record_i] = R.stockObject.clone();
-            r_records[record_i].fromText(line);
+            r_reader.next(r_records[record_i], null);
             record_i++;
           }
-          r_last_offset = r_start_offset;
           // Nullify other records
           while (record_i < r_records.length)
             r_records[record_i++] = null;
@@ -1314,22 +1682,16 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           int cache_key = s_start_offset;
 
           // Need to read it from stream
-          if (s_lr == null || s_last_offset != s_start_offset) {
-            // Need to reposition s_lr (LineReader of S)
-            long seekTo = s_start_offset + S.treeStartOffset;
-            S.data.seek(seekTo);
-            s_lr = new LineReader(S.data);
-          }
+          s_reader.reset(s_start_offset, s_end_offset);
           s_records = s_records_cache.popUnusedEntry();
           if (s_records == null) {
             s_records = new Shape[S.degree * 2];
           }
           int record_i = 0;
-          while (s_start_offset < s_end_offset) {
-            s_start_offset += s_lr.readLine(line);
+          while (s_reader.hasNext()) {
             if (s_records[record_i] == null)
               s_records[record_i] = S.stockObject.clone();
-            s_records[record_i].fromText(line);
+            s_reader.next(s_records[record_i], null);
             record_i++;
           }
           // Nullify other records
@@ -1337,7 +1699,6 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
             s_records[record_i++] = null;
           // Put in cache
           s_records_cache.put(cache_key, s_records);
-          s_last_offset = s_start_offset;
         }
 
         // Do Cartesian product between records to find overlapping pairs
@@ -1520,7 +1881,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   public void toWKT(PrintStream out) throws IOException {
     out.println("NodeID\tBoundaries");
     for (int nodeID = 0; nodeID < this.nodeCount; nodeID++) {
-      out.printf("%d\t%s\n", nodeID, nodes[nodeID].toWKT());
+      out.printf("%d\t%s\n", nodeID, getNodeMBR(nodeID).toWKT());
     }
   }
 
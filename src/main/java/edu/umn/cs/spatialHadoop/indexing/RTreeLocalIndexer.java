@@ -9,6 +9,8 @@
 package edu.umn.cs.spatialHadoop.indexing;
 
 import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -20,25 +22,38 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
 
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 
 /**
- * Indexes local files using R-tree.
+ * Indexes local files using R-tree. Records can also be spilled along with
+ * their MBRs to bulk load the R-tree without parsing them.
  * @author Ahmed Eldawy
  *
  */
-public class RTreeLocalIndexer implements LocalIndexer {
+public class RTreeLocalIndexer implements BinaryLocalIndexer {
   private static final Log LOG = LogFactory.getLog(RTreeLocalIndexer.class);
 
   /**Configuration of the running job*/
   protected Configuration conf;
 
+  /**Whether leaf records are stored in the binary format*/
+  protected boolean binaryLeaves;
+
+  /**A temporary buffer to serialize spilled records in the binary format*/
+  private DataOutputBuffer recordBuffer = new DataOutputBuffer();
+
+  /**A temporary buffer to serialize spilled records in the text format*/
+  private Text recordText = new Text();
+
   @Override
   public void setup(Configuration conf) throws IOException,
       InterruptedException {
     this.conf = conf;
+    this.binaryLeaves = conf.get(SpatialSite.RTREE_LEAF_FORMAT, "text").equals("binary");
   }
 
   @Override
@@ -59,12 +74,46 @@ public class RTreeLocalIndexer implements LocalIndexer {
     // Create the output file
     FileSystem outFS = outputIndexedFile.getFileSystem(conf);
     DataOutputStream cellStream = outFS.create(outputIndexedFile);
-    cellStream.writeLong(SpatialSite.RTreeFileMarker);
+    cellStream.writeLong(binaryLeaves ? SpatialSite.RTreeBinaryFileMarker
+        : SpatialSite.RTreeFileMarker);
     int degree = 4096 / RTree.NodeSize;
     boolean fastAlgorithm = conf.get(SpatialSite.RTREE_BUILD_MODE, "fast").equals("fast");
+    boolean hilbertPacking = conf.get(SpatialSite.RTREE_PACKING, "str").equals("hilbert");
     RTree.bulkLoadWrite(cellData, 0, cellData.length, degree, cellStream,
-        shape.clone(), fastAlgorithm);
+        shape.clone(), fastAlgorithm, binaryLeaves, hilbertPacking);
     cellStream.close();
   }
 
+  @Override
+  public int writeRecord(DataOutput out, Shape shape) throws IOException {
+    if (binaryLeaves) {
+      RTree.writeBinaryRecord(out, shape, recordBuffer);
+      return RTree.BinaryRecordHeaderSize + recordBuffer.getLength();
+    } else {
+      RTree.writeTextRecord(out, shape, recordText);
+      return recordText.getLength() + 1;
+    }
+  }
+
+  @Override
+  public void buildLocalIndexFromSpill(File spillFile, Path outputIndexedFile)
+      throws IOException, InterruptedException {
+    // Read all records of the spill file in memory
+    byte[] records = new byte[(int) spillFile.length()];
+    DataInputStream spillIn = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(spillFile)));
+    spillIn.readFully(records);
+    spillIn.close();
+
+    // Build an RTree over the records using their MBRs
+    FileSystem outFS = outputIndexedFile.getFileSystem(conf);
+    DataOutputStream cellStream = outFS.create(outputIndexedFile);
+    cellStream.writeLong(binaryLeaves ? SpatialSite.RTreeBinaryFileMarker
+        : SpatialSite.RTreeFileMarker);
+    int degree = 4096 / RTree.NodeSize;
+    boolean hilbertPacking = conf.get(SpatialSite.RTREE_PACKING, "str").equals("hilbert");
+    RTree.bulkLoadWriteRecords(records, 0, records.length, degree, cellStream,
+        binaryLeaves, hilbertPacking);
+    cellStream.close();
+  }
 }
@@ -21,6 +21,8 @@ import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+import edu.umn.cs.spatialHadoop.util.Parallel;
 
 /**
  * A partitioner that partitioner data using the STR bulk loading algorithm.
@@ -45,14 +47,18 @@ public class STRPartitioner extends Partitioner {
   }
   
   @Override
-  public void createFromPoints(Rectangle mbr, Point[] points, int capacity) {
+  public void createFromPoints(Rectangle mbr, final Point[] points, int capacity) {
     // Apply the STR algorithm in two rounds
     // 1- First round, sort points by X and split into the given columns
-    Arrays.sort(points, new Comparator<Point>() {
-      @Override
-      public int compare(Point a, Point b) {
-        return a.x < b.x? -1 : (a.x > b.x? 1 : 0);
-      }});
+    try {
+      Parallel.sort(points, 0, points.length, new Comparator<Point>() {
+        @Override
+        public int compare(Point a, Point b) {
+          return a.x < b.x? -1 : (a.x > b.x? 1 : 0);
+        }}, parallelism);
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while sorting points", e);
+    }
     // Calculate partitioning numbers based on a grid
     int numSplits = (int) Math.ceil((double)points.length / capacity);
     GridInfo gridInfo = new GridInfo(mbr.x1, mbr.y1, mbr.x2, mbr.y2);
@@ -61,28 +67,39 @@ public class STRPartitioner extends Partitioner {
     this.rows = gridInfo.rows;
     this.xSplits = new double[columns];
     this.ySplits = new double[rows * columns];
-    int prev_quantile = 0;
     this.mbr.set(mbr);
-    for (int column = 0; column < columns; column++) {
-      int col_quantile = (column + 1) * points.length / columns;
-      // Determine the x split for this column. Last column has a special handling
-      this.xSplits[column] = col_quantile == points.length ? mbr.x2 : points[col_quantile-1].x;
-      // 2- Partition this column vertically in the same way
-      Arrays.sort(points, prev_quantile, col_quantile, new Comparator<Point>() {
+    final Rectangle fmbr = this.mbr;
+    // 2- Partition each column vertically. Columns are disjoint subranges
+    // of the points and are processed in parallel.
+    try {
+      Parallel.forEach(columns, new Parallel.RunnableRange<Object>() {
         @Override
-        public int compare(Point a, Point b) {
-          return a.y < b.y? -1 : (a.y > b.y? 1 : 0);
+        public Object run(int col1, int col2) {
+          Comparator<Point> yComparator = new Comparator<Point>() {
+            @Override
+            public int compare(Point a, Point b) {
+              return a.y < b.y? -1 : (a.y > b.y? 1 : 0);
+            }
+          };
+          for (int column = col1; column < col2; column++) {
+            int prev_quantile = column * points.length / columns;
+            int col_quantile = (column + 1) * points.length / columns;
+            // Determine the x split for this column. Last column has a special handling
+            xSplits[column] = col_quantile == points.length ? fmbr.x2 : points[col_quantile-1].x;
+            Arrays.sort(points, prev_quantile, col_quantile, yComparator);
+            // Compute y-splits for this column
+            for (int row = 0; row < rows; row++) {
+              int row_quantile = (prev_quantile * (rows - (row+1)) +
+                  col_quantile * (row+1)) / rows;
+              // Determine y split for this row. Last row has a special handling
+              ySplits[column * rows + row] = row_quantile == col_quantile ? fmbr.y2 : points[row_quantile].y;
+            }
+          }
+          return null;
         }
-      });
-      // Compute y-splits for this column
-      for (int row = 0; row < rows; row++) {
-        int row_quantile = (prev_quantile * (rows - (row+1)) +
-            col_quantile * (row+1)) / rows;
-        // Determine y split for this row. Last row has a special handling
-        this.ySplits[column * rows + row] = row_quantile == col_quantile ? mbr.y2 : points[row_quantile].y;
-      }
-      
-      prev_quantile = col_quantile;
+      }, parallelism);
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while partitioning columns", e);
     }
   }
 
@@ -128,6 +145,11 @@ public class STRPartitioner extends Partitioner {
 
   @Override
   public void overlapPartitions(Shape shape, ResultCollector<Integer> matcher) {
+    collectOverlapPartitions(shape, matcher);
+  }
+
+  @Override
+  public void overlapPartitions(Shape shape, IntArray matches) {
     if (shape == null)
       return;
     Rectangle shapeMBR = shape.getMBR();
@@ -152,7 +174,7 @@ public class STRPartitioner extends Partitioner {
         cell2 = -cell2 - 1;
 
       for (int cell = cell1; cell <= cell2; cell++)
-        matcher.collect(cell);
+        matches.add(cell);
     }
   }
   
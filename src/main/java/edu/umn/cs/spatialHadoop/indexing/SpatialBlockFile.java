@@ -0,0 +1,685 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.PointBatch;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.io.MemoryInputStream;
+
+/**
+ * A binary file format that stores shapes in blocks of a fixed number of
+ * records. Each block starts with a header that contains the number of
+ * records, the MBR of all records and the size of the block data which allows
+ * a reader to skip blocks that do not overlap a query range without reading
+ * them. Coordinates of each block are stored column-wise as arrays of doubles.
+ * Points and rectangles are stored entirely as coordinates and are read
+ * without any parsing. Other shapes store the MBR of each record as
+ * coordinates followed by the {@link org.apache.hadoop.io.Writable}
+ * serialization of each record. The data of each block can be optionally
+ * compressed using {@link Deflater}.
+ *
+ * File layout:
+ * <pre>
+ * marker (long) | layout (byte) | compressed (byte)
+ * block*
+ * end of blocks (int -1)
+ * </pre>
+ * Block layout:
+ * <pre>
+ * record count (int) | MBR (4 doubles) | raw size (int) | stored size (int)
+ * data
+ * </pre>
+ * @author Ahmed Eldawy
+ *
+ */
+public class SpatialBlockFile {
+  private static final Log LOG = LogFactory.getLog(SpatialBlockFile.class);
+
+  /**Records are instances of {@link Point} stored as x and y columns*/
+  public static final byte LayoutPoints = 0;
+  /**Records are instances of {@link Rectangle} stored as four columns*/
+  public static final byte LayoutRectangles = 1;
+  /**Records are stored as four MBR columns followed by their serialization*/
+  public static final byte LayoutRecords = 2;
+
+  private SpatialBlockFile() { /* Enforce static use only */ }
+
+  /**
+   * Returns the layout used to store the given shape. Only the exact classes
+   * {@link Point} and {@link Rectangle} are stored as pure coordinates as
+   * subclasses might have additional fields.
+   * @param shape
+   * @return
+   */
+  public static byte getLayout(Shape shape) {
+    if (shape.getClass() == Point.class)
+      return LayoutPoints;
+    if (shape.getClass() == Rectangle.class)
+      return LayoutRectangles;
+    return LayoutRecords;
+  }
+
+  /**
+   * Writes shapes to a spatial block file. Records are written in the order
+   * they are given and a block is flushed whenever it reaches the block
+   * capacity.
+   * @author Ahmed Eldawy
+   *
+   * @param <S>
+   */
+  public static class Writer<S extends Shape> {
+    /**The output stream to write the file to*/
+    private DataOutputStream out;
+    /**Layout of the records in the file*/
+    private byte layout;
+    /**Whether block data is compressed or not*/
+    private boolean compress;
+    /**Maximum number of records per block*/
+    private int blockCapacity;
+
+    /**Number of records in the current block*/
+    private int recordCount;
+    /**MBR columns of records in the current block*/
+    private double[] x1s, y1s, x2s, y2s;
+    /**Serialization of records in the current block (records layout only)*/
+    private RandomAccessByteArrayOutputStream recordBytes;
+    private DataOutputStream recordOut;
+    /**Reusable buffers for the block data*/
+    private ByteBuffer blockData;
+    private byte[] compressedData;
+    private Deflater deflater;
+    /**Total number of blocks written*/
+    private int numBlocks;
+
+    public Writer(DataOutputStream out, S shape, int blockCapacity,
+        boolean compress) throws IOException {
+      this.out = out;
+      this.layout = getLayout(shape);
+      this.blockCapacity = blockCapacity;
+      this.compress = compress;
+      this.x1s = new double[blockCapacity];
+      this.y1s = new double[blockCapacity];
+      if (layout != LayoutPoints) {
+        this.x2s = new double[blockCapacity];
+        this.y2s = new double[blockCapacity];
+      }
+      if (layout == LayoutRecords) {
+        this.recordBytes = new RandomAccessByteArrayOutputStream();
+        this.recordOut = new DataOutputStream(recordBytes);
+      }
+      if (compress)
+        this.deflater = new Deflater();
+      out.writeLong(SpatialSite.BlockFileMarker);
+      out.writeByte(layout);
+      out.writeByte(compress ? 1 : 0);
+    }
+
+    /**
+     * Appends the given shape to the current block
+     * @param shape
+     * @throws IOException
+     */
+    public void write(S shape) throws IOException {
+      switch (layout) {
+      case LayoutPoints:
+        Point p = (Point) shape;
+        x1s[recordCount] = p.x;
+        y1s[recordCount] = p.y;
+        break;
+      case LayoutRectangles:
+        Rectangle r = (Rectangle) shape;
+        x1s[recordCount] = r.x1;
+        y1s[recordCount] = r.y1;
+        x2s[recordCount] = r.x2;
+        y2s[recordCount] = r.y2;
+        break;
+      default:
+        Rectangle mbr = shape.getMBR();
+        x1s[recordCount] = mbr.x1;
+        y1s[recordCount] = mbr.y1;
+        x2s[recordCount] = mbr.x2;
+        y2s[recordCount] = mbr.y2;
+        // Reserve the size of the record and write it after serialization
+        int sizeOffset = recordBytes.size();
+        recordOut.writeInt(0);
+        shape.write(recordOut);
+        recordOut.flush();
+        recordBytes.setInt(sizeOffset, recordBytes.size() - sizeOffset - 4);
+      }
+      if (++recordCount == blockCapacity)
+        flushBlock();
+    }
+
+    /**
+     * Writes all buffered records as one block
+     * @throws IOException
+     */
+    private void flushBlock() throws IOException {
+      if (recordCount == 0)
+        return;
+      int numColumns = layout == LayoutPoints ? 2 : 4;
+      int recordsSize = layout == LayoutRecords ? recordBytes.size() : 0;
+      int rawSize = recordCount * numColumns * 8 + recordsSize;
+      if (blockData == null || blockData.capacity() < rawSize)
+        blockData = ByteBuffer.allocate(Math.max(rawSize, blockCapacity * numColumns * 8));
+      blockData.clear();
+      DoubleBuffer coords = blockData.asDoubleBuffer();
+      double bx1 = Double.POSITIVE_INFINITY, by1 = Double.POSITIVE_INFINITY;
+      double bx2 = Double.NEGATIVE_INFINITY, by2 = Double.NEGATIVE_INFINITY;
+      if (layout == LayoutPoints) {
+        coords.put(x1s, 0, recordCount);
+        coords.put(y1s, 0, recordCount);
+        for (int i = 0; i < recordCount; i++) {
+          bx1 = Math.min(bx1, x1s[i]);
+          by1 = Math.min(by1, y1s[i]);
+          bx2 = Math.max(bx2, x1s[i]);
+          by2 = Math.max(by2, y1s[i]);
+        }
+      } else {
+        coords.put(x1s, 0, recordCount);
+        coords.put(y1s, 0, recordCount);
+        coords.put(x2s, 0, recordCount);
+        coords.put(y2s, 0, recordCount);
+        for (int i = 0; i < recordCount; i++) {
+          bx1 = Math.min(bx1, x1s[i]);
+          by1 = Math.min(by1, y1s[i]);
+          bx2 = Math.max(bx2, x2s[i]);
+          by2 = Math.max(by2, y2s[i]);
+        }
+      }
+      if (layout == LayoutRecords) {
+        blockData.position(coords.position() * 8);
+        blockData.put(recordBytes.getBuffer(), 0, recordsSize);
+        recordBytes.reset();
+      }
+
+      byte[] data = blockData.array();
+      int storedSize = rawSize;
+      if (compress) {
+        if (compressedData == null || compressedData.length < rawSize + 64)
+          compressedData = new byte[rawSize + rawSize / 16 + 64];
+        deflater.reset();
+        deflater.setInput(data, 0, rawSize);
+        deflater.finish();
+        storedSize = 0;
+        while (!deflater.finished()) {
+          if (storedSize == compressedData.length) {
+            byte[] newData = new byte[compressedData.length * 2];
+            System.arraycopy(compressedData, 0, newData, 0, storedSize);
+            compressedData = newData;
+          }
+          storedSize += deflater.deflate(compressedData, storedSize,
+              compressedData.length - storedSize);
+        }
+        data = compressedData;
+      }
+
+      out.writeInt(recordCount);
+      out.writeDouble(bx1);
+      out.writeDouble(by1);
+      out.writeDouble(bx2);
+      out.writeDouble(by2);
+      out.writeInt(rawSize);
+      out.writeInt(storedSize);
+      out.write(data, 0, storedSize);
+      recordCount = 0;
+      numBlocks++;
+    }
+
+    /**
+     * Flushes the last block and writes the end of file marker. The
+     * underlying stream is not closed.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+      flushBlock();
+      out.writeInt(-1);
+      if (deflater != null)
+        deflater.end();
+      LOG.info("Wrote "+numBlocks+" blocks to a spatial block file");
+    }
+  }
+
+  /**
+   * A {@link ByteArrayOutputStream} that allows overwriting an int that has
+   * already been written.
+   */
+  static class RandomAccessByteArrayOutputStream extends ByteArrayOutputStream {
+    void setInt(int offset, int value) {
+      buf[offset] = (byte) (value >>> 24);
+      buf[offset + 1] = (byte) (value >>> 16);
+      buf[offset + 2] = (byte) (value >>> 8);
+      buf[offset + 3] = (byte) value;
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+
+  /**
+   * Reads a spatial block file one block at a time. For each block, the
+   * header is read first and the caller decides to either read or skip it.
+   * @author Ahmed Eldawy
+   *
+   * @param <S>
+   */
+  public static class Reader<S extends Shape> {
+    /**The input stream to read from*/
+    private DataInputStream in;
+    /**The shape used to return records*/
+    private S stockShape;
+    /**Layout of records in the file*/
+    private byte layout;
+    /**Whether block data is compressed*/
+    private boolean compressed;
+    private Inflater inflater;
+
+    /**Header of the current block*/
+    private int recordCount;
+    private final Rectangle blockMBR = new Rectangle();
+    private int rawSize;
+    private int storedSize;
+    /**Whether the data of the current block was consumed or not*/
+    private boolean blockConsumed = true;
+    /**Whether the end of blocks was reached*/
+    private boolean eof;
+
+    /**Reusable buffers for the block data*/
+    private byte[] rawData;
+    private byte[] storedData;
+
+    /**
+     * Creates a reader for a file that starts at the current position of the
+     * given stream.
+     * @param in
+     * @param stockShape
+     * @throws IOException
+     */
+    public Reader(DataInputStream in, S stockShape) throws IOException {
+      this.in = in;
+      this.stockShape = stockShape;
+      if (in.readLong() != SpatialSite.BlockFileMarker)
+        throw new RuntimeException("Incorrect signature for a spatial block file");
+      this.layout = in.readByte();
+      this.compressed = in.readByte() != 0;
+      if (compressed)
+        inflater = new Inflater();
+      if (layout != getLayout(stockShape))
+        throw new RuntimeException("Cannot read records of type "+stockShape.getClass()
+            + " from a file with layout "+layout);
+    }
+
+    /**
+     * Reads the header of the next block. If the previous block was neither
+     * read nor skipped, it is skipped first.
+     * @return <code>false</code> if there are no more blocks
+     * @throws IOException
+     */
+    public boolean nextBlock() throws IOException {
+      if (eof)
+        return false;
+      if (!blockConsumed)
+        skipBlock();
+      recordCount = in.readInt();
+      if (recordCount < 0) {
+        eof = true;
+        return false;
+      }
+      blockMBR.set(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+      rawSize = in.readInt();
+      storedSize = in.readInt();
+      blockConsumed = false;
+      return true;
+    }
+
+    /**Number of records in the current block*/
+    public int getBlockRecordCount() {
+      return recordCount;
+    }
+
+    /**MBR of all records in the current block*/
+    public Rectangle getBlockMBR() {
+      return blockMBR;
+    }
+
+    /**
+     * Whether the MBR of the current block overlaps the given rectangle. The
+     * test is inclusive as the MBR of a block of points can have a zero width
+     * or height.
+     * @param rect
+     * @return
+     */
+    public boolean isBlockOverlapping(Rectangle rect) {
+      return !(blockMBR.x2 < rect.x1 || rect.x2 < blockMBR.x1 ||
+          blockMBR.y2 < rect.y1 || rect.y2 < blockMBR.y1);
+    }
+
+    /**
+     * Skips the data of the current block without reading it
+     * @throws IOException
+     */
+    public void skipBlock() throws IOException {
+      IOUtils.skipFully(in, storedSize);
+      blockConsumed = true;
+    }
+
+    /**
+     * Reads all records in the current block. The returned iterable reuses
+     * the stock shape for all returned records.
+     * @return
+     * @throws IOException
+     */
+    public Block<S> readBlock() throws IOException {
+      if (rawData == null || rawData.length < rawSize)
+        rawData = new byte[rawSize];
+      if (!compressed) {
+        in.readFully(rawData, 0, rawSize);
+      } else {
+        if (storedData == null || storedData.length < storedSize)
+          storedData = new byte[storedSize];
+        in.readFully(storedData, 0, storedSize);
+        inflater.reset();
+        inflater.setInput(storedData, 0, storedSize);
+        try {
+          int inflated = 0;
+          while (inflated < rawSize && !inflater.finished())
+            inflated += inflater.inflate(rawData, inflated, rawSize - inflated);
+        } catch (DataFormatException e) {
+          throw new IOException("Corrupted block in a spatial block file", e);
+        }
+      }
+      blockConsumed = true;
+      return new Block<S>(layout, recordCount, rawData, rawSize, stockShape);
+    }
+
+    public void close() throws IOException {
+      if (inflater != null)
+        inflater.end();
+      in.close();
+    }
+  }
+
+  /**
+   * The records of one block decoded into coordinate arrays. Records are
+   * returned by reusing the stock shape.
+   * @author Ahmed Eldawy
+   *
+   * @param <S>
+   */
+  public static class Block<S extends Shape> implements Iterable<S> {
+    private final byte layout;
+    private final int recordCount;
+    private final double[] x1s, y1s, x2s, y2s;
+    /**Serialized records and their offsets (records layout only)*/
+    private byte[] recordData;
+    private int[] recordOffsets;
+    /**A stream over the serialized records reused to decode all of them*/
+    private MemoryInputStream recordStream;
+    private DataInputStream recordInput;
+    /**Index of the record currently decoded in the stock shape or -1*/
+    private int decodedRecord = -1;
+    private final S stockShape;
+    /**An optional query range to filter records*/
+    private Shape queryRange;
+    private Rectangle queryMBR;
+    /**Points of the block when filtered in one batch by a rectangle*/
+    private PointBatch pointBatch;
+
+    Block(byte layout, int recordCount, byte[] data, int dataSize, S stockShape) {
+      this.layout = layout;
+      this.recordCount = recordCount;
+      this.stockShape = stockShape;
+      DoubleBuffer coords = ByteBuffer.wrap(data, 0, dataSize).asDoubleBuffer();
+      x1s = new double[recordCount];
+      y1s = new double[recordCount];
+      coords.get(x1s);
+      coords.get(y1s);
+      if (layout == LayoutPoints) {
+        x2s = x1s;
+        y2s = y1s;
+      } else {
+        x2s = new double[recordCount];
+        y2s = new double[recordCount];
+        coords.get(x2s);
+        coords.get(y2s);
+      }
+      if (layout == LayoutRecords) {
+        // Keep a private copy as the reader reuses its buffer for next blocks
+        int offset = coords.position() * 8;
+        recordData = new byte[dataSize - offset];
+        System.arraycopy(data, offset, recordData, 0, recordData.length);
+        recordOffsets = new int[recordCount];
+        ByteBuffer records = ByteBuffer.wrap(recordData);
+        for (int i = 0; i < recordCount; i++) {
+          int size = records.getInt();
+          recordOffsets[i] = records.position();
+          records.position(records.position() + size);
+        }
+        recordStream = new MemoryInputStream(recordData);
+        recordInput = new DataInputStream(recordStream);
+      }
+    }
+
+    /**
+     * Limits the records returned by this block to those that overlap the
+     * given range. Records are first filtered by their MBRs and only the
+     * remaining ones are tested against the exact query range.
+     * @param queryRange
+     * @return this block
+     */
+    public Block<S> search(Shape queryRange) {
+      this.queryRange = queryRange;
+      this.queryMBR = queryRange.getMBR();
+      if (layout == LayoutPoints && queryRange.getClass() == Rectangle.class) {
+        // Select all matching points in one pass over the coordinate arrays
+        pointBatch = new PointBatch(x1s, y1s, recordCount, (Point) stockShape);
+        pointBatch.selectInRange(queryMBR);
+      }
+      return this;
+    }
+
+    public int getRecordCount() {
+      return recordCount;
+    }
+
+    /**
+     * Loads the record at the given index into the stock shape. A serialized
+     * record is decoded only if it is not the last one decoded, e.g., when it
+     * is returned right after it is matched against the query range.
+     * @param i
+     * @return
+     */
+    private S load(int i) {
+      switch (layout) {
+      case LayoutPoints:
+        ((Point)stockShape).set(x1s[i], y1s[i]);
+        break;
+      case LayoutRectangles:
+        ((Rectangle)stockShape).set(x1s[i], y1s[i], x2s[i], y2s[i]);
+        break;
+      default:
+        if (decodedRecord == i)
+          break;
+        try {
+          recordStream.seek(recordOffsets[i]);
+          stockShape.readFields(recordInput);
+          decodedRecord = i;
+        } catch (IOException e) {
+          throw new RuntimeException("Error reading a record from a block", e);
+        }
+      }
+      return stockShape;
+    }
+
+    /**
+     * Whether the record at the given index matches the query range, if any
+     * @param i
+     * @return
+     */
+    private boolean isMatched(int i) {
+      if (queryMBR == null)
+        return true;
+      if (x2s[i] < queryMBR.x1 || queryMBR.x2 < x1s[i] ||
+          y2s[i] < queryMBR.y1 || queryMBR.y2 < y1s[i])
+        return false;
+      return queryRange.isIntersected(load(i));
+    }
+
+    /**
+     * Returns an iterator over the records of this block that match the query
+     * range, if any. The returned records reuse the stock shape which must
+     * not be modified by the caller.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public Iterator<S> iterator() {
+      if (pointBatch != null) {
+        // The stock shape is a point when the points layout is used
+        Iterator<? extends Shape> points = pointBatch.iterator();
+        return (Iterator<S>) points;
+      }
+      // The stock shape could be used by a previous iterator
+      decodedRecord = -1;
+      return new Iterator<S>() {
+        /**Index of the last returned record*/
+        int current = -1;
+        /**Index of the next match or -1 if it is not found yet*/
+        int next = -1;
+
+        @Override
+        public boolean hasNext() {
+          if (next == -1) {
+            // Find the next match lazily so that its decoded record is still
+            // in the stock shape when it is returned
+            next = current + 1;
+            while (next < recordCount && !isMatched(next))
+              next++;
+          }
+          return next < recordCount;
+        }
+
+        @Override
+        public S next() {
+          if (!hasNext())
+            throw new NoSuchElementException();
+          current = next;
+          next = -1;
+          return load(current);
+        }
+
+        @Override
+        public void remove() {
+          throw new RuntimeException("Non-implemented method");
+        }
+      };
+    }
+  }
+
+  /**
+   * Writes all shapes in the given text data to a spatial block file. Shapes
+   * are parsed from lines using the given stock shape and sorted using the
+   * STR algorithm so that each block covers a small region of the space.
+   * @param elementBytes - text lines, one shape per line
+   * @param offset
+   * @param len
+   * @param stockShape
+   * @param out
+   * @param blockCapacity - maximum number of records per block
+   * @param compress - whether to compress the data of blocks or not
+   * @throws IOException
+   */
+  @SuppressWarnings("unchecked")
+  public static <S extends Shape> void bulkLoadWrite(byte[] elementBytes,
+      int offset, int len, S stockShape, DataOutputStream out,
+      int blockCapacity, boolean compress) throws IOException {
+    // Parse all shapes
+    int count = 0;
+    Shape[] shapes = new Shape[1024];
+    Text line = new Text();
+    int i = offset;
+    int end = offset + len;
+    while (i < end) {
+      int lineEnd = i;
+      while (lineEnd < end && elementBytes[lineEnd] != '\n' && elementBytes[lineEnd] != '\r')
+        lineEnd++;
+      if (lineEnd > i) {
+        line.set(elementBytes, i, lineEnd - i);
+        stockShape.fromText(line);
+        if (count == shapes.length) {
+          Shape[] newShapes = new Shape[shapes.length * 2];
+          System.arraycopy(shapes, 0, newShapes, 0, count);
+          shapes = newShapes;
+        }
+        shapes[count++] = stockShape.clone();
+      }
+      i = RTree.skipToEOL(elementBytes, lineEnd);
+    }
+
+    // Sort the shapes using STR so that each block is spatially clustered
+    final Shape[] sortShapes = shapes;
+    final double[] xs = new double[count];
+    final double[] ys = new double[count];
+    for (int j = 0; j < count; j++) {
+      Rectangle mbr = shapes[j].getMBR();
+      xs[j] = (mbr.x1 + mbr.x2) / 2;
+      ys[j] = (mbr.y1 + mbr.y2) / 2;
+    }
+    final double[][] sortKey = new double[1][];
+    IndexedSortable sortable = new IndexedSortable() {
+      @Override
+      public int compare(int i, int j) {
+        return Double.compare(sortKey[0][i], sortKey[0][j]);
+      }
+
+      @Override
+      public void swap(int i, int j) {
+        double t = xs[i]; xs[i] = xs[j]; xs[j] = t;
+        t = ys[i]; ys[i] = ys[j]; ys[j] = t;
+        Shape s = sortShapes[i]; sortShapes[i] = sortShapes[j]; sortShapes[j] = s;
+      }
+    };
+    QuickSort sorter = new QuickSort();
+    int numBlocks = (count + blockCapacity - 1) / blockCapacity;
+    int numSlices = (int) Math.ceil(Math.sqrt(numBlocks));
+    int sliceSize = numSlices == 0 ? count : numSlices * blockCapacity;
+    sortKey[0] = xs;
+    sorter.sort(sortable, 0, count);
+    sortKey[0] = ys;
+    for (int sliceStart = 0; sliceStart < count; sliceStart += sliceSize)
+      sorter.sort(sortable, sliceStart, Math.min(count, sliceStart + sliceSize));
+
+    Writer<S> writer = new Writer<S>(out, stockShape, blockCapacity, compress);
+    for (int j = 0; j < count; j++)
+      writer.write((S) shapes[j]);
+    writer.close();
+  }
+}
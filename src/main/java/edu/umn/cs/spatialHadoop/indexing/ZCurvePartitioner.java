@@ -54,6 +54,16 @@ public class ZCurvePartitioner extends Partitioner {
     createFromZValues(zValues, capacity);
   }
 
+  @Override
+  public void createFromPoints(Rectangle mbr, double[] xs, double[] ys,
+      int capacity) {
+    this.mbr.set(mbr);
+    long[] zValues = new long[xs.length];
+    for (int i = 0; i < xs.length; i++)
+      zValues[i] = computeZ(mbr, xs[i], ys[i]);
+    createFromZValues(zValues, capacity);
+  }
+
   /**
    * Create a ZCurvePartitioner from a list of points
    * @param zValues
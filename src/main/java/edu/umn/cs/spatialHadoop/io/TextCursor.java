@@ -0,0 +1,199 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.io;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Parses fields out of a byte array, typically the bytes of a {@link Text},
+ * by keeping track of the offset of the next field. Unlike the consume
+ * methods in {@link TextSerializerHelper}, reading a field does not shift
+ * the remaining bytes, so parsing a line with n fields is linear in its
+ * length. Once all fields are read, {@link #consume(Text)} removes the
+ * parsed bytes from the text in one step for any fields that follow.
+ * @author Ahmed Eldawy
+ *
+ */
+public class TextCursor {
+  /**The bytes being parsed*/
+  private byte[] bytes;
+  /**Offset of the next byte to parse*/
+  private int position;
+  /**Offset of the end of the parsed range (exclusive)*/
+  private int end;
+
+  /**A cursor for each thread to avoid creating a cursor for each record*/
+  private static final ThreadLocal<TextCursor> ThreadCursor =
+      new ThreadLocal<TextCursor>() {
+    @Override
+    protected TextCursor initialValue() {
+      return new TextCursor();
+    }
+  };
+
+  public TextCursor() {
+  }
+
+  public TextCursor(Text text) {
+    reset(text);
+  }
+
+  /**
+   * Returns the cursor of the calling thread reset to the beginning of the
+   * given text. The same cursor is returned to all callers in one thread so
+   * it can only be used by parsers that do not call other parsers while
+   * reading their fields, e.g., {@link edu.umn.cs.spatialHadoop.core.Point}.
+   * @param text
+   * @return
+   */
+  public static TextCursor forThread(Text text) {
+    return ThreadCursor.get().reset(text);
+  }
+
+  /**
+   * Starts parsing the given text from its beginning
+   * @param text
+   * @return this cursor
+   */
+  public TextCursor reset(Text text) {
+    return reset(text.getBytes(), 0, text.getLength());
+  }
+
+  /**
+   * Starts parsing the given range of bytes
+   * @param bytes
+   * @param start - offset of the first byte to parse
+   * @param end - offset of the end of the range (exclusive)
+   * @return this cursor
+   */
+  public TextCursor reset(byte[] bytes, int start, int end) {
+    this.bytes = bytes;
+    this.position = start;
+    this.end = end;
+    return this;
+  }
+
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  public int getPosition() {
+    return position;
+  }
+
+  public void setPosition(int position) {
+    this.position = position;
+  }
+
+  public int getEnd() {
+    return end;
+  }
+
+  /**
+   * Whether there are more bytes to parse
+   * @return
+   */
+  public boolean hasMore() {
+    return position < end;
+  }
+
+  /**
+   * Skips the given number of bytes
+   * @param n
+   */
+  public void skip(int n) {
+    position = Math.min(end, position + n);
+  }
+
+  /**
+   * Skips the next byte if it is the given separator
+   * @param separator
+   */
+  private void skipSeparator(char separator) {
+    if (position < end && bytes[position] == separator)
+      position++;
+  }
+
+  /**
+   * Parses a double and skips the separator that follows it, if any.
+   * @param separator
+   * @return
+   */
+  public double nextDouble(char separator) {
+    int i = position;
+    while (i < end && TextSerializerHelper.DoubleChars[bytes[i] & 0xff])
+      i++;
+    double d = TextSerializerHelper.deserializeDouble(bytes, position, i - position);
+    position = i;
+    skipSeparator(separator);
+    return d;
+  }
+
+  /**
+   * Parses a decimal int and skips the separator that follows it, if any.
+   * @param separator
+   * @return
+   */
+  public int nextInt(char separator) {
+    int i = position;
+    while (i < end && TextSerializerHelper.DecimalChars[bytes[i] & 0xff])
+      i++;
+    int x = TextSerializerHelper.deserializeInt(bytes, position, i - position);
+    position = i;
+    skipSeparator(separator);
+    return x;
+  }
+
+  /**
+   * Parses a decimal long and skips the separator that follows it, if any.
+   * @param separator
+   * @return
+   */
+  public long nextLong(char separator) {
+    int i = position;
+    while (i < end && TextSerializerHelper.DecimalChars[bytes[i] & 0xff])
+      i++;
+    long x = TextSerializerHelper.deserializeLong(bytes, position, i - position);
+    position = i;
+    skipSeparator(separator);
+    return x;
+  }
+
+  /**
+   * Parses a hexadecimal long and skips the separator that follows it, if any.
+   * @param separator
+   * @return
+   */
+  public long nextHexLong(char separator) {
+    int i = position;
+    while (i < end && TextSerializerHelper.HexadecimalChars[bytes[i] & 0xff])
+      i++;
+    long x = TextSerializerHelper.deserializeHexLong(bytes, position, i - position);
+    position = i;
+    skipSeparator(separator);
+    return x;
+  }
+
+  /**
+   * Removes all bytes parsed so far from the given text which must be the
+   * text this cursor was reset to. The remaining bytes are shifted once to
+   * the beginning of the text and the cursor is moved back accordingly.
+   * @param text
+   */
+  public void consume(Text text) {
+    if (position >= end) {
+      text.set(bytes, 0, 0);
+      position = end = 0;
+    } else if (position > 0) {
+      text.set(bytes, position, end - position);
+      end -= position;
+      position = 0;
+    }
+  }
+}
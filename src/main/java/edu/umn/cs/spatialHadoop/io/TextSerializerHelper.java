@@ -36,6 +36,14 @@ public final class TextSerializerHelper {
   
   final static boolean[] HexadecimalChars;
   final static boolean[] DecimalChars;
+  /**Chars that can appear in the text representation of a double*/
+  final static boolean[] DoubleChars;
+
+  /**Powers of ten that are exactly representable as doubles*/
+  private final static double[] PowersOfTen = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
   
   /**64 bytes to append to a string if necessary*/
   final static byte[] ToAppend = new byte[64];
@@ -53,6 +61,8 @@ public final class TextSerializerHelper {
     }
     HexadecimalChars['-'] = true;
     DecimalChars['-'] = true;
+    DoubleChars = DecimalChars.clone();
+    DoubleChars['+'] = DoubleChars['.'] = DoubleChars['e'] = DoubleChars['E'] = true;
     
     Arrays.fill(ToAppend, (byte)' ');
   }
@@ -146,18 +156,9 @@ public final class TextSerializerHelper {
    * @return
    */
   public static long consumeHexLong(Text text, char separator) {
-    int i = 0;
-    byte[] bytes = text.getBytes();
-    // Skip until the separator or end of text
-    while (i < text.getLength() && HexadecimalChars[bytes[i]])
-      i++;
-    long l = deserializeHexLong(bytes, 0, i);
-    // If the first char after the long is the separator, skip it
-    if (i < text.getLength() && bytes[i] == separator)
-      i++;
-    // Shift bytes after the long
-    System.arraycopy(bytes, i, bytes, 0, text.getLength() - i);
-    text.set(bytes, 0, text.getLength() - i);
+    TextCursor cursor = new TextCursor(text);
+    long l = cursor.nextHexLong(separator);
+    cursor.consume(text);
     return l;
   }
   
@@ -172,19 +173,72 @@ public final class TextSerializerHelper {
    * @return
    */
   public static double consumeDouble(Text text, char separator) {
-    int i = 0;
-    byte[] bytes = text.getBytes();
-    // Skip until the separator or end of text
-    while (i < text.getLength()
-        && ((bytes[i] >= '0' && bytes[i] <= '9') || bytes[i] == 'e'
-            || bytes[i] == 'E' || bytes[i] == '-' || bytes[i] == '+' || bytes[i] == '.'))
+    TextCursor cursor = new TextCursor(text);
+    double d = cursor.nextDouble(separator);
+    cursor.consume(text);
+    return d;
+  }
+
+  /**
+   * Parses a double from the given byte array (string) without creating any
+   * objects. Numbers with up to 15 significant digits and a small exponent,
+   * which covers almost all coordinates, are computed exactly using one
+   * multiplication or division by a power of ten. Other numbers fall back to
+   * {@link Double#parseDouble(String)}.
+   * @param buf
+   * @param offset
+   * @param len
+   * @return
+   */
+  public static double deserializeDouble(byte[] buf, int offset, int len) {
+    int i = offset;
+    final int end = offset + len;
+    boolean negative = false;
+    if (i < end && (buf[i] == '-' || buf[i] == '+'))
+      negative = buf[i++] == '-';
+    long mantissa = 0;
+    int significantDigits = 0;
+    int exponent = 0;
+    boolean hasDigits = false;
+    while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+      mantissa = mantissa * 10 + (buf[i++] - '0');
+      if (mantissa != 0)
+        significantDigits++;
+      hasDigits = true;
+    }
+    if (i < end && buf[i] == '.') {
       i++;
-    double d = Double.parseDouble(new String(bytes, 0, i));
-    if (i < text.getLength() && bytes[i] == separator)
+      while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+        mantissa = mantissa * 10 + (buf[i++] - '0');
+        if (mantissa != 0)
+          significantDigits++;
+        exponent--;
+        hasDigits = true;
+      }
+    }
+    if (hasDigits && significantDigits <= 15 && i < end &&
+        (buf[i] == 'e' || buf[i] == 'E')) {
       i++;
-    System.arraycopy(bytes, i, bytes, 0, text.getLength() - i);
-    text.set(bytes, 0, text.getLength() - i);
-    return d;
+      boolean negativeExponent = false;
+      if (i < end && (buf[i] == '-' || buf[i] == '+'))
+        negativeExponent = buf[i++] == '-';
+      int e = 0;
+      int exponentStart = i;
+      while (i < end && buf[i] >= '0' && buf[i] <= '9' && e < 1000)
+        e = e * 10 + (buf[i++] - '0');
+      if (i == exponentStart)
+        hasDigits = false; // Malformed exponent
+      exponent += negativeExponent ? -e : e;
+    }
+    if (!hasDigits || significantDigits > 15 || i != end ||
+        exponent < -22 || exponent > 22)
+      return Double.parseDouble(new String(buf, offset, len));
+    double d = mantissa;
+    if (exponent > 0)
+      d *= PowersOfTen[exponent];
+    else if (exponent < 0)
+      d /= PowersOfTen[-exponent];
+    return negative ? -d : d;
   }
   
   /**
@@ -261,18 +315,9 @@ public final class TextSerializerHelper {
   }
   
   public static long consumeLong(Text text, char separator) {
-    int i = 0;
-    byte[] bytes = text.getBytes();
-    // Skip until the separator or end of text
-    while (i < text.getLength() && DecimalChars[bytes[i]])
-      i++;
-    long l = deserializeLong(bytes, 0, i);
-    // If the first char after the long is the separator, skip it
-    if (i < text.getLength() && bytes[i] == separator)
-      i++;
-    // Shift bytes after the long
-    System.arraycopy(bytes, i, bytes, 0, text.getLength() - i);
-    text.set(bytes, 0, text.getLength() - i);
+    TextCursor cursor = new TextCursor(text);
+    long l = cursor.nextLong(separator);
+    cursor.consume(text);
     return l;
   }
   
@@ -335,18 +380,9 @@ public final class TextSerializerHelper {
   }
   
   public static int consumeInt(Text text, char separator) {
-    int i = 0;
-    byte[] bytes = text.getBytes();
-    // Skip until the separator or end of text
-    while (i < text.getLength() && DecimalChars[bytes[i]])
-      i++;
-    int l = deserializeInt(bytes, 0, i);
-    // If the first char after the long is the separator, skip it
-    if (i < text.getLength() && bytes[i] == separator)
-      i++;
-    // Shift bytes after the long
-    System.arraycopy(bytes, i, bytes, 0, text.getLength() - i);
-    text.set(bytes, 0, text.getLength() - i);
+    TextCursor cursor = new TextCursor(text);
+    int l = cursor.nextInt(separator);
+    cursor.consume(text);
     return l;
   }
  
@@ -499,8 +535,26 @@ public final class TextSerializerHelper {
       text.append(new byte[] {(byte) toAppend}, 0, 1);
   }
   
-  private static final WKTReader wktReader = new WKTReader(new GeometryFactory());
-  private static final WKBReader wkbReader = new WKBReader(new GeometryFactory());
+  /**Shared by all readers as a GeometryFactory is immutable*/
+  private static final GeometryFactory geometryFactory = new GeometryFactory();
+
+  /**
+   * WKT and WKB readers keep parsing state internally so each thread gets its
+   * own instances rather than serializing all threads on one lock.
+   */
+  private static final ThreadLocal<WKTReader> wktReader = new ThreadLocal<WKTReader>() {
+    @Override
+    protected WKTReader initialValue() {
+      return new WKTReader(geometryFactory);
+    }
+  };
+
+  private static final ThreadLocal<WKBReader> wkbReader = new ThreadLocal<WKBReader>() {
+    @Override
+    protected WKBReader initialValue() {
+      return new WKBReader(geometryFactory);
+    }
+  };
   
   public static void serializeGeometry(Text text, Geometry geom, char toAppend) {
     String wkt = geom == null? "" : geom.toText();
@@ -510,26 +564,45 @@ public final class TextSerializerHelper {
       text.append(new byte[] {(byte) toAppend}, 0, 1);
   }
   
-  public static synchronized Geometry consumeGeometryJTS(Text text, char separator) {
+  public static Geometry consumeGeometryJTS(Text text, char separator) {
+    TextCursor cursor = new TextCursor(text);
+    Geometry geom = consumeGeometryJTS(cursor, separator);
+    cursor.consume(text);
+    return geom;
+  }
+
+  /**
+   * Parses a geometry at the current position of the given cursor which is
+   * either a (possibly quoted) Well Known Text (WKT) or a hex-encoded Well
+   * Known Binary (WKB). The cursor is advanced after the geometry and the
+   * separator that follows it, if any.
+   * @param cursor
+   * @param separator
+   * @return
+   */
+  public static Geometry consumeGeometryJTS(TextCursor cursor, char separator) {
     // Check whether this text is a Well Known Text (WKT) or a hexed string
     boolean wkt = false;
-    byte[] bytes = text.getBytes();
-    int length = text.getLength();
+    byte[] bytes = cursor.getBytes();
+    int start = cursor.getPosition();
+    int end = cursor.getEnd();
+    int length = end - start;
+    if (length <= 0)
+      return null;
     Geometry geom;
     int i1, i2; // Start and end offset of the geometry being parsed
     int i_next; // Beginning of the next field
     boolean isWKT = false;
     boolean isHex = false;
-    if (bytes[0] == '\'' || bytes[0] == '\"') {
+    if (bytes[start] == '\'' || bytes[start] == '\"') {
       // A quoted string. Find terminating quote and trim the quotes
-      i1 = 1;
-      i2 = 2;
-      while (i2 < length && bytes[i2] != bytes[0])
+      i1 = start + 1;
+      i2 = start + 2;
+      while (i2 < end && bytes[i2] != bytes[start])
         i2++;
-      if (i2 == length)
+      if (i2 == end)
         throw new RuntimeException("Unterminated quoted string");
       i_next = i2 + 1;
-      i2--; // Back one step to remove the terminating quote
       isWKT = true; // Assume any quoted string to be WKT
     } else {
       // Not a quoted string, check if the type is WKT
@@ -538,7 +611,7 @@ public final class TextSerializerHelper {
         byte[] shapeName = ShapeNames[i_shape];
         if (length > shapeName.length) {
           int i = 0;
-          while (i < shapeName.length && shapeName[i] == bytes[i])
+          while (i < shapeName.length && shapeName[i] == bytes[start + i])
             i++;
           if (i == shapeName.length) {
             wkt = true;
@@ -551,15 +624,15 @@ public final class TextSerializerHelper {
       if (i_shape < ShapeNames.length) {
         isWKT = true;
         // Look for the terminator of the shape text
-        i1 = 0;
-        i2 = 1;
+        i1 = start;
+        i2 = start + 1;
         // Search for the first open parenthesis
-        while (i2 < length && bytes[i2] != '(')
+        while (i2 < end && bytes[i2] != '(')
           i2++;
-        if (i2 < length)
+        if (i2 < end)
           i2++; // Skip the open parenthesis itself
         int nesting = 1;
-        while (i2 < length && nesting > 0) {
+        while (i2 < end && nesting > 0) {
           if (bytes[i2] == '(')
             nesting++;
           else if (bytes[i2] == ')')
@@ -569,23 +642,23 @@ public final class TextSerializerHelper {
         i_next = i2 + 1;
       } else {
         // Check if the type is hex-encoded WKB
-        i1 = 0;
-        i2 = 0;
-        while (i2 < length && IsHex[bytes[i2]])
+        i1 = start;
+        i2 = start;
+        while (i2 < end && IsHex[bytes[i2] & 0xff])
           i2++;
-        isHex = i2 > 1;
+        isHex = i2 - i1 > 1;
         i_next = i2;
       }
     }
 
-    String geom_text = new String(bytes, i1, i2);
+    String geom_text = new String(bytes, i1, i2 - i1);
     
     try {
       if (isWKT) {
-        geom = wktReader.read(geom_text);
+        geom = wktReader.get().read(geom_text);
       } else if (isHex) {
         byte[] binary = hexToBytes(geom_text);
-        geom = wkbReader.read(binary);
+        geom = wkbReader.get().read(binary);
       } else {
         geom = null;
       }
@@ -593,14 +666,13 @@ public final class TextSerializerHelper {
       throw new RuntimeException(String.format("Error parsing '%s'",geom_text), e);
     }
 
-    // Remove consumed bytes from the text
-    if (i_next >= text.getLength())
-      text.clear();
-    else {
-      if (bytes[i_next] == separator)
-        i_next++;
-      text.set(bytes, i_next, length - i_next);
+    // Skip the consumed bytes
+    if (i_next >= end) {
+      i_next = end;
+    } else if (bytes[i_next] == separator) {
+      i_next++;
     }
+    cursor.setPosition(i_next);
 
     return geom;
   }
@@ -35,6 +35,7 @@ import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndexCache;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.nasa.HTTPFileSystem;
@@ -102,7 +103,7 @@ public abstract class SpatialInputFormat<K, V> extends FileInputFormat<K, V> {
   
   protected void listStatus(final FileSystem fs, Path dir,
       final List<FileStatus> result, BlockFilter filter) throws IOException {
-    GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, dir);
+    GlobalIndex<Partition> gindex = GlobalIndexCache.getGlobalIndex(fs, dir);
     if (gindex == null) {
       FileStatus[] listStatus;
       if (OperationsParams.isWildcard(dir)) {
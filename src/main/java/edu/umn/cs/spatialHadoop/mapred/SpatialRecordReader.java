@@ -40,7 +40,7 @@ import org.apache.hadoop.util.LineReader;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
-import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndexCache;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
 import edu.umn.cs.spatialHadoop.indexing.RTree;
 
@@ -70,7 +70,7 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   /**Maximum size in bytes that can be read in one read*/
   private int maxBytesInOneRead;
   
-  enum BlockType { HEAP, RTREE};
+  enum BlockType { HEAP, RTREE, RTREE_BINARY};
   
   /** First offset that is read from the input */
   protected long start;
@@ -107,6 +107,9 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   /**The type of the currently parsed block*/
   protected BlockType blockType;
 
+  /**Iterates over the records of an R-tree block with binary leaves*/
+  private RTree<Shape>.RTreeIterator binaryRecords;
+
   /**
    * The input stream that reads directly from the input file.
    * If the file is not compressed, this stream is the same as the in.
@@ -279,15 +282,9 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
     // Get the cell info for the current block
     cellMbr.invalidate(); // Initialize to invalid rectangle
     if (path != null) {
-      GlobalIndex<Partition> globalIndex =
-          SpatialSite.getGlobalIndex(fs, path.getParent());
-      if (globalIndex != null) {
-        for (Partition partition : globalIndex) {
-          if (partition.filename.equals(path.getName())) {
-            cellMbr.set(partition);
-          }
-        }
-      }
+      Partition partition = GlobalIndexCache.getPartition(fs, path);
+      if (partition != null)
+        cellMbr.set(partition);
     }
     
     // Read the first part of the block to determine its type
@@ -305,6 +302,12 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
       pos += 8;
       // Ignore the signature
       buffer = null;
+    } else if (buffer != null &&
+        Arrays.equals(buffer, SpatialSite.RTreeBinaryFileMarkerB)) {
+      blockType = BlockType.RTREE_BINARY;
+      pos += 8;
+      // Ignore the signature
+      buffer = null;
     } else {
       blockType = BlockType.HEAP;
       // The read buffer might contain some data that must be read
@@ -363,6 +366,9 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
    * @throws IOException
    */
   protected boolean nextLine(Text value) throws IOException {
+    if (blockType == BlockType.RTREE_BINARY)
+      throw new IOException("Cannot read text lines from an R-tree with binary"
+          + " leaves in file '"+path+"'. Use a shape or an R-tree reader instead");
     if (blockType == BlockType.RTREE && pos == 8) {
       // File is positioned at the RTree header
       // Skip the header and go to first data object in file
@@ -420,11 +426,24 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
    * by calling the method {@link #nextLine(Text)} then parses the returned
    * line by calling {@link Shape#fromText(Text)} on that line. If no stock
    * shape is set, a {@link NullPointerException} is thrown.
+   * If the block is an R-tree with binary leaves, the R-tree is loaded and
+   * its records are deserialized one by one.
    * @param s
    * @return
    * @throws IOException 
    */
   protected boolean nextShape(Shape s) throws IOException {
+    if (blockType == BlockType.RTREE_BINARY) {
+      if (binaryRecords == null) {
+        // Load the R-tree once and iterate over all its records
+        RTree<Shape> rtree = new RTree<Shape>();
+        rtree.setStockObject(s.clone());
+        if (!nextRTree(rtree))
+          return false;
+        binaryRecords = rtree.recordIterator();
+      }
+      return binaryRecords.readNext(s);
+    }
     if (!nextLine(tempLine))
       return false;
     s.fromText(tempLine);
@@ -452,8 +471,9 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
     Vector<Shape> vshapes = new Vector<Shape>();
     try {
       Shape stockObject = (Shape) shapes.getValueClass().newInstance();
-      // Reached the end of this split
-      if (getFilePosition() >= end)
+      // Reached the end of this split. A binary R-tree is consumed at once
+      // while its records are still being returned.
+      if (binaryRecords == null && getFilePosition() >= end)
         return false;
       
       long initialReadPos = getPos();
@@ -573,13 +593,14 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
    * @throws IOException
    */
   protected boolean nextRTree(RTree<? extends Shape> rtree) throws IOException {
-    if (blockType == BlockType.RTREE) {
+    if (blockType == BlockType.RTREE || blockType == BlockType.RTREE_BINARY) {
       if (getPos() != 8)
         return false;
       // Signature was already read in initialization.
       buffer = null;
       DataInput dataIn = in instanceof DataInput?
           (DataInput) in : new DataInputStream(in);
+      rtree.setBinaryLeaves(blockType == BlockType.RTREE_BINARY);
       rtree.readFields(dataIn);
       pos++;
       return true;
@@ -0,0 +1,225 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.mapreduce;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndexCache;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.indexing.SpatialBlockFile;
+import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3.DuplicateAvoidanceIterator;
+
+/**
+ * Reads a file stored in the {@link SpatialBlockFile} format. Each call to
+ * {@link #nextKeyValue()} returns the records of one block. If a query range
+ * is set, blocks that do not overlap it are skipped without reading them.
+ * @author Ahmed Eldawy
+ *
+ */
+public class BlockRecordReader3<V extends Shape> extends
+    RecordReader<Partition, Iterable<V>> {
+
+  private static final Log LOG = LogFactory.getLog(BlockRecordReader3.class);
+
+  /**The decompressor (instance) used to decompress the input file*/
+  private Decompressor decompressor;
+
+  /**The path of the input file to read*/
+  private Path path;
+  /**Total length of the input file*/
+  private long length;
+
+  /** The boundary of the partition currently being read */
+  protected Partition cellMBR;
+
+  /**
+   * The input stream that reads directly from the input file. Used only to
+   * calculate the progress.
+   */
+  private FSDataInputStream directIn;
+
+  /**Reads blocks from the input file*/
+  private SpatialBlockFile.Reader<V> reader;
+
+  /**Value to be returned*/
+  private Iterable<V> value;
+
+  /**Optional query range*/
+  private Shape inputQueryRange;
+  /**The MBR of the input query. Used to apply duplicate avoidance technique*/
+  private Rectangle inputQueryMBR;
+
+  /**Number of blocks that were skipped as they do not overlap the query*/
+  private int numSkippedBlocks;
+  /**Number of blocks that were read*/
+  private int numReadBlocks;
+
+  public BlockRecordReader3() {
+  }
+
+  /**
+   * The matching records of a block. The iterator used to check whether the
+   * block has any matches is returned by the first call to
+   * {@link #iterator()} so that the first match is not refined again.
+   * @param <V>
+   */
+  static class MatchedRecords<V> implements Iterable<V> {
+    private final Iterable<V> records;
+    private Iterator<V> started;
+
+    MatchedRecords(Iterable<V> records) {
+      this.records = records;
+    }
+
+    /**
+     * Tests whether there is at least one matching record
+     * @return
+     */
+    boolean isEmpty() {
+      if (started == null)
+        started = records.iterator();
+      return !started.hasNext();
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+      if (started != null) {
+        Iterator<V> i = started;
+        started = null;
+        return i;
+      }
+      return records.iterator();
+    }
+  }
+
+  @Override
+  public void initialize(InputSplit split, TaskAttemptContext context)
+      throws IOException, InterruptedException {
+    Configuration conf = context != null? context.getConfiguration() : new Configuration();
+    initialize(split, conf);
+  }
+
+  public void initialize(InputSplit split, Configuration conf)
+      throws IOException, InterruptedException {
+    LOG.info("Open a BlockRecordReader to split: "+split);
+    FileSplit fsplit = (FileSplit) split;
+    this.path = fsplit.getPath();
+    FileSystem fs = this.path.getFileSystem(conf);
+    this.length = fs.getFileStatus(path).getLen();
+    this.directIn = fs.open(this.path);
+    // Block files are never split so the whole file is always read
+    DataInputStream in = directIn;
+    CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(this.path);
+    if (codec != null) {
+      decompressor = CodecPool.getDecompressor(codec);
+      in = new DataInputStream(codec.createInputStream(directIn, decompressor));
+    }
+    this.reader = new SpatialBlockFile.Reader<V>(in,
+        (V) OperationsParams.getShape(conf, "shape"));
+
+    if (conf.get(SpatialInputFormat3.InputQueryRange) != null) {
+      // Retrieve the input query range to apply on all records
+      this.inputQueryRange = OperationsParams.getShape(conf,
+          SpatialInputFormat3.InputQueryRange);
+      this.inputQueryMBR = this.inputQueryRange.getMBR();
+      if (this.inputQueryRange instanceof OGCJTSShape) {
+        // The query polygon is tested against all records
+        ((OGCJTSShape)this.inputQueryRange).prepare();
+      }
+    }
+
+    // Check if there is an associated global index to read cell boundaries
+    cellMBR = GlobalIndexCache.getPartition(fs, path);
+    if (cellMBR == null) {
+      cellMBR = new Partition();
+      cellMBR.invalidate();
+    }
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException, InterruptedException {
+    while (reader.nextBlock()) {
+      if (inputQueryMBR != null && !reader.isBlockOverlapping(inputQueryMBR)) {
+        reader.skipBlock();
+        numSkippedBlocks++;
+        continue;
+      }
+      numReadBlocks++;
+      SpatialBlockFile.Block<V> block = reader.readBlock();
+      if (inputQueryRange != null) {
+        MatchedRecords<V> matches = new MatchedRecords<V>(block.search(inputQueryRange));
+        value = matches;
+        if (!matches.isEmpty())
+          return true;
+      } else {
+        value = block;
+        if (block.getRecordCount() > 0)
+          return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public Partition getCurrentKey() throws IOException, InterruptedException {
+    return cellMBR;
+  }
+
+  @Override
+  public Iterable<V> getCurrentValue() throws IOException, InterruptedException {
+    if (cellMBR.isValid() && inputQueryMBR != null) {
+      // need to run a duplicate avoidance technique on all results
+      return new DuplicateAvoidanceIterator<V>(cellMBR, inputQueryMBR, value.iterator());
+    }
+    return value;
+  }
+
+  @Override
+  public float getProgress() throws IOException, InterruptedException {
+    if (length == 0)
+      return 0.0f;
+    return Math.min(1.0f, directIn.getPos() / (float) length);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (inputQueryMBR != null)
+        LOG.info("Read "+numReadBlocks+" blocks and skipped "+numSkippedBlocks
+            +" blocks that do not overlap the query range");
+      reader.close();
+    } finally {
+      if (decompressor != null) {
+        CodecPool.returnDecompressor(decompressor);
+        decompressor = null;
+      }
+    }
+  }
+}
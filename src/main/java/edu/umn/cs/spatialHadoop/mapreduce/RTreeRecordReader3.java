@@ -9,8 +9,13 @@
 package edu.umn.cs.spatialHadoop.mapreduce;
 
 import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.Iterator;
 
 import org.apache.commons.logging.Log;
@@ -18,7 +23,10 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.ReadOption;
 import org.apache.hadoop.fs.Seekable;
 import org.apache.hadoop.io.compress.CodecPool;
 import org.apache.hadoop.io.compress.CompressionCodec;
@@ -33,10 +41,12 @@ import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
-import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndexCache;
+import edu.umn.cs.spatialHadoop.indexing.MappedRTree;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
 import edu.umn.cs.spatialHadoop.indexing.RTree;
 
@@ -82,9 +92,24 @@ public class RTreeRecordReader3<V extends Shape> extends
   /**The shape used to parse input lines*/
   private V stockShape;
   
+  /**Whether records in leaf nodes are stored in the binary format*/
+  private boolean binaryLeaves;
+  
   /**Start offset of the next tree*/
   private long offsetOfNextTree;
   
+  /**
+   * The split mapped in memory if it can be read without copying. In this
+   * case, trees are read using {@link MappedRTree}.
+   */
+  private ByteBuffer mappedData;
+  
+  /**A buffer returned by an HDFS zero-copy read that has to be released*/
+  private ByteBuffer zeroCopyBuffer;
+  
+  /**Offset of the next tree in the mapped data*/
+  private int mappedOffset;
+  
   /**Value to be returned*/
   private Iterable<V> value;
 
@@ -141,10 +166,20 @@ public class RTreeRecordReader3<V extends Shape> extends
       directIn.seek(start);
       in = directIn;
       filePosition = directIn;
+      if (conf.getBoolean(SpatialSite.RTREE_MEMORY_MAP, true))
+        mappedData = mapSplit(conf);
     }
     byte[] signature = new byte[8];
-    in.readFully(signature);
-    if (!Arrays.equals(signature, SpatialSite.RTreeFileMarkerB)) {
+    if (mappedData != null) {
+      LOG.info("Reading R-trees from a memory-mapped split");
+      mappedData.duplicate().get(signature);
+      mappedOffset = signature.length;
+    } else {
+      in.readFully(signature);
+    }
+    if (Arrays.equals(signature, SpatialSite.RTreeBinaryFileMarkerB)) {
+      binaryLeaves = true;
+    } else if (!Arrays.equals(signature, SpatialSite.RTreeFileMarkerB)) {
       throw new RuntimeException("Incorrect signature for RTree");
     }
     this.stockShape = (V) OperationsParams.getShape(conf, "shape");
@@ -154,24 +189,82 @@ public class RTreeRecordReader3<V extends Shape> extends
       this.inputQueryRange = OperationsParams.getShape(conf,
           SpatialInputFormat3.InputQueryRange);
       this.inputQueryMBR = this.inputQueryRange.getMBR();
+      if (this.inputQueryRange instanceof OGCJTSShape) {
+        // The query polygon is tested against all records
+        ((OGCJTSShape)this.inputQueryRange).prepare();
+      }
     }
 
     // Check if there is an associated global index to read cell boundaries
-    GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, path.getParent());
-    if (gindex == null) {
+    cellMBR = GlobalIndexCache.getPartition(fs, path);
+    if (cellMBR == null) {
       cellMBR = new Partition();
       cellMBR.invalidate();
-    } else {
-      // Set from the associated partition in the global index
-      for (Partition p : gindex) {
-        if (p.filename.equals(this.path.getName()))
-          cellMBR = p;
+    }
+  }
+  
+  /**
+   * Maps the split in memory so that it can be read without copying. This
+   * works if the file is in the local file system or if it is in HDFS and
+   * short-circuit local reads are enabled.
+   * @param conf
+   * @return the mapped split or <code>null</code> if it cannot be mapped
+   * @throws IOException
+   */
+  private ByteBuffer mapSplit(Configuration conf) throws IOException {
+    long length = end - start;
+    if (length > conf.getInt(SpatialSite.RTREE_MAX_MAPPED_BYTES, Integer.MAX_VALUE))
+      return null;
+    FileSystem rawFS = fs instanceof FilterFileSystem ?
+        ((FilterFileSystem)fs).getRawFileSystem() : fs;
+    if (rawFS instanceof RawLocalFileSystem) {
+      File file = ((RawLocalFileSystem)rawFS).pathToFile(path);
+      FileInputStream fileIn = new FileInputStream(file);
+      try {
+        return fileIn.getChannel().map(FileChannel.MapMode.READ_ONLY, start, length);
+      } finally {
+        // The mapping remains valid after the channel is closed
+        fileIn.close();
       }
     }
+    if ("hdfs".equals(fs.getUri().getScheme()) &&
+        conf.getBoolean("dfs.client.read.shortcircuit", false)) {
+      try {
+        // No buffer pool is given so that the read fails rather than copying
+        // the data if it cannot be mapped
+        ByteBuffer buffer = directIn.read(null, (int) length,
+            EnumSet.of(ReadOption.SKIP_CHECKSUMS));
+        if (buffer != null && buffer.remaining() == length) {
+          zeroCopyBuffer = buffer;
+          return buffer.slice();
+        }
+        if (buffer != null)
+          directIn.releaseBuffer(buffer);
+      } catch (UnsupportedOperationException e) {
+        LOG.info("Could not map the split "+path+" in memory");
+      }
+      // Restore the position as the failed read might have changed it
+      directIn.seek(start);
+    }
+    return null;
   }
   
   @Override
   public boolean nextKeyValue() throws IOException, InterruptedException {
+    if (mappedData != null) {
+      if (mappedOffset >= mappedData.limit())
+        return false;
+      MappedRTree<V> rtree = new MappedRTree<V>(mappedData, mappedOffset,
+          stockShape, binaryLeaves);
+      mappedOffset = rtree.getEndOffset();
+      if (inputQueryRange != null) {
+        value = rtree.search(inputQueryRange);
+        return value.iterator().hasNext();
+      } else {
+        value = rtree;
+        return rtree.getElementCount() > 0;
+      }
+    }
     if (offsetOfNextTree > 0) {
       if (codec == null) {
         // Input is not compressed. Just seek to the next RTree
@@ -184,6 +277,7 @@ public class RTreeRecordReader3<V extends Shape> extends
       return false;
     RTree<V> rtree = new RTree<V>();
     rtree.setStockObject(stockShape);
+    rtree.setBinaryLeaves(binaryLeaves);
     rtree.readFields(in);
     this.offsetOfNextTree = rtree.getEndOffset();
 
@@ -198,7 +292,17 @@ public class RTreeRecordReader3<V extends Shape> extends
     }
   }
   
+  /**
+   * Whether the split is read through a memory-mapped buffer
+   * @return
+   */
+  boolean isMapped() {
+    return mappedData != null;
+  }
+
   public long getPos() throws IOException {
+    if (mappedData != null)
+      return start + mappedOffset;
     return filePosition.getPos();
   }
 
@@ -287,6 +391,11 @@ public class RTreeRecordReader3<V extends Shape> extends
   @Override
   public void close() throws IOException {
     try {
+      mappedData = null;
+      if (zeroCopyBuffer != null) {
+        directIn.releaseBuffer(zeroCopyBuffer);
+        zeroCopyBuffer = null;
+      }
       in.close();
       in = null;
     } finally {
@@ -36,6 +36,7 @@ import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndexCache;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
 import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
 import edu.umn.cs.spatialHadoop.mapred.CombineBlockFilter;
@@ -66,6 +67,32 @@ public class SpatialInputFormat3<K extends Rectangle, V extends Shape>
    */
   private CompressionCodecFactory compressionCodecs = null;
 
+  /**
+   * Initializes a record reader created by {@link #createRecordReader(InputSplit, TaskAttemptContext)}
+   * without a task context. This is used to read a file on the local machine
+   * outside a MapReduce job.
+   * @param reader
+   * @param split
+   * @param conf
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void initializeReader(RecordReader<?, ?> reader,
+      InputSplit split, Configuration conf) throws IOException,
+      InterruptedException {
+    if (reader instanceof SpatialRecordReader3) {
+      ((SpatialRecordReader3<?>)reader).initialize(split, conf);
+    } else if (reader instanceof RTreeRecordReader3) {
+      ((RTreeRecordReader3<?>)reader).initialize(split, conf);
+    } else if (reader instanceof BlockRecordReader3) {
+      ((BlockRecordReader3<?>)reader).initialize(split, conf);
+    } else if (reader instanceof HDFRecordReader) {
+      ((HDFRecordReader)reader).initialize(split, conf);
+    } else {
+      throw new RuntimeException("Unknown record reader");
+    }
+  }
+
   @Override
   public RecordReader<K, Iterable<V>> createRecordReader(InputSplit split,
       TaskAttemptContext context) throws IOException, InterruptedException {
@@ -90,6 +117,10 @@ public class SpatialInputFormat3<K extends Rectangle, V extends Shape>
         // File is locally indexed as RTree
         return (RecordReader)new RTreeRecordReader3<V>();
       }
+      if (extension.equals("blk")) {
+        // File is stored in the spatial block format
+        return (RecordReader)new BlockRecordReader3<V>();
+      }
       // For backward compatibility, check if the file is RTree indexed from
       // its signature
       Configuration conf = context != null? context.getConfiguration() : new Configuration();
@@ -110,7 +141,7 @@ public class SpatialInputFormat3<K extends Rectangle, V extends Shape>
   
   protected void listStatus(final FileSystem fs, Path dir,
       final List<FileStatus> result, BlockFilter filter) throws IOException {
-    GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, dir);
+    GlobalIndex<Partition> gindex = GlobalIndexCache.getGlobalIndex(fs, dir);
     if (gindex == null || filter == null) {
       // No global index which means we cannot use the filter function
       FileStatus[] listStatus;
@@ -207,6 +238,9 @@ public class SpatialInputFormat3<K extends Rectangle, V extends Shape>
       // HDF files are not splittable
       if (file.getName().toLowerCase().endsWith(".hdf"))
         return false;
+      // Block files are read from the beginning to find block boundaries
+      if (FileUtil.getExtensionWithoutCompression(file).equals("blk"))
+        return false;
       final CompressionCodec codec = compressionCodecs.getCodec(file);
       if (codec != null && !(codec instanceof SplittableCompressionCodec))
         return false;
@@ -37,11 +37,14 @@ import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.util.LineReader;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.PointBatch;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
-import edu.umn.cs.spatialHadoop.core.SpatialSite;
-import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndexCache;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 
 /**
  * @author Ahmed Eldawy
@@ -97,6 +100,23 @@ public class SpatialRecordReader3<V extends Shape> extends
   private CompressionCodecFactory compressionCodecFactory;
 
   private ShapeIterator<V> value;
+
+  /**Number of points parsed at once when reading points in batches*/
+  private static final int PointBatchSize = 1024;
+
+  /**
+   * Points parsed in batches when the input contains points and the query
+   * range is a rectangle. <code>null</code> if records are read one by one.
+   */
+  private PointBatch pointBatch;
+  /**
+   * The range of points to select from each batch. This is the query range
+   * limited to the partition boundaries which also applies the reference
+   * point duplicate avoidance technique for points.
+   */
+  private Rectangle pointBatchRange;
+  /**Used to parse coordinates from input lines*/
+  private TextCursor cursor;
   
   /**
    * Number of bytes read from the input so far. This is used to determine when
@@ -177,24 +197,35 @@ public class SpatialRecordReader3<V extends Shape> extends
       this.inputQueryRange = OperationsParams.getShape(conf,
           SpatialInputFormat3.InputQueryRange);
       this.inputQueryMBR = this.inputQueryRange.getMBR();
+      if (this.inputQueryRange instanceof OGCJTSShape) {
+        // The query polygon is tested against all records
+        ((OGCJTSShape)this.inputQueryRange).prepare();
+      }
     }
     
     // Check if there is an associated global index to read cell boundaries
-    GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, path.getParent());
-    if (gindex == null) {
+    cellMBR = GlobalIndexCache.getPartition(fs, path);
+    if (cellMBR == null) {
       cellMBR = new Partition();
       cellMBR.filename = path.getName();
       cellMBR.invalidate();
-    } else {
-      // Set from the associated partition in the global index
-      for (Partition p : gindex) {
-        if (p.filename.equals(this.path.getName()))
-          cellMBR = p;
-      }
     }
     
-    this.value = new ShapeIterator<V>();
-    value.setShape(stockShape);
+    if (stockShape.getClass() == Point.class && inputQueryRange != null &&
+        inputQueryRange.getClass() == Rectangle.class) {
+      // Filter points in batches over primitive arrays
+      pointBatch = new PointBatch(PointBatchSize, (Point) stockShape.clone());
+      pointBatchRange = cellMBR.isValid() ?
+          cellMBR.getIntersection(inputQueryMBR) : inputQueryMBR;
+      if (pointBatchRange == null) {
+        // Query range does not overlap the partition. Nothing to select
+        pointBatchRange = new Rectangle(0, 0, 0, 0);
+      }
+      cursor = new TextCursor();
+    } else {
+      this.value = new ShapeIterator<V>();
+      value.setShape(stockShape);
+    }
   }
   
   public long getPos() throws IOException {
@@ -272,8 +303,34 @@ public class SpatialRecordReader3<V extends Shape> extends
     return true;
   }
 
+  /**
+   * Reads the next batch of points that has at least one point in the query
+   * range. Points are parsed into arrays of coordinates and the query range is
+   * evaluated over the whole batch at once.
+   * @return <code>false</code> if end-of-split was reached
+   * @throws IOException
+   */
+  protected boolean nextPointBatch() throws IOException {
+    do {
+      pointBatch.clear();
+      while (!pointBatch.isFull() && nextLine(tempLine)) {
+        cursor.reset(tempLine);
+        double x = cursor.nextDouble(',');
+        double y = cursor.nextDouble('\0');
+        pointBatch.add(x, y);
+      }
+      if (pointBatch.size() == 0)
+        return false;
+    } while (pointBatch.selectInRange(pointBatchRange) == 0);
+    if (inputRecordsCounter != null)
+      inputRecordsCounter.increment(pointBatch.getSelectedCount());
+    return true;
+  }
+
   @Override
   public boolean nextKeyValue() throws IOException, InterruptedException {
+    if (pointBatch != null)
+      return nextPointBatch();
     value.setSpatialRecordReader(this);
     return value.hasNext();
   }
@@ -286,6 +343,8 @@ public class SpatialRecordReader3<V extends Shape> extends
   @Override
   public Iterable<V> getCurrentValue() throws IOException,
       InterruptedException {
+    if (pointBatch != null)
+      return (Iterable) pointBatch;
     return value;
   }
 
@@ -0,0 +1,366 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.Task;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.PreparedGeometryCache;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.PackedRTree;
+import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat3;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
+import edu.umn.cs.spatialHadoop.util.FileUtil;
+
+/**
+ * Performs a spatial join between a small file and a large file without
+ * partitioning any of them. The small file is read once, sent to all map
+ * tasks through the distributed cache and indexed in memory using a
+ * {@link PackedRTree}. The large file is scanned by a map-only job where
+ * every record is used to probe the in-memory index.
+ * @author Ahmed Eldawy
+ *
+ */
+public class BroadcastJoin {
+  /**Class logger*/
+  private static final Log LOG = LogFactory.getLog(BroadcastJoin.class);
+
+  /**Name of the cached file that contains the records of the small file*/
+  private static final String SmallFileName = "BroadcastJoin.SmallFileName";
+  /**Whether the small file is the first input or not*/
+  private static final String SmallFileFirst = "BroadcastJoin.SmallFileFirst";
+  /**Whether to skip the refine step or not*/
+  public static final String FilterOnly = "BroadcastJoin.FilterOnly";
+
+  /**
+   * The map function that probes the in-memory index of the small file with
+   * each record of the large file.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class BroadcastJoinMap extends
+      Mapper<Rectangle, Iterable<Shape>, Shape, Shape> {
+    /**
+     * The index of the small file shared by all tasks that run in the same
+     * JVM. The index is built only once if the JVM is reused.
+     */
+    private static PackedRTree<Shape> sharedIndex;
+    /**Name of the cached file used to build the shared index*/
+    private static String sharedIndexFile;
+
+    private PackedRTree<Shape> index;
+    private boolean smallFileFirst;
+    private boolean isFilterOnly;
+    private PreparedGeometryCache preparedCache;
+
+    @Override
+    protected void setup(Context context) throws IOException,
+        InterruptedException {
+      super.setup(context);
+      Configuration conf = context.getConfiguration();
+      index = getIndex(conf);
+      smallFileFirst = conf.getBoolean(SmallFileFirst, true);
+      isFilterOnly = conf.getBoolean(FilterOnly, false);
+      preparedCache = new PreparedGeometryCache();
+    }
+
+    /**
+     * Returns the in-memory index of the small file. The index is built from
+     * the cached file only if it is not built earlier in this JVM.
+     * @param conf
+     * @return
+     * @throws IOException
+     */
+    private static synchronized PackedRTree<Shape> getIndex(Configuration conf)
+        throws IOException {
+      String indexFile = conf.get(SmallFileName);
+      if (sharedIndex != null && indexFile.equals(sharedIndexFile))
+        return sharedIndex;
+      Shape stockShape = SpatialSite.createStockShape(conf);
+      List<Shape> shapes = new ArrayList<Shape>();
+      Path[] cacheFiles = DistributedCache.getLocalCacheFiles(conf);
+      for (Path cacheFile : cacheFiles) {
+        if (cacheFile.getName().contains(indexFile)) {
+          FSDataInputStream in = FileSystem.getLocal(conf).open(cacheFile);
+          int count = in.readInt();
+          for (int i = 0; i < count; i++) {
+            Shape shape = stockShape.clone();
+            shape.readFields(in);
+            shapes.add(shape);
+          }
+          in.close();
+        }
+      }
+      long t1 = System.currentTimeMillis();
+      sharedIndex = new PackedRTree<Shape>(shapes);
+      sharedIndexFile = indexFile;
+      long t2 = System.currentTimeMillis();
+      LOG.info("Indexed "+shapes.size()+" records of the small file in "+(t2-t1)+" millis");
+      return sharedIndex;
+    }
+
+    @Override
+    protected void map(final Rectangle cellMBR, Iterable<Shape> shapes,
+        final Context context) throws IOException, InterruptedException {
+      ProbeCollector collector = new ProbeCollector(cellMBR, context);
+      for (Shape shape : shapes) {
+        Rectangle mbr = shape.getMBR();
+        if (mbr == null)
+          continue;
+        collector.setProbe(shape, mbr);
+        // Touching MBRs are refined by the exact test unless the refine step
+        // is skipped
+        index.search(mbr, !isFilterOnly, collector);
+        context.progress();
+      }
+    }
+
+    /**
+     * Receives the records of the small file that overlap one record of the
+     * large file, refines them and writes the results.
+     */
+    private class ProbeCollector implements ResultCollector<Shape> {
+      private final Rectangle cellMBR;
+      private final Context context;
+      private Shape probe;
+      private Rectangle probeMBR;
+
+      ProbeCollector(Rectangle cellMBR, Context context) {
+        this.cellMBR = cellMBR;
+        this.context = context;
+      }
+
+      void setProbe(Shape probe, Rectangle probeMBR) {
+        this.probe = probe;
+        this.probeMBR = probeMBR;
+      }
+
+      @Override
+      public void collect(Shape match) {
+        if (cellMBR.isValid()) {
+          // A replicated record of the large file is joined only in the
+          // partition that contains the reference point
+          Rectangle matchMBR = match.getMBR();
+          double refX = Math.max(probeMBR.x1, matchMBR.x1);
+          double refY = Math.max(probeMBR.y1, matchMBR.y1);
+          if (!cellMBR.contains(refX, refY))
+            return;
+        }
+        // Only the broadcast records are prepared as they are probed by
+        // many records of the large file
+        if (!isFilterOnly && !preparedCache.isIntersectedPrepared(match, probe))
+          return;
+        try {
+          if (smallFileFirst)
+            context.write(match, probe);
+          else
+            context.write(probe, match);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads all records of a file on the local machine. Records that are
+   * replicated to more than one partition are returned only once.
+   * @param inPath
+   * @param params
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static List<Shape> readAll(Path inPath, OperationsParams params)
+      throws IOException, InterruptedException {
+    SpatialInputFormat3<Rectangle, Shape> inputFormat =
+        new SpatialInputFormat3<Rectangle, Shape>();
+    Job job = Job.getInstance(params);
+    SpatialInputFormat3.setInputPaths(job, inPath);
+    List<Shape> shapes = new ArrayList<Shape>();
+    for (InputSplit split : inputFormat.getSplits(job)) {
+      FileSplit fsplit = (FileSplit) split;
+      RecordReader<Rectangle, Iterable<Shape>> reader =
+          inputFormat.createRecordReader(fsplit, null);
+      SpatialInputFormat3.initializeReader(reader, fsplit, params);
+      while (reader.nextKeyValue()) {
+        Rectangle cellMBR = reader.getCurrentKey();
+        for (Shape shape : reader.getCurrentValue()) {
+          Rectangle mbr = shape.getMBR();
+          if (mbr == null)
+            continue;
+          if (!cellMBR.isValid() || cellMBR.contains(mbr.x1, mbr.y1))
+            shapes.add(shape.clone());
+        }
+      }
+      reader.close();
+    }
+    return shapes;
+  }
+
+  /**
+   * Writes the records of the small file to a temporary file and adds it to
+   * the distributed cache of the given job. The file is created under the
+   * Hadoop temporary directory and should be deleted by the caller once the
+   * job is done.
+   * @param conf
+   * @param shapes
+   * @return the path of the temporary file
+   * @throws IOException
+   */
+  private static Path setSmallFile(Configuration conf, List<Shape> shapes)
+      throws IOException {
+    FileSystem fs = FileSystem.get(conf);
+    Path tempDir = new Path(conf.get("hadoop.tmp.dir", "/tmp")).makeQualified(fs);
+    Path tempFile;
+    do {
+      tempFile = new Path(tempDir, "broadcast_"+(int)(Math.random()*1000000)+".shapes");
+    } while (fs.exists(tempFile));
+    FSDataOutputStream out = fs.create(tempFile);
+    try {
+      out.writeInt(shapes.size());
+      for (Shape shape : shapes)
+        shape.write(out);
+    } finally {
+      out.close();
+    }
+
+    DistributedCache.addCacheFile(tempFile.toUri(), conf);
+    conf.set(SmallFileName, tempFile.getName());
+    return tempFile;
+  }
+
+  /**
+   * Spatially joins two files by broadcasting the small one to all map tasks.
+   * @param inputFiles - the two files to join
+   * @param smallFile - the index of the small file in the input files
+   * @param outputPath - the output path or null to skip writing the output
+   * @param params
+   * @return number of result pairs
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static long broadcastJoin(Path[] inputFiles, int smallFile,
+      Path outputPath, OperationsParams params)
+      throws IOException, InterruptedException {
+    long t1 = System.currentTimeMillis();
+    List<Shape> smallShapes = readAll(inputFiles[smallFile], params);
+    LOG.info("Read "+smallShapes.size()+" records from the small file "+inputFiles[smallFile]);
+
+    Job job = new Job(params, "BroadcastJoin");
+    job.setJarByClass(BroadcastJoin.class);
+    Configuration conf = job.getConfiguration();
+    Path tempFile = setSmallFile(conf, smallShapes);
+    conf.setBoolean(SmallFileFirst, smallFile == 0);
+
+    job.setInputFormatClass(SpatialInputFormat3.class);
+    SpatialInputFormat3.setInputPaths(job, inputFiles[1 - smallFile]);
+    job.setMapperClass(BroadcastJoinMap.class);
+    job.setNumReduceTasks(0);
+    Shape stockShape = params.getShape("shape");
+    job.setOutputKeyClass(stockShape.getClass());
+    job.setOutputValueClass(stockShape.getClass());
+    if (outputPath != null && params.getBoolean("output", true)) {
+      job.setOutputFormatClass(TextOutputFormat3.class);
+      TextOutputFormat3.setOutputPath(job, outputPath);
+    } else {
+      job.setOutputFormatClass(NullOutputFormat.class);
+    }
+
+    try {
+      job.waitForCompletion(false);
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Error running broadcast join", e);
+    } finally {
+      tempFile.getFileSystem(conf).delete(tempFile, false);
+    }
+    if (!job.isSuccessful())
+      throw new RuntimeException("Broadcast join job failed");
+    Counter outputRecordCounter = job.getCounters()
+        .findCounter(Task.Counter.MAP_OUTPUT_RECORDS);
+    long t2 = System.currentTimeMillis();
+    LOG.info("Broadcast join time "+(t2-t1)+" millis");
+    return outputRecordCounter.getValue();
+  }
+
+  private static void printUsage() {
+    System.out.println("Performs a spatial join between a small file and a large file by broadcasting the small file");
+    System.out.println("Parameters: (* marks the required parameters)");
+    System.out.println("<input file 1> - (*) Path to the first input file");
+    System.out.println("<input file 2> - (*) Path to the second input file");
+    System.out.println("<output file> - Path to output file");
+    System.out.println("shape:<point|rectangle|polygon|ogc> - (*) Type of shapes in both files");
+    System.out.println("small:<1|2> - Which file is broadcast (default: the smaller one)");
+    System.out.println("-filteronly - Skip the refine step and compare the MBRs only");
+    System.out.println("-overwrite - Overwrite output file without notice");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  public static void main(String[] args) throws IOException,
+      InterruptedException {
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+    Path[] allFiles = params.getPaths();
+    if (allFiles.length < 2) {
+      System.err.println("This operation requires at least two input files");
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length == 2 && !params.checkInput()) {
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length > 2 && !params.checkInputOutput()) {
+      printUsage();
+      System.exit(1);
+    }
+    Path[] inputPaths = allFiles.length == 2 ? allFiles : params.getInputPaths();
+    Path outputPath = allFiles.length == 2 ? null : params.getOutputPath();
+
+    int smallFile;
+    if (params.get("small") != null) {
+      smallFile = params.getInt("small", 1) - 1;
+    } else {
+      long size0 = FileUtil.getPathSize(inputPaths[0].getFileSystem(params), inputPaths[0]);
+      long size1 = FileUtil.getPathSize(inputPaths[1].getFileSystem(params), inputPaths[1]);
+      smallFile = size0 <= size1 ? 0 : 1;
+    }
+    params.setBoolean(FilterOnly, params.getBoolean("filteronly", false));
+
+    long t1 = System.currentTimeMillis();
+    long resultSize = broadcastJoin(inputPaths, smallFile, outputPath, params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total time: "+(t2-t1)+" millis");
+    System.out.println("Result size: "+resultSize);
+  }
+}
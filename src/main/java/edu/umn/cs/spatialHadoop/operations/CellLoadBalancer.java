@@ -0,0 +1,476 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
+
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.indexing.KdTreePartitioner;
+import edu.umn.cs.spatialHadoop.indexing.Partitioner;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+
+/**
+ * Assigns the cells of a spatial join to reducers according to their
+ * estimated loads. By default, Hadoop assigns cells to reducers by hashing
+ * the cell ID which might put a few dense cells in one reducer. Instead, the
+ * cells are assigned in a descending order of their loads, each to the
+ * reducer with the least total load so far. The assignment is stored in the
+ * job configuration and used by the partitioner of the join job.
+ * 
+ * A single cell with a load larger than the average load of a reducer would
+ * still make its reducer the slowest one. If the cells are defined by a
+ * partitioner, such hot cells are split before the assignment using
+ * {@link #splitHotCells(Partitioner, Point[], int)}. The cells of the
+ * repartition join are the partitions of an existing index which cannot be
+ * split, so hot cells are only reported in the log.
+ * @author Ahmed Eldawy
+ *
+ */
+public class CellLoadBalancer {
+  private static final Log LOG = LogFactory.getLog(CellLoadBalancer.class);
+
+  /**Configuration line for the assignment of cells to reducers*/
+  private static final String CellReducers = "CellLoadBalancer.CellReducers";
+
+  /**Enforce static only calls*/
+  private CellLoadBalancer() {}
+
+  /**
+   * Estimates the load of each partition as the number of sample points in
+   * it. Each point is assigned to exactly one partition.
+   * @param partitioner
+   * @param sample
+   * @return the load of each partition indexed by its position in the
+   *   partitioner, i.e., the argument to
+   *   {@link Partitioner#getPartitionAt(int)}
+   */
+  public static long[] estimateLoads(Partitioner partitioner, Point[] sample) {
+    int numPartitions = partitioner.getPartitionCount();
+    Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+    for (int i = 0; i < numPartitions; i++)
+      positions.put(partitioner.getPartitionAt(i).cellId, i);
+    long[] loads = new long[numPartitions];
+    for (Point p : sample) {
+      Integer position = positions.get(partitioner.overlapPartition(p));
+      if (position != null)
+        loads[position]++;
+    }
+    return loads;
+  }
+
+  /**
+   * Splits the cells of the given partitioner whose estimated loads are
+   * larger than the average load of a reducer. Each of these hot cells is
+   * partitioned using a K-d tree built from the sample points in it so that
+   * each of its sub-cells has at most half the average load of a reducer.
+   * Records are assigned to sub-cells in the same way they are assigned to
+   * cells, so the reference point technique still reports each result once.
+   * @param partitioner
+   * @param sample
+   * @param numReducers
+   * @return the given partitioner if no cells are hot or a partitioner
+   *   that replaces each hot cell with its sub-cells
+   */
+  public static Partitioner splitHotCells(Partitioner partitioner,
+      Point[] sample, int numReducers) {
+    long[] loads = estimateLoads(partitioner, sample);
+    double avgLoad = (double) sample.length / numReducers;
+    int capacity = (int) Math.max(1, Math.floor(avgLoad / 2));
+    // Collect the sample points of each hot cell
+    Map<Integer, List<Point>> hotCellSamples = new HashMap<Integer, List<Point>>();
+    for (int i = 0; i < loads.length; i++) {
+      if (loads[i] > avgLoad)
+        hotCellSamples.put(partitioner.getPartitionAt(i).cellId,
+            new ArrayList<Point>((int) loads[i]));
+    }
+    if (hotCellSamples.isEmpty())
+      return partitioner;
+    for (Point p : sample) {
+      List<Point> cellSample = hotCellSamples.get(partitioner.overlapPartition(p));
+      if (cellSample != null)
+        cellSample.add(p);
+    }
+
+    SplitCellPartitioner splitPartitioner = new SplitCellPartitioner(partitioner);
+    for (int i = 0; i < loads.length; i++) {
+      CellInfo cell = partitioner.getPartitionAt(i);
+      List<Point> cellSample = hotCellSamples.get(cell.cellId);
+      if (cellSample == null)
+        continue;
+      KdTreePartitioner subPartitioner = new KdTreePartitioner();
+      subPartitioner.createFromPoints(cell,
+          cellSample.toArray(new Point[cellSample.size()]), capacity);
+      splitPartitioner.splitCell(cell.cellId, subPartitioner);
+      LOG.info("Split cell #"+cell.cellId+" with an estimated load of "+
+          loads[i]+" into "+subPartitioner.getPartitionCount()+" cells");
+    }
+    return splitPartitioner;
+  }
+
+  /**
+   * Assigns cells to reducers to balance the total load of all reducers.
+   * @param cellIds - the IDs of all cells
+   * @param loads - the estimated load of each cell
+   * @param numReducers - total number of reducers
+   * @return the reducer assigned to each cell
+   */
+  public static int[] assignCells(int[] cellIds, final long[] loads,
+      int numReducers) {
+    // Sort cells by their loads in a descending order
+    final int[] order = new int[cellIds.length];
+    for (int i = 0; i < order.length; i++)
+      order[i] = i;
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public int compare(int i, int j) {
+        long loadI = loads[order[i]], loadJ = loads[order[j]];
+        return loadI > loadJ ? -1 : (loadI < loadJ ? 1 : 0);
+      }
+
+      @Override
+      public void swap(int i, int j) {
+        int t = order[i];
+        order[i] = order[j];
+        order[j] = t;
+      }
+    }, 0, order.length);
+
+    // A cell larger than the average load of a reducer cannot be balanced
+    long totalLoad = 0;
+    for (long load : loads)
+      totalLoad += load;
+    double avgLoad = (double) totalLoad / numReducers;
+    for (int cell : order) {
+      if (loads[cell] <= avgLoad)
+        break;
+      LOG.warn("Cell #"+cellIds[cell]+" has an estimated load of "+loads[cell]+
+          " which is more than the average load of a reducer "+avgLoad);
+    }
+
+    // Assign each cell to the reducer with the least load so far
+    long[] reducerLoads = new long[numReducers];
+    int[] reducers = new int[cellIds.length];
+    for (int cell : order) {
+      int leastLoaded = 0;
+      for (int reducer = 1; reducer < numReducers; reducer++) {
+        if (reducerLoads[reducer] < reducerLoads[leastLoaded])
+          leastLoaded = reducer;
+      }
+      reducers[cell] = leastLoaded;
+      reducerLoads[leastLoaded] += loads[cell];
+    }
+    reportLoads(reducerLoads);
+    return reducers;
+  }
+
+  /**
+   * Logs the estimated load of all reducers
+   * @param reducerLoads
+   */
+  private static void reportLoads(long[] reducerLoads) {
+    long minLoad = Long.MAX_VALUE, maxLoad = 0, totalLoad = 0;
+    for (int reducer = 0; reducer < reducerLoads.length; reducer++) {
+      long load = reducerLoads[reducer];
+      LOG.debug("Estimated load of reducer #"+reducer+" is "+load);
+      minLoad = Math.min(minLoad, load);
+      maxLoad = Math.max(maxLoad, load);
+      totalLoad += load;
+    }
+    double avgLoad = (double) totalLoad / reducerLoads.length;
+    LOG.info(String.format("Estimated loads of %d reducers: min %d, avg %.1f, max %d (max/avg %.2f)",
+        reducerLoads.length, minLoad, avgLoad, maxLoad,
+        avgLoad == 0 ? 1.0 : maxLoad / avgLoad));
+  }
+
+  /**
+   * Stores the assignment of cells to reducers in the job configuration
+   * @param conf
+   * @param cellIds
+   * @param reducers
+   */
+  public static void setAssignment(Configuration conf, int[] cellIds,
+      int[] reducers) {
+    StringBuilder str = new StringBuilder();
+    for (int i = 0; i < cellIds.length; i++) {
+      if (i > 0)
+        str.append(',');
+      str.append(cellIds[i]).append(':').append(reducers[i]);
+    }
+    conf.set(CellReducers, str.toString());
+  }
+
+  /**
+   * Retrieves the assignment of cells to reducers from the job configuration
+   * @param conf
+   * @return a map from a cell ID to its reducer or null if not set
+   */
+  public static Map<Integer, Integer> getAssignment(Configuration conf) {
+    String str = conf.get(CellReducers);
+    if (str == null || str.isEmpty())
+      return null;
+    Map<Integer, Integer> assignment = new HashMap<Integer, Integer>();
+    for (String entry : str.split(",")) {
+      int colon = entry.indexOf(':');
+      assignment.put(Integer.parseInt(entry.substring(0, colon)),
+          Integer.parseInt(entry.substring(colon + 1)));
+    }
+    return assignment;
+  }
+
+  /**
+   * Returns the reducer of the given cell according to the assignment. Cells
+   * that are not assigned are hashed by their IDs.
+   * @param assignment
+   * @param cellId
+   * @param numPartitions
+   * @return
+   */
+  public static int getReducer(Map<Integer, Integer> assignment, int cellId,
+      int numPartitions) {
+    if (assignment != null) {
+      Integer reducer = assignment.get(cellId);
+      if (reducer != null)
+        return reducer % numPartitions;
+    }
+    return (cellId & Integer.MAX_VALUE) % numPartitions;
+  }
+
+  /**
+   * A partitioner for map outputs keyed by the cell ID that follows the
+   * assignment stored in the job.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class CellPartitioner
+      implements org.apache.hadoop.mapred.Partitioner<IntWritable, Writable> {
+    private Map<Integer, Integer> assignment;
+
+    @Override
+    public void configure(JobConf job) {
+      assignment = getAssignment(job);
+    }
+
+    @Override
+    public int getPartition(IntWritable cellId, Writable value,
+        int numPartitions) {
+      return getReducer(assignment, cellId.get(), numPartitions);
+    }
+  }
+
+  /**
+   * A partitioner that replaces some cells of another partitioner with the
+   * cells of a sub-partitioner. Sub-cells are given new IDs that follow the
+   * largest cell ID of the base partitioner. A shape that overlaps a split
+   * cell is assigned to the sub-cells it overlaps.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class SplitCellPartitioner extends Partitioner {
+    /**The partitioner whose cells are split*/
+    private Partitioner base;
+    /**The IDs of the split cells of the base partitioner*/
+    private IntArray splitCellIds = new IntArray();
+    /**The sub-partitioner of each split cell*/
+    private List<Partitioner> subPartitioners = new ArrayList<Partitioner>();
+    /**The ID of the first sub-cell of each split cell*/
+    private IntArray firstSubCellIds = new IntArray();
+    /**The ID of the next sub-cell*/
+    private int nextCellId;
+
+    /**The sub-partitioner of each split cell keyed by the cell ID*/
+    private Map<Integer, Partitioner> subPartitionerOfCell;
+    /**Maps the ID of each cell in a sub-partitioner to its new ID*/
+    private Map<Partitioner, Map<Integer, Integer>> subCellIds;
+    /**All cells of this partitioner indexed by their IDs*/
+    private Map<Integer, CellInfo> cellsById;
+    /**All cells of this partitioner in order*/
+    private List<CellInfo> cells;
+
+    /**
+     * A default constructor to be able to dynamically instantiate it
+     * and deserialize it
+     */
+    public SplitCellPartitioner() {
+    }
+
+    public SplitCellPartitioner(Partitioner base) {
+      this.base = base;
+      for (int i = 0; i < base.getPartitionCount(); i++)
+        nextCellId = Math.max(nextCellId, base.getPartitionAt(i).cellId + 1);
+      buildCells();
+    }
+
+    /**
+     * Replaces a cell of the base partitioner with the cells of the given
+     * sub-partitioner
+     * @param cellId
+     * @param subPartitioner
+     */
+    void splitCell(int cellId, Partitioner subPartitioner) {
+      splitCellIds.add(cellId);
+      subPartitioners.add(subPartitioner);
+      firstSubCellIds.add(nextCellId);
+      nextCellId += subPartitioner.getPartitionCount();
+      buildCells();
+    }
+
+    /**
+     * Builds the lookup tables of cells from the base partitioner and the
+     * sub-partitioners
+     */
+    private void buildCells() {
+      subPartitionerOfCell = new HashMap<Integer, Partitioner>();
+      subCellIds = new HashMap<Partitioner, Map<Integer, Integer>>();
+      cellsById = new HashMap<Integer, CellInfo>();
+      cells = new ArrayList<CellInfo>();
+      for (int i = 0; i < splitCellIds.size(); i++)
+        subPartitionerOfCell.put(splitCellIds.get(i), subPartitioners.get(i));
+      for (int i = 0; i < base.getPartitionCount(); i++) {
+        CellInfo cell = base.getPartitionAt(i);
+        if (!subPartitionerOfCell.containsKey(cell.cellId)) {
+          cellsById.put(cell.cellId, cell);
+          cells.add(cell);
+        }
+      }
+      for (int i = 0; i < subPartitioners.size(); i++) {
+        Partitioner subPartitioner = subPartitioners.get(i);
+        Map<Integer, Integer> newIds = new HashMap<Integer, Integer>();
+        for (int j = 0; j < subPartitioner.getPartitionCount(); j++) {
+          CellInfo subCell = subPartitioner.getPartitionAt(j);
+          int newId = firstSubCellIds.get(i) + j;
+          newIds.put(subCell.cellId, newId);
+          CellInfo cell = new CellInfo(newId, subCell);
+          cellsById.put(newId, cell);
+          cells.add(cell);
+        }
+        subCellIds.put(subPartitioner, newIds);
+      }
+    }
+
+    @Override
+    public void createFromPoints(Rectangle mbr, Point[] points, int capacity) {
+      throw new RuntimeException("Use CellLoadBalancer#splitHotCells");
+    }
+
+    @Override
+    public void overlapPartitions(Shape shape, ResultCollector<Integer> matcher) {
+      collectOverlapPartitions(shape, matcher);
+    }
+
+    @Override
+    public void overlapPartitions(Shape shape, IntArray matches) {
+      IntArray baseMatches = new IntArray();
+      base.overlapPartitions(shape, baseMatches);
+      for (int i = 0; i < baseMatches.size(); i++) {
+        int cellId = baseMatches.get(i);
+        Partitioner subPartitioner = subPartitionerOfCell.get(cellId);
+        if (subPartitioner == null) {
+          matches.add(cellId);
+        } else {
+          Map<Integer, Integer> newIds = subCellIds.get(subPartitioner);
+          IntArray subMatches = new IntArray();
+          subPartitioner.overlapPartitions(shape, subMatches);
+          for (int j = 0; j < subMatches.size(); j++)
+            matches.add(newIds.get(subMatches.get(j)));
+        }
+      }
+    }
+
+    @Override
+    public int overlapPartition(Shape shape) {
+      int cellId = base.overlapPartition(shape);
+      Partitioner subPartitioner = subPartitionerOfCell.get(cellId);
+      if (subPartitioner == null)
+        return cellId;
+      Integer newId = subCellIds.get(subPartitioner).get(
+          subPartitioner.overlapPartition(shape));
+      return newId == null ? -1 : newId;
+    }
+
+    @Override
+    public CellInfo getPartition(int partitionID) {
+      return cellsById.get(partitionID);
+    }
+
+    @Override
+    public CellInfo getPartitionAt(int index) {
+      return cells.get(index);
+    }
+
+    @Override
+    public int getPartitionCount() {
+      return cells.size();
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      out.writeUTF(base.getClass().getName());
+      base.write(out);
+      out.writeInt(nextCellId);
+      out.writeInt(splitCellIds.size());
+      for (int i = 0; i < splitCellIds.size(); i++) {
+        out.writeInt(splitCellIds.get(i));
+        out.writeInt(firstSubCellIds.get(i));
+        out.writeUTF(subPartitioners.get(i).getClass().getName());
+        subPartitioners.get(i).write(out);
+      }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      base = readPartitioner(in);
+      nextCellId = in.readInt();
+      int numSplits = in.readInt();
+      splitCellIds = new IntArray();
+      firstSubCellIds = new IntArray();
+      subPartitioners = new ArrayList<Partitioner>();
+      for (int i = 0; i < numSplits; i++) {
+        splitCellIds.add(in.readInt());
+        firstSubCellIds.add(in.readInt());
+        subPartitioners.add(readPartitioner(in));
+      }
+      buildCells();
+    }
+
+    private static Partitioner readPartitioner(DataInput in) throws IOException {
+      String className = in.readUTF();
+      try {
+        Partitioner partitioner = Class.forName(className)
+            .asSubclass(Partitioner.class).newInstance();
+        partitioner.readFields(in);
+        return partitioner;
+      } catch (InstantiationException e) {
+        throw new IOException("Error creating partitioner "+className, e);
+      } catch (IllegalAccessException e) {
+        throw new IOException("Error creating partitioner "+className, e);
+      } catch (ClassNotFoundException e) {
+        throw new IOException("Error creating partitioner "+className, e);
+      }
+    }
+  }
+}
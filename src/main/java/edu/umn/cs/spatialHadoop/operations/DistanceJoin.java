@@ -0,0 +1,295 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ArrayWritable;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.Task;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndexCache;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
+import edu.umn.cs.spatialHadoop.mapred.DefaultBlockFilter;
+import edu.umn.cs.spatialHadoop.mapred.PairWritable;
+import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
+import edu.umn.cs.spatialHadoop.operations.DistributedJoin.DJInputFormatArray;
+
+/**
+ * Finds all pairs of shapes from two files that are within a given distance
+ * from each other. Partitions of the first file are expanded by the distance
+ * to find all pairs of partitions that might contain results, then each pair
+ * is joined in one map task using a plane-sweep over the expanded MBRs.
+ * @author Ahmed Eldawy
+ *
+ */
+public class DistanceJoin {
+  private static final Log LOG = LogFactory.getLog(DistanceJoin.class);
+
+  /**Maximum distance between two shapes in a result pair*/
+  public static final String Distance = "DistanceJoin.Distance";
+  /**Whether the first file has replicated records or not*/
+  private static final String Replicated1 = "DistanceJoin.Replicated1";
+  /**Whether the second file has replicated records or not*/
+  private static final String Replicated2 = "DistanceJoin.Replicated2";
+
+  /**
+   * Selects all pairs of partitions such that a shape in the first partition
+   * could be within the given distance from a shape in the second partition.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class DistanceJoinFilter extends DefaultBlockFilter {
+    private double distance;
+
+    @Override
+    public void configure(Configuration conf) {
+      distance = Double.parseDouble(conf.get(Distance, "0"));
+    }
+
+    @Override
+    public void selectCellPairs(GlobalIndex<Partition> gIndex1,
+        GlobalIndex<Partition> gIndex2,
+        final ResultCollector2<Partition, Partition> output) {
+      // Expand all partitions of the first file by the distance and join them
+      // with the partitions of the second file. The global index copies its
+      // partitions so the original ones are retrieved by their file names.
+      final Map<String, Partition> originals = new HashMap<String, Partition>();
+      List<Partition> expanded = new ArrayList<Partition>();
+      for (Partition p : gIndex1) {
+        Partition e = new Partition(p);
+        e.x1 -= distance;
+        e.y1 -= distance;
+        e.x2 += distance;
+        e.y2 += distance;
+        originals.put(p.filename, p);
+        expanded.add(e);
+      }
+      GlobalIndex<Partition> expandedIndex = new GlobalIndex<Partition>();
+      expandedIndex.bulkLoad(expanded.toArray(new Partition[expanded.size()]));
+      GlobalIndex.spatialJoin(expandedIndex, gIndex2,
+          new ResultCollector2<Partition, Partition>() {
+        @Override
+        public void collect(Partition r, Partition s) {
+          output.collect(originals.get(r.filename), s);
+        }
+      });
+    }
+  }
+
+  /**
+   * Joins a pair of partitions and reports each result pair only once using
+   * the reference point technique. The reference point of a shape r is the
+   * top-left corner of the intersection of its MBR with the MBR of the other
+   * shape expanded by the distance. A pair is reported only in the partition
+   * pair that contains the reference points of its two shapes.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class DistanceJoinMap extends MapReduceBase implements
+      Mapper<PairWritable<Rectangle>, PairWritable<? extends Writable>, Shape, Shape> {
+
+    private double distance;
+    private boolean replicated1, replicated2;
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      distance = Double.parseDouble(job.get(Distance, "0"));
+      replicated1 = job.getBoolean(Replicated1, false);
+      replicated2 = job.getBoolean(Replicated2, false);
+    }
+
+    @Override
+    public void map(PairWritable<Rectangle> key,
+        PairWritable<? extends Writable> value,
+        final OutputCollector<Shape, Shape> output, Reporter reporter)
+        throws IOException {
+      List<Shape> r = new ArrayList<Shape>();
+      List<Shape> s = new ArrayList<Shape>();
+      for (Shape shape : (Shape[]) ((ArrayWritable) value.first).get()) {
+        if (shape.getMBR() != null)
+          r.add(shape);
+      }
+      for (Shape shape : (Shape[]) ((ArrayWritable) value.second).get()) {
+        if (shape.getMBR() != null)
+          s.add(shape);
+      }
+
+      final Rectangle cell1 = replicated1 && key.first.isValid() ? key.first : null;
+      final Rectangle cell2 = replicated2 && key.second.isValid() ? key.second : null;
+      SpatialAlgorithms.DistanceJoin_planeSweep(r, s, distance,
+          new ResultCollector2<Shape, Shape>() {
+        @Override
+        public void collect(Shape r, Shape s) {
+          Rectangle mbr1 = r.getMBR();
+          Rectangle mbr2 = s.getMBR();
+          if (cell1 != null && !cell1.contains(
+              Math.max(mbr1.x1, mbr2.x1 - distance),
+              Math.max(mbr1.y1, mbr2.y1 - distance)))
+            return;
+          if (cell2 != null && !cell2.contains(
+              Math.max(mbr2.x1, mbr1.x1 - distance),
+              Math.max(mbr2.y1, mbr1.y1 - distance)))
+            return;
+          try {
+            output.collect(r, s);
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      }, reporter);
+    }
+  }
+
+  /**
+   * Finds all pairs of shapes in the two given files that are within the
+   * given distance from each other.
+   * @param inFiles
+   * @param distance
+   * @param userOutputPath
+   * @param params
+   * @return number of result pairs
+   * @throws IOException
+   */
+  public static long distanceJoin(Path[] inFiles, double distance,
+      Path userOutputPath, OperationsParams params) throws IOException {
+    long t1 = System.currentTimeMillis();
+
+    JobConf job = new JobConf(params, DistanceJoin.class);
+
+    FileSystem fs1 = inFiles[0].getFileSystem(job);
+    FileSystem fs2 = inFiles[1].getFileSystem(job);
+
+    Path outputPath = userOutputPath;
+    if (outputPath == null) {
+      do {
+        outputPath = new Path(inFiles[0].getName() + ".distancejoin_"
+            + (int) (Math.random() * 1000000));
+      } while (fs1.exists(outputPath));
+    }
+
+    job.setJobName("DistanceJoin");
+    ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
+    GlobalIndex<Partition> gindex1 = GlobalIndexCache.getGlobalIndex(fs1, inFiles[0]);
+    GlobalIndex<Partition> gindex2 = GlobalIndexCache.getGlobalIndex(fs2, inFiles[1]);
+
+    LOG.info("Joining " + inFiles[0] + " X " + inFiles[1] + " within distance " + distance);
+
+    job.set(Distance, Double.toString(distance));
+    job.setBoolean(Replicated1, gindex1 != null && gindex1.isReplicated());
+    job.setBoolean(Replicated2, gindex2 != null && gindex2.isReplicated());
+
+    // Read each partition in one shot
+    job.setInt(SpatialSite.MaxBytesInOneRead, -1);
+    job.setInt(SpatialSite.MaxShapesInOneRead, -1);
+    job.setInputFormat(DJInputFormatArray.class);
+    job.setClass(SpatialSite.FilterClass, DistanceJoinFilter.class,
+        BlockFilter.class);
+    FileInputFormat.setInputPaths(job, inFiles);
+    job.setMapperClass(DistanceJoinMap.class);
+
+    Shape shape = params.getShape("shape");
+    job.setMapOutputKeyClass(shape.getClass());
+    job.setMapOutputValueClass(shape.getClass());
+    job.setNumMapTasks(10 * Math.max(1, clusterStatus.getMaxMapTasks()));
+    job.setNumReduceTasks(0); // No reduce needed for this task
+
+    if (job.getBoolean("output", true))
+      job.setOutputFormat(TextOutputFormat.class);
+    else
+      job.setOutputFormat(NullOutputFormat.class);
+    TextOutputFormat.setOutputPath(job, outputPath);
+
+    RunningJob runningJob = JobClient.runJob(job);
+    Counters counters = runningJob.getCounters();
+    long resultCount = counters.findCounter(Task.Counter.MAP_OUTPUT_RECORDS).getValue();
+
+    // Delete output directory if not explicitly set by user
+    if (userOutputPath == null)
+      fs1.delete(outputPath, true);
+    long t2 = System.currentTimeMillis();
+    LOG.info("Distance join time " + (t2 - t1) + " millis");
+
+    return resultCount;
+  }
+
+  private static void printUsage() {
+    System.out.println("Finds all pairs of shapes in two files that are within a given distance");
+    System.out.println("Parameters: (* marks the required parameters)");
+    System.out.println("<input file 1> - (*) Path to the first input file");
+    System.out.println("<input file 2> - (*) Path to the second input file");
+    System.out.println("<output file> - Path to output file");
+    System.out.println("shape:<point|rectangle|polygon|ogc> - (*) Type of shapes in both files");
+    System.out.println("distance:<d> - (*) Maximum distance between two joined shapes");
+    System.out.println("-overwrite - Overwrite output file without notice");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  public static void main(String[] args) throws IOException {
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+    Path[] allFiles = params.getPaths();
+    if (allFiles.length < 2) {
+      System.err.println("This operation requires at least two input files");
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length == 2 && !params.checkInput()) {
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length > 2 && !params.checkInputOutput()) {
+      printUsage();
+      System.exit(1);
+    }
+    if (params.get("distance") == null) {
+      System.err.println("Distance is not set");
+      printUsage();
+      System.exit(1);
+    }
+    Path[] inputPaths = allFiles.length == 2 ? allFiles : params.getInputPaths();
+    Path outputPath = allFiles.length == 2 ? null : params.getOutputPath();
+    double distance = Double.parseDouble(params.get("distance"));
+
+    long t1 = System.currentTimeMillis();
+    long resultSize = distanceJoin(inputPaths, distance, outputPath, params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total time: "+(t2-t1)+" millis");
+    System.out.println("Result size: "+resultSize);
+  }
+}
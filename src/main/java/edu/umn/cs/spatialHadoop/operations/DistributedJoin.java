@@ -11,13 +11,17 @@ package edu.umn.cs.spatialHadoop.operations;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -34,6 +38,7 @@ import org.apache.hadoop.mapred.InputSplit;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.JobInProgress;
+import org.apache.hadoop.mapred.MapRunner;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
@@ -41,11 +46,11 @@ import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
-import org.apache.hadoop.mapred.Task;
 import org.apache.hadoop.mapred.lib.CombineFileSplit;
 import org.apache.hadoop.mapred.lib.NullOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.LineReader;
 import org.apache.hadoop.util.QuickSort;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
@@ -72,6 +77,7 @@ import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
 import edu.umn.cs.spatialHadoop.operations.Repartition.RepartitionMap;
 import edu.umn.cs.spatialHadoop.operations.Repartition.RepartitionMapNoReplication;
+import edu.umn.cs.spatialHadoop.util.FileUtil;
 import edu.umn.cs.spatialHadoop.util.Progressable;
 
 /**
@@ -96,7 +102,148 @@ public class DistributedJoin {
 	private static final String InactiveMode = "DJ.InactiveMode";
 	private static final String isFilterOnlyMode = "DJ.FilterOnlyMode";
 	private static final String JoiningThresholdPerOnce = "DJ.JoiningThresholdPerOnce";
+	/**A file created by the job client once the limit of result pairs is found*/
+	private static final String LimitReachedFlag = "DJ.LimitReachedFlag";
+
+	/**Counters of the join job*/
+	public static enum JoinCounters {
+		/**Number of result pairs found by all map tasks*/
+		RESULT_PAIRS
+	};
+
+	/**
+	 * Collects the result pairs of one task. It counts the result pairs in
+	 * a job counter and writes them to the task output unless the parameter
+	 * <code>count</code> is set. If the parameter <code>limit</code> is set,
+	 * it drops all result pairs after the limit is reached in this task or
+	 * after the job client signals that all tasks together reached the limit.
+	 * The task then stops reading its input, see {@link JoinMapRunner}, and
+	 * ends normally so that the job completes and its output is committed.
+	 * 
+	 * @author Ahmed Eldawy
+	 *
+	 */
+	static class JoinOutput implements OutputCollector<Shape, Shape> {
+		/**Number of result pairs between two updates of the job counter*/
+		private static final int CounterUpdateInterval = 64 * 1024;
+		/**Minimum time in millis between two checks of the limit flag*/
+		private static final long FlagCheckInterval = 1000;
+
+		private final boolean countOnly;
+		private final long limit;
+		private OutputCollector<Shape, Shape> output;
+		private Reporter reporter;
+		/**Number of result pairs found by this task*/
+		private long count;
+		/**Number of result pairs already added to the job counter*/
+		private long reportedCount;
+		/**The file that signals that the limit is reached by all tasks*/
+		private Path limitFlag;
+		private FileSystem limitFlagFS;
+		/**The last time the limit flag was checked*/
+		private long lastFlagCheck;
+		/**Set when the limit flag is found*/
+		private boolean limitFlagSet;
+
+		JoinOutput(JobConf job) {
+			countOnly = job.getBoolean("count", false);
+			limit = job.getLong("limit", 0);
+			String flag = job.get(LimitReachedFlag);
+			if (limit > 0 && flag != null) {
+				try {
+					limitFlag = new Path(flag);
+					limitFlagFS = limitFlag.getFileSystem(job);
+				} catch (IOException e) {
+					throw new RuntimeException("Cannot access " + flag, e);
+				}
+			}
+		}
+
+		/**
+		 * Sets the map output and reporter of the current map call
+		 * @param output
+		 * @param reporter
+		 * @return
+		 */
+		JoinOutput wrap(OutputCollector<Shape, Shape> output, Reporter reporter) {
+			this.output = output;
+			this.reporter = reporter;
+			return this;
+		}
+
+		boolean isLimitReached() throws IOException {
+			if (limit <= 0)
+				return false;
+			if (count >= limit || limitFlagSet)
+				return true;
+			long now = System.currentTimeMillis();
+			if (limitFlag != null && now - lastFlagCheck >= FlagCheckInterval) {
+				lastFlagCheck = now;
+				limitFlagSet = limitFlagFS.exists(limitFlag);
+				if (limitFlagSet)
+					LOG.info("All tasks together found " + limit + " result pairs");
+			}
+			return limitFlagSet;
+		}
+
+		@Override
+		public void collect(Shape r, Shape s) throws IOException {
+			if (isLimitReached())
+				return;
+			count++;
+			if (!countOnly)
+				output.collect(r, s);
+			if (count - reportedCount >= CounterUpdateInterval)
+				flush();
+		}
+
+		/**
+		 * Adds the result pairs found so far to the job counter
+		 */
+		void flush() {
+			if (reporter != null && count > reportedCount) {
+				reporter.incrCounter(JoinCounters.RESULT_PAIRS, count - reportedCount);
+				reportedCount = count;
+			}
+		}
+	}
 	
+	/**
+	 * A join mapper that collects its results through a {@link JoinOutput}.
+	 */
+	static interface LimitedJoinMapper {
+		JoinOutput getJoinOutput();
+	}
+
+	/**
+	 * Runs a join mapper and stops reading input records once the limit of
+	 * result pairs is reached. Each input record is a pair of partitions so
+	 * this avoids reading and joining the remaining partitions only to drop
+	 * all their results.
+	 * 
+	 * @author Ahmed Eldawy
+	 *
+	 */
+	public static class JoinMapRunner<K, V> extends MapRunner<K, V, Shape, Shape> {
+		@Override
+		public void run(RecordReader<K, V> input, OutputCollector<Shape, Shape> output,
+				Reporter reporter) throws IOException {
+			Mapper<K, V, Shape, Shape> mapper = getMapper();
+			JoinOutput joinOutput = mapper instanceof LimitedJoinMapper ?
+					((LimitedJoinMapper) mapper).getJoinOutput() : null;
+			try {
+				K key = input.createKey();
+				V value = input.createValue();
+				while ((joinOutput == null || !joinOutput.isLimitReached())
+						&& input.next(key, value)) {
+					mapper.map(key, value, output, reporter);
+				}
+			} finally {
+				mapper.close();
+			}
+		}
+	}
+
 	public static class SpatialJoinFilter extends DefaultBlockFilter {
 		@Override
 		public void selectCellPairs(GlobalIndex<Partition> gIndex1,
@@ -135,20 +282,31 @@ public class DistributedJoin {
 
 	public static class RedistributeJoinMap extends MapReduceBase
 			implements
-			Mapper<PairWritable<Rectangle>, PairWritable<? extends Writable>, Shape, Shape> {
+			Mapper<PairWritable<Rectangle>, PairWritable<? extends Writable>, Shape, Shape>,
+			LimitedJoinMapper {
 
 		private boolean isFilterOnly;
+		private JoinOutput joinOutput;
 		
 		@Override
 		public void configure(JobConf job) {
 			super.configure(job);
 			isFilterOnly = OperationsParams.getFilterOnlyModeFlag(job, isFilterOnlyMode);
+			joinOutput = new JoinOutput(job);
+		}
+		
+		@Override
+		public JoinOutput getJoinOutput() {
+			return joinOutput;
 		}
 		
 		public void map(final PairWritable<Rectangle> key,
 				final PairWritable<? extends Writable> value,
-				final OutputCollector<Shape, Shape> output, final Reporter reporter)
+				OutputCollector<Shape, Shape> mapOutput, final Reporter reporter)
 				throws IOException {
+			if (joinOutput.isLimitReached())
+				return;
+			final OutputCollector<Shape, Shape> output = joinOutput.wrap(mapOutput, reporter);
 		
 		  final Rectangle dupAvoidanceMBR = !key.first.isValid()
 					&& !key.second.isValid() ? null // Both blocks are heap blocks
@@ -291,26 +449,38 @@ public class DistributedJoin {
 						+ value.first.getClass() + " with "
 						+ value.second.getClass());
 			}
+			joinOutput.flush();
 			reporter.progress();
 		}
 	}
 
 	public static class RedistributeJoinMapNoDupAvoidance extends MapReduceBase
 			implements
-			Mapper<PairWritable<Rectangle>, PairWritable<? extends Writable>, Shape, Shape> {
+			Mapper<PairWritable<Rectangle>, PairWritable<? extends Writable>, Shape, Shape>,
+			LimitedJoinMapper {
 
 		private boolean isFilterOnly;
+		private JoinOutput joinOutput;
 		
 		@Override
 		public void configure(JobConf job) {
 			super.configure(job);
 			isFilterOnly = OperationsParams.getFilterOnlyModeFlag(job, isFilterOnlyMode);
+			joinOutput = new JoinOutput(job);
+		}
+		
+		@Override
+		public JoinOutput getJoinOutput() {
+			return joinOutput;
 		}
 		
 		public void map(final PairWritable<Rectangle> key,
 				final PairWritable<? extends Writable> value,
-				final OutputCollector<Shape, Shape> output, final Reporter reporter)
+				OutputCollector<Shape, Shape> mapOutput, final Reporter reporter)
 				throws IOException {
+			if (joinOutput.isLimitReached())
+				return;
+			final OutputCollector<Shape, Shape> output = joinOutput.wrap(mapOutput, reporter);
 			
 			final Rectangle mapperMBR = !key.first.isValid()
 					&& !key.second.isValid() ? null // Both blocks are heap blocks
@@ -429,6 +599,7 @@ public class DistributedJoin {
 						+ value.first.getClass() + " with "
 						+ value.second.getClass());
 			}
+			joinOutput.flush();
 			reporter.progress();
 		}
 	}
@@ -712,8 +883,9 @@ public class DistributedJoin {
 		job.setMapOutputValueClass(shape.getClass());
 		job.setNumMapTasks(10 * Math.max(1, clusterStatus.getMaxMapTasks()));
 		job.setNumReduceTasks(0); // No reduce needed for this task
+		job.setMapRunnerClass(JoinMapRunner.class);
 
-		if (job.getBoolean("output", true))
+		if (job.getBoolean("output", true) && !job.getBoolean("count", false))
 		  job.setOutputFormat(TextOutputFormat.class);
 		else
 		  job.setOutputFormat(NullOutputFormat.class);
@@ -722,11 +894,22 @@ public class DistributedJoin {
 
 		if (!params.getBoolean("background", false)) {
 			LOG.info("Submit job in sync mode");
-			RunningJob runningJob = JobClient.runJob(job);
+			long limit = job.getLong("limit", 0);
+			RunningJob runningJob;
+			if (limit > 0) {
+				runningJob = runJobWithLimit(job, limit);
+			} else {
+				runningJob = JobClient.runJob(job);
+			}
 			Counters counters = runningJob.getCounters();
-			Counter outputRecordCounter = counters
-					.findCounter(Task.Counter.MAP_OUTPUT_RECORDS);
-			final long resultCount = outputRecordCounter.getValue();
+			long resultCount = counters.getCounter(JoinCounters.RESULT_PAIRS);
+			if (limit > 0 && resultCount > limit) {
+				if (job.getOutputFormat() instanceof TextOutputFormat)
+					resultCount = limitOutput(outputPath.getFileSystem(job),
+							outputPath, limit);
+				else
+					resultCount = limit;
+			}
 
 			// Output number of running map tasks
 			Counter mapTaskCountCounter = counters
@@ -750,6 +933,116 @@ public class DistributedJoin {
 		}
 	}
 
+	/**
+	 * Runs a join job that stops once all its tasks together find the given
+	 * number of result pairs. When the job counter reaches the limit, a flag
+	 * file is created and running tasks stop producing results as soon as
+	 * they see it. Tasks that start afterwards produce nothing. The job is
+	 * not killed so it completes normally and the output of all tasks is
+	 * committed. Each task might write up to <code>limit</code> result pairs
+	 * before it sees the flag, so the output might contain up to
+	 * <code>limit</code> times the number of concurrent tasks result pairs.
+	 * The caller trims the output using
+	 * {@link #limitOutput(FileSystem, Path, long)}.
+	 * 
+	 * @param job
+	 * @param limit
+	 * @return
+	 * @throws IOException
+	 */
+	private static RunningJob runJobWithLimit(JobConf job, long limit)
+			throws IOException {
+		FileSystem flagFS = FileSystem.get(job);
+		Path limitFlag;
+		do {
+			limitFlag = new Path(flagFS.getWorkingDirectory(), "dj_limit_"
+					+ (int) (Math.random() * 1000000));
+		} while (flagFS.exists(limitFlag));
+		job.set(LimitReachedFlag, limitFlag.toString());
+		RunningJob runningJob = new JobClient(job).submitJob(job);
+		try {
+			boolean flagCreated = false;
+			while (!runningJob.isComplete()) {
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					runningJob.killJob();
+					throw new IOException("Interrupted while waiting for " + runningJob.getID(), e);
+				}
+				if (!flagCreated) {
+					Counters counters = runningJob.getCounters();
+					if (counters != null
+							&& counters.getCounter(JoinCounters.RESULT_PAIRS) >= limit) {
+						LOG.info("Found " + limit + " result pairs. Stopping the remaining tasks");
+						flagFS.create(limitFlag).close();
+						flagCreated = true;
+					}
+				}
+			}
+		} finally {
+			flagFS.delete(limitFlag, false);
+		}
+		if (!runningJob.isSuccessful())
+			throw new IOException("Job " + runningJob.getID() + " failed");
+		return runningJob;
+	}
+
+	/**
+	 * Trims the committed output of a limited join to the given number of
+	 * result pairs. Output files are kept in the order of their names until
+	 * the limit is reached. The file that crosses the limit is rewritten with
+	 * its first lines only and all later files are deleted.
+	 * 
+	 * @param fs
+	 * @param outputPath - the output directory of the join job
+	 * @param limit - the maximum number of result pairs to keep
+	 * @return the number of result pairs kept in the output
+	 * @throws IOException
+	 */
+	static long limitOutput(FileSystem fs, Path outputPath, long limit)
+			throws IOException {
+		FileStatus[] files = fs.listStatus(outputPath, SpatialSite.NonHiddenFileFilter);
+		Arrays.sort(files);
+		long remaining = limit;
+		Text line = new Text();
+		for (FileStatus file : files) {
+			if (remaining == 0) {
+				fs.delete(file.getPath(), false);
+				continue;
+			}
+			// Count the lines of this file up to the remaining number of pairs
+			long lines = 0;
+			LineReader in = new LineReader(fs.open(file.getPath()));
+			try {
+				while (lines <= remaining && in.readLine(line) > 0)
+					lines++;
+			} finally {
+				in.close();
+			}
+			if (lines <= remaining) {
+				remaining -= lines;
+				continue;
+			}
+			// Keep only the first lines of this file
+			Path tmpPath = new Path(outputPath, "_" + file.getPath().getName());
+			in = new LineReader(fs.open(file.getPath()));
+			FSDataOutputStream out = fs.create(tmpPath, true);
+			try {
+				while (remaining > 0 && in.readLine(line) > 0) {
+					out.write(line.getBytes(), 0, line.getLength());
+					out.write('\n');
+					remaining--;
+				}
+			} finally {
+				in.close();
+				out.close();
+			}
+			fs.delete(file.getPath(), false);
+			fs.rename(tmpPath, file.getPath());
+		}
+		return limit - remaining;
+	}
+
 	public static class RepartitionJoinReduce<T extends Shape> extends
 			MapReduceBase implements Reducer<IntWritable, T, Shape, Shape> {
 
@@ -758,6 +1051,7 @@ public class DistributedJoin {
 		private boolean inactiveMode;
 		private boolean isFilterOnly;
 		private int shapesThresholdPerOnce;
+		private JoinOutput joinOutput;
 		
 		@Override
 		public void configure(JobConf job) {
@@ -768,12 +1062,16 @@ public class DistributedJoin {
 			inactiveMode = OperationsParams.getInactiveModeFlag(job, InactiveMode);
 			isFilterOnly = OperationsParams.getFilterOnlyModeFlag(job, isFilterOnlyMode);
 			shapesThresholdPerOnce = OperationsParams.getJoiningThresholdPerOnce(job, JoiningThresholdPerOnce);
+			joinOutput = new JoinOutput(job);
 		}
 
 		@Override
 		public void reduce(IntWritable cellIndex, Iterator<T> shapes,
-				final OutputCollector<Shape, Shape> output, Reporter reporter)
+				OutputCollector<Shape, Shape> reduceOutput, Reporter reporter)
 				throws IOException {
+		 if (joinOutput.isLimitReached())
+			 return;
+		 final OutputCollector<Shape, Shape> output = joinOutput.wrap(reduceOutput, reporter);
 		 if(!inactiveMode){
 			
 			LOG.info("Start reduce() logic now !!!");
@@ -783,7 +1081,7 @@ public class DistributedJoin {
 			
 			
 			// Get collected shapes from the repartition phase
-			while (shapes.hasNext()) {
+			while (shapes.hasNext() && !joinOutput.isLimitReached()) {
 					int currRShapes = 0;
 					final ArrayList<Shape> r = new ArrayList<Shape>();
 					do{
@@ -809,8 +1107,9 @@ public class DistributedJoin {
 									.createValue();
 
 							// load shapes from the indexed dataset
-							while (shapeReader.next(cellInfo, partitionShapes)) {
-								while(partitionShapes.hasNext()){
+							while (!joinOutput.isLimitReached()
+									&& shapeReader.next(cellInfo, partitionShapes)) {
+								while(partitionShapes.hasNext() && !joinOutput.isLimitReached()){
 									final ArrayList<Shape> selectedSShapes = new ArrayList<Shape>();
 									int currSShapes = 0;
 									do{
@@ -866,6 +1165,7 @@ public class DistributedJoin {
 		}else{
 			LOG.info("Nothing to do !!!");
 		}
+		 joinOutput.flush();
 	  }
 	}
 
@@ -965,15 +1265,48 @@ public class DistributedJoin {
 		repartitionJoinJob.setNumReduceTasks(Math.max(1, Math.min(
 				cellsInfo.length,
 				(clusterStatus.getMaxReduceTasks() * 9 + 5) / 10)));
-
-		repartitionJoinJob.setOutputFormat(TextOutputFormat.class);
+		// Balance reducers by the sizes of the partitions they join with. A
+		// cell might be stored in more than one partition file.
+		Map<Integer, Long> cellSizes = new LinkedHashMap<Integer, Long>();
+		for (Partition p : gindex) {
+			Long size = cellSizes.get(p.cellId);
+			cellSizes.put(p.cellId, (size == null ? 0 : size) + p.size);
+		}
+		int[] cellIds = new int[cellSizes.size()];
+		long[] cellLoads = new long[cellSizes.size()];
+		int iCell = 0;
+		for (Map.Entry<Integer, Long> cellSize : cellSizes.entrySet()) {
+			cellIds[iCell] = cellSize.getKey();
+			cellLoads[iCell] = cellSize.getValue();
+			iCell++;
+		}
+		int[] reducers = CellLoadBalancer.assignCells(cellIds, cellLoads,
+				repartitionJoinJob.getNumReduceTasks());
+		CellLoadBalancer.setAssignment(repartitionJoinJob, cellIds, reducers);
+		repartitionJoinJob.setPartitionerClass(CellLoadBalancer.CellPartitioner.class);
+
+		if (repartitionJoinJob.getBoolean("output", true)
+				&& !repartitionJoinJob.getBoolean("count", false))
+			repartitionJoinJob.setOutputFormat(TextOutputFormat.class);
+		else
+			repartitionJoinJob.setOutputFormat(NullOutputFormat.class);
 		TextOutputFormat.setOutputPath(repartitionJoinJob, outputPath);
 
-		RunningJob runningJob = JobClient.runJob(repartitionJoinJob);
+		long limit = repartitionJoinJob.getLong("limit", 0);
+		RunningJob runningJob;
+		if (limit > 0)
+			runningJob = runJobWithLimit(repartitionJoinJob, limit);
+		else
+			runningJob = JobClient.runJob(repartitionJoinJob);
 		Counters counters = runningJob.getCounters();
-		Counter outputRecordCounter = counters
-				.findCounter(Task.Counter.REDUCE_OUTPUT_RECORDS);
-		final long resultCount = outputRecordCounter.getValue();
+		long resultCount = counters.getCounter(JoinCounters.RESULT_PAIRS);
+		if (limit > 0 && resultCount > limit) {
+			if (repartitionJoinJob.getOutputFormat() instanceof TextOutputFormat)
+				resultCount = limitOutput(outputPath.getFileSystem(repartitionJoinJob),
+						outputPath, limit);
+			else
+				resultCount = limit;
+		}
 
 		// Output number of running map tasks
 		Counter mapTaskCountCounter = counters
@@ -1013,6 +1346,28 @@ public class DistributedJoin {
 			} while (outFs.exists(outputPath));
 		}
 
+		// Broadcast the small file if it is small enough to fit in memory
+		long broadcastThreshold = params.getLong("broadcast-threshold", 32 * 1024 * 1024);
+		long[] fileSizes = new long[inputFiles.length];
+		for (int i_file = 0; i_file < inputFiles.length; i_file++) {
+			fileSizes[i_file] = FileUtil.getPathSize(
+					inputFiles[i_file].getFileSystem(params), inputFiles[i_file]);
+		}
+		int smallFile = fileSizes[0] <= fileSizes[1] ? 0 : 1;
+		// The count and limit modes are not supported by the broadcast join
+		boolean countOrLimit = params.getBoolean("count", false)
+				|| params.getLong("limit", 0) > 0;
+		if (fileSizes[smallFile] <= broadcastThreshold && !countOrLimit) {
+			LOG.info("Broadcasting " + inputFiles[smallFile] + " of size "
+					+ fileSizes[smallFile]);
+			params.setBoolean(BroadcastJoin.FilterOnly, isFilterOnly);
+			long result_size = BroadcastJoin.broadcastJoin(inputFiles,
+					smallFile, outputPath, params);
+			if (userOutputPath == null)
+				outFs.delete(outputPath, true);
+			return result_size;
+		}
+
 		// Decide whether to do a repartition step or not
 		int cost_with_repartition, cost_without_repartition;
 		final FileStatus[] fStatus = new FileStatus[inputFiles.length];
@@ -1170,6 +1525,12 @@ public class DistributedJoin {
 				.println("heuristic-repartition:<decision> - (*) Decision to have a heuristic or exact repartition (yes|no)");
 		System.out
 				.println("direct-join:<decision> - (*) Decision to directly join after repartitioning (yes|no)");
+		System.out
+				.println("broadcast-threshold:<size> - Broadcast the smaller file if it is not larger than this (default 32 MB) with repartition:auto");
+		System.out
+				.println("limit:<n> - Stop after finding n result pairs");
+		System.out
+				.println("-count - Count the result pairs without writing them");
 		System.out.println("-overwrite - Overwrite output file without notice");
 
 		GenericOptionsParser.printGenericCommandUsage(System.out);
@@ -12,13 +12,21 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -53,16 +61,14 @@ import edu.umn.cs.spatialHadoop.core.ResultCollector2;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndexCache;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
 import edu.umn.cs.spatialHadoop.indexing.RTree;
 import edu.umn.cs.spatialHadoop.io.TextSerializable;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat3;
-import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
-import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
-import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 
 /**
  * Performs k Nearest Neighbor (kNN) query over a spatial file.
@@ -360,7 +366,7 @@ public class KNN {
     job.setOutputFormatClass(TextOutputFormat3.class);
     TextOutputFormat3.setOutputPath(job, outputPath);
     
-    GlobalIndex<Partition> globalIndex = SpatialSite.getGlobalIndex(inFs, inputPath);
+    GlobalIndex<Partition> globalIndex = GlobalIndexCache.getGlobalIndex(inFs, inputPath);
     Configuration templateConf = job.getConfiguration();
 
     FileSystem outFs = outputPath.getFileSystem(params);
@@ -470,75 +476,177 @@ public class KNN {
     return job;
   }
   
+  /**
+   * Lowers a distance bound shared between threads to the given distance if
+   * it is smaller. The bound is stored as the bits of a double value.
+   * @param sharedBound
+   * @param distance
+   */
+  private static void tightenBound(AtomicLong sharedBound, double distance) {
+    long current;
+    while (distance < Double.longBitsToDouble(current = sharedBound.get())) {
+      if (sharedBound.compareAndSet(current, Double.doubleToLongBits(distance)))
+        return;
+    }
+  }
+
+  /**
+   * Searches one partition for the nearest neighbors and adds them to the
+   * given top-k objects. A record is copied only if it is closer than both
+   * the local k<sup>th</sup> distance and the shared one. Whenever the given
+   * top-k objects are full, the shared bound is tightened to their
+   * k<sup>th</sup> distance.
+   * @param partitionPath
+   * @param queryPoint
+   * @param k
+   * @param knn
+   * @param sharedBound
+   * @param conf
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static <S extends Shape> void knnPartition(Path partitionPath,
+      Point queryPoint, int k, KNNObjects<ShapeWithDistance<S>> knn,
+      AtomicLong sharedBound, Configuration conf) throws IOException,
+      InterruptedException {
+    FileSystem fs = partitionPath.getFileSystem(conf);
+    long length = fs.getFileStatus(partitionPath).getLen();
+    FileSplit fsplit = new FileSplit(partitionPath, 0, length, new String[0]);
+    RecordReader<Rectangle, Iterable<Shape>> reader =
+        new SpatialInputFormat3<Rectangle, Shape>().createRecordReader(fsplit, null);
+    SpatialInputFormat3.initializeReader(reader, fsplit, conf);
+    try {
+      while (reader.nextKeyValue()) {
+        // Other threads might have found closer objects in the meantime
+        double bound = Double.longBitsToDouble(sharedBound.get());
+        if (knn.size() >= k)
+          bound = Math.min(bound, knn.top().distance);
+        for (Shape shape : reader.getCurrentValue()) {
+          double distance = shape.distanceTo(queryPoint.x, queryPoint.y);
+          if (distance >= bound)
+            continue;
+          knn.insert(new ShapeWithDistance<S>((S) shape.clone(), distance));
+          if (knn.size() >= k) {
+            bound = knn.top().distance;
+            tightenBound(sharedBound, bound);
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Finds the k nearest neighbors in a file with a global index without
+   * running a MapReduce job. Partitions are visited in ascending order of
+   * their minimum distance to the query point. The nearest partitions are
+   * processed first, until k objects are found, to get a tight initial bound
+   * on the k<sup>th</sup> distance. All remaining partitions within that bound
+   * are then processed in parallel. The threads share the k<sup>th</sup>
+   * distance so that a partition is pruned as soon as any thread finds k
+   * objects closer than it.
+   * @param inFile
+   * @param gIndex
+   * @param queryPoint
+   * @param k
+   * @param params
+   * @return the top-k objects found
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static <S extends Shape> KNNObjects<ShapeWithDistance<S>> knnIndexed(
+      final Path inFile, GlobalIndex<Partition> gIndex, final Point queryPoint,
+      final int k, final OperationsParams params)
+      throws IOException, InterruptedException {
+    // Sort all partitions by their minimum distance to the query point
+    final ShapeWithDistance<Partition>[] partitions =
+        new ShapeWithDistance[gIndex.size()];
+    int numPartitions = 0;
+    for (Partition p : gIndex) {
+      double distance = p.getMinDistanceTo(queryPoint.x, queryPoint.y);
+      partitions[numPartitions++] =
+          new ShapeWithDistance<Partition>(p.clone(), distance);
+    }
+    Arrays.sort(partitions);
+
+    final AtomicLong sharedBound =
+        new AtomicLong(Double.doubleToLongBits(Double.MAX_VALUE));
+    KNNObjects<ShapeWithDistance<S>> knn = new KNNObjects<ShapeWithDistance<S>>(k);
+    // Process the nearest partitions until k objects are found
+    int iPartition = 0;
+    while (iPartition < partitions.length && knn.size() < k) {
+      knnPartition(new Path(inFile, partitions[iPartition++].shape.filename),
+          queryPoint, k, knn, sharedBound, params);
+    }
+    final AtomicInteger nextPartition = new AtomicInteger(iPartition);
+    final AtomicInteger numProcessedPartitions = new AtomicInteger(iPartition);
+
+    // Process the remaining partitions in parallel. Each thread takes the
+    // nearest partition that was not processed yet and stops once it is
+    // farther than the k^th distance as all following ones are farther.
+    int parallelism = Math.max(1, Math.min(partitions.length - iPartition,
+        params.getInt("parallel", Runtime.getRuntime().availableProcessors())));
+    Callable<KNNObjects<ShapeWithDistance<S>>> worker =
+        new Callable<KNNObjects<ShapeWithDistance<S>>>() {
+      @Override
+      public KNNObjects<ShapeWithDistance<S>> call() throws Exception {
+        KNNObjects<ShapeWithDistance<S>> localKnn =
+            new KNNObjects<ShapeWithDistance<S>>(k);
+        int i;
+        while ((i = nextPartition.getAndIncrement()) < partitions.length &&
+            partitions[i].distance <= Double.longBitsToDouble(sharedBound.get())) {
+          knnPartition(new Path(inFile, partitions[i].shape.filename),
+              queryPoint, k, localKnn, sharedBound, params);
+          numProcessedPartitions.incrementAndGet();
+        }
+        return localKnn;
+      }
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<KNNObjects<ShapeWithDistance<S>>>> partialAnswers =
+          new ArrayList<Future<KNNObjects<ShapeWithDistance<S>>>>();
+      for (int iWorker = 0; iWorker < parallelism; iWorker++)
+        partialAnswers.add(executor.submit(worker));
+
+      // Merge the partial answers of all threads
+      for (Future<KNNObjects<ShapeWithDistance<S>>> partialAnswer : partialAnswers) {
+        KNNObjects<ShapeWithDistance<S>> localKnn;
+        try {
+          localKnn = partialAnswer.get();
+        } catch (ExecutionException e) {
+          throw new IOException("Error processing partitions of "+inFile, e.getCause());
+        }
+        while (localKnn.size() > 0)
+          knn.insert(localKnn.pop());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    LOG.info("Processed "+numProcessedPartitions+" out of "+partitions.length+
+        " partitions");
+    TotalIterations.addAndGet(numProcessedPartitions.get());
+    return knn;
+  }
+
   private static<S extends Shape> long knnLocal(Path inFile, Path outPath,
       OperationsParams params) throws IOException, InterruptedException {
-    int iterations = 0;
     FileSystem fs = inFile.getFileSystem(params);
     Point queryPoint = (Point) OperationsParams.getShape(params, "point");
     int k = params.getInt("k", 1);
     // Top-k objects are retained in this object
-    PriorityQueue<ShapeWithDistance<S>> knn = new KNNObjects<ShapeWithDistance<S>>(k);
+    PriorityQueue<ShapeWithDistance<S>> knn;
 
-    SpatialInputFormat3<Rectangle, Shape> inputFormat =
-        new SpatialInputFormat3<Rectangle, Shape>();
-    
-    final GlobalIndex<Partition> gIndex = SpatialSite.getGlobalIndex(fs, inFile);
-    double kthDistance = Double.MAX_VALUE;
+    final GlobalIndex<Partition> gIndex = GlobalIndexCache.getGlobalIndex(fs, inFile);
     if (gIndex != null) {
       // There is a global index, use it
-      PriorityQueue<ShapeWithDistance<Partition>> partitionsToProcess =
-          new PriorityQueue<KNN.ShapeWithDistance<Partition>>() {
-        {
-          initialize(gIndex.size());
-        }
-        
-        @Override
-        protected boolean lessThan(Object a, Object b) {
-          return ((ShapeWithDistance<Partition>)a).distance <
-              ((ShapeWithDistance<Partition>)b).distance;
-        }
-      };
-      for (Partition p : gIndex) {
-        double distance = p.getMinDistanceTo(queryPoint.x, queryPoint.y);
-        partitionsToProcess.insert(new ShapeWithDistance<Partition>(p.clone(), distance));
-      }
-      
-      while (partitionsToProcess.size() > 0 &&
-          partitionsToProcess.top().distance <= kthDistance) {
-        
-        ShapeWithDistance<Partition> partitionToProcess = partitionsToProcess.pop();
-        // Process this partition
-        Path partitionPath = new Path(inFile, partitionToProcess.shape.filename);
-        long length = fs.getFileStatus(partitionPath).getLen();
-        FileSplit fsplit = new FileSplit(partitionPath, 0, length, new String[0]);
-        RecordReader<Rectangle, Iterable<Shape>> reader =
-            inputFormat.createRecordReader(fsplit, null);
-        if (reader instanceof SpatialRecordReader3) {
-          ((SpatialRecordReader3)reader).initialize(fsplit, params);
-        } else if (reader instanceof RTreeRecordReader3) {
-          ((RTreeRecordReader3)reader).initialize(fsplit, params);
-        } else if (reader instanceof HDFRecordReader) {
-          ((HDFRecordReader)reader).initialize(fsplit, params);
-        } else {
-          throw new RuntimeException("Unknown record reader");
-        }
-        iterations++;
-        
-        while (reader.nextKeyValue()) {
-          Iterable<Shape> shapes = reader.getCurrentValue();
-          for (Shape shape : shapes) {
-            double distance = shape.distanceTo(queryPoint.x, queryPoint.y);
-            if (distance <= kthDistance)
-              knn.insert(new ShapeWithDistance<S>((S)shape.clone(), distance));
-          }
-        }
-        reader.close();
-        
-        if (knn.size() >= k)
-          kthDistance = knn.top().distance;
-      }
+      knn = knnIndexed(inFile, gIndex, queryPoint, k, params);
     } else {
       // No global index, have to scan the whole file
+      knn = new KNNObjects<ShapeWithDistance<S>>(k);
+      SpatialInputFormat3<Rectangle, Shape> inputFormat =
+          new SpatialInputFormat3<Rectangle, Shape>();
       Job job = new Job(params);
       SpatialInputFormat3.addInputPath(job, inFile);
       List<InputSplit> splits = inputFormat.getSplits(job);
@@ -546,29 +654,21 @@ public class KNN {
       for (InputSplit split : splits) {
         RecordReader<Rectangle, Iterable<Shape>> reader =
             inputFormat.createRecordReader(split, null);
-        if (reader instanceof SpatialRecordReader3) {
-          ((SpatialRecordReader3)reader).initialize(split, params);
-        } else if (reader instanceof RTreeRecordReader3) {
-          ((RTreeRecordReader3)reader).initialize(split, params);
-        } else if (reader instanceof HDFRecordReader) {
-          ((HDFRecordReader)reader).initialize(split, params);
-        } else {
-          throw new RuntimeException("Unknown record reader");
-        }
-        iterations++;
+        SpatialInputFormat3.initializeReader(reader, split, params);
         
         while (reader.nextKeyValue()) {
           Iterable<Shape> shapes = reader.getCurrentValue();
           for (Shape shape : shapes) {
             double distance = shape.distanceTo(queryPoint.x, queryPoint.y);
-            knn.insert(new ShapeWithDistance<S>((S)shape.clone(), distance));
+            // Copy the shape only if it is going to be kept
+            if (knn.size() < k || distance < knn.top().distance)
+              knn.insert(new ShapeWithDistance<S>((S)shape.clone(), distance));
           }
         }
         
         reader.close();
       }
-      if (knn.size() >= k)
-        kthDistance = knn.top().distance;
+      TotalIterations.addAndGet(splits.size());
     }
     long resultCount = knn.size();
     if (outPath != null && params.getBoolean("output", true)) {
@@ -591,7 +691,6 @@ public class KNN {
       }
       ps.close();
     }
-    TotalIterations.addAndGet(iterations);
     return resultCount;
     
   }
@@ -649,7 +748,7 @@ public class KNN {
 
     if (closeness >= 0) {
       // Get query points according to its closeness to grid intersections
-      GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, inputFile);
+      GlobalIndex<Partition> gindex = GlobalIndexCache.getGlobalIndex(fs, inputFile);
       long seed = params.getLong("seed", System.currentTimeMillis());
       Random random = new Random(seed);
       for (int i = 0; i < count; i++) {
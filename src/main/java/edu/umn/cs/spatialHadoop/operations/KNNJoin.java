@@ -0,0 +1,385 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ArrayWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.Task;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.PriorityQueue;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndexCache;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.indexing.RTree;
+import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
+import edu.umn.cs.spatialHadoop.mapred.DefaultBlockFilter;
+import edu.umn.cs.spatialHadoop.mapred.PairWritable;
+import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
+import edu.umn.cs.spatialHadoop.operations.DistributedJoin.DJInputFormatArray;
+import edu.umn.cs.spatialHadoop.operations.DistributedJoin.DJInputFormatRTree;
+import edu.umn.cs.spatialHadoop.operations.KNN.KNNObjects;
+import edu.umn.cs.spatialHadoop.operations.KNN.ShapeWithDistance;
+import edu.umn.cs.spatialHadoop.operations.KNN.TextWithDistance;
+
+/**
+ * Finds the k nearest neighbors in a file S for every record in a file R.
+ * The query point of a record is the center of its MBR and distances are
+ * measured as in {@link KNN} using {@link Shape#distanceTo(double, double)}.
+ * Each partition of R is joined with the partitions of S that might contain
+ * one of the k nearest neighbors of any of its records. The map function
+ * finds the k nearest neighbors of each record in one partition of S and
+ * the reduce function merges the partial answers of each record.
+ * @author Ahmed Eldawy
+ *
+ */
+public class KNNJoin {
+  private static final Log LOG = LogFactory.getLog(KNNJoin.class);
+
+  /**Whether the first file has replicated records or not*/
+  private static final String Replicated1 = "KNNJoin.Replicated1";
+
+  /**
+   * Selects for each partition in R all partitions of S that might contain
+   * one of the k nearest neighbors of a record in it. Partitions of S are
+   * visited in the order of their minimum distance to the partition of R
+   * until they contain at least k records. The maximum distance between the
+   * partition of R and any of these partitions is an upper bound of the
+   * distance to the kth neighbor of any record in it. All partitions of S
+   * within this bound are selected. If S is replicated, the bound assumes
+   * that the distance to a record is not more than the distance to its part
+   * inside the partition which holds for points and OGC shapes.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class KNNJoinFilter extends DefaultBlockFilter {
+    private int k;
+
+    @Override
+    public void configure(Configuration conf) {
+      k = conf.getInt("k", 1);
+    }
+
+    @Override
+    public void selectCellPairs(GlobalIndex<Partition> gIndex1,
+        GlobalIndex<Partition> gIndex2,
+        ResultCollector2<Partition, Partition> output) {
+      Partition[] partitions2 = new Partition[gIndex2.size()];
+      int i = 0;
+      for (Partition p2 : gIndex2)
+        partitions2[i++] = p2;
+      // With replication, the same record might be counted in many partitions
+      boolean replicated2 = gIndex2.isReplicated();
+      int numPairs = 0;
+      for (final Partition p1 : gIndex1) {
+        Arrays.sort(partitions2, new Comparator<Partition>() {
+          @Override
+          public int compare(Partition a, Partition b) {
+            int diff = Double.compare(p1.getMinDistance(a), p1.getMinDistance(b));
+            // Break ties with the maximum distance to get a tighter bound
+            return diff != 0 ? diff :
+              Double.compare(getMaxDistance(p1, a), getMaxDistance(p1, b));
+          }
+        });
+        double bound = Double.POSITIVE_INFINITY;
+        long count = 0;
+        double maxDistance = 0;
+        for (Partition p2 : partitions2) {
+          count = replicated2 ? Math.max(count, p2.recordCount) : count + p2.recordCount;
+          maxDistance = Math.max(maxDistance, getMaxDistance(p1, p2));
+          if (count >= k) {
+            bound = maxDistance;
+            break;
+          }
+        }
+        for (Partition p2 : partitions2) {
+          if (p1.getMinDistance(p2) > bound)
+            break;
+          output.collect(p1, p2);
+          numPairs++;
+        }
+      }
+      LOG.info("Selected "+numPairs+" pairs of partitions");
+    }
+  }
+
+  /**
+   * Maximum distance between a point in one rectangle and a point in another
+   * @param r1
+   * @param r2
+   * @return
+   */
+  static double getMaxDistance(Rectangle r1, Rectangle r2) {
+    double dx = Math.max(r1.x2 - r2.x1, r2.x2 - r1.x1);
+    double dy = Math.max(r1.y2 - r2.y1, r2.y2 - r1.y1);
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  /**
+   * Finds the k nearest neighbors of every record of R in one partition of S.
+   * With a replicated index, a record of R is processed only in the
+   * partition that contains its query point.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class KNNJoinMap extends MapReduceBase implements
+      Mapper<PairWritable<Rectangle>, PairWritable<? extends Writable>, Text, TextWithDistance> {
+
+    private int k;
+    private boolean replicated1;
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      k = job.getInt("k", 1);
+      replicated1 = job.getBoolean(Replicated1, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void map(PairWritable<Rectangle> key,
+        PairWritable<? extends Writable> value,
+        final OutputCollector<Text, TextWithDistance> output, Reporter reporter)
+        throws IOException {
+      if (k == 0)
+        return;
+      Iterable<? extends Shape> r;
+      if (value.first instanceof RTree)
+        r = (RTree<Shape>) value.first;
+      else
+        r = Arrays.asList((Shape[]) ((ArrayWritable) value.first).get());
+      Rectangle cell1 = replicated1 && key.first.isValid() ? key.first : null;
+
+      final Text rText = new Text();
+      final TextWithDistance neighbor = new TextWithDistance();
+      for (Shape shape : r) {
+        Rectangle mbr = shape.getMBR();
+        if (mbr == null)
+          continue;
+        Point query = mbr.getCenterPoint();
+        if (cell1 != null && !cell1.contains(query))
+          continue;
+        rText.clear();
+        shape.toText(rText);
+        if (value.second instanceof RTree) {
+          RTree<Shape> s = (RTree<Shape>) value.second;
+          if (s.getElementCount() == 0)
+            continue;
+          s.knn(query.x, query.y, k, new ResultCollector2<Shape, Double>() {
+            @Override
+            public void collect(Shape s, Double distance) {
+              try {
+                neighbor.distance = distance;
+                neighbor.text.clear();
+                s.toText(neighbor.text);
+                output.collect(rText, neighbor);
+              } catch (IOException e) {
+                e.printStackTrace();
+              }
+            }
+          });
+        } else {
+          Shape[] s = (Shape[]) ((ArrayWritable) value.second).get();
+          PriorityQueue<ShapeWithDistance<Shape>> knn =
+              new KNNObjects<ShapeWithDistance<Shape>>(k);
+          for (Shape candidate : s) {
+            if (candidate.getMBR() != null)
+              knn.insert(new ShapeWithDistance<Shape>(candidate,
+                  candidate.distanceTo(query.x, query.y)));
+          }
+          while (knn.size() > 0) {
+            ShapeWithDistance<Shape> nn = knn.pop();
+            neighbor.distance = nn.distance;
+            neighbor.text.clear();
+            nn.shape.toText(neighbor.text);
+            output.collect(rText, neighbor);
+          }
+        }
+        reporter.progress();
+      }
+    }
+  }
+
+  /**
+   * Keeps the k nearest neighbors of each record among all its partial
+   * answers. Duplicate neighbors that come from a replicated index are
+   * removed. It is also used as a combiner.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class KNNJoinReduce extends MapReduceBase implements
+      Reducer<Text, TextWithDistance, Text, TextWithDistance> {
+
+    private int k;
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      k = job.getInt("k", 1);
+    }
+
+    @Override
+    public void reduce(Text r, Iterator<TextWithDistance> neighbors,
+        OutputCollector<Text, TextWithDistance> output, Reporter reporter)
+        throws IOException {
+      PriorityQueue<TextWithDistance> knn = new KNNObjects<TextWithDistance>(k);
+      while (neighbors.hasNext())
+        knn.insert(neighbors.next().clone());
+
+      TextWithDistance[] knnAscendingOrder = new TextWithDistance[knn.size()];
+      int i = knnAscendingOrder.length;
+      while (knn.size() > 0)
+        knnAscendingOrder[--i] = knn.pop();
+      // Write results in the ascending order
+      for (TextWithDistance t : knnAscendingOrder)
+        output.collect(r, t);
+    }
+  }
+
+  /**
+   * Finds the k nearest neighbors in the second file for every record in the
+   * first file.
+   * @param inFiles
+   * @param userOutputPath
+   * @param params
+   * @return number of result pairs
+   * @throws IOException
+   */
+  public static long knnJoin(Path[] inFiles, Path userOutputPath,
+      OperationsParams params) throws IOException {
+    long t1 = System.currentTimeMillis();
+
+    JobConf job = new JobConf(params, KNNJoin.class);
+
+    FileSystem fs1 = inFiles[0].getFileSystem(job);
+    FileSystem fs2 = inFiles[1].getFileSystem(job);
+
+    Path outputPath = userOutputPath;
+    if (outputPath == null) {
+      do {
+        outputPath = new Path(inFiles[0].getName() + ".knnjoin_"
+            + (int) (Math.random() * 1000000));
+      } while (fs1.exists(outputPath));
+    }
+
+    job.setJobName("KNNJoin");
+    ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
+    GlobalIndex<Partition> gindex1 = GlobalIndexCache.getGlobalIndex(fs1, inFiles[0]);
+
+    LOG.info("Finding the "+job.getInt("k", 1)+" nearest neighbors in "
+        + inFiles[1] + " for every record in " + inFiles[0]);
+
+    job.setBoolean(Replicated1, gindex1 != null && gindex1.isReplicated());
+    if (SpatialSite.isRTree(fs1, inFiles[0])
+        && SpatialSite.isRTree(fs2, inFiles[1])) {
+      job.setInputFormat(DJInputFormatRTree.class);
+    } else {
+      // Read each partition in one shot
+      job.setInt(SpatialSite.MaxBytesInOneRead, -1);
+      job.setInt(SpatialSite.MaxShapesInOneRead, -1);
+      job.setInputFormat(DJInputFormatArray.class);
+    }
+    job.setClass(SpatialSite.FilterClass, KNNJoinFilter.class,
+        BlockFilter.class);
+    FileInputFormat.setInputPaths(job, inFiles);
+
+    job.setMapperClass(KNNJoinMap.class);
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(TextWithDistance.class);
+    job.setCombinerClass(KNNJoinReduce.class);
+    job.setReducerClass(KNNJoinReduce.class);
+    job.setNumMapTasks(10 * Math.max(1, clusterStatus.getMaxMapTasks()));
+    job.setNumReduceTasks(Math.max(1, clusterStatus.getMaxReduceTasks() * 9 / 10));
+
+    if (job.getBoolean("output", true))
+      job.setOutputFormat(TextOutputFormat.class);
+    else
+      job.setOutputFormat(NullOutputFormat.class);
+    TextOutputFormat.setOutputPath(job, outputPath);
+
+    RunningJob runningJob = JobClient.runJob(job);
+    Counters counters = runningJob.getCounters();
+    long resultCount = counters.findCounter(Task.Counter.REDUCE_OUTPUT_RECORDS).getValue();
+
+    // Delete output directory if not explicitly set by user
+    if (userOutputPath == null)
+      fs1.delete(outputPath, true);
+    long t2 = System.currentTimeMillis();
+    LOG.info("kNN join time " + (t2 - t1) + " millis");
+
+    return resultCount;
+  }
+
+  private static void printUsage() {
+    System.out.println("Finds the k nearest neighbors in the second file for every record in the first file");
+    System.out.println("Parameters: (* marks the required parameters)");
+    System.out.println("<input file 1> - (*) Path to the file of query records");
+    System.out.println("<input file 2> - (*) Path to the file to search for neighbors");
+    System.out.println("<output file> - Path to output file");
+    System.out.println("shape:<point|rectangle|polygon|ogc> - (*) Type of shapes in both files");
+    System.out.println("k:<k> - Number of neighbors to find for each record (default: 1)");
+    System.out.println("-overwrite - Overwrite output file without notice");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  public static void main(String[] args) throws IOException {
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+    Path[] allFiles = params.getPaths();
+    if (allFiles.length < 2) {
+      System.err.println("This operation requires at least two input files");
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length == 2 && !params.checkInput()) {
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length > 2 && !params.checkInputOutput()) {
+      printUsage();
+      System.exit(1);
+    }
+    Path[] inputPaths = allFiles.length == 2 ? allFiles : params.getInputPaths();
+    Path outputPath = allFiles.length == 2 ? null : params.getOutputPath();
+
+    long t1 = System.currentTimeMillis();
+    long resultSize = knnJoin(inputPaths, outputPath, params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total time: "+(t2-t1)+" millis");
+    System.out.println("Result size: "+resultSize);
+  }
+}
@@ -56,10 +56,22 @@ public class Main {
           "Computes the spatial join between two input files using the " +
           "distributed join algorithm");
       
+      pgd.addClass("bj", BroadcastJoin.class,
+          "Computes the spatial join between a small and a large file by " +
+          "broadcasting the small file to all machines");
+      
       pgd.addClass("sjmr", SJMR.class,
           "Computes the spatial join between two input files using the " +
           "SJMR algorithm");
       
+      pgd.addClass("distancejoin", DistanceJoin.class,
+          "Finds all pairs of shapes in two files that are within a given " +
+          "distance from each other");
+      
+      pgd.addClass("knnjoin", KNNJoin.class,
+          "Finds the k nearest neighbors in one file for every record in " +
+          "another file");
+      
       pgd.addClass("index", Indexer.class,
           "Spatially index a file using a specific indexer");
       
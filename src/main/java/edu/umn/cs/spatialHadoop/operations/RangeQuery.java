@@ -33,15 +33,13 @@ import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.io.Text2;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat3;
-import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
-import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
-import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 import edu.umn.cs.spatialHadoop.util.ResultCollectorSynchronizer;
@@ -131,29 +129,34 @@ public class RangeQuery {
     Job job = Job.getInstance(params);
     SpatialInputFormat3.setInputPaths(job, inPath);
     final List<InputSplit> splits = inputFormat.getSplits(job);
+    // The filter above is applied on the MBR. A query polygon is used to
+    // refine the results of all splits.
+    final OGCJTSShape refineQuery = queryRange instanceof OGCJTSShape ?
+        (OGCJTSShape) queryRange : null;
     
     // 2- Process splits in parallel
     List<Long> results = Parallel.forEach(splits.size(), new RunnableRange<Long>() {
       @Override
       public Long run(int i1, int i2) {
+        // A prepared geometry is not thread safe so each thread prepares its
+        // own copy of the query
+        OGCJTSShape threadQuery = null;
+        if (refineQuery != null) {
+          threadQuery = (OGCJTSShape) refineQuery.clone();
+          threadQuery.prepare();
+        }
         long results = 0;
         for (int i = i1; i < i2; i++) {
           try {
             FileSplit fsplit = (FileSplit) splits.get(i);
             final RecordReader<Rectangle, Iterable<S>> reader =
                 inputFormat.createRecordReader(fsplit, null);
-            if (reader instanceof SpatialRecordReader3) {
-              ((SpatialRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof RTreeRecordReader3) {
-              ((RTreeRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof HDFRecordReader) {
-              ((HDFRecordReader)reader).initialize(fsplit, params);
-            } else {
-              throw new RuntimeException("Unknown record reader");
-            }
+            SpatialInputFormat3.initializeReader(reader, fsplit, params);
             while (reader.nextKeyValue()) {
               Iterable<S> shapes = reader.getCurrentValue();
               for (Shape s : shapes) {
+                if (threadQuery != null && !threadQuery.isIntersected(s))
+                  continue;
                 results++;
                 if (output != null)
                   output.collect((S) s);
@@ -0,0 +1,291 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.Task;
+import org.apache.hadoop.mapred.lib.IdentityReducer;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.mapred.ShapeLineInputFormat;
+import edu.umn.cs.spatialHadoop.util.FileUtil;
+
+/**
+ * Reads a fixed-size random sample of the centers of the shapes in a file.
+ * Each map task keeps a reservoir of a size proportional to the size of its
+ * split, i.e., the sample is stratified by input splits, and all reservoirs
+ * are merged in one reducer. The sample is returned as two arrays of
+ * coordinates which keeps the memory of the caller bounded by the sample size
+ * regardless of the input size.
+ * @author Ahmed Eldawy
+ *
+ */
+public class ReservoirSampler {
+  private static final Log LOG = LogFactory.getLog(ReservoirSampler.class);
+
+  /**Total number of points in the sample*/
+  private static final String SampleCount = "ReservoirSampler.SampleCount";
+
+  /**Total size of the input used to divide the sample among splits*/
+  private static final String InputSize = "ReservoirSampler.InputSize";
+
+  /**
+   * A uniform random sample of a fixed size over a stream of shapes. Only the
+   * centers of the shapes are kept and a shape is parsed only if it is
+   * selected in the sample.
+   * @author Ahmed Eldawy
+   *
+   */
+  static class Reservoir {
+    /**Coordinates of the sampled points*/
+    final double[] xs, ys;
+    /**Number of points currently in the sample*/
+    int size;
+    /**Number of records seen so far*/
+    long numRecords;
+    /**Random number generator to select records*/
+    private final Random random;
+
+    Reservoir(int capacity, Random random) {
+      this.xs = new double[capacity];
+      this.ys = new double[capacity];
+      this.random = random;
+    }
+
+    /**
+     * Adds the next record in the stream to the sample.
+     * @param shape - used to parse the record if it is selected
+     * @param line - the text representation of the record
+     */
+    void add(Shape shape, Text line) {
+      numRecords++;
+      int i;
+      if (size < xs.length) {
+        i = size;
+      } else {
+        long r = (long) (random.nextDouble() * numRecords);
+        if (r >= xs.length)
+          return;
+        i = (int) r;
+      }
+      shape.fromText(line);
+      Rectangle mbr = shape.getMBR();
+      if (mbr == null)
+        return;
+      xs[i] = (mbr.x1 + mbr.x2) / 2;
+      ys[i] = (mbr.y1 + mbr.y2) / 2;
+      if (i == size)
+        size++;
+    }
+  }
+
+  public static class Map extends MapReduceBase implements
+      Mapper<Rectangle, Text, NullWritable, Point> {
+
+    /**Total number of points in the sample of all map tasks*/
+    private int sampleCount;
+
+    /**Total size of the input*/
+    private long inputSize;
+
+    /**Random number generator to use*/
+    private Random random;
+
+    /**Shape instance used to parse selected lines*/
+    private Shape inShape;
+
+    /**The sample of this task. Created when the size of the split is known*/
+    private Reservoir reservoir;
+
+    /**Collects the sample when the task is closed*/
+    private OutputCollector<NullWritable, Point> output;
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      sampleCount = job.getInt(SampleCount, 0);
+      inputSize = job.getLong(InputSize, 1);
+      // Use a different seed for each task to get independent samples
+      random = new Random(job.getLong("seed", System.currentTimeMillis()) +
+          job.getInt("mapreduce.task.partition", 0));
+      inShape = OperationsParams.getShape(job, "shape");
+    }
+
+    @Override
+    public void map(Rectangle cell, Text line,
+        OutputCollector<NullWritable, Point> output, Reporter reporter)
+        throws IOException {
+      if (reservoir == null) {
+        // The share of this split in the sample
+        long splitLength = reporter.getInputSplit().getLength();
+        int capacity = (int) Math.max(1,
+            Math.ceil((double) sampleCount * splitLength / inputSize));
+        reservoir = new Reservoir(Math.min(capacity, sampleCount), random);
+        this.output = output;
+      }
+      reservoir.add(inShape, line);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (reservoir != null) {
+        Point p = new Point();
+        for (int i = 0; i < reservoir.size; i++) {
+          p.set(reservoir.xs[i], reservoir.ys[i]);
+          output.collect(NullWritable.get(), p);
+        }
+      }
+      super.close();
+    }
+  }
+
+  /**
+   * Reads a random sample of the given size from the given files.
+   * @param files
+   * @param sampleCount - number of points to sample
+   * @param params
+   * @return - two arrays with the x and y coordinates of the sampled points
+   * @throws IOException
+   */
+  public static double[][] sample(Path[] files, int sampleCount,
+      OperationsParams params) throws IOException {
+    FileSystem fs = files[0].getFileSystem(params);
+    FileStatus inFStatus = fs.getFileStatus(files[0]);
+    if (params.getBoolean("local", false) || (files.length == 1 &&
+        !inFStatus.isDir() && inFStatus.getLen() <= inFStatus.getBlockSize())) {
+      // A single small file, process it without MapReduce
+      return sampleLocal(files, sampleCount, params);
+    } else {
+      return sampleMapReduce(files, sampleCount, params);
+    }
+  }
+
+  private static double[][] sampleMapReduce(Path[] files, int sampleCount,
+      OperationsParams params) throws IOException {
+    JobConf job = new JobConf(params, ReservoirSampler.class);
+
+    Path outputPath;
+    FileSystem outFs = FileSystem.get(job);
+    do {
+      outputPath = new Path(files[0].toUri().getPath()+
+          ".sample_"+(int)(Math.random()*1000000));
+    } while (outFs.exists(outputPath));
+
+    long inputSize = 0;
+    for (Path file : files)
+      inputSize += FileUtil.getPathSize(file.getFileSystem(job), file);
+    job.setInt(SampleCount, sampleCount);
+    job.setLong(InputSize, Math.max(1, inputSize));
+
+    job.setJobName("ReservoirSample");
+    job.setMapOutputKeyClass(NullWritable.class);
+    job.setMapOutputValueClass(Point.class);
+    job.setOutputKeyClass(NullWritable.class);
+    job.setOutputValueClass(Point.class);
+
+    job.setMapperClass(Map.class);
+    // All reservoirs are merged in one reducer
+    job.setReducerClass(IdentityReducer.class);
+    job.setNumReduceTasks(1);
+
+    ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
+    job.setNumMapTasks(clusterStatus.getMaxMapTasks() * 5);
+
+    job.setInputFormat(ShapeLineInputFormat.class);
+    job.setOutputFormat(SequenceFileOutputFormat.class);
+    ShapeLineInputFormat.setInputPaths(job, files);
+    SequenceFileOutputFormat.setOutputPath(job, outputPath);
+
+    RunningJob runJob = JobClient.runJob(job);
+    Counters counters = runJob.getCounters();
+    int resultCount = (int) counters.findCounter(
+        Task.Counter.REDUCE_OUTPUT_RECORDS).getValue();
+    LOG.info("Read a sample of "+resultCount+" points");
+
+    // Read the sample directly into arrays of coordinates
+    double[] xs = new double[resultCount];
+    double[] ys = new double[resultCount];
+    int i = 0;
+    FileStatus[] resultFiles = outFs.listStatus(outputPath, new PathFilter() {
+      @Override
+      public boolean accept(Path path) {
+        return !path.getName().startsWith("_") && !path.getName().startsWith(".");
+      }
+    });
+    NullWritable key = NullWritable.get();
+    Point p = new Point();
+    for (FileStatus resultFile : resultFiles) {
+      SequenceFile.Reader reader = new SequenceFile.Reader(outFs,
+          resultFile.getPath(), job);
+      while (i < resultCount && reader.next(key, p)) {
+        xs[i] = p.x;
+        ys[i] = p.y;
+        i++;
+      }
+      reader.close();
+    }
+    outFs.delete(outputPath, true);
+
+    return new double[][] {xs, ys};
+  }
+
+  private static double[][] sampleLocal(Path[] files, int sampleCount,
+      OperationsParams params) throws IOException {
+    JobConf job = new JobConf(params, ReservoirSampler.class);
+    Random random = new Random(params.getLong("seed", System.currentTimeMillis()));
+    Reservoir reservoir = new Reservoir(sampleCount, random);
+    Shape inShape = params.getShape("shape");
+
+    ShapeLineInputFormat inputFormat = new ShapeLineInputFormat();
+    ShapeLineInputFormat.setInputPaths(job, files);
+    InputSplit[] splits = inputFormat.getSplits(job, 1);
+    for (InputSplit split : splits) {
+      RecordReader<Rectangle, Text> reader = inputFormat.getRecordReader(split, job, null);
+      Rectangle key = reader.createKey();
+      Text value = reader.createValue();
+      while (reader.next(key, value))
+        reservoir.add(inShape, value);
+      reader.close();
+    }
+    LOG.info("Read a sample of "+reservoir.size+" points out of "+
+        reservoir.numRecords+" records");
+
+    double[] xs = new double[reservoir.size];
+    double[] ys = new double[reservoir.size];
+    System.arraycopy(reservoir.xs, 0, xs, 0, reservoir.size);
+    System.arraycopy(reservoir.ys, 0, ys, 0, reservoir.size);
+    return new double[][] {xs, ys};
+  }
+}
@@ -11,17 +11,25 @@ package edu.umn.cs.spatialHadoop.operations;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.mapred.ClusterStatus;
 import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.Counters.Counter;
@@ -33,6 +41,7 @@ import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Partitioner;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
@@ -43,11 +52,17 @@ import org.apache.hadoop.util.GenericOptionsParser;
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.CellInfo;
 import edu.umn.cs.spatialHadoop.core.GridInfo;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.PreparedGeometryCache;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
-import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
+import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms.IndexPairCollector;
+import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms.MBRList;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.KdTreePartitioner;
+import edu.umn.cs.spatialHadoop.indexing.QuadTreePartitioner;
 import edu.umn.cs.spatialHadoop.mapred.ShapeLineInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
@@ -80,24 +95,242 @@ public class SJMR {
   
 
   
-  public static class IndexedText implements Writable {
+  /**
+   * A map output key that holds a cell ID and the index of the input file.
+   * Records of a cell are sorted by file index so that the reducer receives
+   * all records of the first file before any record of the second file. Only
+   * the cell ID is used for partitioning and grouping.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class CellFileKey implements WritableComparable<CellFileKey> {
+    public int cellId;
     public byte index;
-    public Text text;
-    
-    IndexedText() {
-      text = new Text();
+
+    public CellFileKey() {
     }
-    
+
     @Override
     public void write(DataOutput out) throws IOException {
+      out.writeInt(cellId);
       out.writeByte(index);
-      text.write(out);
     }
-    
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      cellId = in.readInt();
+      index = in.readByte();
+    }
+
+    @Override
+    public int compareTo(CellFileKey o) {
+      if (this.cellId != o.cellId)
+        return this.cellId < o.cellId ? -1 : 1;
+      return this.index - o.index;
+    }
+
+    @Override
+    public int hashCode() {
+      return cellId;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof CellFileKey))
+        return false;
+      CellFileKey o = (CellFileKey) obj;
+      return this.cellId == o.cellId && this.index == o.index;
+    }
+
+    /**Compares keys in their serialized form by cell ID then file index*/
+    public static class Comparator extends WritableComparator {
+      public Comparator() {
+        super(CellFileKey.class);
+      }
+
+      @Override
+      public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        int cellId1 = readInt(b1, s1);
+        int cellId2 = readInt(b2, s2);
+        if (cellId1 != cellId2)
+          return cellId1 < cellId2 ? -1 : 1;
+        return b1[s1 + 4] - b2[s2 + 4];
+      }
+    }
+
+    /**Groups keys in their serialized form by the cell ID only*/
+    public static class GroupingComparator extends WritableComparator {
+      public GroupingComparator() {
+        super(CellFileKey.class);
+      }
+
+      @Override
+      public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+        int cellId1 = readInt(b1, s1);
+        int cellId2 = readInt(b2, s2);
+        return cellId1 < cellId2 ? -1 : (cellId1 > cellId2 ? 1 : 0);
+      }
+
+      @Override
+      public int compare(WritableComparable a, WritableComparable b) {
+        int cellId1 = ((CellFileKey)a).cellId;
+        int cellId2 = ((CellFileKey)b).cellId;
+        return cellId1 < cellId2 ? -1 : (cellId1 > cellId2 ? 1 : 0);
+      }
+    }
+
+    static {
+      WritableComparator.define(CellFileKey.class, new Comparator());
+    }
+  }
+
+  /**Sends all records of a cell to the same reducer regardless of the file*/
+  public static class CellPartitioner implements Partitioner<CellFileKey, IndexedShape> {
+    /**Assignment of cells to reducers if computed from a sample*/
+    private Map<Integer, Integer> assignment;
+
+    @Override
+    public void configure(JobConf job) {
+      assignment = CellLoadBalancer.getAssignment(job);
+    }
+
+    @Override
+    public int getPartition(CellFileKey key, IndexedShape value, int numPartitions) {
+      return CellLoadBalancer.getReducer(assignment, key.cellId, numPartitions);
+    }
+  }
+
+  /**
+   * A record shuffled from the map to the reduce function. It holds the index
+   * of the file, the MBR of the shape and the shape in its binary form. The
+   * reducer runs the filter step on the MBRs and deserializes only the shapes
+   * of candidate pairs.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class IndexedShape implements Writable {
+    public byte index;
+    public double x1, y1, x2, y2;
+    /**The shape as written by {@link Shape#write(DataOutput)}*/
+    public byte[] data = new byte[64];
+    /**Number of bytes used in {@link #data}*/
+    public int length;
+
+    public IndexedShape() {
+    }
+
+    /**
+     * Sets the MBR and binary representation of the given shape
+     * @param shape
+     * @param mbr
+     * @param buffer - a temporary buffer used to serialize the shape
+     * @throws IOException
+     */
+    public void set(Shape shape, Rectangle mbr, DataOutputBuffer buffer)
+        throws IOException {
+      this.x1 = mbr.x1;
+      this.y1 = mbr.y1;
+      this.x2 = mbr.x2;
+      this.y2 = mbr.y2;
+      buffer.reset();
+      shape.write(buffer);
+      this.length = buffer.getLength();
+      if (data.length < length)
+        data = new byte[length];
+      System.arraycopy(buffer.getData(), 0, data, 0, length);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      out.writeByte(index);
+      out.writeDouble(x1);
+      out.writeDouble(y1);
+      out.writeDouble(x2);
+      out.writeDouble(y2);
+      WritableUtils.writeVInt(out, length);
+      out.write(data, 0, length);
+    }
+
     @Override
     public void readFields(DataInput in) throws IOException {
       index = in.readByte();
-      text.readFields(in);
+      x1 = in.readDouble();
+      y1 = in.readDouble();
+      x2 = in.readDouble();
+      y2 = in.readDouble();
+      length = WritableUtils.readVInt(in);
+      if (data.length < length)
+        data = new byte[length];
+      in.readFully(data, 0, length);
+    }
+  }
+
+  /**
+   * Keeps the records of one file in a cell as MBRs in primitive arrays and
+   * shapes in their binary form. A shape is deserialized only the first time
+   * it is requested.
+   * @author Ahmed Eldawy
+   *
+   */
+  static class ShapeBuffer<S extends Shape> {
+    double[] x1s = new double[16], y1s = new double[16];
+    double[] x2s = new double[16], y2s = new double[16];
+    /**Start offset of each shape in data. Shape i ends at offset i+1*/
+    int[] offsets = new int[17];
+    byte[] data = new byte[1024];
+    /**Shapes that have been deserialized*/
+    Shape[] shapes = new Shape[16];
+    int size;
+    private final S stockShape;
+    private final DataInputBuffer in = new DataInputBuffer();
+
+    ShapeBuffer(S stockShape) {
+      this.stockShape = stockShape;
+    }
+
+    void add(IndexedShape value) {
+      if (size == x1s.length) {
+        int newCapacity = size * 2;
+        x1s = Arrays.copyOf(x1s, newCapacity);
+        y1s = Arrays.copyOf(y1s, newCapacity);
+        x2s = Arrays.copyOf(x2s, newCapacity);
+        y2s = Arrays.copyOf(y2s, newCapacity);
+        offsets = Arrays.copyOf(offsets, newCapacity + 1);
+        shapes = Arrays.copyOf(shapes, newCapacity);
+      }
+      int offset = offsets[size];
+      if (offset + value.length > data.length)
+        data = Arrays.copyOf(data, Math.max(data.length * 2, offset + value.length));
+      System.arraycopy(value.data, 0, data, offset, value.length);
+      x1s[size] = value.x1;
+      y1s[size] = value.y1;
+      x2s[size] = value.x2;
+      y2s[size] = value.y2;
+      offsets[size + 1] = offset + value.length;
+      size++;
+    }
+
+    S getShape(int i) throws IOException {
+      if (shapes[i] == null) {
+        Shape shape = stockShape.clone();
+        in.reset(data, offsets[i], offsets[i + 1] - offsets[i]);
+        shape.readFields(in);
+        shapes[i] = shape;
+      }
+      return (S) shapes[i];
+    }
+
+    MBRList getMBRs() {
+      return new MBRList(x1s, y1s, x2s, y2s, size);
+    }
+
+    int size() {
+      return size;
+    }
+
+    void clear() {
+      Arrays.fill(shapes, 0, size, null);
+      size = 0;
     }
   }
   
@@ -138,11 +371,14 @@ public class SJMR {
    */
   public static class SJMRMap extends MapReduceBase
   implements
-  Mapper<Rectangle, Text, IntWritable, IndexedText> {
+  Mapper<Rectangle, Text, CellFileKey, IndexedShape> {
     private Shape shape;
-    private IndexedText outputValue = new IndexedText();
+    private IndexedShape outputValue = new IndexedShape();
+    private DataOutputBuffer serializationBuffer = new DataOutputBuffer();
     private GridInfo gridInfo;
-    private IntWritable cellId = new IntWritable();
+    /**Partitioner built from a sample, used if no uniform grid is set*/
+    private edu.umn.cs.spatialHadoop.indexing.Partitioner partitioner;
+    private CellFileKey cellId = new CellFileKey();
     private Path[] inputFiles;
     private InputSplit currentSplit;
     
@@ -151,6 +387,8 @@ public class SJMR {
       super.configure(job);
       // Retrieve grid to use for partitioning
       gridInfo = (GridInfo) OperationsParams.getShape(job, PartitionGrid);
+      if (gridInfo == null)
+        partitioner = edu.umn.cs.spatialHadoop.indexing.Partitioner.getPartitioner(job);
       // Create a stock shape for deserializing lines
       shape = SpatialSite.createStockShape(job);
       // Get input paths to determine file index for every record
@@ -159,7 +397,7 @@ public class SJMR {
 
     @Override
     public void map(Rectangle cellMbr, Text value,
-        OutputCollector<IntWritable, IndexedText> output,
+        final OutputCollector<CellFileKey, IndexedShape> output,
         Reporter reporter) throws IOException {
       if (reporter.getInputSplit() != currentSplit) {
       	FileSplit fsplit = (FileSplit) reporter.getInputSplit();
@@ -168,24 +406,37 @@ public class SJMR {
       			outputValue.index = (byte) i;
       		}
       	}
+      	cellId.index = outputValue.index;
       	currentSplit = reporter.getInputSplit();
       }
       
-
-      Text tempText = new Text(value);
-      outputValue.text = value;
-      shape.fromText(tempText);
-      Rectangle shape_mbr = shape.getMBR();
+      shape.fromText(value);
+      Rectangle shapeMBR = shape.getMBR();
+      if (shapeMBR == null)
+        return;
       // Do a reference point technique to avoid processing the same record twice
-      if (!cellMbr.isValid() || cellMbr.contains(shape_mbr.x1, shape_mbr.y1)) {
-        Rectangle shapeMBR = shape.getMBR();
-        if (shapeMBR == null)
+      if (!cellMbr.isValid() || cellMbr.contains(shapeMBR.x1, shapeMBR.y1)) {
+        // Serialize the shape once for all the cells it is replicated to
+        outputValue.set(shape, shapeMBR, serializationBuffer);
+
+        if (gridInfo == null) {
+          partitioner.overlapPartitions(shapeMBR, new ResultCollector<Integer>() {
+            @Override
+            public void collect(Integer id) {
+              cellId.cellId = id;
+              try {
+                output.collect(cellId, outputValue);
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+            }
+          });
           return;
-
+        }
         java.awt.Rectangle cells = gridInfo.getOverlappingCells(shapeMBR);
         for (int col = cells.x; col < cells.x + cells.width; col++) {
           for (int row = cells.y; row < cells.y + cells.height; row++) {
-            cellId.set(row * gridInfo.columns + col + 1);
+            cellId.cellId = row * gridInfo.columns + col + 1;
             output.collect(cellId, outputValue);
           }
         }
@@ -236,27 +487,30 @@ public class SJMR {
   }
   
   public static class SJMRReduce<S extends Shape> extends MapReduceBase implements
-  Reducer<IntWritable, IndexedText, S, S> {
+  Reducer<CellFileKey, IndexedShape, S, S> {
 	 /**Class logger*/
 	 private static final Log sjmrReduceLOG = LogFactory.getLog(SJMRReduce.class);
 	  
-    /**Number of files in the input*/
-    private int inputFileCount;
-    
     /**List of cells used by the reducer*/
     private GridInfo grid;
+    /**Partitioner built from a sample, used if no uniform grid is set*/
+    private edu.umn.cs.spatialHadoop.indexing.Partitioner partitioner;
     private boolean inactiveMode;
 	private boolean isFilterOnly;
 	private int shapesThresholdPerOnce;
 	
-    private S shape;
+    /**Records of the first and second files in the current cell*/
+    private ShapeBuffer<S> leftShapes, rightShapes;
     
     @Override
     public void configure(JobConf job) {
       super.configure(job);
       grid = (GridInfo) OperationsParams.getShape(job, PartitionGrid);
-      shape = (S) SpatialSite.createStockShape(job);
-      inputFileCount = FileInputFormat.getInputPaths(job).length;
+      if (grid == null)
+        partitioner = edu.umn.cs.spatialHadoop.indexing.Partitioner.getPartitioner(job);
+      S shape = (S) SpatialSite.createStockShape(job);
+      leftShapes = new ShapeBuffer<S>(shape);
+      rightShapes = new ShapeBuffer<S>(shape);
       inactiveMode = OperationsParams.getInactiveModeFlag(job, InactiveMode);
 	  isFilterOnly = OperationsParams.getFilterOnlyModeFlag(job, isFilterOnlyMode);
 	  shapesThresholdPerOnce = OperationsParams.getJoiningThresholdPerOnce(job, JoiningThresholdPerOnce);
@@ -264,7 +518,7 @@ public class SJMR {
     }
 
     @Override
-    public void reduce(IntWritable cellId, Iterator<IndexedText> values,
+    public void reduce(CellFileKey key, Iterator<IndexedShape> values,
         final OutputCollector<S, S> output, Reporter reporter)
             throws IOException {
       if(!inactiveMode){
@@ -272,67 +526,33 @@ public class SJMR {
         long t1 = System.currentTimeMillis();	
 
         // Extract CellInfo (MBR) for duplicate avoidance checking
-        final CellInfo cellInfo = grid.getCell(cellId.get());
-
-        // Partition retrieved shapes (values) into lists for each file
-        List<S>[] shapeLists = new List[inputFileCount];
-        for (int i = 0; i < shapeLists.length; i++) {
-          shapeLists[i] = new Vector<S>();
-        }
-
+        final CellInfo cellInfo = grid != null ? grid.getCell(key.cellId)
+            : partitioner.getPartition(key.cellId);
+        leftShapes.clear();
+        rightShapes.clear();
+        MBRList leftMBRs = null;
+        final PreparedGeometryCache preparedCache = new PreparedGeometryCache();
+
+        // Values are sorted by file index. All records of the first file are
+        // kept while records of the second file are joined in batches.
         while (values.hasNext()) {
-          do{
-            IndexedText t = values.next();
-            S s = (S) shape.clone();
-            s.fromText(t.text);
-            shapeLists[t.index].add(s);	
-          } while(values.hasNext() && shapeLists[1].size() < shapesThresholdPerOnce);
-
-          // Perform spatial join between the two lists
-          sjmrReduceLOG.info("Joining (" + shapeLists[0].size() +" X "+ shapeLists[1].size()+ ")...");
-          if(isFilterOnly){
-            SpatialAlgorithms.SpatialJoin_planeSweepFilterOnly(shapeLists[0], shapeLists[1], new ResultCollector2<S, S>() {
-              @Override
-              public void collect(S x, S y) {
-                if(isSpatialJoinOutputRequired){
-                  try {
-                    Rectangle intersectionMBR = x.getMBR().getIntersection(y.getMBR());
-                    // Error: intersectionMBR may be null.
-                    if (intersectionMBR != null) {
-                      if (cellInfo.contains(intersectionMBR.x1, intersectionMBR.y1)) {
-                        // Report to the reduce result collector
-                        output.collect(x, y);
-                      }
-                    }
-                  } catch (IOException e) {
-                    e.printStackTrace();
-                  }	
-                }
-              }
-            }, reporter);  
-          }else{
-            SpatialAlgorithms.SpatialJoin_planeSweep(shapeLists[0], shapeLists[1], new ResultCollector2<S, S>() {
-              @Override
-              public void collect(S x, S y) {
-                if(isSpatialJoinOutputRequired){
-                  try {
-                    Rectangle intersectionMBR = x.getMBR().getIntersection(y.getMBR());
-                    // Error: intersectionMBR may be null.
-                    if (intersectionMBR != null) {
-                      if (cellInfo.contains(intersectionMBR.x1, intersectionMBR.y1)) {
-                        // Report to the reduce result collector
-                        output.collect(x, y);
-                      }
-                    }
-                  } catch (IOException e) {
-                    e.printStackTrace();
-                  }	
-                }
-              }
-            }, reporter);
-
+          IndexedShape value = values.next();
+          if (value.index == 0) {
+            leftShapes.add(value);
+          } else if (value.index == 1) {
+            rightShapes.add(value);
+            if (rightShapes.size() >= shapesThresholdPerOnce) {
+              if (leftMBRs == null)
+                leftMBRs = leftShapes.getMBRs();
+              joinBatch(leftMBRs, cellInfo, preparedCache, output, reporter);
+              rightShapes.clear();
+            }
           }
-          shapeLists[1].clear();
+        }
+        if (rightShapes.size() > 0) {
+          if (leftMBRs == null)
+            leftMBRs = leftShapes.getMBRs();
+          joinBatch(leftMBRs, cellInfo, preparedCache, output, reporter);
         }
 
         long t2 = System.currentTimeMillis();
@@ -342,6 +562,39 @@ public class SJMR {
         LOG.info("Nothing to do !!!");	
       }
     }
+
+    /**
+     * Joins all records of the first file with the current batch of the
+     * second file. The filter step and the duplicate avoidance test run on
+     * the MBRs. Shapes are deserialized only for pairs that pass both.
+     */
+    private void joinBatch(MBRList leftMBRs, final CellInfo cellInfo,
+        final PreparedGeometryCache preparedCache,
+        final OutputCollector<S, S> output, Reporter reporter)
+        throws IOException {
+      sjmrReduceLOG.info("Joining (" + leftShapes.size() +" X "+ rightShapes.size()+ ")...");
+      // Shapes with touching MBRs might intersect so they are refined as well
+      SpatialAlgorithms.planeSweepMBRs(leftMBRs, rightShapes.getMBRs(), !isFilterOnly,
+          new IndexPairCollector() {
+        @Override
+        public void collect(int i, int j) throws IOException {
+          // Perform a reference point duplicate avoidance technique on the
+          // intersection of the two MBRs
+          double refX = Math.max(leftShapes.x1s[i], rightShapes.x1s[j]);
+          double refY = Math.max(leftShapes.y1s[i], rightShapes.y1s[j]);
+          if (!cellInfo.contains(refX, refY))
+            return;
+          S x = leftShapes.getShape(i);
+          S y = rightShapes.getShape(j);
+          if (!isFilterOnly && !(preparedCache.isIntersected(x, y) && !x.equals(y)))
+            return;
+          if (isSpatialJoinOutputRequired) {
+            // Report to the reduce result collector
+            output.collect(x, y);
+          }
+        }
+      }, reporter);
+    }
   }
 
   public static <S extends Shape> long sjmr(Path[] inFiles,
@@ -363,8 +616,11 @@ public class SJMR {
     ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
     job.setJobName("SJMR");
     job.setMapperClass(SJMRMap.class);
-    job.setMapOutputKeyClass(IntWritable.class);
-    job.setMapOutputValueClass(IndexedText.class);
+    job.setMapOutputKeyClass(CellFileKey.class);
+    job.setMapOutputValueClass(IndexedShape.class);
+    job.setPartitionerClass(CellPartitioner.class);
+    job.setOutputKeyComparatorClass(CellFileKey.Comparator.class);
+    job.setOutputValueGroupingComparator(CellFileKey.GroupingComparator.class);
     job.setNumMapTasks(5 * Math.max(1, clusterStatus.getMaxMapTasks()));
     job.setLong("mapred.min.split.size",
         Math.max(inFs.getFileStatus(inFiles[0]).getBlockSize(),
@@ -402,9 +658,14 @@ public class SJMR {
     OperationsParams.setJoiningThresholdPerOnce(job, JoiningThresholdPerOnce, joiningThresholdPerOnce);
 	OperationsParams.setFilterOnlyModeFlag(job, isFilterOnlyMode, isFilterOnly);
 	
-    GridInfo gridInfo = new GridInfo(mbr.x1, mbr.y1, mbr.x2, mbr.y2);
-    gridInfo.calculateCellDimensions(num_cells);
-    OperationsParams.setShape(job, PartitionGrid, gridInfo);
+    String partitionerName = params.get("partitioner", "grid").toLowerCase();
+    if (partitionerName.equals("grid")) {
+      GridInfo gridInfo = new GridInfo(mbr.x1, mbr.y1, mbr.x2, mbr.y2);
+      gridInfo.calculateCellDimensions(num_cells);
+      OperationsParams.setShape(job, PartitionGrid, gridInfo);
+    } else {
+      createSampledPartitioner(job, inFiles, mbr, num_cells, partitionerName);
+    }
     
     TextOutputFormat.setOutputPath(job, outputPath);
     
@@ -422,6 +683,59 @@ public class SJMR {
     return resultCount;
   }
   
+  /**
+   * Partitions the space using a sample of the input files so that dense
+   * regions are split into more cells than sparse ones. Cells that are still
+   * heavier than the average load of a reducer are split further. The load
+   * of each cell is estimated from the sample and cells are assigned to
+   * reducers according to their loads.
+   * @param job
+   * @param inFiles
+   * @param mbr - the MBR of all input files
+   * @param numCells - the desired number of cells
+   * @param partitionerName - either kdtree or quadtree
+   * @throws IOException
+   */
+  private static void createSampledPartitioner(JobConf job, Path[] inFiles,
+      Rectangle mbr, int numCells, String partitionerName) throws IOException {
+    edu.umn.cs.spatialHadoop.indexing.Partitioner partitioner;
+    if (partitionerName.equals("kdtree"))
+      partitioner = new KdTreePartitioner();
+    else if (partitionerName.equals("quadtree"))
+      partitioner = new QuadTreePartitioner();
+    else
+      throw new RuntimeException("Unsupported partitioner '"+partitionerName+"'");
+
+    final List<Point> sample = new ArrayList<Point>();
+    OperationsParams sampleParams = new OperationsParams(job);
+    sampleParams.setFloat("ratio", job.getFloat(SpatialSite.SAMPLE_RATIO, 0.01f));
+    sampleParams.setLong("size", job.getLong(SpatialSite.SAMPLE_SIZE, 100 * 1024 * 1024));
+    sampleParams.setClass("outshape", Point.class, Shape.class);
+    Sampler.sample(inFiles, new ResultCollector<Point>() {
+      @Override
+      public void collect(Point p) {
+        sample.add(p.clone());
+      }
+    }, sampleParams);
+    LOG.info("Finished reading a sample of "+sample.size()+" records");
+
+    Point[] samplePoints = sample.toArray(new Point[sample.size()]);
+    int capacity = (int) Math.max(1, Math.ceil((double)samplePoints.length / numCells));
+    partitioner.createFromPoints(mbr, samplePoints, capacity);
+    LOG.info("Partitioned the space into "+partitioner.getPartitionCount()+" cells");
+    partitioner = CellLoadBalancer.splitHotCells(partitioner, samplePoints,
+        job.getNumReduceTasks());
+    edu.umn.cs.spatialHadoop.indexing.Partitioner.setPartitioner(job, partitioner);
+
+    int[] cellIds = new int[partitioner.getPartitionCount()];
+    for (int i = 0; i < cellIds.length; i++)
+      cellIds[i] = partitioner.getPartitionAt(i).cellId;
+    long[] loads = CellLoadBalancer.estimateLoads(partitioner, samplePoints);
+    int[] reducers = CellLoadBalancer.assignCells(cellIds, loads,
+        job.getNumReduceTasks());
+    CellLoadBalancer.setAssignment(job, cellIds, reducers);
+  }
+
   private static void printUsage() {
     System.out.println("Performs a spatial join between two files using the distributed join algorithm");
     System.out.println("Parameters: (* marks the required parameters)");
@@ -429,6 +743,7 @@ public class SJMR {
     System.out.println("<input file 2> - (*) Path to the second input file");
     System.out.println("<output file> - Path to output file");
     System.out.println("partition-grid-factor:<value> - Patitioning grid factor (its default value is 20)");
+    System.out.println("partitioner:<grid|kdtree|quadtree> - How to partition the space (default: grid)");
     System.out.println("-overwrite - Overwrite output file without notice");
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
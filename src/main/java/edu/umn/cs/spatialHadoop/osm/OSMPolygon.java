@@ -21,6 +21,7 @@ import com.vividsolutions.jts.geom.Geometry;
 
 import edu.umn.cs.spatialHadoop.core.OGCJTSShape;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 public class OSMPolygon extends OGCJTSShape implements WritableComparable<OSMPolygon> {
@@ -47,8 +48,10 @@ public class OSMPolygon extends OGCJTSShape implements WritableComparable<OSMPol
   
   @Override
   public void fromText(Text text) {
-    id = TextSerializerHelper.consumeLong(text, SEPARATOR);
-    this.geom = TextSerializerHelper.consumeGeometryJTS(text, SEPARATOR);
+    TextCursor cursor = new TextCursor(text);
+    id = cursor.nextLong(SEPARATOR);
+    this.geom = TextSerializerHelper.consumeGeometryJTS(cursor, SEPARATOR);
+    cursor.consume(text);
     // Read the tags
     tags.clear();
     TextSerializerHelper.consumeMap(text, tags);
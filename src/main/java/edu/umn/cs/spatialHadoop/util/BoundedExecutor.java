@@ -0,0 +1,266 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.util;
+
+import java.io.IOException;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * Runs background tasks, e.g., closing partitions and building their local
+ * indexes, on a fixed number of threads. Each task declares an estimate of
+ * the memory it needs and a task is not accepted until enough memory is
+ * available and the number of pending tasks is below a limit. This blocks the
+ * submitting thread (back-pressure) rather than letting many concurrent
+ * tasks exhaust the heap. A task larger than the whole memory budget is still
+ * accepted but runs alone.
+ * @author Ahmed Eldawy
+ *
+ */
+public class BoundedExecutor {
+  static final Log LOG = LogFactory.getLog(BoundedExecutor.class);
+
+  /**Number of threads that run background tasks in parallel*/
+  public static final String NumThreads = "spatialHadoop.background.threads";
+
+  /**Total memory (in bytes) that can be reserved by running tasks*/
+  public static final String MemoryBudget = "spatialHadoop.background.memory";
+
+  /**Counters reported by users of this executor*/
+  public static enum Counters {
+    /**Number of tasks that completed*/
+    BACKGROUND_TASKS,
+    /**Total time spent running tasks in milliseconds*/
+    BACKGROUND_TIME_MILLIS,
+    /**Total time the submitting thread waited for free resources*/
+    BACKGROUND_BLOCKED_MILLIS,
+  }
+
+  /**The executor shared by all users in this JVM*/
+  private static BoundedExecutor shared;
+
+  /**The threads that run the tasks*/
+  private final ExecutorService executor;
+
+  /**Available memory in KB*/
+  private final Semaphore memory;
+
+  /**Total memory budget in KB*/
+  private final int memoryBudgetKB;
+
+  /**Available places for pending tasks*/
+  private final Semaphore slots;
+
+  /**Number of tasks that are either running or waiting for a thread*/
+  private final AtomicInteger numPendingTasks = new AtomicInteger();
+
+  /**
+   * Returns the executor shared by all users in this JVM. It is created on
+   * the first call using the given configuration.
+   * @param conf
+   * @return
+   */
+  public static synchronized BoundedExecutor getShared(Configuration conf) {
+    if (shared == null) {
+      int numThreads = conf.getInt(NumThreads,
+          Runtime.getRuntime().availableProcessors());
+      long memoryBudget = conf.getLong(MemoryBudget,
+          Runtime.getRuntime().maxMemory() / 4);
+      LOG.info("Running background tasks on "+numThreads+
+          " threads with a memory budget of "+memoryBudget+" bytes");
+      shared = new BoundedExecutor(numThreads, memoryBudget);
+    }
+    return shared;
+  }
+
+  /**
+   * Creates a new executor.
+   * @param numThreads - number of tasks that run in parallel
+   * @param memoryBudget - total memory in bytes that running and waiting
+   *   tasks can reserve
+   */
+  public BoundedExecutor(int numThreads, long memoryBudget) {
+    numThreads = Math.max(1, numThreads);
+    this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+      private int threadCount;
+      @Override
+      public synchronized Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Background task #"+(threadCount++));
+        // Do not prevent the JVM from exiting
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.memoryBudgetKB = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget >> 10));
+    this.memory = new Semaphore(memoryBudgetKB, true);
+    this.slots = new Semaphore(numThreads * 2, true);
+  }
+
+  /**
+   * Creates a new group to keep track of the tasks submitted by one user.
+   * @return
+   */
+  public TaskGroup createGroup() {
+    return new TaskGroup();
+  }
+
+  /**
+   * Number of tasks that are either running or waiting for a thread.
+   * @return
+   */
+  public int getNumPendingTasks() {
+    return numPendingTasks.get();
+  }
+
+  /**
+   * A set of tasks submitted by one user, e.g., a record writer, which can
+   * wait for all of them to finish and collect their errors and statistics.
+   * @author Ahmed Eldawy
+   *
+   */
+  public class TaskGroup {
+    /**Tasks submitted by this group*/
+    private final Vector<Future<?>> tasks = new Vector<Future<?>>();
+    /**Errors thrown by tasks of this group*/
+    private final Vector<Throwable> errors = new Vector<Throwable>();
+    /**Number of submitted tasks*/
+    private int numSubmittedTasks;
+    /**Number of completed tasks*/
+    private final AtomicInteger numCompletedTasks = new AtomicInteger();
+    /**Total run time of all tasks*/
+    private final AtomicLong runTime = new AtomicLong();
+    /**Total time spent in waiting for free resources to submit tasks*/
+    private long blockedTime;
+    /**Maximum number of pending tasks seen at submission time*/
+    private int maxQueueDepth;
+
+    /**
+     * Submits a task to run in the background. Blocks until the given
+     * amount of memory can be reserved for the task.
+     * @param task
+     * @param memoryBytes - an estimate of the memory used by the task
+     * @throws IOException
+     */
+    public void submit(final Runnable task, long memoryBytes) throws IOException {
+      final int permits = (int) Math.min(memoryBudgetKB, (memoryBytes + 1023) >> 10);
+      long t1 = System.currentTimeMillis();
+      try {
+        slots.acquire();
+        try {
+          memory.acquire(permits);
+        } catch (InterruptedException e) {
+          slots.release();
+          throw e;
+        }
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while submitting a background task", e);
+      }
+      long t2 = System.currentTimeMillis();
+      blockedTime += t2 - t1;
+      maxQueueDepth = Math.max(maxQueueDepth, numPendingTasks.incrementAndGet());
+      numSubmittedTasks++;
+      tasks.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          long t1 = System.currentTimeMillis();
+          try {
+            task.run();
+          } catch (Throwable e) {
+            errors.add(e);
+          } finally {
+            runTime.addAndGet(System.currentTimeMillis() - t1);
+            numCompletedTasks.incrementAndGet();
+            numPendingTasks.decrementAndGet();
+            memory.release(permits);
+            slots.release();
+          }
+        }
+      }));
+    }
+
+    /**
+     * Waits until all tasks in this group finish.
+     * @param progress - used to indicate progress while waiting (optional)
+     * @throws IOException - if any of the tasks failed
+     */
+    public void waitForAll(Progressable progress) throws IOException {
+      for (int i = 0; i < tasks.size(); i++) {
+        Future<?> task = tasks.get(i);
+        boolean done = false;
+        while (!done) {
+          try {
+            // Use limited time wait to indicate progress frequently
+            task.get(10, TimeUnit.SECONDS);
+            done = true;
+          } catch (TimeoutException e) {
+          } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for background tasks", e);
+          } catch (ExecutionException e) {
+            // Should not happen as tasks catch their own errors
+            errors.add(e.getCause());
+            done = true;
+          }
+          if (progress != null)
+            progress.progress();
+        }
+      }
+      tasks.clear();
+      if (!errors.isEmpty()) {
+        for (Throwable t : errors)
+          LOG.error("Error in background task", t);
+        throw new IOException("Encountered "+errors.size()+
+            " errors in background tasks", errors.firstElement());
+      }
+    }
+
+    /**
+     * Number of tasks in this group that did not finish yet.
+     * @return
+     */
+    public int getNumRemainingTasks() {
+      return numSubmittedTasks - numCompletedTasks.get();
+    }
+
+    public int getNumCompletedTasks() {
+      return numCompletedTasks.get();
+    }
+
+    public long getRunTime() {
+      return runTime.get();
+    }
+
+    public long getBlockedTime() {
+      return blockedTime;
+    }
+
+    /**
+     * Maximum number of pending tasks of this group seen at submission. This
+     * is a peak of one task group so it is logged rather than added to a job
+     * counter where the peaks of all tasks would be summed.
+     * @return
+     */
+    public int getMaxQueueDepth() {
+      return maxQueueDepth;
+    }
+  }
+}
@@ -8,6 +8,8 @@
 *************************************************************************/
 package edu.umn.cs.spatialHadoop.util;
 
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Vector;
 
@@ -106,6 +108,189 @@ public class Parallel {
     return results;
   }
 
+  /**Ranges smaller than this are sorted in the calling thread*/
+  private static final int MinParallelSortSize = 1 << 13;
+
+  /**
+   * The array being sorted by {@link #mergeSort(SortBuffers, int, int, int)}
+   * along with a temporary buffer of the same length. Buffer 0 is the array
+   * and buffer 1 is the temporary buffer. This allows one parallel merge sort
+   * to work on arrays of objects and primitives.
+   * @author Ahmed Eldawy
+   *
+   */
+  private static interface SortBuffers {
+    /**Sorts the given range of buffer 0 in the calling thread*/
+    void sortRange(int fromIndex, int toIndex);
+    /**Tests whether element i is less than or equal to element j in a buffer*/
+    boolean lessOrEqual(int buffer, int i, int j);
+    /**Copies element i of a buffer to position j of the other buffer*/
+    void copy(int buffer, int i, int j);
+    /**Copies length elements starting at i in a buffer to j in the other*/
+    void copyRange(int buffer, int i, int j, int length);
+  }
+
+  /**
+   * Sorts a range of buffer 0 using the given number of threads. The range
+   * is divided into equal chunks which are sorted in parallel and then
+   * merged in pairs in parallel, alternating between the two buffers. The
+   * sort is stable as the merge prefers the left chunk for equal elements.
+   * @param b - the array to sort and its temporary buffer
+   * @param fromIndex - the index of the first element to sort
+   * @param toIndex - the index after the last element to sort
+   * @param parallelism - number of threads to use
+   * @throws InterruptedException
+   */
+  private static void mergeSort(final SortBuffers b, int fromIndex,
+      int toIndex, int parallelism) throws InterruptedException {
+    int length = toIndex - fromIndex;
+    final int[] runs = new int[parallelism + 1];
+    for (int i = 0; i <= parallelism; i++)
+      runs[i] = fromIndex + (int) ((long) i * length / parallelism);
+    forEach(0, parallelism, new RunnableRange<Object>() {
+      @Override
+      public Object run(int i1, int i2) {
+        for (int i = i1; i < i2; i++)
+          b.sortRange(runs[i], runs[i + 1]);
+        return null;
+      }
+    }, parallelism);
+    // Merge sorted runs in pairs until one run remains
+    int src = 0;
+    int[] srcRuns = runs;
+    int numRuns = parallelism;
+    while (numRuns > 1) {
+      final int from = src;
+      final int[] fromRuns = srcRuns;
+      final int numMerges = (numRuns + 1) / 2;
+      final int lastRun = numRuns;
+      forEach(0, numMerges, new RunnableRange<Object>() {
+        @Override
+        public Object run(int i1, int i2) {
+          for (int i = i1; i < i2; i++) {
+            int i_left = fromRuns[2 * i], end_left = fromRuns[2 * i + 1];
+            int i_right = end_left;
+            int end_right = 2 * i + 2 <= lastRun ? fromRuns[2 * i + 2] : end_left;
+            int i_out = i_left;
+            while (i_left < end_left && i_right < end_right) {
+              if (b.lessOrEqual(from, i_left, i_right))
+                b.copy(from, i_left++, i_out++);
+              else
+                b.copy(from, i_right++, i_out++);
+            }
+            if (i_left < end_left)
+              b.copyRange(from, i_left, i_out, end_left - i_left);
+            if (i_right < end_right)
+              b.copyRange(from, i_right, i_out, end_right - i_right);
+          }
+          return null;
+        }
+      }, parallelism);
+      int[] dstRuns = new int[numMerges + 1];
+      for (int i = 0; i < numMerges; i++)
+        dstRuns[i] = srcRuns[2 * i];
+      dstRuns[numMerges] = srcRuns[numRuns];
+      srcRuns = dstRuns;
+      numRuns = numMerges;
+      src = 1 - src;
+    }
+    if (src != 0)
+      b.copyRange(1, fromIndex, fromIndex, length);
+  }
+
+  /**
+   * Sorts the given range of an array using the given number of threads. The
+   * range is divided into equal chunks which are sorted in parallel and then
+   * merged in pairs in parallel. The sort is stable as the merge prefers the
+   * left chunk for equal elements. Hence, it produces exactly the same order
+   * as {@link Arrays#sort(Object[], int, int, Comparator)}.
+   * @param a - the array to sort
+   * @param fromIndex - the index of the first element to sort
+   * @param toIndex - the index after the last element to sort
+   * @param c - the comparator used to compare elements
+   * @param parallelism - maximum number of threads to use
+   * @throws InterruptedException
+   */
+  public static <T> void sort(final T[] a, final int fromIndex, int toIndex,
+      final Comparator<? super T> c, int parallelism) throws InterruptedException {
+    if (parallelism <= 1 || toIndex - fromIndex < MinParallelSortSize) {
+      Arrays.sort(a, fromIndex, toIndex, c);
+      return;
+    }
+    final T[] tmp = a.clone();
+    mergeSort(new SortBuffers() {
+      @Override
+      public void sortRange(int from, int to) {
+        Arrays.sort(a, from, to, c);
+      }
+
+      @Override
+      public boolean lessOrEqual(int buffer, int i, int j) {
+        T[] src = buffer == 0 ? a : tmp;
+        return c.compare(src[i], src[j]) <= 0;
+      }
+
+      @Override
+      public void copy(int buffer, int i, int j) {
+        if (buffer == 0)
+          tmp[j] = a[i];
+        else
+          a[j] = tmp[i];
+      }
+
+      @Override
+      public void copyRange(int buffer, int i, int j, int length) {
+        if (buffer == 0)
+          System.arraycopy(a, i, tmp, j, length);
+        else
+          System.arraycopy(tmp, i, a, j, length);
+      }
+    }, fromIndex, toIndex, parallelism);
+  }
+
+  /**
+   * Sorts an array of longs using the given number of threads similar to
+   * {@link #sort(Object[], int, int, Comparator, int)}.
+   * @param a - the array to sort
+   * @param parallelism - maximum number of threads to use
+   * @throws InterruptedException
+   */
+  public static void sort(final long[] a, int parallelism) throws InterruptedException {
+    if (parallelism <= 1 || a.length < MinParallelSortSize) {
+      Arrays.sort(a);
+      return;
+    }
+    final long[] tmp = new long[a.length];
+    mergeSort(new SortBuffers() {
+      @Override
+      public void sortRange(int from, int to) {
+        Arrays.sort(a, from, to);
+      }
+
+      @Override
+      public boolean lessOrEqual(int buffer, int i, int j) {
+        long[] src = buffer == 0 ? a : tmp;
+        return src[i] <= src[j];
+      }
+
+      @Override
+      public void copy(int buffer, int i, int j) {
+        if (buffer == 0)
+          tmp[j] = a[i];
+        else
+          a[j] = tmp[i];
+      }
+
+      @Override
+      public void copyRange(int buffer, int i, int j, int length) {
+        if (buffer == 0)
+          System.arraycopy(a, i, tmp, j, length);
+        else
+          System.arraycopy(tmp, i, a, j, length);
+      }
+    }, 0, a.length, parallelism);
+  }
+
   /**
    * @param args
    * @throws InterruptedException 
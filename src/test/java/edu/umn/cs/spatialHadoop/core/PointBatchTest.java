@@ -0,0 +1,58 @@
+package edu.umn.cs.spatialHadoop.core;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link PointBatch}.
+ */
+public class PointBatchTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public PointBatchTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(PointBatchTest.class);
+  }
+
+  public void testSelectInRangeMatchesRectangle() {
+    PointBatch batch = new PointBatch(100, new Point());
+    for (int x = 0; x < 10; x++)
+      for (int y = 0; y < 10; y++)
+        batch.add(x, y);
+    assertTrue(batch.isFull());
+    Rectangle range = new Rectangle(2, 3, 5, 7.5);
+    assertEquals(3 * 5, batch.selectInRange(range));
+    int count = 0;
+    for (Point p : batch) {
+      assertTrue(range.isIntersected(p));
+      count++;
+    }
+    assertEquals(15, count);
+  }
+
+  public void testNoSelectionReturnsAll() {
+    PointBatch batch = new PointBatch(4, new Point());
+    batch.add(1, 2);
+    batch.add(3, 4);
+    assertEquals(2, batch.getSelectedCount());
+    double sum = 0;
+    for (Point p : batch)
+      sum += p.x + p.y;
+    assertEquals(10.0, sum, 1E-9);
+    batch.clear();
+    assertEquals(0, batch.size());
+    assertFalse(batch.iterator().hasNext());
+  }
+}
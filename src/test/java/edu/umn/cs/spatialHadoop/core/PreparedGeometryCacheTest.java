@@ -0,0 +1,101 @@
+package edu.umn.cs.spatialHadoop.core;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Unit test for {@link PreparedGeometryCache}.
+ */
+public class PreparedGeometryCacheTest extends TestCase {
+
+  private static final GeometryFactory Factory = new GeometryFactory();
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public PreparedGeometryCacheTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(PreparedGeometryCacheTest.class);
+  }
+
+  /**
+   * Creates a random star-shaped polygon with the given number of vertices
+   */
+  private static Geometry randomPolygon(Random random, int numVertices) {
+    double cx = random.nextDouble() * 100, cy = random.nextDouble() * 100;
+    Coordinate[] coords = new Coordinate[numVertices + 1];
+    for (int i = 0; i < numVertices; i++) {
+      double angle = 2 * Math.PI * i / numVertices;
+      double radius = 1 + random.nextDouble() * 10;
+      coords[i] = new Coordinate(cx + radius * Math.cos(angle),
+          cy + radius * Math.sin(angle));
+    }
+    coords[numVertices] = coords[0];
+    return Factory.createPolygon(Factory.createLinearRing(coords), null);
+  }
+
+  public void testEvictsLeastRecentlyUsed() throws ParseException {
+    WKTReader reader = new WKTReader();
+    Geometry a = reader.read("POLYGON((0 0, 1 0, 1 1, 0 0))");
+    Geometry b = reader.read("POLYGON((0 0, 2 0, 2 2, 0 0))");
+    Geometry c = reader.read("POLYGON((0 0, 3 0, 3 3, 0 0))");
+    PreparedGeometryCache cache = new PreparedGeometryCache(2);
+    cache.get(a);
+    cache.get(b);
+    cache.get(a);
+    cache.get(c);
+    assertEquals(2, cache.size());
+    assertTrue(cache.contains(a));
+    assertFalse(cache.contains(b));
+    assertTrue(cache.contains(c));
+  }
+
+  public void testLooksUpByReference() throws ParseException {
+    WKTReader reader = new WKTReader();
+    String wkt = "POLYGON((0 0, 1 0, 1 1, 0 0))";
+    Geometry r = reader.read(wkt);
+    Geometry s = reader.read(wkt);
+    PreparedGeometryCache cache = new PreparedGeometryCache();
+    assertNotSame(cache.get(r), cache.get(s));
+    assertSame(r, cache.get(r).getGeometry());
+    assertSame(s, cache.get(s).getGeometry());
+    assertEquals(2, cache.size());
+  }
+
+  public void testPreparedMatchesUnprepared() {
+    Random random = new Random(0);
+    Geometry[] geoms = new Geometry[100];
+    for (int i = 0; i < geoms.length; i++)
+      geoms[i] = randomPolygon(random, 3 + random.nextInt(50));
+    // A small capacity forces entries to be evicted and prepared again
+    PreparedGeometryCache cache = new PreparedGeometryCache(10);
+    for (Geometry g1 : geoms) {
+      for (Geometry g2 : geoms) {
+        assertEquals(g1.intersects(g2), cache.intersects(g1, g2));
+        assertEquals(g1.intersects(g2), cache.isIntersected(
+            new OGCJTSShape(g1), new OGCJTSShape(g2)));
+        assertEquals(g1.intersects(g2), cache.isIntersectedPrepared(
+            new OGCJTSShape(g1), new OGCJTSShape(g2)));
+      }
+    }
+    assertTrue(cache.size() <= 10);
+  }
+}
@@ -0,0 +1,169 @@
+package edu.umn.cs.spatialHadoop.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.mapred.OutputCollector;
+
+/**
+ * Unit test for the plane-sweep join algorithms in {@link SpatialAlgorithms}.
+ */
+public class SpatialAlgorithmsTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public SpatialAlgorithmsTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SpatialAlgorithmsTest.class);
+  }
+
+  private Rectangle[] randomRectangles(Random random, int count) {
+    Rectangle[] rects = new Rectangle[count];
+    for (int i = 0; i < count; i++) {
+      // Use integer coordinates to have many touching rectangles
+      double x = random.nextInt(100), y = random.nextInt(100);
+      rects[i] = new Rectangle(x, y, x + random.nextInt(10), y + random.nextInt(10));
+    }
+    return rects;
+  }
+
+  public void testSpatialJoinMatchesNestedLoops() {
+    Random random = new Random(0);
+    Rectangle[] R = randomRectangles(random, 300);
+    Rectangle[] S = randomRectangles(random, 300);
+    int expected = 0;
+    for (Rectangle r : R)
+      for (Rectangle s : S)
+        if (r.isIntersected(s))
+          expected++;
+    assertTrue(expected > 0);
+    assertEquals(expected, SpatialAlgorithms.SpatialJoin_planeSweep(R, S,
+        new ResultCollector2<Rectangle, Rectangle>() {
+      @Override
+      public void collect(Rectangle r, Rectangle s) {
+        assertTrue(r.isIntersected(s));
+      }
+    }, null));
+    assertEquals(expected,
+        SpatialAlgorithms.SpatialJoin_planeSweepFilterOnly(R, S, null, null));
+  }
+
+  public void testSelfJoinMatchesNestedLoops() throws IOException {
+    Random random = new Random(1);
+    Rectangle[] R = randomRectangles(random, 300);
+    int expected = 0;
+    for (int i = 0; i < R.length; i++)
+      for (int j = 0; j < R.length; j++)
+        if (i != j && R[i].isIntersected(R[j]))
+          expected++;
+    assertEquals(expected, SpatialAlgorithms.SelfJoin_planeSweep(R, true,
+        new OutputCollector<Rectangle, Rectangle>() {
+      @Override
+      public void collect(Rectangle r, Rectangle s) {
+        assertNotSame(r, s);
+      }
+    }, null));
+    assertEquals(expected, SpatialAlgorithms.SelfJoin_planeSweep(R, false,
+        null, null));
+  }
+
+  public void testParallelJoinMatchesPlaneSweep() throws IOException,
+      InterruptedException {
+    Random random = new Random(2);
+    Rectangle[] R = randomRectangles(random, 1000);
+    Rectangle[] S = randomRectangles(random, 1000);
+    // Some shapes in S are equal to shapes in R
+    for (int i = 0; i < 10; i++)
+      S[i * 10] = R[i * 7].clone();
+    // Equal shapes are not reported by the join of lists
+    int expected = SpatialAlgorithms.SpatialJoin_planeSweep(Arrays.asList(R),
+        Arrays.asList(S), null, null);
+    assertTrue(expected < SpatialAlgorithms.SpatialJoin_planeSweep(R, S, null, null));
+    // Result pairs are compared by reference to detect duplicates
+    final Map<Shape, Set<Shape>> results = new IdentityHashMap<Shape, Set<Shape>>();
+    final int[] numResults = new int[1];
+    long actual = SpatialAlgorithms.spatialJoinParallel(Arrays.asList(R),
+        Arrays.asList(S), new ResultCollector2<Shape, Shape>() {
+      @Override
+      public void collect(Shape r, Shape s) {
+        synchronized (results) {
+          Set<Shape> matches = results.get(r);
+          if (matches == null) {
+            matches = Collections.newSetFromMap(new IdentityHashMap<Shape, Boolean>());
+            results.put(r, matches);
+          }
+          // Each pair should be reported exactly once
+          assertTrue(matches.add(s));
+          assertFalse(r.equals(s));
+          numResults[0]++;
+        }
+      }
+    }, 4);
+    assertEquals(expected, actual);
+    assertEquals(expected, numResults[0]);
+  }
+
+  public void testDistanceJoinMatchesNestedLoops() throws IOException {
+    Random random = new Random(3);
+    Rectangle[] R = randomRectangles(random, 300);
+    Rectangle[] S = randomRectangles(random, 300);
+    final double distance = 3;
+    int expected = 0;
+    for (Rectangle r : R)
+      for (Rectangle s : S)
+        if (r.getMinDistance(s) <= distance)
+          expected++;
+    assertTrue(expected > SpatialAlgorithms.SpatialJoin_planeSweep(R, S, null, null));
+    assertEquals(expected, SpatialAlgorithms.DistanceJoin_planeSweep(
+        Arrays.asList(R), Arrays.asList(S), distance,
+        new ResultCollector2<Rectangle, Rectangle>() {
+      @Override
+      public void collect(Rectangle r, Rectangle s) {
+        assertTrue(r.getMinDistance(s) <= distance);
+      }
+    }, null));
+  }
+
+  public void testParallelJoinStopsAtLimit() throws IOException,
+      InterruptedException {
+    Random random = new Random(4);
+    Rectangle[] R = randomRectangles(random, 1000);
+    Rectangle[] S = randomRectangles(random, 1000);
+    int total = SpatialAlgorithms.SpatialJoin_planeSweep(Arrays.asList(R),
+        Arrays.asList(S), null, null);
+    final AtomicInteger numResults = new AtomicInteger();
+    ResultCollector2<Shape, Shape> counter = new ResultCollector2<Shape, Shape>() {
+      @Override
+      public void collect(Shape r, Shape s) {
+        numResults.incrementAndGet();
+      }
+    };
+    long limit = total / 3;
+    assertEquals(limit, SpatialAlgorithms.spatialJoinParallel(Arrays.asList(R),
+        Arrays.asList(S), counter, 4, limit));
+    assertEquals(limit, numResults.get());
+    // A limit above the result size has no effect
+    assertEquals(total, SpatialAlgorithms.spatialJoinParallel(Arrays.asList(R),
+        Arrays.asList(S), null, 4, total + 1));
+  }
+}
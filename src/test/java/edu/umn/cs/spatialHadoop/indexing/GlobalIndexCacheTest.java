@@ -0,0 +1,137 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+
+/**
+ * Unit test for {@link GlobalIndexCache}.
+ */
+public class GlobalIndexCacheTest extends TestCase {
+
+  private FileSystem fs;
+  private Path testDir = new Path("target/global_index_cache_test");
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public GlobalIndexCacheTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(GlobalIndexCacheTest.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    fs = FileSystem.getLocal(new Configuration());
+    fs.delete(testDir, true);
+    GlobalIndexCache.clear();
+    GlobalIndexCache.setCapacity(2);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    GlobalIndexCache.clear();
+    GlobalIndexCache.setCapacity(32);
+    fs.delete(testDir, true);
+    super.tearDown();
+  }
+
+  /**
+   * Writes a master file with the given number of partitions in a new
+   * directory.
+   */
+  private Path writeIndex(String name, int numPartitions) throws IOException {
+    Path dir = new Path(testDir, name);
+    fs.mkdirs(dir);
+    FSDataOutputStream out = fs.create(new Path(dir, "_master.grid"));
+    Text line = new Text();
+    for (int i = 0; i < numPartitions; i++) {
+      Partition p = new Partition(String.format("part-%05d", i),
+          new CellInfo(i + 1, i, 0, i + 1, 1));
+      line.clear();
+      p.toText(line);
+      out.write(line.getBytes(), 0, line.getLength());
+      out.write('\n');
+    }
+    out.close();
+    return dir;
+  }
+
+  public void testReturnsSharedReadOnlyIndex() throws IOException {
+    Path dir = writeIndex("dir1", 5);
+    GlobalIndex<Partition> gindex1 = GlobalIndexCache.getGlobalIndex(fs, dir);
+    GlobalIndex<Partition> gindex2 = GlobalIndexCache.getGlobalIndex(fs, dir);
+    assertEquals(5, gindex1.size());
+    assertSame(gindex1, gindex2);
+    assertTrue(gindex1.isReadOnly());
+    try {
+      gindex1.setCompact(true);
+      fail("A cached global index should not be modifiable");
+    } catch (UnsupportedOperationException e) {
+      // Expected
+    }
+    // A copy of the cached index can be modified
+    GlobalIndex<Partition> copy = gindex1.copy();
+    copy.setCompact(true);
+    assertFalse(gindex1.isCompact());
+
+    Partition p = GlobalIndexCache.getPartition(fs, new Path(dir, "part-00003"));
+    assertEquals("part-00003", p.filename);
+    assertEquals(3.0, p.x1);
+    assertNull(GlobalIndexCache.getPartition(fs, new Path(dir, "part-00009")));
+  }
+
+  public void testEvictsLeastRecentlyUsed() throws IOException {
+    Path dir1 = writeIndex("dir1", 1);
+    Path dir2 = writeIndex("dir2", 2);
+    Path dir3 = writeIndex("dir3", 3);
+    GlobalIndex<Partition> gindex1 = GlobalIndexCache.getGlobalIndex(fs, dir1);
+    GlobalIndex<Partition> gindex2 = GlobalIndexCache.getGlobalIndex(fs, dir2);
+    // Access dir1 to make dir2 the least recently used one
+    assertSame(gindex1, GlobalIndexCache.getGlobalIndex(fs, dir1));
+    GlobalIndexCache.getGlobalIndex(fs, dir3);
+    assertSame(gindex1, GlobalIndexCache.getGlobalIndex(fs, dir1));
+    GlobalIndex<Partition> gindex2Again = GlobalIndexCache.getGlobalIndex(fs, dir2);
+    assertNotSame(gindex2, gindex2Again);
+    assertEquals(2, gindex2Again.size());
+  }
+
+  public void testInvalidatesRewrittenDirectory() throws IOException {
+    Path dir = writeIndex("dir1", 4);
+    GlobalIndex<Partition> gindex1 = GlobalIndexCache.getGlobalIndex(fs, dir);
+    assertEquals(4, gindex1.size());
+    long modificationTime = fs.getFileStatus(dir).getModificationTime();
+
+    // Rewrite the directory with a different index
+    fs.delete(dir, true);
+    writeIndex("dir1", 7);
+    // The local file system might keep modification times in seconds
+    if (fs.getFileStatus(dir).getModificationTime() == modificationTime)
+      fs.setTimes(dir, modificationTime + 1000, -1);
+
+    GlobalIndex<Partition> gindex2 = GlobalIndexCache.getGlobalIndex(fs, dir);
+    assertNotSame(gindex1, gindex2);
+    assertEquals(7, gindex2.size());
+    assertNotNull(GlobalIndexCache.getPartition(fs, new Path(dir, "part-00006")));
+  }
+}
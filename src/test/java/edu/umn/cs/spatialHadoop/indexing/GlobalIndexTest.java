@@ -0,0 +1,144 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+
+/**
+ * Unit test for {@link GlobalIndex}. All queries are compared with a
+ * brute-force scan over random partitions.
+ */
+public class GlobalIndexTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public GlobalIndexTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(GlobalIndexTest.class);
+  }
+
+  private static Rectangle[] randomRectangles(Random random, int count) {
+    Rectangle[] rects = new Rectangle[count];
+    for (int i = 0; i < count; i++) {
+      double x = random.nextInt(1000), y = random.nextInt(1000);
+      rects[i] = new Rectangle(x, y, x + random.nextInt(50), y + random.nextInt(50));
+    }
+    return rects;
+  }
+
+  private static GlobalIndex<Rectangle> buildIndex(Rectangle[] rects) {
+    GlobalIndex<Rectangle> gindex = new GlobalIndex<Rectangle>();
+    gindex.bulkLoad(rects);
+    return gindex;
+  }
+
+  public void testRangeQueryMatchesBruteForce() {
+    Random random = new Random(0);
+    for (int trial = 0; trial < 50; trial++) {
+      Rectangle[] rects = randomRectangles(random, random.nextInt(2000));
+      GlobalIndex<Rectangle> gindex = buildIndex(rects);
+      assertEquals(rects.length, gindex.size());
+      for (int q = 0; q < 20; q++) {
+        double x = random.nextInt(1000), y = random.nextInt(1000);
+        Rectangle query = new Rectangle(x, y, x + random.nextInt(200),
+            y + random.nextInt(200));
+        List<String> expected = new ArrayList<String>();
+        for (Rectangle r : rects) {
+          if (r.isIntersected(query))
+            expected.add(r.toString());
+        }
+        final List<String> actual = new ArrayList<String>();
+        int count = gindex.rangeQuery(query, new ResultCollector<Rectangle>() {
+          @Override
+          public void collect(Rectangle r) {
+            actual.add(r.toString());
+          }
+        });
+        assertEquals(expected.size(), count);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+      }
+    }
+  }
+
+  public void testKNNMatchesBruteForce() {
+    Random random = new Random(1);
+    for (int trial = 0; trial < 50; trial++) {
+      Rectangle[] rects = randomRectangles(random, random.nextInt(2000));
+      GlobalIndex<Rectangle> gindex = buildIndex(rects);
+      for (int q = 0; q < 20; q++) {
+        final double qx = random.nextDouble() * 1000;
+        final double qy = random.nextDouble() * 1000;
+        int k = 1 + random.nextInt(50);
+        double[] distances = new double[rects.length];
+        for (int i = 0; i < rects.length; i++)
+          distances[i] = rects[i].distanceTo(qx, qy);
+        Arrays.sort(distances);
+
+        final List<Double> actual = new ArrayList<Double>();
+        int count = gindex.knn(qx, qy, k, new ResultCollector2<Rectangle, Double>() {
+          @Override
+          public void collect(Rectangle r, Double distance) {
+            assertEquals(r.distanceTo(qx, qy), distance.doubleValue(), 0);
+            actual.add(distance);
+          }
+        });
+        // Compare distances only as shapes at the same distance can be
+        // reported in any order
+        int expectedCount = Math.min(k, rects.length);
+        assertEquals(expectedCount, count);
+        assertEquals(expectedCount, actual.size());
+        for (int i = 0; i < expectedCount; i++)
+          assertEquals(distances[i], actual.get(i).doubleValue(), 0);
+      }
+    }
+  }
+
+  public void testSpatialJoinMatchesBruteForce() {
+    Random random = new Random(2);
+    for (int trial = 0; trial < 30; trial++) {
+      Rectangle[] rects1 = randomRectangles(random, random.nextInt(500));
+      Rectangle[] rects2 = randomRectangles(random, random.nextInt(500));
+      List<String> expected = new ArrayList<String>();
+      for (Rectangle r : rects1) {
+        for (Rectangle s : rects2) {
+          if (r.isIntersected(s))
+            expected.add(r + " " + s);
+        }
+      }
+      final List<String> actual = new ArrayList<String>();
+      int count = GlobalIndex.spatialJoin(buildIndex(rects1), buildIndex(rects2),
+          new ResultCollector2<Rectangle, Rectangle>() {
+        @Override
+        public void collect(Rectangle r, Rectangle s) {
+          actual.add(r + " " + s);
+        }
+      });
+      assertEquals(expected.size(), count);
+      Collections.sort(expected);
+      Collections.sort(actual);
+      assertEquals(expected, actual);
+    }
+  }
+}
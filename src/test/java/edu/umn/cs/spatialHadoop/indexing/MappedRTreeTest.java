@@ -0,0 +1,136 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+
+/**
+ * Unit test for {@link MappedRTree}. All results are compared with those of
+ * {@link RTree} reading the same bytes.
+ */
+public class MappedRTreeTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public MappedRTreeTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(MappedRTreeTest.class);
+  }
+
+  /**
+   * Writes two R-trees, one after the other, over random rectangles
+   */
+  private static byte[] writeTrees(Random random, boolean binaryLeaves) {
+    DataOutputBuffer out = new DataOutputBuffer();
+    for (int tree = 0; tree < 2; tree++) {
+      DataOutputBuffer lines = new DataOutputBuffer();
+      Text text = new Text();
+      for (int i = 0; i < 3000; i++) {
+        // Integer coordinates are parsed back exactly from text
+        int x = random.nextInt(10000), y = random.nextInt(10000);
+        text.clear();
+        new Rectangle(x, y, x + random.nextInt(100), y + random.nextInt(100)).toText(text);
+        lines.write(text.getBytes(), 0, text.getLength());
+        lines.write('\n');
+      }
+      RTree.bulkLoadWrite(lines.getData(), 0, lines.getLength(), 8, out,
+          new Rectangle(), true, binaryLeaves);
+    }
+    byte[] bytes = new byte[out.getLength()];
+    System.arraycopy(out.getData(), 0, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  private static RTree<Rectangle> readTree(byte[] bytes, int offset,
+      boolean binaryLeaves) throws IOException {
+    RTree<Rectangle> rtree = new RTree<Rectangle>();
+    rtree.setStockObject(new Rectangle());
+    rtree.setBinaryLeaves(binaryLeaves);
+    rtree.readFields(new DataInputStream(
+        new ByteArrayInputStream(bytes, offset, bytes.length - offset)));
+    return rtree;
+  }
+
+  private static List<String> toSortedList(Iterable<Rectangle> rects) {
+    List<String> list = new ArrayList<String>();
+    for (Rectangle r : rects)
+      list.add(r.toString());
+    Collections.sort(list);
+    return list;
+  }
+
+  private void checkSameAsRTree(boolean binaryLeaves) throws IOException {
+    Random random = new Random(binaryLeaves ? 1 : 0);
+    byte[] bytes = writeTrees(random, binaryLeaves);
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    int offset = 0;
+    for (int tree = 0; tree < 2; tree++) {
+      RTree<Rectangle> rtree = readTree(bytes, offset, binaryLeaves);
+      MappedRTree<Rectangle> mappedTree = new MappedRTree<Rectangle>(buffer,
+          offset, new Rectangle(), binaryLeaves);
+      assertEquals(rtree.getElementCount(), mappedTree.getElementCount());
+      assertEquals(toSortedList(rtree), toSortedList(mappedTree));
+
+      for (int q = 0; q < 20; q++) {
+        // Query boundaries never touch the integer coordinates of records
+        double x = random.nextInt(9000) + 0.5, y = random.nextInt(9000) + 0.5;
+        Rectangle query = new Rectangle(x, y, x + random.nextInt(1000),
+            y + random.nextInt(1000));
+        final List<String> expected = new ArrayList<String>();
+        int expectedCount = rtree.search(query, new ResultCollector<Rectangle>() {
+          @Override
+          public void collect(Rectangle r) {
+            expected.add(r.toString());
+          }
+        });
+        final List<String> actual = new ArrayList<String>();
+        int actualCount = mappedTree.search(query, new ResultCollector<Rectangle>() {
+          @Override
+          public void collect(Rectangle r) {
+            actual.add(r.toString());
+          }
+        });
+        assertEquals(expectedCount, actualCount);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+        assertEquals(expected, toSortedList(mappedTree.search(query)));
+      }
+      offset = mappedTree.getEndOffset();
+    }
+    assertEquals(bytes.length, offset);
+  }
+
+  public void testTextLeaves() throws IOException {
+    checkSameAsRTree(false);
+  }
+
+  public void testBinaryLeaves() throws IOException {
+    checkSameAsRTree(true);
+  }
+}
@@ -0,0 +1,67 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+
+/**
+ * Unit test for {@link PackedRTree}.
+ */
+public class PackedRTreeTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public PackedRTreeTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(PackedRTreeTest.class);
+  }
+
+  public void testSearchMatchesLinearScan() {
+    Random random = new Random(0);
+    for (int trial = 0; trial < 20; trial++) {
+      List<Rectangle> rects = new ArrayList<Rectangle>();
+      int count = random.nextInt(1000);
+      for (int i = 0; i < count; i++) {
+        double x = random.nextInt(100), y = random.nextInt(100);
+        rects.add(new Rectangle(x, y, x + random.nextInt(5), y + random.nextInt(5)));
+      }
+      PackedRTree<Rectangle> tree =
+          new PackedRTree<Rectangle>(rects, 2 + random.nextInt(20));
+      assertEquals(count, tree.size());
+      for (int q = 0; q < 20; q++) {
+        double x = random.nextInt(100), y = random.nextInt(100);
+        Rectangle range = new Rectangle(x, y, x + random.nextInt(20), y + random.nextInt(20));
+        int expectedOverlap = 0, expectedTouch = 0;
+        for (Rectangle r : rects) {
+          if (r.isIntersected(range))
+            expectedOverlap++;
+          if (r.x1 <= range.x2 && range.x1 <= r.x2 && r.y1 <= range.y2 && range.y1 <= r.y2)
+            expectedTouch++;
+        }
+        assertEquals(expectedOverlap, tree.search(range, false, null));
+        assertEquals(expectedTouch, tree.search(range, true, null));
+      }
+    }
+  }
+
+  public void testEmptyTree() {
+    PackedRTree<Rectangle> tree = new PackedRTree<Rectangle>(new ArrayList<Rectangle>());
+    assertEquals(0, tree.search(0, 0, 10, 10, true, null));
+  }
+}
@@ -0,0 +1,84 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+
+/**
+ * A microbenchmark that measures the time of building the STR, Kd-tree, and
+ * Quad-tree partitioners with 1 up to N threads. It also checks that all
+ * thread counts produce exactly the same partitions.
+ * Usage: PartitionerBenchmark [max threads] [number of points]
+ */
+public class PartitionerBenchmark {
+
+  @SuppressWarnings("unchecked")
+  private static final Class<? extends Partitioner>[] PartitionerClasses =
+      new Class[] {STRPartitioner.class, KdTreePartitioner.class,
+      QuadTreePartitioner.class};
+
+  /**
+   * Generates random points with a skewed distribution
+   * @param numPoints
+   * @param seed
+   * @return
+   */
+  private static Point[] randomPoints(int numPoints, long seed) {
+    Random random = new Random(seed);
+    Point[] points = new Point[numPoints];
+    for (int i = 0; i < numPoints; i++) {
+      // Square the coordinates to get a denser region near the origin
+      double x = random.nextDouble(), y = random.nextDouble();
+      points[i] = new Point(x * x * 1000, y * y * 1000);
+    }
+    return points;
+  }
+
+  private static byte[] serialize(Partitioner p) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    p.write(out);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  public static void main(String[] args) throws Exception {
+    int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) :
+      Runtime.getRuntime().availableProcessors();
+    int numPoints = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+    int capacity = numPoints / 1000;
+    Point[] points = randomPoints(numPoints, 0);
+    Rectangle mbr = new Rectangle(0, 0, 1000, 1000);
+
+    for (Class<? extends Partitioner> klass : PartitionerClasses) {
+      // Warm up the JIT before taking any measurements
+      Partitioner p = klass.newInstance();
+      p.setParallelism(maxThreads);
+      p.createFromPoints(mbr, points.clone(), capacity);
+
+      byte[] expected = null;
+      for (int numThreads = 1; numThreads <= maxThreads; numThreads++) {
+        p = klass.newInstance();
+        p.setParallelism(numThreads);
+        Point[] input = points.clone();
+        long t1 = System.nanoTime();
+        p.createFromPoints(mbr, input, capacity);
+        long t2 = System.nanoTime();
+        byte[] actual = serialize(p);
+        if (expected == null)
+          expected = actual;
+        else if (!Arrays.equals(expected, actual))
+          throw new RuntimeException(klass.getSimpleName()+" with "+numThreads+
+              " threads does not match the single-threaded partitioner");
+        System.out.printf("%s %d threads: %d partitions in %.3f seconds\n",
+            klass.getSimpleName(), numThreads, p.getPartitionCount(),
+            (t2 - t1) * 1E-9);
+      }
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Queue;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+
+/**
+ * Unit test for {@link Partitioner}.
+ */
+public class PartitionerTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public PartitionerTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(PartitionerTest.class);
+  }
+
+  public void testOverlapPartitionsWithIntArray() {
+    Random random = new Random(0);
+    Rectangle mbr = new Rectangle(0, 0, 1000, 1000);
+    Point[] points = new Point[10000];
+    for (int i = 0; i < points.length; i++)
+      points[i] = new Point(random.nextDouble() * 1000, random.nextDouble() * 1000);
+    Partitioner[] partitioners = {new GridPartitioner(), new STRPartitioner(),
+        new KdTreePartitioner(), new QuadTreePartitioner()};
+    IntArray matches = new IntArray();
+    for (Partitioner p : partitioners) {
+      p.createFromPoints(mbr, points.clone(), 100);
+      for (int i = 0; i < 1000; i++) {
+        double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000;
+        Rectangle query = new Rectangle(x, y, x + random.nextDouble() * 200,
+            y + random.nextDouble() * 200);
+        final IntArray expected = new IntArray();
+        p.overlapPartitions(query, new ResultCollector<Integer>() {
+          @Override
+          public void collect(Integer r) {
+            expected.add(r);
+          }
+        });
+        matches.clear();
+        p.overlapPartitions(query, matches);
+        expected.sort();
+        matches.sort();
+        assertTrue(p.getClass().getSimpleName()+" returned different partitions",
+            Arrays.equals(expected.toArray(), matches.toArray()));
+      }
+    }
+  }
+
+  public void testKdTreeShapesOnSplitLines() {
+    Random random = new Random(1);
+    Rectangle mbr = new Rectangle(0, 0, 1000, 1000);
+    Point[] points = new Point[10000];
+    for (int i = 0; i < points.length; i++)
+      points[i] = new Point(random.nextInt(1000), random.nextInt(1000));
+    KdTreePartitioner p = new KdTreePartitioner();
+    p.createFromPoints(mbr, points, 100);
+    IntArray matches = new IntArray();
+    for (int i = 0; i < p.getPartitionCount(); i++) {
+      CellInfo cell = p.getPartitionAt(i);
+      // Zero-area shapes on the corner and on the lower and left edges of
+      // the partition, i.e., on the split lines of the tree
+      Rectangle[] queries = {
+          new Rectangle(cell.x1, cell.y1, cell.x1, cell.y1),
+          new Rectangle(cell.x1, cell.y1, cell.x1, cell.y2),
+          new Rectangle(cell.x1, cell.y1, cell.x2, cell.y1),
+      };
+      for (Rectangle query : queries) {
+        matches.clear();
+        p.overlapPartitions(query, matches);
+        assertFalse("No partition for "+query, matches.isEmpty());
+        assertTrue(matches.contains(p.overlapPartition(query)));
+        final IntArray collected = new IntArray();
+        p.overlapPartitions(query, new ResultCollector<Integer>() {
+          @Override
+          public void collect(Integer r) {
+            collected.add(r);
+          }
+        });
+        collected.sort();
+        matches.sort();
+        assertTrue(Arrays.equals(collected.toArray(), matches.toArray()));
+      }
+    }
+  }
+
+  /**
+   * Builds the splits of a K-d tree by fully sorting each subrange with a
+   * stable sort as in the original implementation of
+   * {@link KdTreePartitioner}.
+   */
+  private static double[] kdTreeSplitsBySorting(Point[] points, int capacity) {
+    int numSplits = (int) Math.ceil((double)points.length / capacity);
+    String[] ids = new String[numSplits];
+    for (int id = numSplits; id < 2 * numSplits; id++)
+      ids[id - numSplits] = Integer.toBinaryString(id);
+    @SuppressWarnings("unchecked")
+    Comparator<Point>[] comparators = new Comparator[] {
+      new Comparator<Point>() {
+        @Override
+        public int compare(Point a, Point b) {
+          return a.x < b.x? -1 : (a.x > b.x? 1 : 0);
+        }},
+      new Comparator<Point>() {
+        @Override
+        public int compare(Point a, Point b) {
+          return a.y < b.y? -1 : (a.y > b.y? 1 : 0);
+        }}
+    };
+    double[] splits = new double[numSplits];
+    // Each task is {fromIndex, toIndex, direction, partitionID}
+    Queue<int[]> splitTasks = new ArrayDeque<int[]>();
+    splitTasks.add(new int[] {0, points.length, 0, 1});
+    while (!splitTasks.isEmpty()) {
+      int[] task = splitTasks.remove();
+      if (task[3] >= numSplits)
+        continue;
+      String child1 = Integer.toBinaryString(task[3] * 2);
+      String child2 = Integer.toBinaryString(task[3] * 2 + 1);
+      int size_child1 = 0, size_child2 = 0;
+      for (String id : ids) {
+        if (id.startsWith(child1))
+          size_child1++;
+        else if (id.startsWith(child2))
+          size_child2++;
+      }
+      int splitIndex = (int) (((long)size_child1 * task[1] + (long)size_child2 * task[0])
+          / (size_child1 + size_child2));
+      Arrays.sort(points, task[0], task[1], comparators[task[2]]);
+      splits[task[3]] = task[2] == 0 ? points[splitIndex].x : points[splitIndex].y;
+      splitTasks.add(new int[] {task[0], splitIndex, 1 - task[2], task[3] * 2});
+      splitTasks.add(new int[] {splitIndex, task[1], 1 - task[2], task[3] * 2 + 1});
+    }
+    return splits;
+  }
+
+  public void testKdTreeMatchesSortedSplitsWithTies() throws IOException {
+    Random random = new Random(2);
+    Rectangle mbr = new Rectangle(0, 0, 20, 20);
+    Point[] points = new Point[20000];
+    for (int i = 0; i < points.length; i++) {
+      // Very few distinct values along both axes
+      points[i] = new Point(random.nextInt(20), random.nextInt(20));
+    }
+    double[] splits = kdTreeSplitsBySorting(points.clone(), 150);
+    DataOutputBuffer expected = new DataOutputBuffer();
+    mbr.write(expected);
+    expected.writeInt(splits.length);
+    for (double split : splits)
+      expected.writeDouble(split);
+    for (int parallelism = 1; parallelism <= 4; parallelism++) {
+      KdTreePartitioner p = new KdTreePartitioner();
+      p.setParallelism(parallelism);
+      p.createFromPoints(mbr, points.clone(), 150);
+      DataOutputBuffer actual = new DataOutputBuffer();
+      p.write(actual);
+      assertEquals(expected.getLength(), actual.getLength());
+      assertTrue("Different partitioner with "+parallelism+" threads",
+          Arrays.equals(Arrays.copyOf(expected.getData(), expected.getLength()),
+              Arrays.copyOf(actual.getData(), actual.getLength())));
+    }
+  }
+}
@@ -0,0 +1,201 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+
+/**
+ * Unit test for the bulk loading of {@link RTree}.
+ */
+public class RTreeTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public RTreeTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(RTreeTest.class);
+  }
+
+  public void testRadixSort() {
+    Random random = new Random(0);
+    int[] keys = new int[10000];
+    int[] values = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = random.nextInt(Integer.MAX_VALUE);
+      values[i] = i;
+    }
+    int[] originalKeys = keys.clone();
+    int[] sortedKeys = keys.clone();
+    Arrays.sort(sortedKeys);
+    RTree.radixSort(keys, values);
+    assertTrue(Arrays.equals(sortedKeys, keys));
+    // Values are moved along with their keys
+    for (int i = 0; i < keys.length; i++)
+      assertEquals(originalKeys[values[i]], keys[i]);
+  }
+
+  public void testSortByHilbertValues() {
+    Random random = new Random(1);
+    double[] xs = new double[1000];
+    double[] ys = new double[xs.length];
+    int[] offsets = new int[xs.length];
+    for (int i = 0; i < xs.length; i++) {
+      xs[i] = random.nextDouble() * 100;
+      ys[i] = random.nextDouble() * 100;
+      offsets[i] = i;
+    }
+    // Hilbert values are computed over the MBR of all points
+    Rectangle mbr = new Rectangle(xs[0], ys[0], xs[0], ys[0]);
+    for (int i = 1; i < xs.length; i++)
+      mbr.expand(xs[i], ys[i]);
+    RTree.sortByHilbertValues(xs, ys, offsets);
+    int previousH = -1;
+    for (int offset : offsets) {
+      int h = HilbertCurvePartitioner.computeHValue(mbr, xs[offset], ys[offset]);
+      assertTrue(h >= previousH);
+      previousH = h;
+    }
+  }
+
+  public void testBulkLoadFromRecords() throws IOException {
+    Random random = new Random(2);
+    DataOutputBuffer lines = new DataOutputBuffer();
+    DataOutputBuffer records = new DataOutputBuffer();
+    Text text = new Text();
+    for (int i = 0; i < 20000; i++) {
+      // Integer coordinates are parsed back exactly from text
+      Point p = new Point(random.nextInt(10000), random.nextInt(10000));
+      text.clear();
+      p.toText(text);
+      lines.write(text.getBytes(), 0, text.getLength());
+      lines.write('\n');
+      RTree.writeTextRecord(records, p, text);
+    }
+    int degree = 4096 / RTree.NodeSize;
+    for (boolean hilbertPacking : new boolean[] {false, true}) {
+      DataOutputBuffer expected = new DataOutputBuffer();
+      RTree.bulkLoadWrite(lines.getData(), 0, lines.getLength(), degree,
+          expected, new Point(), true, false, hilbertPacking);
+      DataOutputBuffer actual = new DataOutputBuffer();
+      RTree.bulkLoadWriteRecords(records.getData(), 0, records.getLength(),
+          degree, actual, false, hilbertPacking);
+      assertEquals(expected.getLength(), actual.getLength());
+      assertTrue(Arrays.equals(
+          Arrays.copyOf(expected.getData(), expected.getLength()),
+          Arrays.copyOf(actual.getData(), actual.getLength())));
+    }
+  }
+
+  public void testBulkLoadFromBinaryRecords() throws IOException {
+    Random random = new Random(4);
+    for (int count : new int[] {1, 7, 100, 5000}) {
+      DataOutputBuffer lines = new DataOutputBuffer();
+      DataOutputBuffer records = new DataOutputBuffer();
+      DataOutputBuffer recordBuffer = new DataOutputBuffer();
+      Text text = new Text();
+      for (int i = 0; i < count; i++) {
+        // Integer coordinates are parsed back exactly from text
+        int x = random.nextInt(10000), y = random.nextInt(10000);
+        Rectangle r = new Rectangle(x, y, x + random.nextInt(100),
+            y + random.nextInt(100));
+        text.clear();
+        r.toText(text);
+        lines.write(text.getBytes(), 0, text.getLength());
+        lines.write('\n');
+        RTree.writeBinaryRecord(records, r, recordBuffer);
+      }
+      for (int degree : new int[] {4, 4096 / RTree.NodeSize}) {
+        for (boolean hilbertPacking : new boolean[] {false, true}) {
+          // Records parsed from text and records with decoded MBRs should
+          // give the same tree
+          DataOutputBuffer expected = new DataOutputBuffer();
+          RTree.bulkLoadWrite(lines.getData(), 0, lines.getLength(), degree,
+              expected, new Rectangle(), true, true, hilbertPacking);
+          DataOutputBuffer actual = new DataOutputBuffer();
+          RTree.bulkLoadWriteRecords(records.getData(), 0, records.getLength(),
+              degree, actual, true, hilbertPacking);
+          assertEquals(expected.getLength(), actual.getLength());
+          assertTrue(Arrays.equals(
+              Arrays.copyOf(expected.getData(), expected.getLength()),
+              Arrays.copyOf(actual.getData(), actual.getLength())));
+        }
+      }
+    }
+  }
+
+  public void testHilbertPackingSearch() throws IOException {
+    Random random = new Random(3);
+    Rectangle[] rects = new Rectangle[10000];
+    DataOutputBuffer lines = new DataOutputBuffer();
+    Text text = new Text();
+    for (int i = 0; i < rects.length; i++) {
+      // Integer coordinates are parsed back exactly from text
+      int x = random.nextInt(10000), y = random.nextInt(10000);
+      rects[i] = new Rectangle(x, y, x + 1 + random.nextInt(100),
+          y + 1 + random.nextInt(100));
+      text.clear();
+      rects[i].toText(text);
+      lines.write(text.getBytes(), 0, text.getLength());
+      lines.write('\n');
+    }
+    int degree = 4096 / RTree.NodeSize;
+    for (boolean binaryLeaves : new boolean[] {false, true}) {
+      DataOutputBuffer treeData = new DataOutputBuffer();
+      RTree.bulkLoadWrite(lines.getData(), 0, lines.getLength(), degree,
+          treeData, new Rectangle(), true, binaryLeaves, true);
+      RTree<Rectangle> rtree = new RTree<Rectangle>();
+      rtree.setStockObject(new Rectangle());
+      rtree.setBinaryLeaves(binaryLeaves);
+      rtree.readFields(new DataInputStream(new ByteArrayInputStream(
+          treeData.getData(), 0, treeData.getLength())));
+      assertEquals(rects.length, rtree.getElementCount());
+      for (int q = 0; q < 100; q++) {
+        int x = random.nextInt(10000), y = random.nextInt(10000);
+        Rectangle query = new Rectangle(x, y, x + random.nextInt(1000),
+            y + random.nextInt(1000));
+        // Brute-force scan over all records
+        List<String> expected = new ArrayList<String>();
+        for (Rectangle r : rects)
+          if (r.isIntersected(query))
+            expected.add(r.toString());
+        final List<String> actual = new ArrayList<String>();
+        int resultCount = rtree.search(query, new ResultCollector<Rectangle>() {
+          @Override
+          public void collect(Rectangle r) {
+            actual.add(r.toString());
+          }
+        });
+        assertEquals(expected.size(), resultCount);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual);
+      }
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Random;
+
+import edu.umn.cs.spatialHadoop.core.Circle;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the {@link SpatialBlockFile} format.
+ */
+public class SpatialBlockFileTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public SpatialBlockFileTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SpatialBlockFileTest.class);
+  }
+
+  /**
+   * Writes a grid of 10x10 points, one per line, in the block format
+   */
+  private byte[] writePoints(int blockCapacity, boolean compress) throws IOException {
+    StringBuilder lines = new StringBuilder();
+    for (int x = 0; x < 10; x++)
+      for (int y = 0; y < 10; y++)
+        lines.append(x).append(',').append(y).append('\n');
+    byte[] text = lines.toString().getBytes();
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bout);
+    SpatialBlockFile.bulkLoadWrite(text, 0, text.length, new Point(), out,
+        blockCapacity, compress);
+    out.close();
+    return bout.toByteArray();
+  }
+
+  private <S extends Shape> SpatialBlockFile.Reader<S> open(byte[] data, S shape)
+      throws IOException {
+    return new SpatialBlockFile.Reader<S>(new DataInputStream(
+        new ByteArrayInputStream(data)), shape);
+  }
+
+  public void testReadAllPoints() throws IOException {
+    for (boolean compress : new boolean[] {false, true}) {
+      SpatialBlockFile.Reader<Point> reader = open(writePoints(16, compress), new Point());
+      int count = 0, numBlocks = 0;
+      double sum = 0;
+      while (reader.nextBlock()) {
+        numBlocks++;
+        assertTrue(reader.getBlockRecordCount() <= 16);
+        Rectangle mbr = reader.getBlockMBR();
+        for (Point p : reader.readBlock()) {
+          assertTrue(mbr.contains(p.x, p.y) || p.x == mbr.x2 || p.y == mbr.y2);
+          sum += p.x * 10 + p.y;
+          count++;
+        }
+      }
+      assertEquals(7, numBlocks);
+      assertEquals(100, count);
+      assertEquals(99 * 100 / 2, sum, 1E-9);
+    }
+  }
+
+  public void testSkipBlocks() throws IOException {
+    SpatialBlockFile.Reader<Point> reader = open(writePoints(16, false), new Point());
+    Rectangle query = new Rectangle(-0.5, -0.5, 1.5, 1.5);
+    int count = 0, numReadBlocks = 0;
+    while (reader.nextBlock()) {
+      if (!reader.isBlockOverlapping(query))
+        continue;
+      numReadBlocks++;
+      for (Point p : reader.readBlock().search(query)) {
+        assertTrue(query.contains(p.x, p.y));
+        count++;
+      }
+    }
+    assertEquals(4, count);
+    assertTrue(numReadBlocks < 7);
+  }
+
+  public void testRecordsLayout() throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bout);
+    SpatialBlockFile.Writer<Circle> writer =
+        new SpatialBlockFile.Writer<Circle>(out, new Circle(), 3, true);
+    for (int i = 0; i < 10; i++)
+      writer.write(new Circle(i, i, 0.5));
+    writer.close();
+    out.close();
+
+    SpatialBlockFile.Reader<Circle> reader = open(bout.toByteArray(), new Circle());
+    Rectangle query = new Rectangle(2.9, 2.9, 5.1, 5.1);
+    int count = 0;
+    while (reader.nextBlock()) {
+      for (Circle c : reader.readBlock().search(query)) {
+        assertTrue(c.getMBR().isIntersected(query));
+        count++;
+      }
+    }
+    assertEquals(3, count);
+  }
+
+  public void testRecordsLayoutReturnsMatchedRecords() throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bout);
+    SpatialBlockFile.Writer<Circle> writer =
+        new SpatialBlockFile.Writer<Circle>(out, new Circle(), 7, false);
+    Random random = new Random(1);
+    Circle[] circles = new Circle[100];
+    for (int i = 0; i < circles.length; i++) {
+      circles[i] = new Circle(random.nextDouble() * 100,
+          random.nextDouble() * 100, random.nextDouble() * 5);
+      writer.write(circles[i]);
+    }
+    writer.close();
+    out.close();
+
+    Rectangle query = new Rectangle(20, 30, 60, 50);
+    int expectedCount = 0;
+    double expectedSum = 0;
+    for (Circle c : circles) {
+      if (query.isIntersected(c)) {
+        expectedCount++;
+        expectedSum += c.getMBR().x1;
+      }
+    }
+
+    SpatialBlockFile.Reader<Circle> reader = open(bout.toByteArray(), new Circle());
+    int count = 0;
+    double sum = 0;
+    while (reader.nextBlock()) {
+      Iterator<Circle> records = reader.readBlock().search(query).iterator();
+      // Calling hasNext more than once should not skip or change records
+      while (records.hasNext() && records.hasNext()) {
+        Circle c = records.next();
+        assertTrue(query.isIntersected(c));
+        count++;
+        sum += c.getMBR().x1;
+      }
+    }
+    assertEquals(expectedCount, count);
+    assertEquals(expectedSum, sum, 1E-9);
+  }
+}
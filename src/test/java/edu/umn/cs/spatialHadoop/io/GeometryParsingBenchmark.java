@@ -0,0 +1,89 @@
+package edu.umn.cs.spatialHadoop.io;
+
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.io.Text;
+
+import com.vividsolutions.jts.geom.Geometry;
+
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
+
+/**
+ * A microbenchmark that measures the throughput of
+ * {@link TextSerializerHelper#consumeGeometryJTS(Text, char)} when polygons
+ * are parsed by 1 up to N threads in parallel.
+ * Usage: GeometryParsingBenchmark [max threads] [number of polygons]
+ */
+public class GeometryParsingBenchmark {
+
+  /**
+   * Generates the WKT of a random polygon with the given number of points
+   * @param numPoints
+   * @param seed
+   * @return
+   */
+  private static byte[] randomPolygon(int numPoints, long seed) {
+    Random random = new Random(seed);
+    double cx = random.nextDouble() * 1000, cy = random.nextDouble() * 1000;
+    StringBuilder wkt = new StringBuilder("POLYGON((");
+    double firstX = 0, firstY = 0;
+    for (int i = 0; i < numPoints; i++) {
+      double angle = 2 * Math.PI * i / numPoints;
+      double r = 1 + random.nextDouble();
+      double x = cx + r * Math.cos(angle), y = cy + r * Math.sin(angle);
+      if (i == 0) {
+        firstX = x;
+        firstY = y;
+      }
+      wkt.append(x).append(' ').append(y).append(", ");
+    }
+    // Close the ring with the first point
+    wkt.append(firstX).append(' ').append(firstY).append("))");
+    return wkt.toString().getBytes();
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) :
+      Runtime.getRuntime().availableProcessors();
+    int numPolygons = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+    final byte[][] polygons = new byte[numPolygons][];
+    for (int i = 0; i < numPolygons; i++)
+      polygons[i] = randomPolygon(20, i);
+
+    // Warm up the JIT before taking any measurements
+    parseAll(polygons, maxThreads);
+
+    for (int numThreads = 1; numThreads <= maxThreads; numThreads++) {
+      long t1 = System.nanoTime();
+      int parsed = parseAll(polygons, numThreads);
+      long t2 = System.nanoTime();
+      double seconds = (t2 - t1) * 1E-9;
+      System.out.printf("%d threads: parsed %d polygons in %.3f seconds (%.0f polygons/sec)\n",
+          numThreads, parsed, seconds, parsed / seconds);
+    }
+  }
+
+  private static int parseAll(final byte[][] polygons, int numThreads)
+      throws InterruptedException {
+    List<Integer> results = Parallel.forEach(polygons.length, new RunnableRange<Integer>() {
+      @Override
+      public Integer run(int i1, int i2) {
+        Text text = new Text();
+        int count = 0;
+        for (int i = i1; i < i2; i++) {
+          text.set(polygons[i]);
+          Geometry geom = TextSerializerHelper.consumeGeometryJTS(text, '\0');
+          if (geom != null)
+            count++;
+        }
+        return count;
+      }
+    }, numThreads);
+    int total = 0;
+    for (Integer result : results)
+      total += result;
+    return total;
+  }
+}
@@ -62,4 +62,62 @@ public class TextSerializerHelperTest extends TestCase {
     int dummyInt = TextSerializerHelper.consumeInt(text, '\0');
     assertEquals(1234, dummyInt);
   }
+
+  public void testDeserializeDouble() {
+    String[] values = {"0", "-0", "1", "-12.5", "3.141592653589793",
+        "0.1", "123456789.987654321", "1e10", "-2.5E-3", "+7", ".5",
+        "1.7976931348623157E308", "4.9E-324", "0.30000000000000004"};
+    for (String value : values) {
+      byte[] bytes = value.getBytes();
+      assertEquals(value, Double.parseDouble(value),
+          TextSerializerHelper.deserializeDouble(bytes, 0, bytes.length), 0.0);
+    }
+  }
+
+  public void testConsumeDoubles() {
+    Text text = new Text("1.5,-2.25,3e2,7");
+    assertEquals(1.5, TextSerializerHelper.consumeDouble(text, ','), 0.0);
+    assertEquals(-2.25, TextSerializerHelper.consumeDouble(text, ','), 0.0);
+    assertEquals(300.0, TextSerializerHelper.consumeDouble(text, ','), 0.0);
+    assertEquals(7, TextSerializerHelper.consumeInt(text, '\0'));
+    assertEquals(0, text.getLength());
+  }
+
+  public void testCursorConsume() {
+    Text text = new Text("12,0.25,ff\tremaining");
+    TextCursor cursor = new TextCursor(text);
+    assertEquals(12L, cursor.nextLong(','));
+    assertEquals(0.25, cursor.nextDouble(','), 0.0);
+    assertEquals(255L, cursor.nextHexLong('\t'));
+    cursor.consume(text);
+    assertEquals("remaining", text.toString());
+  }
+
+  public void testParseWKTInParallel() throws InterruptedException {
+    final Throwable[] error = new Throwable[1];
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int size = t + 1;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            Text text = new Text();
+            for (int i = 0; i < 1000; i++) {
+              text.set(String.format("POLYGON((0 0, %d 0, %d %d, 0 %d, 0 0))",
+                  size, size, size, size));
+              Geometry geom = TextSerializerHelper.consumeGeometryJTS(text, '\0');
+              assertEquals(size * size, geom.getArea(), 1E-5);
+            }
+          } catch (Throwable e) {
+            error[0] = e;
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    assertNull(error[0]);
+  }
 }
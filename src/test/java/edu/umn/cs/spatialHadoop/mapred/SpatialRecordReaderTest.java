@@ -0,0 +1,133 @@
+package edu.umn.cs.spatialHadoop.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.ArrayWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.FileSplit;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.RTree;
+import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
+
+/**
+ * Unit test for {@link SpatialRecordReader}.
+ */
+public class SpatialRecordReaderTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public SpatialRecordReaderTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SpatialRecordReaderTest.class);
+  }
+
+  /**
+   * Writes an R-tree file with binary leaves over the given rectangles and
+   * returns the sorted text of all rectangles.
+   */
+  private static List<String> writeBinaryRTree(FileSystem fs, Path file,
+      Rectangle[] rects) throws IOException {
+    DataOutputBuffer lines = new DataOutputBuffer();
+    Text text = new Text();
+    List<String> expected = new ArrayList<String>();
+    for (Rectangle r : rects) {
+      text.clear();
+      r.toText(text);
+      lines.write(text.getBytes(), 0, text.getLength());
+      lines.write('\n');
+      expected.add(r.toString());
+    }
+    Collections.sort(expected);
+    FSDataOutputStream out = fs.create(file, true);
+    out.writeLong(SpatialSite.RTreeBinaryFileMarker);
+    RTree.bulkLoadWrite(lines.getData(), 0, lines.getLength(),
+        4096 / RTree.NodeSize, out, new Rectangle(), true, true);
+    out.close();
+    return expected;
+  }
+
+  public void testReadBinaryLeavesAsShapes() throws IOException {
+    Random random = new Random(0);
+    Rectangle[] rects = new Rectangle[5000];
+    for (int i = 0; i < rects.length; i++) {
+      // Integer coordinates are parsed back exactly from text
+      int x = random.nextInt(10000), y = random.nextInt(10000);
+      rects[i] = new Rectangle(x, y, x + random.nextInt(100), y + random.nextInt(100));
+    }
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path("target/binary_rtree_test");
+    Path file = new Path(dir, "part-00000");
+    try {
+      List<String> expected = writeBinaryRTree(fs, file, rects);
+      OperationsParams.setShape(conf, "shape", new Rectangle());
+      FileSplit split = new FileSplit(file, 0, fs.getFileStatus(file).getLen(),
+          new String[0]);
+
+      // One shape at a time
+      ShapeRecordReader<Rectangle> shapeReader =
+          new ShapeRecordReader<Rectangle>(conf, split);
+      List<String> actual = new ArrayList<String>();
+      Rectangle key = shapeReader.createKey();
+      Rectangle value = new Rectangle();
+      while (shapeReader.next(key, value))
+        actual.add(value.toString());
+      shapeReader.close();
+      Collections.sort(actual);
+      assertEquals(expected, actual);
+
+      // Arrays of shapes
+      ShapeArrayRecordReader arrayReader = new ShapeArrayRecordReader(conf, split);
+      actual.clear();
+      ArrayWritable values = new ArrayWritable(Rectangle.class);
+      while (arrayReader.next(key, values))
+        for (Writable w : values.get())
+          actual.add(w.toString());
+      arrayReader.close();
+      Collections.sort(actual);
+      assertEquals(expected, actual);
+
+      // An iterator over shapes
+      ShapeIterRecordReader iterReader = new ShapeIterRecordReader(conf, split);
+      iterReader.setShape(new Rectangle());
+      actual.clear();
+      ShapeIterator iter = iterReader.createValue();
+      while (iterReader.next(key, iter))
+        for (Shape s : iter)
+          actual.add(s.toString());
+      iterReader.close();
+      Collections.sort(actual);
+      assertEquals(expected, actual);
+    } finally {
+      fs.delete(dir, true);
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package edu.umn.cs.spatialHadoop.mapreduce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.RTree;
+
+/**
+ * Unit test for {@link RTreeRecordReader3}. A file of R-trees is read through
+ * a memory-mapped buffer and through a stream and both are compared with the
+ * records written to the file.
+ */
+public class RTreeRecordReader3Test extends TestCase {
+
+  private Configuration conf;
+  private FileSystem fs;
+  private Path file = new Path("target/rtree_reader3_test/part-00000");
+  private Rectangle[] rects;
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public RTreeRecordReader3Test(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(RTreeRecordReader3Test.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    conf = new Configuration();
+    fs = FileSystem.getLocal(conf);
+    OperationsParams.setShape(conf, "shape", new Rectangle());
+    Random random = new Random(0);
+    rects = new Rectangle[10000];
+    for (int i = 0; i < rects.length; i++) {
+      // Integer coordinates are parsed back exactly from text
+      int x = random.nextInt(10000), y = random.nextInt(10000);
+      rects[i] = new Rectangle(x, y, x + random.nextInt(100), y + random.nextInt(100));
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    fs.delete(file.getParent(), true);
+    super.tearDown();
+  }
+
+  /**
+   * Writes all rectangles to a file of four R-trees
+   */
+  private void writeFile(boolean binaryLeaves) throws IOException {
+    FSDataOutputStream out = fs.create(file, true);
+    out.writeLong(binaryLeaves ? SpatialSite.RTreeBinaryFileMarker
+        : SpatialSite.RTreeFileMarker);
+    int treeSize = rects.length / 4;
+    Text text = new Text();
+    for (int start = 0; start < rects.length; start += treeSize) {
+      DataOutputBuffer lines = new DataOutputBuffer();
+      for (int i = start; i < start + treeSize; i++) {
+        text.clear();
+        rects[i].toText(text);
+        lines.write(text.getBytes(), 0, text.getLength());
+        lines.write('\n');
+      }
+      RTree.bulkLoadWrite(lines.getData(), 0, lines.getLength(), 8, out,
+          new Rectangle(), true, binaryLeaves);
+    }
+    out.close();
+  }
+
+  /**
+   * Reads all records in the file with the current configuration
+   */
+  private List<String> readFile(boolean expectMapped)
+      throws IOException, InterruptedException {
+    RTreeRecordReader3<Rectangle> reader = new RTreeRecordReader3<Rectangle>();
+    reader.initialize(new FileSplit(file, 0, fs.getFileStatus(file).getLen(),
+        new String[0]), conf);
+    assertEquals(expectMapped, reader.isMapped());
+    List<String> records = new ArrayList<String>();
+    while (reader.nextKeyValue()) {
+      for (Rectangle r : reader.getCurrentValue())
+        records.add(r.toString());
+    }
+    reader.close();
+    Collections.sort(records);
+    return records;
+  }
+
+  private List<String> expectedRecords(Rectangle query) {
+    List<String> expected = new ArrayList<String>();
+    for (Rectangle r : rects) {
+      if (query == null || query.isIntersected(r))
+        expected.add(r.toString());
+    }
+    Collections.sort(expected);
+    return expected;
+  }
+
+  private void checkAllReadPaths(boolean binaryLeaves)
+      throws IOException, InterruptedException {
+    writeFile(binaryLeaves);
+    long fileLength = fs.getFileStatus(file).getLen();
+    // Query boundaries never touch the integer coordinates of records
+    Rectangle[] queries = {null, new Rectangle(1000.5, 2000.5, 3500.5, 2600.5),
+        new Rectangle(-10.5, -10.5, 20000.5, 20000.5)};
+    for (Rectangle query : queries) {
+      if (query == null)
+        conf.unset(SpatialInputFormat3.InputQueryRange);
+      else
+        OperationsParams.setShape(conf, SpatialInputFormat3.InputQueryRange, query);
+      List<String> expected = expectedRecords(query);
+
+      // The whole file in one mapped buffer
+      conf.setBoolean(SpatialSite.RTREE_MEMORY_MAP, true);
+      conf.setInt(SpatialSite.RTREE_MAX_MAPPED_BYTES, Integer.MAX_VALUE);
+      assertEquals(expected, readFile(true));
+
+      // A file bigger than the mapping limit is read through a stream
+      conf.setInt(SpatialSite.RTREE_MAX_MAPPED_BYTES, (int) (fileLength / 3));
+      assertEquals(expected, readFile(false));
+
+      // Memory mapping disabled
+      conf.setBoolean(SpatialSite.RTREE_MEMORY_MAP, false);
+      assertEquals(expected, readFile(false));
+    }
+  }
+
+  public void testTextLeaves() throws IOException, InterruptedException {
+    checkAllReadPaths(false);
+  }
+
+  public void testBinaryLeaves() throws IOException, InterruptedException {
+    checkAllReadPaths(true);
+  }
+}
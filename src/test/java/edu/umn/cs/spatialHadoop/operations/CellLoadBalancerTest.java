@@ -0,0 +1,199 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.conf.Configuration;
+
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.indexing.KdTreePartitioner;
+import edu.umn.cs.spatialHadoop.indexing.Partitioner;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+
+/**
+ * Unit test for {@link CellLoadBalancer}.
+ */
+public class CellLoadBalancerTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public CellLoadBalancerTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(CellLoadBalancerTest.class);
+  }
+
+  public void testHeavyCellsGoToDifferentReducers() {
+    int[] cellIds = {1, 2, 3, 4, 5, 6};
+    long[] loads = {100, 1, 100, 1, 1, 1};
+    int[] reducers = CellLoadBalancer.assignCells(cellIds, loads, 2);
+    assertTrue(reducers[0] != reducers[2]);
+    long[] reducerLoads = new long[2];
+    for (int i = 0; i < cellIds.length; i++)
+      reducerLoads[reducers[i]] += loads[i];
+    assertEquals(102, reducerLoads[0]);
+    assertEquals(102, reducerLoads[1]);
+  }
+
+  public void testAssignmentInConfiguration() {
+    Configuration conf = new Configuration();
+    assertNull(CellLoadBalancer.getAssignment(conf));
+    assertEquals(7 % 3, CellLoadBalancer.getReducer(null, 7, 3));
+
+    CellLoadBalancer.setAssignment(conf, new int[] {7, 9}, new int[] {2, 0});
+    Map<Integer, Integer> assignment = CellLoadBalancer.getAssignment(conf);
+    assertEquals(2, CellLoadBalancer.getReducer(assignment, 7, 3));
+    assertEquals(0, CellLoadBalancer.getReducer(assignment, 9, 3));
+    // Cells that are not assigned are hashed
+    assertEquals(11 % 3, CellLoadBalancer.getReducer(assignment, 11, 3));
+  }
+
+  /**
+   * Creates a partitioner with a few cells from a uniform sample and a
+   * sample of the actual data where most points are in a small region.
+   */
+  private static Point[] skewedSample(Random random, int size) {
+    Point[] sample = new Point[size];
+    for (int i = 0; i < size; i++) {
+      if (i % 10 == 0)
+        sample[i] = new Point(random.nextDouble() * 100, random.nextDouble() * 100);
+      else
+        sample[i] = new Point(20 + random.nextDouble() * 10, 20 + random.nextDouble() * 10);
+    }
+    return sample;
+  }
+
+  private static Partitioner uniformPartitioner(Random random, Rectangle mbr) {
+    Point[] uniform = new Point[100];
+    for (int i = 0; i < uniform.length; i++)
+      uniform[i] = new Point(random.nextDouble() * 100, random.nextDouble() * 100);
+    Partitioner partitioner = new KdTreePartitioner();
+    partitioner.createFromPoints(mbr, uniform, 25);
+    return partitioner;
+  }
+
+  public void testSplitHotCells() {
+    Random random = new Random(0);
+    Rectangle mbr = new Rectangle(0, 0, 100, 100);
+    Partitioner base = uniformPartitioner(random, mbr);
+    Point[] sample = skewedSample(random, 1000);
+    int numReducers = 4;
+    Partitioner split = CellLoadBalancer.splitHotCells(base, sample, numReducers);
+    assertTrue(split.getPartitionCount() > base.getPartitionCount());
+
+    long[] loads = CellLoadBalancer.estimateLoads(split, sample);
+    long totalLoad = 0;
+    for (long load : loads) {
+      assertTrue(load <= sample.length / numReducers);
+      totalLoad += load;
+    }
+    assertEquals(sample.length, totalLoad);
+    // Cell IDs are unique
+    Set<Integer> cellIds = new HashSet<Integer>();
+    for (int i = 0; i < split.getPartitionCount(); i++)
+      assertTrue(cellIds.add(split.getPartitionAt(i).cellId));
+
+    // A partitioner without hot cells is not changed
+    assertSame(split, CellLoadBalancer.splitHotCells(split, sample, numReducers));
+  }
+
+  public void testReferencePointReportsEachPairOnce() throws IOException {
+    Random random = new Random(1);
+    Rectangle mbr = new Rectangle(0, 0, 100, 100);
+    Partitioner split = CellLoadBalancer.splitHotCells(
+        uniformPartitioner(random, mbr), skewedSample(random, 1000), 4);
+    // Use the partitioner as read by the tasks of a job
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    split.write(new DataOutputStream(bout));
+    Partitioner readSplit = new CellLoadBalancer.SplitCellPartitioner();
+    readSplit.readFields(new DataInputStream(
+        new ByteArrayInputStream(bout.toByteArray())));
+    assertEquals(split.getPartitionCount(), readSplit.getPartitionCount());
+
+    Rectangle[] R = new Rectangle[300], S = new Rectangle[300];
+    for (int i = 0; i < R.length; i++) {
+      R[i] = randomRectangle(random);
+      S[i] = randomRectangle(random);
+    }
+    // Replicate the records of both inputs to all overlapping cells
+    Map<Integer, List<Integer>> cellsR = replicate(readSplit, R);
+    Map<Integer, List<Integer>> cellsS = replicate(readSplit, S);
+    Set<Long> reportedPairs = new HashSet<Long>();
+    for (Map.Entry<Integer, List<Integer>> cellR : cellsR.entrySet()) {
+      List<Integer> cellS = cellsS.get(cellR.getKey());
+      if (cellS == null)
+        continue;
+      CellInfo cell = readSplit.getPartition(cellR.getKey());
+      for (int i : cellR.getValue()) {
+        for (int j : cellS) {
+          if (!R[i].isIntersected(S[j]))
+            continue;
+          double refX = Math.max(R[i].x1, S[j].x1);
+          double refY = Math.max(R[i].y1, S[j].y1);
+          if (cell.contains(refX, refY))
+            assertTrue(reportedPairs.add((long) i * S.length + j));
+        }
+      }
+    }
+    int expectedCount = 0;
+    for (Rectangle r : R)
+      for (Rectangle s : S)
+        if (r.isIntersected(s))
+          expectedCount++;
+    assertEquals(expectedCount, reportedPairs.size());
+  }
+
+  private static Rectangle randomRectangle(Random random) {
+    double x, y;
+    if (random.nextBoolean()) {
+      x = 18 + random.nextDouble() * 12;
+      y = 18 + random.nextDouble() * 12;
+    } else {
+      x = 1 + random.nextDouble() * 90;
+      y = 1 + random.nextDouble() * 90;
+    }
+    return new Rectangle(x, y, x + random.nextDouble() * 5, y + random.nextDouble() * 5);
+  }
+
+  private static Map<Integer, List<Integer>> replicate(Partitioner partitioner,
+      Rectangle[] shapes) {
+    Map<Integer, List<Integer>> cells = new HashMap<Integer, List<Integer>>();
+    IntArray matches = new IntArray();
+    for (int i = 0; i < shapes.length; i++) {
+      matches.clear();
+      partitioner.overlapPartitions(shapes[i], matches);
+      for (int j = 0; j < matches.size(); j++) {
+        List<Integer> cell = cells.get(matches.get(j));
+        if (cell == null)
+          cells.put(matches.get(j), cell = new ArrayList<Integer>());
+        cell.add(i);
+      }
+    }
+    return cells;
+  }
+}
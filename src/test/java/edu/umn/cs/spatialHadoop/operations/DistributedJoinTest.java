@@ -0,0 +1,98 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+
+/**
+ * Unit test for {@link DistributedJoin}.
+ */
+public class DistributedJoinTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public DistributedJoinTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(DistributedJoinTest.class);
+  }
+
+  /**
+   * Writes a job output directory with one file per task where task i
+   * wrote taskPairs[i] result pairs.
+   */
+  private static void writeOutput(FileSystem fs, Path dir, int[] taskPairs)
+      throws IOException {
+    fs.delete(dir, true);
+    for (int i = 0; i < taskPairs.length; i++) {
+      FSDataOutputStream out = fs.create(new Path(dir,
+          String.format("part-%05d", i)));
+      for (int j = 0; j < taskPairs[i]; j++)
+        out.writeBytes(i + "," + j + "\t" + j + "," + i + "\n");
+      out.close();
+    }
+    fs.create(new Path(dir, "_SUCCESS")).close();
+  }
+
+  private static long countRows(FileSystem fs, Path dir) throws IOException {
+    long rows = 0;
+    Text line = new Text();
+    for (FileStatus file : fs.listStatus(dir, SpatialSite.NonHiddenFileFilter)) {
+      LineReader in = new LineReader(fs.open(file.getPath()));
+      while (in.readLine(line) > 0)
+        rows++;
+      in.close();
+    }
+    return rows;
+  }
+
+  public void testLimitOutputKeepsExactlyLimitPairs() throws IOException {
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = new Path("target/dj_limit_test");
+    try {
+      // Each of the concurrent tasks found up to limit pairs
+      int[] taskPairs = {10, 7, 10, 0, 10};
+      long limit = 10;
+      writeOutput(fs, dir, taskPairs);
+      assertEquals(limit, DistributedJoin.limitOutput(fs, dir, limit));
+      assertEquals(limit, countRows(fs, dir));
+
+      // The limit is reached in the middle of a file
+      limit = 23;
+      writeOutput(fs, dir, taskPairs);
+      assertEquals(limit, DistributedJoin.limitOutput(fs, dir, limit));
+      assertEquals(limit, countRows(fs, dir));
+      assertTrue(fs.exists(new Path(dir, "_SUCCESS")));
+
+      // Output below the limit is kept as is
+      limit = 100;
+      writeOutput(fs, dir, taskPairs);
+      assertEquals(37, DistributedJoin.limitOutput(fs, dir, limit));
+      assertEquals(37, countRows(fs, dir));
+    } finally {
+      fs.delete(dir, true);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.conf.Configuration;
+
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+
+/**
+ * Unit test for {@link KNNJoin}.
+ */
+public class KNNJoinTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public KNNJoinTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(KNNJoinTest.class);
+  }
+
+  /**
+   * Creates a global index of a uniform grid of unit cells
+   * @param size - number of rows and columns
+   * @param recordCount - number of records in each partition
+   * @return
+   */
+  private GlobalIndex<Partition> createGrid(int size, long recordCount) {
+    Partition[] partitions = new Partition[size * size];
+    for (int row = 0; row < size; row++) {
+      for (int col = 0; col < size; col++) {
+        int id = row * size + col;
+        partitions[id] = new Partition("part-" + id,
+            new CellInfo(id, col, row, col + 1, row + 1));
+        partitions[id].recordCount = recordCount;
+      }
+    }
+    GlobalIndex<Partition> gindex = new GlobalIndex<Partition>();
+    gindex.bulkLoad(partitions);
+    return gindex;
+  }
+
+  public void testSelectCloseCells() {
+    GlobalIndex<Partition> gindex1 = createGrid(1, 10);
+    GlobalIndex<Partition> gindex2 = createGrid(4, 10);
+    final Set<String> selected = new HashSet<String>();
+    KNNJoin.KNNJoinFilter filter = new KNNJoin.KNNJoinFilter();
+    Configuration conf = new Configuration();
+    conf.setInt("k", 5);
+    filter.configure(conf);
+    filter.selectCellPairs(gindex1, gindex2,
+        new ResultCollector2<Partition, Partition>() {
+      @Override
+      public void collect(Partition r, Partition s) {
+        assertTrue(selected.add(s.filename));
+      }
+    });
+    // The first cell contains enough records. All cells within its diagonal
+    // are selected.
+    assertEquals(9, selected.size());
+    assertTrue(selected.contains("part-10"));
+    assertFalse(selected.contains("part-3"));
+  }
+
+  public void testSelectAllCellsWithFewRecords() {
+    GlobalIndex<Partition> gindex1 = createGrid(2, 10);
+    GlobalIndex<Partition> gindex2 = createGrid(4, 1);
+    final int[] numPairs = new int[1];
+    KNNJoin.KNNJoinFilter filter = new KNNJoin.KNNJoinFilter();
+    Configuration conf = new Configuration();
+    conf.setInt("k", 100);
+    filter.configure(conf);
+    filter.selectCellPairs(gindex1, gindex2,
+        new ResultCollector2<Partition, Partition>() {
+      @Override
+      public void collect(Partition r, Partition s) {
+        numPairs[0]++;
+      }
+    });
+    assertEquals(4 * 16, numPairs[0]);
+  }
+
+  public void testMaxDistance() {
+    assertEquals(5.0, KNNJoin.getMaxDistance(new CellInfo(1, 0, 0, 1, 1),
+        new CellInfo(2, 2, 3, 3, 4)), 1E-9);
+  }
+}
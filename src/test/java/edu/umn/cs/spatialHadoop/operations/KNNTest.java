@@ -0,0 +1,186 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndexCache;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
+
+/**
+ * Unit test for {@link KNN}. The parallel search over an indexed file is
+ * compared with a sequential one and with a brute-force scan.
+ */
+public class KNNTest extends TestCase {
+
+  private FileSystem fs;
+  private Path testDir = new Path("target/knn_test");
+  private Path indexDir = new Path(testDir, "index");
+  /**All points in the file as they are parsed back from text*/
+  private List<Point> points;
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public KNNTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(KNNTest.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    fs = FileSystem.getLocal(new Configuration());
+    fs.delete(testDir, true);
+    GlobalIndexCache.clear();
+    writeIndexedFile(new Random(0), 8, 200);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    GlobalIndexCache.clear();
+    fs.delete(testDir, true);
+    super.tearDown();
+  }
+
+  /**
+   * Writes random points in a uniform grid of partitions along with its
+   * master file.
+   * @param random
+   * @param gridSize - number of rows and columns
+   * @param pointsPerCell
+   * @throws IOException
+   */
+  private void writeIndexedFile(Random random, int gridSize, int pointsPerCell)
+      throws IOException {
+    points = new ArrayList<Point>();
+    FSDataOutputStream masterOut = fs.create(new Path(indexDir, "_master.grid"));
+    Text line = new Text();
+    for (int row = 0; row < gridSize; row++) {
+      for (int col = 0; col < gridSize; col++) {
+        int id = row * gridSize + col;
+        Partition partition = new Partition(String.format("part-%05d", id),
+            new CellInfo(id + 1, col * 10, row * 10, col * 10 + 10, row * 10 + 10));
+        partition.recordCount = pointsPerCell;
+        FSDataOutputStream out = fs.create(new Path(indexDir, partition.filename));
+        for (int i = 0; i < pointsPerCell; i++) {
+          line.clear();
+          new Point(partition.x1 + random.nextDouble() * 10,
+              partition.y1 + random.nextDouble() * 10).toText(line);
+          Point parsed = new Point();
+          parsed.fromText(new Text(line));
+          points.add(parsed);
+          out.write(line.getBytes(), 0, line.getLength());
+          out.write('\n');
+        }
+        out.close();
+        line.clear();
+        partition.toText(line);
+        masterOut.write(line.getBytes(), 0, line.getLength());
+        masterOut.write('\n');
+      }
+    }
+    masterOut.close();
+  }
+
+  /**
+   * Runs a local kNN query on the indexed file and returns the output lines.
+   */
+  private List<String> runKNN(Point query, int k, int parallelism)
+      throws IOException, InterruptedException, ClassNotFoundException {
+    OperationsParams params = new OperationsParams();
+    OperationsParams.setShape(params, "shape", new Point());
+    OperationsParams.setShape(params, "point", query);
+    params.setInt("k", k);
+    params.setInt("parallel", parallelism);
+    params.setBoolean("local", true);
+    Path outPath = new Path(testDir, "out_" + parallelism);
+    KNN.knn(indexDir, outPath, params);
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(outPath)));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null)
+        lines.add(line);
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  /**
+   * Finds the k nearest points by sorting all of them by their distance and
+   * formats them like the output of {@link KNN}.
+   */
+  private List<String> bruteForceKNN(final Point query, int k) {
+    List<Point> sorted = new ArrayList<Point>(points);
+    Collections.sort(sorted, new Comparator<Point>() {
+      @Override
+      public int compare(Point p1, Point p2) {
+        return Double.compare(p1.distanceTo(query.x, query.y),
+            p2.distanceTo(query.x, query.y));
+      }
+    });
+    List<String> lines = new ArrayList<String>();
+    Text text = new Text();
+    for (Point p : sorted.subList(0, Math.min(k, sorted.size()))) {
+      text.clear();
+      TextSerializerHelper.serializeDouble(p.distanceTo(query.x, query.y), text, ',');
+      p.toText(text);
+      lines.add(text.toString());
+    }
+    return lines;
+  }
+
+  public void testParallelMatchesSequential() throws Exception {
+    Random random = new Random(1);
+    int[] ks = {1, 10, 150, 1000};
+    for (int k : ks) {
+      for (int q = 0; q < 5; q++) {
+        // Some query points lie outside the indexed space
+        Point query = new Point(random.nextDouble() * 120 - 10,
+            random.nextDouble() * 120 - 10);
+        List<String> expected = bruteForceKNN(query, k);
+        List<String> sequential = runKNN(query, k, 1);
+        List<String> parallel = runKNN(query, k, 4);
+        assertEquals(expected, sequential);
+        assertEquals(expected, parallel);
+      }
+    }
+  }
+
+  public void testMoreNeighborsThanRecords() throws Exception {
+    Point query = new Point(40.5, 40.5);
+    List<String> parallel = runKNN(query, points.size() + 10, 4);
+    assertEquals(points.size(), parallel.size());
+    assertEquals(bruteForceKNN(query, points.size()), parallel);
+  }
+}
@@ -0,0 +1,79 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+
+/**
+ * Unit test for {@link ReservoirSampler}.
+ */
+public class ReservoirSamplerTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public ReservoirSamplerTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ReservoirSamplerTest.class);
+  }
+
+  public void testReservoirIsUniformAndBounded() {
+    final int[] numParsed = new int[1];
+    Point shape = new Point() {
+      @Override
+      public void fromText(Text text) {
+        numParsed[0]++;
+        super.fromText(text);
+      }
+    };
+    ReservoirSampler.Reservoir reservoir =
+        new ReservoirSampler.Reservoir(1000, new Random(0));
+    Text line = new Text();
+    int numRecords = 100000;
+    for (int i = 0; i < numRecords; i++) {
+      line.set(i + "," + i);
+      reservoir.add(shape, line);
+    }
+    assertEquals(1000, reservoir.size);
+    assertEquals(numRecords, reservoir.numRecords);
+    // Only selected records are parsed
+    assertTrue(numParsed[0] < numRecords / 10);
+    // The sample is spread over the whole input
+    double sum = 0;
+    for (int i = 0; i < reservoir.size; i++) {
+      assertEquals(reservoir.xs[i], reservoir.ys[i]);
+      sum += reservoir.xs[i];
+    }
+    assertEquals(numRecords / 2.0, sum / reservoir.size, numRecords / 20.0);
+  }
+
+  public void testSmallInputIsFullySampled() {
+    ReservoirSampler.Reservoir reservoir =
+        new ReservoirSampler.Reservoir(1000, new Random(0));
+    Text line = new Text();
+    for (int i = 0; i < 10; i++) {
+      line.set(i + "," + (i * 2));
+      reservoir.add(new Point(), line);
+    }
+    assertEquals(10, reservoir.size);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, reservoir.xs[i], 1E-9);
+      assertEquals(i * 2.0, reservoir.ys[i], 1E-9);
+    }
+  }
+}
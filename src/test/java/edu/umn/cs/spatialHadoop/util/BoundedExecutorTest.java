@@ -0,0 +1,91 @@
+package edu.umn.cs.spatialHadoop.util;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link BoundedExecutor}.
+ */
+public class BoundedExecutorTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public BoundedExecutorTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(BoundedExecutorTest.class);
+  }
+
+  public void testMemoryBudgetLimitsRunningTasks() throws IOException {
+    BoundedExecutor executor = new BoundedExecutor(4, 10 * 1024);
+    BoundedExecutor.TaskGroup group = executor.createGroup();
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    for (int i = 0; i < 10; i++) {
+      // Each task reserves more than half of the budget
+      group.submit(new Runnable() {
+        @Override
+        public void run() {
+          int r = running.incrementAndGet();
+          synchronized (maxRunning) {
+            maxRunning.set(Math.max(maxRunning.get(), r));
+          }
+          try {
+            Thread.sleep(10);
+          } catch (InterruptedException e) {
+          }
+          running.decrementAndGet();
+        }
+      }, 6 * 1024);
+    }
+    group.waitForAll(null);
+    assertEquals(1, maxRunning.get());
+    assertEquals(10, group.getNumCompletedTasks());
+    assertEquals(0, group.getNumRemainingTasks());
+    assertEquals(0, executor.getNumPendingTasks());
+  }
+
+  public void testTaskLargerThanBudgetStillRuns() throws IOException {
+    BoundedExecutor executor = new BoundedExecutor(2, 1024);
+    BoundedExecutor.TaskGroup group = executor.createGroup();
+    final AtomicInteger count = new AtomicInteger();
+    group.submit(new Runnable() {
+      @Override
+      public void run() {
+        count.incrementAndGet();
+      }
+    }, 1024 * 1024);
+    group.waitForAll(null);
+    assertEquals(1, count.get());
+  }
+
+  public void testErrorsAreReported() {
+    BoundedExecutor executor = new BoundedExecutor(2, 1024);
+    BoundedExecutor.TaskGroup group = executor.createGroup();
+    try {
+      group.submit(new Runnable() {
+        @Override
+        public void run() {
+          throw new RuntimeException("Failed task");
+        }
+      }, 0);
+      group.waitForAll(null);
+      fail("Error in a background task was not reported");
+    } catch (IOException e) {
+      assertEquals("Failed task", e.getCause().getMessage());
+    }
+  }
+}
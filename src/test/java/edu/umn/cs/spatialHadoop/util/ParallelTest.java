@@ -0,0 +1,68 @@
+package edu.umn.cs.spatialHadoop.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link Parallel}.
+ */
+public class ParallelTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public ParallelTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ParallelTest.class);
+  }
+
+  public void testSortIsStable() throws InterruptedException {
+    Random random = new Random(0);
+    // Many duplicate keys to detect any change in the order of equal elements
+    Integer[] values = new Integer[100000];
+    for (int i = 0; i < values.length; i++)
+      values[i] = new Integer(random.nextInt(100));
+    Comparator<Integer> c = new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return a.compareTo(b);
+      }
+    };
+    for (int parallelism = 1; parallelism <= 7; parallelism++) {
+      Integer[] expected = values.clone();
+      Arrays.sort(expected, 10, 90000, c);
+      Integer[] actual = values.clone();
+      Parallel.sort(actual, 10, 90000, c, parallelism);
+      for (int i = 0; i < values.length; i++)
+        assertSame("Different element at #"+i, expected[i], actual[i]);
+    }
+  }
+
+  public void testSortLongs() throws InterruptedException {
+    Random random = new Random(0);
+    long[] values = new long[100000];
+    for (int i = 0; i < values.length; i++)
+      values[i] = random.nextLong();
+    for (int parallelism = 1; parallelism <= 7; parallelism++) {
+      long[] expected = values.clone();
+      Arrays.sort(expected);
+      long[] actual = values.clone();
+      Parallel.sort(actual, parallelism);
+      assertTrue(Arrays.equals(expected, actual));
+    }
+  }
+}